@@ -28,5 +28,8 @@ public interface Cache {
     int getCurrentSize();
     int getMaxSize();
     void setMaxSize(int maxSize);
+    long getCurrentWeight();
+    long getMaxWeight();
+    void setMaxWeight(long maxWeight);
     CacheStatistics getStatistics();
 }
@@ -25,6 +25,16 @@ public interface CacheStatistics {
      */
     public int getCurrentSize();
 
+    /**
+     * Maximum approximate size in bytes of the objects the cache can hold, 0 if not bounded in bytes
+     */
+    public long getMaxWeight();
+
+    /**
+     * Approximate size in bytes of the objects in cache at this time, 0 if not bounded in bytes
+     */
+    public long getCurrentWeight();
+
     /**
      * Number of successful cache read
      */
@@ -14,7 +14,17 @@
 package org.orbeon.oxf.cache;
 
 import org.apache.commons.lang.StringUtils;
+import org.dom4j.Attribute;
+import org.dom4j.Branch;
+import org.dom4j.CharacterData;
+import org.dom4j.Element;
+import org.dom4j.Node;
 import org.orbeon.oxf.common.OXFException;
+import org.orbeon.saxon.om.Axis;
+import org.orbeon.saxon.om.NodeInfo;
+import org.orbeon.saxon.om.SequenceIterator;
+import org.orbeon.saxon.trans.XPathException;
+import org.orbeon.saxon.type.Type;
 
 import java.util.Date;
 import java.util.Iterator;
@@ -24,6 +34,12 @@ public class CacheUtils {
 
     final private static int INDENTATION = 4;
 
+    // Rough per-object overheads used to estimate the size of trees
+    final private static int DEFAULT_OBJECT_SIZE = 64;
+    final private static int DOM4J_NODE_SIZE = 64;
+    final private static int DOM4J_ELEMENT_SIZE = 128;
+    final private static int TINY_TREE_NODE_SIZE = 24;
+
     public static String validityToString(Object validity) {
         return validityToString(validity, 0);
     }
@@ -49,6 +65,97 @@ public class CacheUtils {
         }
     }
 
+    /**
+     * Whether the left validity is lower or equal to the right validity. Validities are either Long or List of
+     * validities.
+     *
+     * @param left  left validity
+     * @param right right validity
+     * @return      true iif left <= right
+     */
+    public static boolean lowerOrEqual(Object left, Object right) {
+        if (left instanceof List && right instanceof List) {
+            List leftList = (List) left;
+            List rightList = (List) right;
+            if (leftList.size() != rightList.size())
+                return false;
+            for (Iterator leftIterator = leftList.iterator(), rightIterator = rightList.iterator();leftIterator.hasNext();) {
+                Object leftObject = leftIterator.next();
+                Object rightObject = rightIterator.next();
+                if (!lowerOrEqual(leftObject, rightObject))
+                    return false;
+            }
+            return true;
+        } else if (left instanceof Long && right instanceof Long) {
+            return (Long) left <= (Long) right;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Return the approximate size in memory of an object stored in cache. This handles objects implementing Weighable
+     * (including SAXStore), dom4j nodes and Saxon trees. Other objects are given a small fixed size.
+     *
+     * @param object    object to weigh
+     * @return          approximate size in bytes
+     */
+    public static long getApproximateSize(Object object) {
+        if (object instanceof Weighable) {
+            return ((Weighable) object).getApproximateSize();
+        } else if (object instanceof Node) {
+            return getDom4jApproximateSize((Node) object);
+        } else if (object instanceof NodeInfo) {
+            return getSaxonApproximateSize((NodeInfo) object);
+        } else if (object instanceof CharSequence) {
+            return DEFAULT_OBJECT_SIZE + ((CharSequence) object).length() * 2;
+        } else if (object instanceof byte[]) {
+            return DEFAULT_OBJECT_SIZE + ((byte[]) object).length;
+        } else {
+            return DEFAULT_OBJECT_SIZE;
+        }
+    }
+
+    private static long getDom4jApproximateSize(Node node) {
+        if (node instanceof Branch) {
+            long size = (node instanceof Element) ? DOM4J_ELEMENT_SIZE : DOM4J_NODE_SIZE;
+            if (node instanceof Element) {
+                for (final Object attribute: ((Element) node).attributes()) {
+                    final Attribute currentAttribute = (Attribute) attribute;
+                    size += DOM4J_NODE_SIZE + currentAttribute.getValue().length() * 2;
+                }
+            }
+            for (final Object child: ((Branch) node).content())
+                size += getDom4jApproximateSize((Node) child);
+            return size;
+        } else if (node instanceof CharacterData || node instanceof Attribute) {
+            final String text = node.getText();
+            return DOM4J_NODE_SIZE + ((text != null) ? text.length() * 2 : 0);
+        } else {
+            return DOM4J_NODE_SIZE;
+        }
+    }
+
+    private static long getSaxonApproximateSize(NodeInfo nodeInfo) {
+        try {
+            // Count descendant nodes and text, which dominate the size of the tree
+            long size = TINY_TREE_NODE_SIZE;
+            final SequenceIterator descendants = nodeInfo.iterateAxis(Axis.DESCENDANT);
+            while (true) {
+                final NodeInfo currentNode = (NodeInfo) descendants.next();
+                if (currentNode == null)
+                    break;
+
+                size += TINY_TREE_NODE_SIZE;
+                if (currentNode.getNodeKind() == Type.TEXT)
+                    size += currentNode.getStringValueCS().length() * 2;
+            }
+            return size;
+        } catch (XPathException e) {
+            throw new OXFException(e);
+        }
+    }
+
     public static String getShortClassName(Class clazz) {
         int i = clazz.getName().lastIndexOf('.');
         if(i == -1)
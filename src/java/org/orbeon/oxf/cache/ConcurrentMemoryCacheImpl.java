@@ -0,0 +1,543 @@
+/**
+ * Copyright (C) 2011 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.cache;
+
+import org.orbeon.oxf.pipeline.api.PipelineContext;
+import org.orbeon.oxf.util.PropertyContext;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Memory cache implementation for highly concurrent access.
+ *
+ * Unlike MemoryCacheImpl, lookups don't take any lock: entries are found in a ConcurrentHashMap, and accesses are
+ * recorded in a bounded buffer which is drained into the LRU list in batches by whichever thread manages to obtain the
+ * list lock. When the buffer is full, accesses are dropped, so the LRU ordering is approximate. Modifications (add,
+ * remove, eviction) still go through the list lock, but never wait on readers.
+ *
+ * Eviction semantics are the same as MemoryCacheImpl, including Cacheable eviction locks and notifications.
+ */
+public class ConcurrentMemoryCacheImpl implements Cache {
+
+    // Number of buffered accesses after which a reader tries to drain the buffer
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+    // Maximum number of buffered accesses, after which accesses are dropped
+    private static final int READ_BUFFER_MAX_SIZE = 4 * READ_BUFFER_DRAIN_THRESHOLD;
+
+    private final String cacheName;
+    private volatile int maxSize;
+    private volatile long maxWeight;
+
+    private final String statisticsContextKey;
+
+    private final ConcurrentMap<CacheKey, CacheEntry> keyToEntryMap = new ConcurrentHashMap<CacheKey, CacheEntry>(16, 0.75f, 64);
+
+    // LRU list, size and weight, guarded by listLock
+    private final Lock listLock = new ReentrantLock();
+    private final CacheLinkedList<CacheEntry> linkedList = new CacheLinkedList<CacheEntry>();
+    private volatile int currentSize;
+    private volatile long currentWeight;
+
+    // Whether added entries must be weighed, changed with listLock held
+    private volatile boolean weighEntries;
+    // Serializes changes to the maximum weight, which weigh entries without holding listLock
+    private final Object weightSettingLock = new Object();
+
+    // Accesses not yet applied to the LRU list
+    private final Queue<CacheEntry> readBuffer = new ConcurrentLinkedQueue<CacheEntry>();
+    private final AtomicInteger readBufferSize = new AtomicInteger();
+
+    public ConcurrentMemoryCacheImpl(String cacheName, int maxSize) {
+        this.cacheName = cacheName;
+        this.maxSize = maxSize;
+
+        this.statisticsContextKey =  "concurrent-memory-cache-statistics." + cacheName;
+    }
+
+    public String getCacheName() {
+        return cacheName;
+    }
+
+    private class ConcurrentMemoryCacheStatistics implements CacheStatistics {
+
+        // Statistics can be updated from multiple threads sharing a PipelineContext
+        private final AtomicInteger hitsCount = new AtomicInteger();
+        private final AtomicInteger missCount = new AtomicInteger();
+        private final AtomicInteger addCount = new AtomicInteger();
+        private final AtomicInteger expirationCount = new AtomicInteger();
+
+        public int getMaxSize() { return maxSize; }
+        public int getCurrentSize() { return currentSize; }
+        public long getMaxWeight() { return maxWeight; }
+        public long getCurrentWeight() { return currentWeight; }
+
+        public int getHitCount() { return hitsCount.get(); }
+        public int getMissCount() { return missCount.get(); }
+        public int getAddCount() { return addCount.get(); }
+        public int getExpirationCount() { return expirationCount.get(); }
+
+        public void incrementHitsCount() { hitsCount.incrementAndGet(); }
+        public void incrementMissCount() { missCount.incrementAndGet(); }
+        public void incrementAddCount() { addCount.incrementAndGet(); }
+        public void incrementExpirationCount() { expirationCount.incrementAndGet(); }
+    }
+
+    public void add(CacheKey key, Object validity, Object cacheable) {
+        if (key == null || validity == null || maxSize == 0) return;
+        final ConcurrentMemoryCacheStatistics statistics = getStatisticsIfAvailable();
+        if (statistics != null)
+            statistics.incrementAddCount();
+
+        // Entries are never modified once published, so that readers always see a consistent validity and object
+        final CacheEntry newEntry = new CacheEntry();
+        newEntry.key = key;
+        newEntry.validity = validity;
+        newEntry.cacheable = cacheable;
+
+        while (true) {
+            // Only weigh objects if the cache is bounded in bytes, and do it before taking the lock
+            final boolean weighed = weighEntries;
+            newEntry.weight = weighed ? CacheUtils.getApproximateSize(cacheable) : 0;
+
+            listLock.lock();
+            try {
+                // Weighing was enabled or disabled meanwhile, so weigh again
+                if (weighed != weighEntries)
+                    continue;
+
+                drainReadBuffer();
+                addEntry(newEntry);
+                return;
+            } finally {
+                listLock.unlock();
+            }
+        }
+    }
+
+    // Must be called with listLock held
+    private void addEntry(CacheEntry newEntry) {
+        final long weight = newEntry.weight;
+        final CacheEntry existingEntry = keyToEntryMap.get(newEntry.key);
+        if (maxWeight > 0 && weight > maxWeight) {
+            // Object can never fit in cache, so don't keep it, and remove any outdated entry with the same key
+            if (existingEntry != null)
+                removeEntry(existingEntry, false, true);
+        } else if (existingEntry == null) {
+            // No existing entry found
+            if (currentSize >= maxSize) {
+                // Cache is full, try to evict one entry, starting from the end
+                tryEvictLast();
+                // If somehow we couldn't manage to evict an entry (e.g. all were locked), the cache will grow over
+                // maxsize.
+            }
+            if (maxWeight > 0)
+                tryEvictToWeight(maxWeight - weight);
+            currentSize++;
+            currentWeight += weight;
+
+            keyToEntryMap.put(newEntry.key, newEntry);
+            newEntry.listEntry = linkedList.addFirst(newEntry);
+
+            // Notify object
+            notifyAdded(newEntry.cacheable);
+        } else {
+            // Replace entry and move to the front
+            keyToEntryMap.put(newEntry.key, newEntry);
+            linkedList.remove(existingEntry.listEntry);
+            existingEntry.listEntry = null;
+            newEntry.listEntry = linkedList.addFirst(newEntry);
+            currentWeight += weight - existingEntry.weight;
+
+            // New object might be heavier than the previous one
+            if (maxWeight > 0)
+                tryEvictToWeight(maxWeight);
+        }
+    }
+
+    // Try to evict entries until the total weight is at most the given weight, but don't try more times than the
+    // number of elements initially in the cache. Must be called with listLock held.
+    private void tryEvictToWeight(long targetWeight) {
+        int tryCount = 0;
+        final int maxTries = currentSize;
+        while (currentWeight > targetWeight && tryCount < maxTries && tryEvictLast())
+            tryCount++;
+    }
+
+    // Must be called with listLock held
+    private boolean tryEvictLast() {
+        for (final Iterator<CacheEntry> i = linkedList.reverseIterator(); i.hasNext();) {
+            final CacheEntry entryToTry = i.next();
+            if (tryEvict(entryToTry)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Must be called with listLock held
+    private boolean tryEvict(CacheEntry entry) {
+
+        assert keyToEntryMap.get(entry.key) == entry;
+
+        // Obtain lock if possible
+        final Lock lock;
+        final boolean canEvict;
+        if (entry.cacheable instanceof Cacheable) {
+            lock = ((Cacheable) entry.cacheable).getEvictionLock();
+            canEvict = lock == null || lock.tryLock();
+        } else {
+            lock = null;
+            canEvict = true;
+        }
+
+        // Only remove object if we are allowed to
+        if (canEvict) {
+            try {
+                removeEntry(entry, true, false);
+            } finally {
+                // Release lock if we got one
+                if (lock != null)
+                    lock.unlock();
+            }
+        }
+
+        return canEvict;
+    }
+
+    public void remove(CacheKey key) {
+        listLock.lock();
+        try {
+            final CacheEntry entry = keyToEntryMap.get(key);
+            if (entry != null)
+                removeEntry(entry, false, true); // don't consider this an eviction
+        } finally {
+            listLock.unlock();
+        }
+    }
+
+    // Must be called with listLock held
+    private boolean removeEntry(CacheEntry entry, boolean isEvict, boolean isRemove) {
+        if (entry.listEntry != null && keyToEntryMap.remove(entry.key, entry)) {
+            linkedList.remove(entry.listEntry);
+            entry.listEntry = null;
+            currentSize--;
+            currentWeight -= entry.weight;
+
+            // Notify object
+            if (isEvict) {
+                notifyEvicted(entry.cacheable);
+            } else if (isRemove) {
+                notifyRemoved(entry.cacheable);
+            }
+            return true;
+        } else {
+            // Entry was concurrently removed or replaced
+            return false;
+        }
+    }
+
+    private void notifyAdded(Object object) {
+        if (object instanceof Cacheable) {
+            ((Cacheable) object).added();
+        }
+    }
+
+    private void notifyRemoved(Object object) {
+        if (object instanceof Cacheable) {
+            ((Cacheable) object).removed();
+        }
+    }
+
+    private void notifyEvicted(Object object) {
+        if (object instanceof Cacheable) {
+            ((Cacheable) object).evicted();
+        }
+        final ConcurrentMemoryCacheStatistics statistics = getStatisticsIfAvailable();
+        if (statistics != null)
+            statistics.incrementExpirationCount();
+    }
+
+    public int removeAll() {
+        listLock.lock();
+        try {
+            final int previousSize = currentSize;
+
+            // Notify objects
+            for (final CacheEntry entry : linkedList) {
+                entry.listEntry = null;
+                notifyRemoved(entry.cacheable);
+            }
+
+            keyToEntryMap.clear();
+            linkedList.clear();
+            currentSize = 0;
+            currentWeight = 0;
+
+            readBuffer.clear();
+            readBufferSize.set(0);
+
+            return previousSize;
+        } finally {
+            listLock.unlock();
+        }
+    }
+
+    // Find valid entry and record the access
+    public Object findValid(CacheKey key, Object validity) {
+        return getValid(key,  validity, false);
+    }
+
+    // Like findValid but remove from the cache (with removed() notification)
+    public Object takeValid(CacheKey key, Object validity) {
+        return getValid(key,  validity, true);
+    }
+
+    private Object getValid(CacheKey key, Object validity, boolean remove) {
+        final ConcurrentMemoryCacheStatistics statistics = getStatisticsIfAvailable();
+        final CacheEntry entry = keyToEntryMap.get(key);
+        if (entry != null && CacheUtils.lowerOrEqual(validity, entry.validity)) {
+            if (remove) {
+                // Remove and notify
+                final boolean removed;
+                listLock.lock();
+                try {
+                    removed = removeEntry(entry, false, true);
+                } finally {
+                    listLock.unlock();
+                }
+
+                if (! removed) {
+                    // Another thread took or replaced the entry first
+                    if (statistics != null)
+                        statistics.incrementMissCount();
+                    return null;
+                }
+            } else {
+                // Record access, without blocking
+                recordAccess(entry);
+            }
+
+            if (statistics != null)
+                statistics.incrementHitsCount();
+
+            return entry.cacheable;
+        } else {
+            // Not latest validity
+            if (statistics != null)
+                statistics.incrementMissCount();
+            return null;
+        }
+    }
+
+    private void recordAccess(CacheEntry entry) {
+        final int bufferSize = readBufferSize.incrementAndGet();
+        if (bufferSize <= READ_BUFFER_MAX_SIZE) {
+            readBuffer.offer(entry);
+        } else {
+            // Buffer full: drop the access
+            readBufferSize.decrementAndGet();
+        }
+
+        // Only drain if the lock is free, as readers must never wait
+        if (bufferSize >= READ_BUFFER_DRAIN_THRESHOLD && listLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                listLock.unlock();
+            }
+        }
+    }
+
+    // Must be called with listLock held
+    private void drainReadBuffer() {
+        CacheEntry entry;
+        while ((entry = readBuffer.poll()) != null) {
+            readBufferSize.decrementAndGet();
+            // Entry might have been removed or replaced since the access
+            if (entry.listEntry != null && linkedList.getFirst() != entry) {
+                // Place in first position
+                linkedList.remove(entry.listEntry);
+                entry.listEntry = linkedList.addFirst(entry);
+            }
+        }
+    }
+
+    public CacheEntry findAny(CacheKey key) {
+        // Don't update statistics here
+        return keyToEntryMap.get(key);
+    }
+
+    public int getCurrentSize() {
+        return currentSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        listLock.lock();
+        try {
+            if (maxSize != this.maxSize) {
+                // Decrease size if necessary
+                drainReadBuffer();
+
+                // Try to evict entries, but don't try more times than the number of elements initially in the cache
+                int tryCount = 0;
+                final int maxTries = currentSize;
+                while(currentSize > maxSize && tryCount < maxTries) {
+                    tryEvictLast();
+                    tryCount++;
+                }
+
+                this.maxSize = maxSize;
+            }
+        } finally {
+            listLock.unlock();
+        }
+    }
+
+    public long getCurrentWeight() {
+        return currentWeight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public void setMaxWeight(long maxWeight) {
+        synchronized (weightSettingLock) {
+            if (maxWeight == this.maxWeight)
+                return;
+
+            final boolean weigh = maxWeight > 0;
+            if (weigh != weighEntries) {
+                // Entries are only weighed when the cache is bounded in bytes. From now on, added entries are weighed
+                // or not, and entries already in the cache are replaced with weighed or unweighed copies.
+                final List<CacheEntry> entries;
+                listLock.lock();
+                try {
+                    weighEntries = weigh;
+                    drainReadBuffer();
+                    entries = new ArrayList<CacheEntry>(currentSize);
+                    for (final CacheEntry entry : linkedList)
+                        entries.add(entry);
+                } finally {
+                    listLock.unlock();
+                }
+
+                // Weigh without holding the lock, as this can take a while with large caches
+                final long[] weights = new long[entries.size()];
+                if (weigh)
+                    for (int i = 0; i < weights.length; i++)
+                        weights[i] = CacheUtils.getApproximateSize(entries.get(i).cacheable);
+
+                listLock.lock();
+                try {
+                    drainReadBuffer();
+                    for (int i = 0; i < weights.length; i++) {
+                        final CacheEntry entry = entries.get(i);
+                        // Entries removed or replaced meanwhile are gone, and replacements are already weighed or not
+                        if (entry.listEntry != null && keyToEntryMap.get(entry.key) == entry) {
+                            final CacheEntry newEntry = new CacheEntry();
+                            newEntry.key = entry.key;
+                            newEntry.validity = entry.validity;
+                            newEntry.cacheable = entry.cacheable;
+                            newEntry.weight = weights[i];
+
+                            keyToEntryMap.put(entry.key, newEntry);
+                            newEntry.listEntry = entry.listEntry;
+                            newEntry.listEntry.element = newEntry;
+                            entry.listEntry = null;
+
+                            currentWeight += newEntry.weight - entry.weight;
+                        }
+                    }
+                    setMaxWeightAndEvict(maxWeight);
+                } finally {
+                    listLock.unlock();
+                }
+            } else {
+                listLock.lock();
+                try {
+                    drainReadBuffer();
+                    setMaxWeightAndEvict(maxWeight);
+                } finally {
+                    listLock.unlock();
+                }
+            }
+        }
+    }
+
+    // Must be called with listLock held
+    private void setMaxWeightAndEvict(long maxWeight) {
+        this.maxWeight = maxWeight;
+
+        // Decrease weight if necessary
+        if (maxWeight > 0)
+            tryEvictToWeight(maxWeight);
+    }
+
+    public Iterator<CacheKey> iterateCacheKeys() {
+        final List<CacheKey> result = new ArrayList<CacheKey>(currentSize);
+        for (final CacheEntry entry : snapshotEntries())
+            result.add(entry.key);
+        return result.iterator();
+    }
+
+    public Iterator<Object> iterateCacheObjects() {
+        final List<Object> result = new ArrayList<Object>(currentSize);
+        for (final CacheEntry entry : snapshotEntries())
+            result.add(entry.cacheable);
+        return result.iterator();
+    }
+
+    // Iterate over a copy of the list so that we don't hold the lock while the caller iterates
+    private List<CacheEntry> snapshotEntries() {
+        listLock.lock();
+        try {
+            drainReadBuffer();
+            final List<CacheEntry> result = new ArrayList<CacheEntry>(currentSize);
+            for (final CacheEntry entry : linkedList)
+                result.add(entry);
+            return result;
+        } finally {
+            listLock.unlock();
+        }
+    }
+
+    public CacheStatistics getStatistics() {
+        final PropertyContext propertyContext = PipelineContext.get();
+        ConcurrentMemoryCacheStatistics statistics = (ConcurrentMemoryCacheStatistics) propertyContext.getAttribute(statisticsContextKey);
+        if (statistics == null) {
+            statistics = new ConcurrentMemoryCacheStatistics();
+            propertyContext.setAttribute(statisticsContextKey, statistics);
+        }
+
+        return statistics;
+    }
+
+    private ConcurrentMemoryCacheStatistics getStatisticsIfAvailable() {
+        return (PipelineContext.get() != null) ? (ConcurrentMemoryCacheStatistics) getStatistics() : null;
+    }
+}
@@ -30,12 +30,14 @@ public class MemoryCacheImpl implements Cache {
 
     private final String cacheName;
     private int maxSize;
+    private volatile long maxWeight;
 
     private final String statisticsContextKey;
 
     private Map<CacheKey, CacheEntry> keyToEntryMap = new HashMap<CacheKey, CacheEntry>();
     private CacheLinkedList linkedList = new CacheLinkedList();
     private int currentSize;
+    private long currentWeight;
 
     public MemoryCacheImpl(String cacheName, int maxSize) {
         this.cacheName = cacheName;
@@ -57,6 +59,8 @@ public class MemoryCacheImpl implements Cache {
 
         public int getMaxSize() { return maxSize; }
         public int getCurrentSize() { return currentSize; }
+        public long getMaxWeight() { return maxWeight; }
+        public long getCurrentWeight() { return MemoryCacheImpl.this.getCurrentWeight(); }
 
         public int getHitCount() { return hitsCount; }
         public int getMissCount() { return missCount; }
@@ -69,12 +73,33 @@ public class MemoryCacheImpl implements Cache {
         public void incrementExpirationCount() { expirationCount++; }
     }
 
-    public synchronized void add(CacheKey key, Object validity, Object cacheable) {
+    public void add(CacheKey key, Object validity, Object cacheable) {
         if (key == null || validity == null || maxSize == 0) return;
+
+        // Only weigh objects if the cache is bounded in bytes, and do it before taking the lock as weighing a large
+        // document can take a while
+        final long currentMaxWeight = maxWeight;
+        final long weight = (currentMaxWeight > 0) ? CacheUtils.getApproximateSize(cacheable) : 0;
+
+        add(key, validity, cacheable, currentMaxWeight, weight);
+    }
+
+    private synchronized void add(CacheKey key, Object validity, Object cacheable, long weighedMaxWeight, long weight) {
         final PropertyContext propertyContext = PipelineContext.get();
         final MemoryCacheStatistics statistics = (propertyContext != null) ? (MemoryCacheStatistics) getStatistics() : null;
         if (statistics != null)
             statistics.incrementAddCount();
+
+        // The cache became bounded in bytes after the object was weighed
+        if (maxWeight > 0 && weighedMaxWeight <= 0)
+            weight = CacheUtils.getApproximateSize(cacheable);
+
+        if (maxWeight > 0 && weight > maxWeight) {
+            // Object can never fit in cache, so don't keep it, and remove any outdated entry with the same key
+            remove(key, false, true);
+            return;
+        }
+
         CacheEntry entry = keyToEntryMap.get(key);
         if (entry == null) {
             // No existing entry found
@@ -84,12 +109,16 @@ public class MemoryCacheImpl implements Cache {
                 // If somehow we couldn't manage to evict an entry (e.g. all were locked), the cache will grow over
                 // maxsize.
             }
+            if (maxWeight > 0)
+                tryEvictToWeight(maxWeight - weight);
             currentSize++;
+            currentWeight += weight;
 
             entry = new CacheEntry();
             entry.key = key;
             entry.validity = validity;
             entry.cacheable = cacheable;
+            entry.weight = weight;
             keyToEntryMap.put(key, entry);
             entry.listEntry = linkedList.addFirst(entry);
 
@@ -100,11 +129,26 @@ public class MemoryCacheImpl implements Cache {
             // Update validity and move to the front
             entry.validity = validity;
             entry.cacheable = cacheable;
+            currentWeight += weight - entry.weight;
+            entry.weight = weight;
             linkedList.remove(entry.listEntry);
             entry.listEntry = linkedList.addFirst(entry);
+
+            // New object might be heavier than the previous one
+            if (maxWeight > 0)
+                tryEvictToWeight(maxWeight);
         }
     }
 
+    // Try to evict entries until the total weight is at most the given weight, but don't try more times than the
+    // number of elements initially in the cache
+    private void tryEvictToWeight(long targetWeight) {
+        int tryCount = 0;
+        final int maxTries = currentSize;
+        while (currentWeight > targetWeight && tryCount < maxTries && tryEvictLast())
+            tryCount++;
+    }
+
     private boolean tryEvictLast() {
         for (final Iterator<CacheEntry> i = linkedList.reverseIterator(); i.hasNext();) {
             final CacheEntry entryToTry = i.next();
@@ -154,6 +198,7 @@ public class MemoryCacheImpl implements Cache {
             keyToEntryMap.remove(key);
             linkedList.remove(entry.listEntry);
             currentSize--;
+            currentWeight -= entry.weight;
 
             // Notify object
             if (isEvict) {
@@ -197,6 +242,7 @@ public class MemoryCacheImpl implements Cache {
         keyToEntryMap = new HashMap<CacheKey, CacheEntry>();
         linkedList = new CacheLinkedList();
         currentSize = 0;
+        currentWeight = 0;
         return previousSize;
     }
 
@@ -213,7 +259,7 @@ public class MemoryCacheImpl implements Cache {
     private synchronized Object getValid(CacheKey key, Object validity, boolean remove) {
         final PropertyContext propertyContext = PipelineContext.get();
         final CacheEntry entry = keyToEntryMap.get(key);
-        if (entry != null && lowerOrEqual(validity, entry.validity)) {
+        if (entry != null && CacheUtils.lowerOrEqual(validity, entry.validity)) {
 
             if (propertyContext != null)
                 ((MemoryCacheStatistics) getStatistics()).incrementHitsCount();
@@ -265,6 +311,34 @@ public class MemoryCacheImpl implements Cache {
         }
     }
 
+    public synchronized long getCurrentWeight() {
+        return currentWeight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public synchronized void setMaxWeight(long maxWeight) {
+        if (maxWeight != this.maxWeight) {
+            if ((maxWeight > 0) != (this.maxWeight > 0)) {
+                // Entries are only weighed when the cache is bounded in bytes
+                currentWeight = 0;
+                for (final Iterator<CacheEntry> i = linkedList.iterator(); i.hasNext();) {
+                    final CacheEntry entry = i.next();
+                    entry.weight = (maxWeight > 0) ? CacheUtils.getApproximateSize(entry.cacheable) : 0;
+                    currentWeight += entry.weight;
+                }
+            }
+
+            this.maxWeight = maxWeight;
+
+            // Decrease weight if necessary
+            if (maxWeight > 0)
+                tryEvictToWeight(maxWeight);
+        }
+    }
+
     public Iterator<CacheKey> iterateCacheKeys() {
         return new TransformIterator(linkedList.iterator(), new Transformer() {
             public Object transform(Object o) {
@@ -291,24 +365,4 @@ public class MemoryCacheImpl implements Cache {
 
         return statistics;
     }
-
-    private boolean lowerOrEqual(Object left, Object right) {
-        if (left instanceof List && right instanceof List) {
-            List leftList = (List) left;
-            List rightList = (List) right;
-            if (leftList.size() != rightList.size())
-                return false;
-            for (Iterator leftIterator = leftList.iterator(), rightIterator = rightList.iterator();leftIterator.hasNext();) {
-                Object leftObject = leftIterator.next();
-                Object rightObject = rightIterator.next();
-                if (!lowerOrEqual(leftObject, rightObject))
-                    return false;
-            }
-            return true;
-        } else if (left instanceof Long && right instanceof Long) {
-            return (Long) left <= (Long) right;
-        } else {
-            return false;
-        }
-    }
 }
@@ -13,10 +13,11 @@
  */
 package org.orbeon.oxf.cache;
 
+import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.properties.Properties;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Factory for ObjectCache instances.
@@ -28,8 +29,14 @@ public class ObjectCache {
 
     private static final String CACHE_PROPERTY_NAME_PREFIX = "oxf.";
     private static final String CACHE_PROPERTY_NAME_SIZE_SUFFIX = ".size";
+    private static final String CACHE_PROPERTY_NAME_TYPE_SUFFIX = ".type";
+    private static final String CACHE_PROPERTY_NAME_MAX_MEGABYTES_SUFFIX = ".max-megabytes";
 
-    private static final Map<String, Cache> namedObjectCaches = new HashMap<String, Cache>();
+    // Cache types which can be selected with the oxf.[cache name].type property
+    public static final String MEMORY_CACHE_TYPE = "memory";
+    public static final String CONCURRENT_CACHE_TYPE = "concurrent";
+
+    private static final Map<String, Cache> namedObjectCaches = new ConcurrentHashMap<String, Cache>();
 
     static {
         namedObjectCaches.put(DEFAULT_CACHE_NAME, new MemoryCacheImpl(DEFAULT_CACHE_NAME, DEFAULT_SIZE));
@@ -58,12 +65,59 @@ public class ObjectCache {
         if (cache == null) {
             final String propertyName = CACHE_PROPERTY_NAME_PREFIX + cacheName + CACHE_PROPERTY_NAME_SIZE_SUFFIX;
             final Integer size = Properties.instance().getPropertySet().getInteger(propertyName, defaultSize);
-            cache = new MemoryCacheImpl(cacheName, size);
+            final String typePropertyName = CACHE_PROPERTY_NAME_PREFIX + cacheName + CACHE_PROPERTY_NAME_TYPE_SUFFIX;
+            final String type = Properties.instance().getPropertySet().getString(typePropertyName, MEMORY_CACHE_TYPE);
+            cache = createCache(cacheName, type, size);
+            final String maxMegabytesPropertyName = CACHE_PROPERTY_NAME_PREFIX + cacheName + CACHE_PROPERTY_NAME_MAX_MEGABYTES_SUFFIX;
+            final Integer maxMegabytes = Properties.instance().getPropertySet().getInteger(maxMegabytesPropertyName, 0);
+            if (maxMegabytes > 0)
+                cache.setMaxWeight(megabytesToBytes(maxMegabytes));
             namedObjectCaches.put(cacheName, cache);
         }
         return cache;
     }
 
+    /**
+     * Set the type of the main object cache.
+     *
+     * The main cache is created before properties are available, so its type can only be set once it is already in
+     * use. If the type changes, the existing cache is emptied and replaced with a cache of the new type and same size.
+     *
+     * @param type  cache type
+     */
+    public synchronized static void setMainCacheType(String type) {
+        final Cache currentCache = instance();
+        if (! getCacheType(currentCache).equals(type)) {
+            final Cache newCache = createCache(DEFAULT_CACHE_NAME, type, currentCache.getMaxSize());
+            newCache.setMaxWeight(currentCache.getMaxWeight());
+            namedObjectCaches.put(DEFAULT_CACHE_NAME, newCache);
+            currentCache.removeAll();
+        }
+    }
+
+    /**
+     * Convert a size in megabytes, as used in cache properties, to a weight in bytes.
+     *
+     * @param megabytes size in megabytes
+     * @return          size in bytes
+     */
+    public static long megabytesToBytes(int megabytes) {
+        return megabytes * 1024L * 1024L;
+    }
+
+    private static Cache createCache(String cacheName, String type, int size) {
+        if (MEMORY_CACHE_TYPE.equals(type))
+            return new MemoryCacheImpl(cacheName, size);
+        else if (CONCURRENT_CACHE_TYPE.equals(type))
+            return new ConcurrentMemoryCacheImpl(cacheName, size);
+        else
+            throw new OXFException("Invalid type for cache " + cacheName + ": " + type);
+    }
+
+    private static String getCacheType(Cache cache) {
+        return (cache instanceof ConcurrentMemoryCacheImpl) ? CONCURRENT_CACHE_TYPE : MEMORY_CACHE_TYPE;
+    }
+
     /**
      * Get the instance of the object cache specified if it exists.
      *
@@ -27,6 +27,7 @@ import org.orbeon.oxf.pipeline.api.ProcessorDefinition;
 import org.orbeon.oxf.processor.*;
 import org.orbeon.oxf.processor.generator.DOMGenerator;
 import org.orbeon.oxf.properties.Properties;
+import org.orbeon.oxf.properties.PropertySet;
 import org.orbeon.oxf.resources.ResourceNotFoundException;
 import org.orbeon.oxf.util.AttributesToMap;
 import org.orbeon.oxf.util.PipelineUtils;
@@ -49,12 +50,17 @@ public class InitUtils {
 
 
     private static final String CACHE_SIZE_PROPERTY = "oxf.cache.size";
+    private static final String CACHE_TYPE_PROPERTY = "oxf.cache.type";
+    private static final String CACHE_MAX_MEGABYTES_PROPERTY = "oxf.cache.max-megabytes";
 
     public static final String PROLOGUE_PROPERTY = "oxf.prologue";
     public static final String DEFAULT_PROLOGUE = "oxf:/processors.xml";
 
     private static boolean processorDefinitionsInitialized;
 
+    // Property set from which the main cache was last configured
+    private static volatile PropertySet cachePropertySet;
+
     /**
      * Run a processor with an ExternalContext.
      */
@@ -77,10 +83,8 @@ public class InitUtils {
 
         boolean success = false;
         try {
-            // Set cache size
-            final Integer cacheMaxSize = Properties.instance().getPropertySet().getInteger(CACHE_SIZE_PROPERTY);
-            if (cacheMaxSize != null)
-                ObjectCache.instance().setMaxSize(cacheMaxSize);
+            // Set cache type, size and weight
+            applyCacheProperties(Properties.instance().getPropertySet());
 
             // Start execution
             processor.reset(pipelineContext);
@@ -422,6 +426,29 @@ public class InitUtils {
         }
     }
 
+    /**
+     * Configure the main cache from the given properties. Properties are reloaded into a new property set, so the
+     * cache is only configured upon the first request and after properties change, instead of upon every request.
+     */
+    private static void applyCacheProperties(PropertySet propertySet) {
+        if (propertySet != null && propertySet != cachePropertySet) {
+            synchronized (InitUtils.class) {
+                if (propertySet != cachePropertySet) {
+                    final String cacheType = propertySet.getString(CACHE_TYPE_PROPERTY);
+                    if (cacheType != null)
+                        ObjectCache.setMainCacheType(cacheType);
+                    final Integer cacheMaxSize = propertySet.getInteger(CACHE_SIZE_PROPERTY);
+                    if (cacheMaxSize != null)
+                        ObjectCache.instance().setMaxSize(cacheMaxSize);
+                    final Integer cacheMaxMegabytes = propertySet.getInteger(CACHE_MAX_MEGABYTES_PROPERTY);
+                    if (cacheMaxMegabytes != null)
+                        ObjectCache.instance().setMaxWeight(ObjectCache.megabytesToBytes(cacheMaxMegabytes));
+                    cachePropertySet = propertySet;
+                }
+            }
+        }
+    }
+
     private static class HttpStatusCodeException extends RuntimeException {
         public final int code;
 
@@ -58,6 +58,9 @@ public class PipelineContext implements PropertyContext {
     private static ThreadLocal<PipelineContext> threadLocal = new ThreadLocal<PipelineContext>();
     private PipelineContext originalPipelineContext;
 
+    // For a forked context, the context it was forked from
+    private final PipelineContext parentContext;
+
     /**
      * Create a new pipeline context.
      */
@@ -65,6 +68,40 @@ public class PipelineContext implements PropertyContext {
         // Save and set ThreadLocal
         originalPipelineContext = threadLocal.get();
         threadLocal.set(this);
+        parentContext = null;
+    }
+
+    private PipelineContext(PipelineContext parentContext, Map<Object, Object> localAttributes) {
+        this.parentContext = parentContext;
+        this.attributes.putAll(localAttributes);
+    }
+
+    /**
+     * Create a context to run part of the pipeline on another thread.
+     *
+     * The forked context shares the attributes and listeners of this context, except for the attributes passed, which
+     * are local to the forked context. The forked context is not destroyed: this context remains in charge of that.
+     *
+     * @param localAttributes   attributes local to the forked context
+     * @return                  forked context
+     */
+    public PipelineContext fork(Map<Object, Object> localAttributes) {
+        return new PipelineContext(this, localAttributes);
+    }
+
+    /**
+     * Run a task with this context as the current context of the calling thread.
+     *
+     * @param runnable  task to run
+     */
+    public void run(Runnable runnable) {
+        final PipelineContext currentPipelineContext = threadLocal.get();
+        threadLocal.set(this);
+        try {
+            runnable.run();
+        } finally {
+            threadLocal.set(currentPipelineContext);
+        }
     }
 
     public static PipelineContext get() {
@@ -77,8 +114,13 @@ public class PipelineContext implements PropertyContext {
      * @param key the attribute key
      * @param o   the attribute value to associate with the key
      */
-    public synchronized void setAttribute(Object key, Object o) {
-        attributes.put(key, o);
+    public void setAttribute(Object key, Object o) {
+        if (parentContext != null && ! isLocalAttribute(key))
+            parentContext.setAttribute(key, o);
+        else
+            synchronized (this) {
+                attributes.put(key, o);
+            }
     }
 
     /**
@@ -88,7 +130,16 @@ public class PipelineContext implements PropertyContext {
      * @return the attribute value, null if there is no attribute with the given key
      */
     public Object getAttribute(Object key) {
-        return attributes.get(key);
+        if (parentContext != null && ! isLocalAttribute(key))
+            return parentContext.getAttribute(key);
+        else
+            synchronized (this) {
+                return attributes.get(key);
+            }
+    }
+
+    private synchronized boolean isLocalAttribute(Object key) {
+        return attributes.containsKey(key);
     }
 
     /**
@@ -97,6 +148,10 @@ public class PipelineContext implements PropertyContext {
      * @param listener listener to add
      */
     public synchronized void addContextListener(ContextListener listener) {
+        if (parentContext != null) {
+            parentContext.addContextListener(listener);
+            return;
+        }
         if (listeners == null)
             listeners = new ArrayList<ContextListener>();
         listeners.add(listener);
@@ -109,6 +164,8 @@ public class PipelineContext implements PropertyContext {
      * @param success true if the pipeline executed without exceptions, false otherwise
      */
     public void destroy(boolean success) {
+        if (parentContext != null)
+            throw new IllegalStateException("Forked pipeline context cannot be destroyed");
         if (!destroyed) {
             try {
                 if (listeners != null) {
@@ -131,6 +188,6 @@ public class PipelineContext implements PropertyContext {
      * @return true if the context has been destroyed, false otherwise
      */
     public boolean isDestroyed() {
-        return destroyed;
+        return (parentContext != null) ? parentContext.isDestroyed() : destroyed;
     }
 }
@@ -59,6 +59,7 @@ public class CacheProcessor extends ProcessorImpl {
                         if (dataSaxStore == null) {
                             // Can't find data in cache, read it and store it in cache
                             dataSaxStore = new SAXStore();
+                            dataSaxStore.setSpillThreshold(SAXStore.getDefaultSpillThreshold());
                             readInputAsSAX(pipelineContext, INPUT_DATA, dataSaxStore);
                             ObjectCache.instance().add(internalKey, state.validity, dataSaxStore);
                         }
@@ -34,6 +34,21 @@ public class DatabaseContext {
     private static Logger logger = LoggerFactory.createLogger(DatabaseContext.class);
     public static final String DATASOURCE_CONTEXT = "datasource-context"; // used by DatabaseContext
 
+    // Attribute of a context forked to run part of the pipeline on another thread, holding the Turn of that thread
+    public static final String CONNECTION_TURN = "datasource-connection-turn";
+
+    /**
+     * Turn of a thread running part of the pipeline concurrently with other threads, to use the connections of the
+     * pipeline execution. The connections are used by one thread at a time, in the order in which the pipeline would
+     * use them without concurrency.
+     */
+    public interface Turn {
+        /**
+         * Wait until the current thread can use the connections. Once it can, it remains so.
+         */
+        void await() throws InterruptedException;
+    }
+
     /**
      * Get a connection valid for this pipeline execution, given a JDBC JNDI name.
      *
@@ -45,32 +60,36 @@ public class DatabaseContext {
      */
     public static Connection getConnection(PipelineContext pipelineContext, final String jndiName) {
         // Try to obtain connection from context
-        // We used to synchronize on DatabaseContext.class here, but this should not be necessary since pipelineContext
-        // is only used by one thread at a time.
-        Connection connection = (Connection) getContext(pipelineContext).connections.get(jndiName);
-        if (connection == null) {
-            try {
-                // Create connection from datasource
-                javax.naming.Context initialContext = new InitialContext();
-                javax.naming.Context envContext = (javax.naming.Context) initialContext.lookup("java:comp/env");
-                DataSource ds = (DataSource) envContext.lookup(jndiName);
-                if (ds == null) {
-                    throw new OXFException("Cannot find DataSource object by looking-up: " + jndiName);
-                }
-                Connection newConnection = ds.getConnection();
-                // Set connection properties
-                setConnectionProperties(newConnection, pipelineContext, jndiName);
-                // Save connection into context
-                getContext(pipelineContext).connections.put(jndiName, newConnection);
+        // NOTE: A thread running part of the pipeline concurrently waits for its turn, so that the connections of the
+        // pipeline execution are not used by two threads at once.
+        awaitTurn(pipelineContext);
+        final Context context = getContext(pipelineContext);
+        synchronized (context) {
+            Connection connection = (Connection) context.connections.get(jndiName);
+            if (connection == null) {
+                try {
+                    // Create connection from datasource
+                    javax.naming.Context initialContext = new InitialContext();
+                    javax.naming.Context envContext = (javax.naming.Context) initialContext.lookup("java:comp/env");
+                    DataSource ds = (DataSource) envContext.lookup(jndiName);
+                    if (ds == null) {
+                        throw new OXFException("Cannot find DataSource object by looking-up: " + jndiName);
+                    }
+                    Connection newConnection = ds.getConnection();
+                    // Set connection properties
+                    setConnectionProperties(newConnection, pipelineContext, jndiName);
+                    // Save connection into context
+                    context.connections.put(jndiName, newConnection);
 
-                connection = newConnection;
-            } catch (OXFException e) {
-                throw e;
-            } catch (Exception e) {
-                 throw new OXFException(e);
+                    connection = newConnection;
+                } catch (OXFException e) {
+                    throw e;
+                } catch (Exception e) {
+                     throw new OXFException(e);
+                }
             }
+            return connection;
         }
-        return connection;
     }
 
     /**
@@ -84,39 +103,37 @@ public class DatabaseContext {
      */
     public static Connection getConnection(PipelineContext pipelineContext, Datasource datasource) {
         // Try to obtain connection from context
-        Connection connection = (Connection) getContext(pipelineContext).connections.get(datasource.toString());
-        if (connection == null) {
-            synchronized (DatabaseContext.class) {
-                connection = (Connection) getContext(pipelineContext).connections.get(datasource.toString());
-                if (connection == null) {
-                    // Create connection
-                    try {
-                        Class.forName(datasource.getDriverClassName());
-                    } catch (ClassNotFoundException e) {
-                        throw new OXFException("Cannot load JDBC driver for class: " + datasource.getDriverClassName());
-                    }
-                    Connection newConnection;
-                    try {
-                        newConnection = DriverManager.getConnection(datasource.getUri(), datasource.getUsername(), datasource.getPassword());
-                    } catch (SQLException e) {
-                        throw new OXFException("Cannot get connection from JDBC DriverManager for datasource: " + datasource, e);
-                    }
-
-                    // Set connection properties
-                    try {
-                        setConnectionProperties(newConnection, pipelineContext, datasource.toString());
-                    } catch (Exception e) {
-                         throw new OXFException(e);
-                    }
-                    // Save connection into context
-                    getContext(pipelineContext).connections.put(datasource.toString(), newConnection);
+        awaitTurn(pipelineContext);
+        final Context context = getContext(pipelineContext);
+        synchronized (context) {
+            Connection connection = (Connection) context.connections.get(datasource.toString());
+            if (connection == null) {
+                // Create connection
+                try {
+                    Class.forName(datasource.getDriverClassName());
+                } catch (ClassNotFoundException e) {
+                    throw new OXFException("Cannot load JDBC driver for class: " + datasource.getDriverClassName());
+                }
+                Connection newConnection;
+                try {
+                    newConnection = DriverManager.getConnection(datasource.getUri(), datasource.getUsername(), datasource.getPassword());
+                } catch (SQLException e) {
+                    throw new OXFException("Cannot get connection from JDBC DriverManager for datasource: " + datasource, e);
+                }
 
-                    connection = newConnection;
+                // Set connection properties
+                try {
+                    setConnectionProperties(newConnection, pipelineContext, datasource.toString());
+                } catch (Exception e) {
+                     throw new OXFException(e);
                 }
+                // Save connection into context
+                context.connections.put(datasource.toString(), newConnection);
+
+                connection = newConnection;
             }
+            return connection;
         }
-
-        return connection;
     }
 
     private static void setConnectionProperties(final Connection connection, PipelineContext pipelineContext, final String datasourceName) throws SQLException {
@@ -142,13 +159,26 @@ public class DatabaseContext {
         });
     }
 
+    private static void awaitTurn(PipelineContext pipelineContext) {
+        final Turn turn = (Turn) pipelineContext.getAttribute(CONNECTION_TURN);
+        if (turn != null) {
+            try {
+                turn.await();
+            } catch (InterruptedException e) {
+                throw new OXFException(e);
+            }
+        }
+    }
+
     private static Context getContext(PipelineContext pipelineContext) {
-        Context context = (Context) pipelineContext.getAttribute(DATASOURCE_CONTEXT);
-        if (context == null) {
-            context = new Context();
-            pipelineContext.setAttribute(DATASOURCE_CONTEXT, context);
+        synchronized (pipelineContext) {
+            Context context = (Context) pipelineContext.getAttribute(DATASOURCE_CONTEXT);
+            if (context == null) {
+                context = new Context();
+                pipelineContext.setAttribute(DATASOURCE_CONTEXT, context);
+            }
+            return context;
         }
-        return context;
     }
 
     private static class Context {
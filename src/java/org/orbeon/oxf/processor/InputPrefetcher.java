@@ -0,0 +1,275 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor;
+
+import org.apache.log4j.Logger;
+import org.orbeon.oxf.common.OXFException;
+import org.orbeon.oxf.pipeline.api.PipelineContext;
+import org.orbeon.oxf.pipeline.api.XMLReceiver;
+import org.orbeon.oxf.properties.PropertySet;
+import org.orbeon.oxf.properties.Properties;
+import org.orbeon.oxf.util.LoggerFactory;
+import org.orbeon.oxf.xml.SAXStore;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Read several inputs of a processor concurrently.
+ *
+ * This is enabled with the oxf.pipeline.prefetch-threads property, which sets the number of threads reading inputs. By
+ * default, it is 0 and inputs are read one after the other when the processor pulls them.
+ *
+ * Inputs are independent if the processors they are connected to, directly or indirectly, are all different. Only
+ * independent inputs are prefetched: each one is read into a SAXStore by another thread, in a PipelineContext forked
+ * from the current one. This way, processors keep their state in the PipelineContext as usual, but each thread has its
+ * own stack of parent processors. Other inputs are read by the calling thread, as well as all inputs when no thread is
+ * available.
+ *
+ * Database connections belong to the request and are not used by several threads at once: a prefetching thread which
+ * needs a connection waits until the calling thread reads its input, so that the rest of the input is read as if it was
+ * not prefetched, with the same connections and therefore in the same transaction.
+ *
+ * Context listeners registered by prefetching threads run when the current PipelineContext is destroyed. close() waits
+ * for all prefetching threads to be done, so that they never run while the PipelineContext is being destroyed.
+ *
+ * Reading inputs this way goes through the same outputs, and therefore the same caches, as reading them directly.
+ */
+public class InputPrefetcher {
+
+    private static final Logger logger = LoggerFactory.createLogger(InputPrefetcher.class);
+
+    public static final String PREFETCH_THREADS_PROPERTY = "oxf.pipeline.prefetch-threads";
+
+    private static ExecutorService executor;
+
+    // Whether the current thread is a prefetching thread, which must not wait on other prefetching threads
+    private static final ThreadLocal<Boolean> isPrefetchingThread = new ThreadLocal<Boolean>();
+
+    private final Map<ProcessorInput, Prefetch> prefetchedInputs = new HashMap<ProcessorInput, Prefetch>();
+
+    /**
+     * Start prefetching the independent inputs among the inputs given.
+     *
+     * @param pipelineContext   current context
+     * @param inputs            inputs, in the order they will be read
+     */
+    public InputPrefetcher(PipelineContext pipelineContext, List<ProcessorInput> inputs) {
+        this(pipelineContext, inputs, getExecutor());
+    }
+
+    InputPrefetcher(PipelineContext pipelineContext, List<ProcessorInput> inputs, ExecutorService executor) {
+        if (executor == null || inputs.size() < 2 || isPrefetchingThread.get() != null)
+            return;
+
+        final List<Set<Processor>> upstreamProcessors = new ArrayList<Set<Processor>>(inputs.size());
+        for (final ProcessorInput input : inputs)
+            upstreamProcessors.add(getUpstreamProcessors(pipelineContext, input));
+
+        // The first input is read by the calling thread anyway
+        for (int i = 1; i < inputs.size(); i++) {
+            if (isIndependent(upstreamProcessors, i)) {
+                final ProcessorInput input = inputs.get(i);
+                final CountDownLatch inputRead = new CountDownLatch(1);
+                final Prefetch prefetch = new Prefetch(createTask(pipelineContext, input, inputRead), inputRead);
+                try {
+                    prefetch.future = executor.submit(prefetch);
+                    prefetchedInputs.put(input, prefetch);
+                } catch (RejectedExecutionException e) {
+                    // All threads are busy, read input when needed
+                }
+            }
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("prefetching " + prefetchedInputs.size() + " inputs out of " + inputs.size());
+    }
+
+    /**
+     * Read an input, from its prefetched content if any.
+     *
+     * @param pipelineContext   current context
+     * @param input             input to read
+     * @param xmlReceiver       receiver
+     */
+    public void readInputAsSAX(PipelineContext pipelineContext, ProcessorInput input, XMLReceiver xmlReceiver) {
+        final Prefetch prefetch = prefetchedInputs.remove(input);
+        if (prefetch == null) {
+            ProcessorImpl.readInputAsSAX(pipelineContext, input, xmlReceiver);
+        } else {
+            try {
+                prefetch.inputRead.countDown();
+                prefetch.future.get().replay(xmlReceiver);
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                else
+                    throw new OXFException(cause);
+            } catch (Exception e) {
+                throw new OXFException(e);
+            }
+        }
+    }
+
+    /**
+     * Cancel prefetching of the inputs which have not been read, and wait for the prefetching threads which have
+     * started to be done. This must be called in a finally block.
+     */
+    public void close() {
+        for (final Prefetch prefetch : prefetchedInputs.values())
+            prefetch.cancel();
+        for (final Prefetch prefetch : prefetchedInputs.values())
+            prefetch.awaitDone();
+        prefetchedInputs.clear();
+    }
+
+    // Prefetching task, which can be cancelled before it starts or waited for once started
+    private static class Prefetch implements Callable<SAXStore> {
+
+        private final Callable<SAXStore> task;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private boolean mustAwait;
+
+        public final CountDownLatch inputRead;
+        public Future<SAXStore> future;
+
+        public Prefetch(Callable<SAXStore> task, CountDownLatch inputRead) {
+            this.task = task;
+            this.inputRead = inputRead;
+        }
+
+        public SAXStore call() throws Exception {
+            if (! started.compareAndSet(false, true))
+                throw new CancellationException();
+            try {
+                return task.call();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        public void cancel() {
+            // A task which has not started yet never will, otherwise interrupt it and wait for it
+            mustAwait = ! started.compareAndSet(false, true);
+            future.cancel(mustAwait);
+        }
+
+        public void awaitDone() {
+            if (mustAwait) {
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        done.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static boolean isIndependent(List<Set<Processor>> upstreamProcessors, int index) {
+        final Set<Processor> processors = upstreamProcessors.get(index);
+        for (int i = 0; i < upstreamProcessors.size(); i++)
+            if (i != index && ! Collections.disjoint(processors, upstreamProcessors.get(i)))
+                return false;
+        return true;
+    }
+
+    // Processors an input is connected to, directly or indirectly
+    private static Set<Processor> getUpstreamProcessors(PipelineContext pipelineContext, ProcessorInput input) {
+        final Map<Processor, Boolean> result = new IdentityHashMap<Processor, Boolean>();
+        final LinkedList<ProcessorInput> inputsToVisit = new LinkedList<ProcessorInput>();
+        inputsToVisit.add(input);
+        while (! inputsToVisit.isEmpty()) {
+            final ProcessorOutput output = inputsToVisit.removeFirst().getOutput();
+            if (output == null)
+                continue;
+            final Processor processor = output.getProcessor(pipelineContext);
+            if (processor != null && result.put(processor, true) == null && processor instanceof ProcessorImpl)
+                for (final List<ProcessorInput> processorInputs : ((ProcessorImpl) processor).getConnectedInputs().values())
+                    inputsToVisit.addAll(processorInputs);
+        }
+        return result.keySet();
+    }
+
+    private static Callable<SAXStore> createTask(PipelineContext pipelineContext, final ProcessorInput input, final CountDownLatch inputRead) {
+
+        // Each thread has its own copy of the stack of parent processors
+        final Stack<ProcessorImpl> parents = (Stack<ProcessorImpl>) pipelineContext.getAttribute(ProcessorImpl.PARENT_PROCESSORS);
+        final Stack<ProcessorImpl> parentsCopy = new Stack<ProcessorImpl>();
+        if (parents != null)
+            parentsCopy.addAll(parents);
+
+        // Database connections are only used once the calling thread reads the input, and the calling thread itself
+        // may have to wait for its turn
+        final DatabaseContext.Turn parentTurn = (DatabaseContext.Turn) pipelineContext.getAttribute(DatabaseContext.CONNECTION_TURN);
+        final DatabaseContext.Turn turn = new DatabaseContext.Turn() {
+            public void await() throws InterruptedException {
+                inputRead.await();
+                if (parentTurn != null)
+                    parentTurn.await();
+            }
+        };
+
+        final Map<Object, Object> localAttributes = new HashMap<Object, Object>();
+        localAttributes.put(ProcessorImpl.PARENT_PROCESSORS, parentsCopy);
+        localAttributes.put(DatabaseContext.CONNECTION_TURN, turn);
+
+        final PipelineContext forkedContext = pipelineContext.fork(localAttributes);
+
+        return new Callable<SAXStore>() {
+            public SAXStore call() {
+                final SAXStore saxStore = new SAXStore();
+                isPrefetchingThread.set(true);
+                try {
+                    forkedContext.run(new Runnable() {
+                        public void run() {
+                            ProcessorImpl.readInputAsSAX(forkedContext, input, saxStore);
+                        }
+                    });
+                } finally {
+                    isPrefetchingThread.remove();
+                }
+                return saxStore;
+            }
+        };
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final PropertySet propertySet = Properties.instance().getPropertySet();
+            final int threads = (propertySet == null) ? 0 : propertySet.getInteger(PREFETCH_THREADS_PROPERTY, 0);
+            if (threads <= 0)
+                return null;
+
+            // Don't queue inputs: if no thread is available, the input is read when needed
+            executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "Pipeline input prefetcher");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return executor;
+    }
+}
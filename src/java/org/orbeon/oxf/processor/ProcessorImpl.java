@@ -28,6 +28,7 @@ import org.orbeon.oxf.properties.Properties;
 import org.orbeon.oxf.properties.PropertySet;
 import org.orbeon.oxf.util.LoggerFactory;
 import org.orbeon.oxf.util.PipelineUtils;
+import org.orbeon.oxf.xml.SAXStore;
 import org.orbeon.oxf.xml.SchemaRepository;
 import org.orbeon.oxf.xml.TransformerUtils;
 import org.orbeon.oxf.xml.XMLUtils;
@@ -319,6 +320,23 @@ public abstract class ProcessorImpl implements Processor {
         });
     }
 
+    /**
+     * Read an input into a SAXStore, from the cache if possible.
+     *
+     * The key and validity of the input are obtained first, and the input is only read if they are not found in cache.
+     * For an input connected to a pipeline output, this runs the processors to start in the pipeline only once, as
+     * long as the pipeline is reset before calling this method.
+     */
+    public SAXStore readCacheInputAsSAXStore(PipelineContext pipelineContext, ProcessorInput input) {
+        return (SAXStore) readCacheInputAsObject(pipelineContext, input, new CacheableInputReader() {
+            public Object read(PipelineContext context, ProcessorInput input) {
+                final SAXStore saxStore = new SAXStore();
+                readInputAsSAX(context, input, saxStore);
+                return saxStore;
+            }
+        });
+    }
+
     /**
      * To be used in the readImpl implementation of a processor when an object
      * is created based on an input (an the object only depends on the input).
@@ -23,7 +23,7 @@ import org.orbeon.oxf.util.NetUtils;
 import org.orbeon.oxf.util.URLRewriterUtils;
 import org.orbeon.oxf.util.UserAgent;
 import org.orbeon.oxf.xforms.XFormsProperties;
-import org.orbeon.oxf.xforms.script.CoffeeScriptCompiler;
+import org.orbeon.oxf.xforms.script.CoffeeScriptCache;
 import org.orbeon.oxf.xml.ForwardingXMLReceiver;
 import org.orbeon.oxf.xml.XPathUtils;
 import org.w3c.dom.Node;
@@ -33,7 +33,6 @@ import org.xml.sax.SAXException;
 import java.io.*;
 import java.net.URL;
 import java.net.URLConnection;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -92,6 +91,7 @@ public class ResourceServer extends ProcessorImpl {
                 urlString = "oxf:" + urlString;
 
             InputStream urlConnectionInputStream = null;
+            File file = null;
             try {
                 // Open resource and set headers
                 try {
@@ -130,27 +130,48 @@ public class ResourceServer extends ProcessorImpl {
                                     // Open URL for CoffeeScript file
                                     final URL coffeeURL = URLFactory.createURL("oxf:" + coffeePath);
                                     urlConnection = coffeeURL.openConnection();
-                                    length = 0; // Unknown length, as it is not just the length of the compiled code
                                     lastModified = NetUtils.getLastModified(urlConnection);
-                                    // Read CoffeeScript as a string; CoffeeScript is always UTF-8
-                                    Reader coffeeReader = new InputStreamReader(urlConnection.getInputStream(), Charset.forName("UTF-8"));
-                                    final String coffeeString = NetUtils.readStreamAsString(coffeeReader);
+                                    // Compile, unless the compiled code for this version of the file is cached
                                     // TODO: do we need to handle compilation errors?
-                                    String javascriptString = CoffeeScriptCompiler.compile(coffeeString, coffeePath, 0);
-                                    urlConnectionInputStream = new ByteArrayInputStream(javascriptString.getBytes("UTF-8"));
+                                    final byte[] javascriptBytes = CoffeeScriptCache.compile(coffeePath, lastModified);
+                                    length = javascriptBytes.length;
+                                    urlConnectionInputStream = new ByteArrayInputStream(javascriptBytes);
                                 }
                             }
+
+                            // Serve files on disk directly
+                            if (urlConnection == null) {
+                                final String realPath = ResourceManagerWrapper.instance().getRealPath(urlPath);
+                                if (realPath != null && new File(realPath).isFile())
+                                    file = new File(realPath);
+                            }
                         }
                     }
 
-                    // Open the connection, if not node already
-                    if (urlConnection == null) {
-                        urlConnection = newURL.openConnection();
-                        urlConnectionInputStream = urlConnection.getInputStream();
+                    if (file != null) {
+                        lastModified = file.lastModified();
+
+                        // Serve the gzipped version of the file instead if there is an up-to-date one and the client
+                        // accepts it
+                        final File gzipFile = NetUtils.getGzipSibling(file);
+                        if (gzipFile != null) {
+                            response.setHeader("Vary", "Accept-Encoding");
+                            if (NetUtils.isAcceptGzip(externalContext.getRequest())) {
+                                response.setHeader("Content-Encoding", "gzip");
+                                file = gzipFile;
+                            }
+                        }
+                        length = (int) file.length();
+                    } else {
+                        // Open the connection, if not node already
+                        if (urlConnection == null) {
+                            urlConnection = newURL.openConnection();
+                            urlConnectionInputStream = urlConnection.getInputStream();
+                        }
+                        // Get length and last modified, if not done already
+                        if (length == -1) length = urlConnection.getContentLength();
+                        if (lastModified == -1) lastModified = NetUtils.getLastModified(urlConnection);
                     }
-                    // Get length and last modified, if not done already
-                    if (length == -1) length = urlConnection.getContentLength();
-                    if (lastModified == -1) lastModified = NetUtils.getLastModified(urlConnection);
 
                     // Set Last-Modified, required for caching and conditional get
                     if (isVersioned) {
@@ -184,8 +205,11 @@ public class ResourceServer extends ProcessorImpl {
                     response.setStatus(ExternalContext.SC_NOT_FOUND);
                     return;
                 }
-                // Copy stream to output
-                NetUtils.copyStream(urlConnectionInputStream, response.getOutputStream());
+                // Copy file or stream to output
+                if (file != null)
+                    NetUtils.copyFile(file, response.getOutputStream());
+                else
+                    NetUtils.copyStream(urlConnectionInputStream, response.getOutputStream());
             } finally {
                 // Make sure the stream is closed in all cases so as to not lock the file on disk
                 if (urlConnectionInputStream != null) {
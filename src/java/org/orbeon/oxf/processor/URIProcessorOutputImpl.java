@@ -401,6 +401,7 @@ public abstract class URIProcessorOutputImpl extends ProcessorOutputImpl {
 
                 // Read connection into SAXStore
                 documentSAXStore = new SAXStore();
+                documentSAXStore.setSpillThreshold(SAXStore.getDefaultSpillThreshold());
                 XMLUtils.inputStreamToSAX(connectionResult.getResponseInputStream(), connectionResult.resourceURI, documentSAXStore, XMLUtils.ParserConfiguration.PLAIN, true);
 
                 // Obtain last modified
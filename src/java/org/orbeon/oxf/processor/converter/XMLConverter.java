@@ -17,7 +17,9 @@ import org.dom4j.QName;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.pipeline.api.TransformerXMLReceiver;
+import org.orbeon.oxf.pipeline.api.XMLReceiver;
 import org.orbeon.oxf.processor.ProcessorInput;
+import org.orbeon.oxf.xml.SerializingXMLReceiver;
 import org.orbeon.oxf.xml.SimpleForwardingXMLReceiver;
 import org.orbeon.oxf.xml.TransformerUtils;
 import org.orbeon.oxf.xml.dom4j.Dom4jUtils;
@@ -47,26 +49,38 @@ public class XMLConverter extends TextConverterBase {
 
     protected boolean readInput(PipelineContext context, final ContentHandler contentHandler, ProcessorInput input, ConverterBase.Config config, final Writer writer) {
 
-        // Create an identity transformer and start the transformation
-        final TransformerXMLReceiver identity = TransformerUtils.getIdentityTransformerHandler();
-
         if(config.publicDoctype != null && config.systemDoctype == null)
             throw new OXFException("System doctype is required if a public doctype is present");
 
-        TransformerUtils.applyOutputProperties(identity.getTransformer(),
-                config.method != null ? config.method : Dom4jUtils.qNameToExplodedQName(getPropertySet().getQName(DEFAULT_METHOD_PROPERTY_NAME, DEFAULT_METHOD)),
-                config.version != null ? config.version : DEFAULT_VERSION,
-                config.publicDoctype != null ? config.publicDoctype : null,
-                config.systemDoctype != null ? config.systemDoctype : null,
-                getEncoding(config, DEFAULT_ENCODING),
-                config.omitXMLDeclaration,
-                config.standalone,
-                config.indent,
-                config.indentAmount);
+        final String method = config.method != null ? config.method : Dom4jUtils.qNameToExplodedQName(getPropertySet().getQName(DEFAULT_METHOD_PROPERTY_NAME, DEFAULT_METHOD));
+        final String version = config.version != null ? config.version : DEFAULT_VERSION;
+        final String encoding = getEncoding(config, DEFAULT_ENCODING);
+
+        final XMLReceiver serializer;
+        if (SerializingXMLReceiver.isSupported(method, version, config.publicDoctype, config.systemDoctype, encoding, config.indent)) {
+            // Serialize directly, which is faster than creating an identity transformer
+            serializer = new SerializingXMLReceiver(writer, encoding, config.omitXMLDeclaration, config.standalone);
+        } else {
+            // Create an identity transformer and start the transformation
+            final TransformerXMLReceiver identity = TransformerUtils.getIdentityTransformerHandler();
+
+            TransformerUtils.applyOutputProperties(identity.getTransformer(),
+                    method,
+                    version,
+                    config.publicDoctype != null ? config.publicDoctype : null,
+                    config.systemDoctype != null ? config.systemDoctype : null,
+                    encoding,
+                    config.omitXMLDeclaration,
+                    config.standalone,
+                    config.indent,
+                    config.indentAmount);
+
+            identity.setResult(new StreamResult(writer));
+            serializer = identity;
+        }
 
-        identity.setResult(new StreamResult(writer));
         final boolean[] didEndDocument = new boolean[1];
-        readInputAsSAX(context, input, new SimpleForwardingXMLReceiver(identity) {
+        readInputAsSAX(context, input, new SimpleForwardingXMLReceiver(serializer) {
             public void endDocument() throws SAXException {
                 super.endDocument();
                 sendEndDocument(contentHandler);
@@ -82,9 +82,14 @@ public class AggregatorProcessor extends ProcessorImpl {
                     xmlReceiver.startElement(rootNamespaceURI, rootLocalName, rootQName, XMLUtils.EMPTY_ATTRIBUTES);
 
                     // Processor input processors
-                    for (Iterator i = getInputsByName(INPUT_DATA).iterator(); i.hasNext();) {
-                        ProcessorInput input = (ProcessorInput) i.next();
-                        readInputAsSAX(context, input, new EmbeddedDocumentXMLReceiver(xmlReceiver));
+                    // Independent inputs are read concurrently if enabled
+                    final List<ProcessorInput> inputs = getInputsByName(INPUT_DATA);
+                    final InputPrefetcher inputPrefetcher = new InputPrefetcher(context, inputs);
+                    try {
+                        for (final ProcessorInput input : inputs)
+                            inputPrefetcher.readInputAsSAX(context, input, new EmbeddedDocumentXMLReceiver(xmlReceiver));
+                    } finally {
+                        inputPrefetcher.close();
                     }
 
                     // End document
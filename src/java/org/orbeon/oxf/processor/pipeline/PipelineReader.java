@@ -215,6 +215,8 @@ public class PipelineReader extends ProcessorImpl {
                     forEach.setOutputSchemaHref(element.attributeValue("output-schema-href"));
                     forEach.setOutputSchemaUri(element.attributeValue("output-schema-uri"));
                     forEach.setOutputDebug(element.attributeValue("output-debug"));
+                    forEach.setParallel("true".equals(element.attributeValue("parallel")));
+                    forEach.setCache("true".equals(element.attributeValue("cache")));
                     forEach.getStatements().addAll(readStatements(element));
                 }
             }
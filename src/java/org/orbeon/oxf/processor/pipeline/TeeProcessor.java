@@ -83,10 +83,20 @@ public class TeeProcessor extends ProcessorImpl {
                         logger.error("Tee state was cleared and re-read for output: " + output.getName());
                     }
 
-                    // Create SAXStore and read input through it
                     final ProcessorInput input = getInputByName(INPUT_DATA);
-                    state.store = new SAXStore(xmlReceiver);
-                    readInputAsSAX(context, input, state.store);
+                    if (isLastRead(state)) {
+                        // No other read will follow: stream the input without storing it
+                        readInputAsSAX(context, input, xmlReceiver);
+                        state.readCount++;
+                        state.stateWasCleared = true;
+                        return;
+                    } else {
+                        // Create SAXStore and read input through it. Large character content is spilled to disk, as
+                        // the SAXStore may be kept until other outputs are read, e.g. during a whole p:for-each.
+                        state.store = new SAXStore(xmlReceiver);
+                        state.store.setSpillThreshold(SAXStore.getDefaultSpillThreshold());
+                        readInputAsSAX(context, input, state.store);
+                    }
                 } else {
                     state.store.replay(xmlReceiver);
                 }
@@ -115,8 +125,15 @@ public class TeeProcessor extends ProcessorImpl {
             freeSAXStoreIfNeeded(state);
         }
 
+        /**
+         * Whether the current read is the last one, i.e. all the other outputs have been read already.
+         */
+        private boolean isLastRead(State state) {
+            return !isMultipleReads && state.readCount == getOutputCount() - 1;
+        }
+
         private void freeSAXStoreIfNeeded(State state) {
-            if (state.readCount == getOutputCount()) {
+            if (state.readCount == getOutputCount() && state.store != null) {
                 final SAXStore freedStore = state.store;
                 state.store = null;
                 state.stateWasCleared = true;
@@ -126,6 +143,10 @@ public class TeeProcessor extends ProcessorImpl {
                     final long saxStoreSize = freedStore.getApproximateSize();
                     logger.debug("Freed SAXStore for output id: " + output.getName() + "; approximate size: " + saxStoreSize + " bytes");
                 }
+
+                // Release the spill file and drop references to the content right away. The mapped memory itself is
+                // only unmapped when the store is garbage collected, as there is no supported way to unmap it earlier.
+                freedStore.clear();
             }
         }
 
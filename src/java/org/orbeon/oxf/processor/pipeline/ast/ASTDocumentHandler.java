@@ -145,6 +145,10 @@ public class ASTDocumentHandler implements ASTHandler {
         if (forEach.getRef() != null)
             currentElement.addAttribute("ref", forEach.getRef());
         currentElement.addAttribute("root", forEach.getRoot());
+        if (forEach.isParallel())
+            currentElement.addAttribute("parallel", "true");
+        if (forEach.isCache())
+            currentElement.addAttribute("cache", "true");
         return true;
     }
 
@@ -29,6 +29,8 @@ public class ASTForEach extends ASTStatement {
     private String outputSchemaHref;
     private String outputSchemaUri;
     private String outputDebug;
+    private boolean parallel;
+    private boolean cache;
     private List<ASTStatement> statements = new ArrayList<ASTStatement>();
 
     public ASTHref getHref() {
@@ -119,6 +121,22 @@ public class ASTForEach extends ASTStatement {
         this.outputDebug = outputDebug;
     }
 
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public boolean isCache() {
+        return cache;
+    }
+
+    public void setCache(boolean cache) {
+        this.cache = cache;
+    }
+
     public List<ASTStatement> getStatements() {
         return statements;
     }
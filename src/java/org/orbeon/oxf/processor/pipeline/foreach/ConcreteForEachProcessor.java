@@ -15,19 +15,26 @@ package org.orbeon.oxf.processor.pipeline.foreach;
 
 import org.dom4j.*;
 import org.orbeon.oxf.cache.OutputCacheKey;
+import org.orbeon.oxf.cache.SimpleOutputCacheKey;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.common.ValidationException;
 import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.pipeline.api.XMLReceiver;
 import org.orbeon.oxf.processor.*;
 import org.orbeon.oxf.processor.generator.DOMGenerator;
+import org.orbeon.oxf.processor.impl.ProcessorInputImpl;
 import org.orbeon.oxf.processor.pipeline.PipelineProcessor;
 import org.orbeon.oxf.processor.pipeline.TeeProcessor;
 import org.orbeon.oxf.processor.pipeline.ast.*;
+import org.orbeon.oxf.properties.Properties;
+import org.orbeon.oxf.properties.PropertySet;
+import org.orbeon.oxf.util.NumberUtils;
 import org.orbeon.oxf.util.PooledXPathExpression;
 import org.orbeon.oxf.util.XPathCache;
 import org.orbeon.oxf.xml.EmbeddedDocumentXMLReceiver;
 import org.orbeon.oxf.xml.NamespaceMapping;
+import org.orbeon.oxf.xml.SAXStore;
+import org.orbeon.oxf.xml.XMLUtils;
 import org.orbeon.oxf.xml.dom4j.Dom4jUtils;
 import org.orbeon.saxon.dom4j.DocumentWrapper;
 import org.orbeon.saxon.om.DocumentInfo;
@@ -36,11 +43,21 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ConcreteForEachProcessor extends ProcessorImpl {
 
+    public static final String FOR_EACH_THREADS_PROPERTY = "oxf.pipeline.for-each.threads";
+
+    private static ExecutorService executor;
+
     private final Processor forEachBlockProcessor;
     private final ProcessorOutput iterationOutput;
+    private final ProcessorInput iterationResultInput;
+    private final List<String> forwardedInputNames = new ArrayList<String>();
+    private final boolean parallel;
+    private final boolean cache;
     private final String select;
     private final NamespaceMapping namespaceContext;
     private String rootLocalName;
@@ -59,8 +76,10 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
             astPipeline.setNode(forEachAST.getNode());
             for (int i = 0; i < refsWithNoId.length; i++) {
                 astPipeline.addParam(new ASTParam(ASTParam.INPUT, refsWithNoId[i]));
-                if (!refsWithNoId[i].equals(AbstractForEachProcessor.FOR_EACH_CURRENT_INPUT))
+                if (!refsWithNoId[i].equals(AbstractForEachProcessor.FOR_EACH_CURRENT_INPUT)) {
                     addInputInfo(new ProcessorInputOutputInfo(refsWithNoId[i]));
+                    forwardedInputNames.add(refsWithNoId[i]);
+                }
             }
             if (idOrRef != null) {
                 astPipeline.addParam(new ASTParam(ASTParam.OUTPUT, idOrRef));
@@ -91,6 +110,12 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
         // Create output for the iteration
         iterationOutput = forEachBlockProcessor.createOutput(idOrRef);
 
+        // Input to read the iteration output from the cache
+        iterationResultInput = new ProcessorInputImpl(ConcreteForEachProcessor.class, "$iteration");
+        iterationResultInput.setOutput(iterationOutput);
+
+        parallel = forEachAST.isParallel();
+        cache = forEachAST.isCache();
         select = forEachAST.getSelect();
         namespaceContext = new NamespaceMapping(Dom4jUtils.getNamespaceContextNoDefault((Element) forEachAST.getNode()));
         if (forEachAST.getRoot() != null) {
@@ -116,40 +141,12 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
         final ProcessorOutput output = new ProcessorOutputImpl(ConcreteForEachProcessor.this, name) {
             public void readImpl(PipelineContext pipelineContext, XMLReceiver xmlReceiver) {
                 try {
-                    final State state = (State) getState(pipelineContext);
-
                     // Open document
                     xmlReceiver.startDocument();
                     xmlReceiver.startElement(rootNamespaceURI, rootLocalName, rootQName, new AttributesImpl());
 
                     // Read n times from iterationOutput
-                    PooledXPathExpression expression = null;
-                    int iterationCount = 0;
-                    try {
-                        expression = createExpression(pipelineContext);
-
-                        for (Iterator i = new ElementIterator(expression); i.hasNext(); iterationCount++) {
-                            final Element currentElement = (Element) i.next();
-
-                            // Create DOMGenerator
-                            final String systemId = Dom4jUtils.makeSystemId(currentElement);
-                            final DOMGenerator domGenerator = new DOMGenerator
-                                    (currentElement, "for each input", DOMGenerator.ZeroValidity, systemId);
-                            domGenerator.createOutput(OUTPUT_DATA);
-                            state.domGenerator = domGenerator;
-
-                            // Run iteration
-                            forEachBlockProcessor.reset(pipelineContext);
-                            iterationOutput.read(pipelineContext, new EmbeddedDocumentXMLReceiver(xmlReceiver));
-                        }
-                    } catch (XPathException e) {
-                        throw new OXFException(e);
-                    } finally {
-                        // Clear state to allow gc as the state might be referenced for a while
-                        if (state != null) state.domGenerator = null;
-                        // Return expression
-                        if (expression != null) expression.returnToPool();
-                    }
+                    final int iterationCount = runIterations(pipelineContext, xmlReceiver);
 
                     // Notify input Tee processors that we are done
                     commitInputs(pipelineContext, iterationCount);
@@ -169,8 +166,9 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
              * getting the output key runs the serializer.
              *
              * So if we get the key here, we'll run the serializer n times, which is
-             * unexpected. Maybe an an API that combines reading the output and reading the
-             * key/validity would solve this problem.
+             * unexpected. With cache="true", each iteration is cached instead: its key is
+             * obtained and its output read as part of the same execution of the block, see
+             * runIteration().
              */
             @Override
             public OutputCacheKey getKeyImpl(PipelineContext pipelineContext) {
@@ -251,40 +249,250 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
 
     @Override
     public void start(PipelineContext pipelineContext) {
+        // Run n times the iteration
+        final int iterationCount;
+        try {
+            iterationCount = runIterations(pipelineContext, null);
+        } catch (SAXException e) {
+            throw new OXFException(e);
+        }
+
+        // Notify input Tee processors that we are done
+        commitInputs(pipelineContext, iterationCount);
+    }
+
+    /**
+     * Run all the iterations.
+     *
+     * @param pipelineContext   current context
+     * @param xmlReceiver       receiver for the output of the iterations, or null to start the block instead
+     * @return                  number of iterations
+     */
+    private int runIterations(PipelineContext pipelineContext, XMLReceiver xmlReceiver) throws SAXException {
         final State state = (State) getState(pipelineContext);
 
-        // Read n times from iterationOutput
         PooledXPathExpression expression = null;
-        int iterationCount = 0;
         try {
             expression = createExpression(pipelineContext);
 
-            for (Iterator i = new ElementIterator(expression); i.hasNext(); iterationCount++) {
-                final Element currentElement = (Element) i.next();
-
-                // Create DOMGenerator
-                final String systemId = Dom4jUtils.makeSystemId(currentElement);
-                final DOMGenerator domGenerator = new DOMGenerator
-                        (currentElement, "for each input", DOMGenerator.ZeroValidity, systemId);
-                domGenerator.createOutput(OUTPUT_DATA);
-                state.domGenerator = domGenerator;
+            if (parallel) {
+                final List<Element> elements = new ArrayList<Element>();
+                for (Iterator i = new ElementIterator(expression); i.hasNext();)
+                    elements.add((Element) i.next());
 
-                // Run iteration
-                forEachBlockProcessor.reset(pipelineContext);
-                forEachBlockProcessor.start(pipelineContext);
+                runIterationsInParallel(pipelineContext, elements, xmlReceiver);
+                return elements.size();
+            } else {
+                int iterationCount = 0;
+                for (Iterator i = new ElementIterator(expression); i.hasNext(); iterationCount++) {
+                    final Element currentElement = (Element) i.next();
+                    runIteration(pipelineContext, state, currentElement, (xmlReceiver != null) ? new EmbeddedDocumentXMLReceiver(xmlReceiver) : null);
+                }
+                return iterationCount;
             }
-
         } catch (XPathException e) {
             throw new OXFException(e);
         } finally {
             // Clear state to allow gc as the state might be referenced for a while
-            if (state != null) state.domGenerator = null;
+            if (state != null) state.clearIteration();
             // Return expression
             if (expression != null) expression.returnToPool();
         }
+    }
 
-        // Notify input Tee processors that we are done
-        commitInputs(pipelineContext, iterationCount);
+    private void runIteration(PipelineContext pipelineContext, State state, Element currentElement, XMLReceiver xmlReceiver) throws SAXException {
+        // Create DOMGenerator
+        final String systemId = Dom4jUtils.makeSystemId(currentElement);
+        final DOMGenerator domGenerator = new DOMGenerator
+                (currentElement, "for each input", DOMGenerator.ZeroValidity, systemId);
+        domGenerator.createOutput(OUTPUT_DATA);
+        state.clearIteration();
+        state.domGenerator = domGenerator;
+        state.systemId = systemId;
+
+        // Run iteration
+        forEachBlockProcessor.reset(pipelineContext);
+        if (xmlReceiver == null) {
+            forEachBlockProcessor.start(pipelineContext);
+        } else if (cache) {
+            // Getting the key of the iteration output starts the block, which is then not started again when reading
+            // the output: processors with side-effects in the block run only once
+            readCacheInputAsSAXStore(pipelineContext, iterationResultInput).replay(xmlReceiver);
+        } else {
+            iterationOutput.read(pipelineContext, xmlReceiver);
+        }
+    }
+
+    /**
+     * Run the iterations concurrently, and send their output in document order.
+     *
+     * Each thread runs iterations in a PipelineContext forked from the current one, with a stack of parent processors
+     * specific to that thread. This way, the processors of the block keep a separate state for each thread. The
+     * current thread runs iterations as well, so that iterations are never waiting for a thread to be available.
+     *
+     * Database connections belong to the pipeline execution and are not used by several threads at once: an iteration
+     * which needs a connection waits until all the previous iterations are done, so that the database is used in the
+     * same order and in the same transaction as if the iterations were not run in parallel.
+     */
+    private void runIterationsInParallel(final PipelineContext pipelineContext, final List<Element> elements, XMLReceiver xmlReceiver) throws SAXException {
+
+        // Read the inputs of p:for-each once, as they can't be read concurrently by the iterations
+        final Map<String, SAXStore> inputs = new HashMap<String, SAXStore>();
+        for (final String inputName : forwardedInputNames) {
+            final SAXStore saxStore = new SAXStore();
+            readInputAsSAX(pipelineContext, inputName, saxStore);
+            inputs.put(inputName, saxStore);
+        }
+
+        final SAXStore[] results = (xmlReceiver != null) ? new SAXStore[elements.size()] : null;
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final IterationTurns turns = new IterationTurns(elements.size());
+        final DatabaseContext.Turn parentTurn = (DatabaseContext.Turn) pipelineContext.getAttribute(DatabaseContext.CONNECTION_TURN);
+
+        final Runnable worker = new Runnable() {
+            public void run() {
+                final State state = new State();
+                state.inputs = inputs;
+                final PipelineContext forkedContext = forkContext(pipelineContext, new DatabaseContext.Turn() {
+                    public void await() throws InterruptedException {
+                        turns.await(state.index);
+                        if (parentTurn != null)
+                            parentTurn.await();
+                    }
+                });
+                forkedContext.run(new Runnable() {
+                    public void run() {
+                        setState(forkedContext, state);
+                        try {
+                            for (int index = nextIndex.getAndIncrement(); index < elements.size(); index = nextIndex.getAndIncrement()) {
+                                state.index = index;
+                                try {
+                                    final SAXStore result = (results != null) ? new SAXStore() : null;
+                                    runIteration(forkedContext, state, elements.get(index), result);
+                                    if (results != null)
+                                        results[index] = result;
+                                } finally {
+                                    turns.done(index);
+                                }
+                            }
+                        } catch (SAXException e) {
+                            // Don't start other iterations
+                            nextIndex.set(elements.size());
+                            throw new OXFException(e);
+                        } catch (RuntimeException e) {
+                            nextIndex.set(elements.size());
+                            throw e;
+                        } finally {
+                            state.clearIteration();
+                        }
+                    }
+                });
+            }
+        };
+
+        // Start other threads, as long as some are available
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        final ExecutorService executor = getExecutor();
+        if (executor != null) {
+            try {
+                while (futures.size() < elements.size() - 1)
+                    futures.add(executor.submit(worker));
+            } catch (RejectedExecutionException e) {
+                // All threads are busy, run remaining iterations in this thread
+            }
+        }
+
+        // Run iterations in this thread too, then wait for the other threads
+        RuntimeException failure = null;
+        try {
+            worker.run();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : new OXFException(e.getCause());
+            } catch (InterruptedException e) {
+                if (failure == null)
+                    failure = new OXFException(e);
+            }
+        }
+        if (failure != null)
+            throw failure;
+
+        // Send output in document order
+        if (results != null)
+            for (final SAXStore result : results)
+                result.replay(new EmbeddedDocumentXMLReceiver(xmlReceiver));
+    }
+
+    // Fork the context, pushing a processor specific to the fork on the stack of parent processors
+    private static PipelineContext forkContext(PipelineContext pipelineContext, DatabaseContext.Turn turn) {
+        final Stack<ProcessorImpl> parents = (Stack<ProcessorImpl>) pipelineContext.getAttribute(PARENT_PROCESSORS);
+        final Stack<ProcessorImpl> forkedParents = new Stack<ProcessorImpl>();
+        if (parents != null)
+            forkedParents.addAll(parents);
+        forkedParents.push(new IterationThreadProcessor());
+
+        final Map<Object, Object> localAttributes = new HashMap<Object, Object>();
+        localAttributes.put(PARENT_PROCESSORS, forkedParents);
+        localAttributes.put(DatabaseContext.CONNECTION_TURN, turn);
+        return pipelineContext.fork(localAttributes);
+    }
+
+    /**
+     * Turns of parallel iterations to use database connections: an iteration can use them once all the previous
+     * iterations are done.
+     */
+    private static class IterationTurns {
+        private final boolean[] done;
+        private int firstNotDone;
+
+        public IterationTurns(int iterationCount) {
+            done = new boolean[iterationCount];
+        }
+
+        public synchronized void done(int index) {
+            done[index] = true;
+            while (firstNotDone < done.length && done[firstNotDone])
+                firstNotDone++;
+            notifyAll();
+        }
+
+        // NOTE: Iterations are started in order, so all the previous iterations have started and are eventually done
+        public synchronized void await(int index) throws InterruptedException {
+            while (firstNotDone < index)
+                wait();
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final PropertySet propertySet = Properties.instance().getPropertySet();
+            final int threads = (propertySet == null) ? 0 : propertySet.getInteger(FOR_EACH_THREADS_PROPERTY, 0);
+            if (threads <= 0)
+                return null;
+
+            // Don't queue iterations: if no thread is available, the current thread runs them
+            executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "Pipeline for-each iteration");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return executor;
+    }
+
+    /**
+     * Processor standing on the stack of parent processors of a forked context. It is never run.
+     */
+    private static class IterationThreadProcessor extends ProcessorImpl {
     }
 
     /**
@@ -319,8 +527,18 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
         }
 
         protected void readImpl(PipelineContext pipelineContext, XMLReceiver xmlReceiver) {
-            // Delegate to the p:for-each input
-            ConcreteForEachProcessor.this.readInputAsSAX(pipelineContext, getName(), xmlReceiver);
+            final State state = (State) getState(pipelineContext);
+            if (state.inputs != null) {
+                // Parallel iteration: replay the input read before running the iterations
+                try {
+                    state.inputs.get(getName()).replay(xmlReceiver);
+                } catch (SAXException e) {
+                    throw new OXFException(e);
+                }
+            } else {
+                // Delegate to the p:for-each input
+                ConcreteForEachProcessor.this.readInputAsSAX(pipelineContext, getName(), xmlReceiver);
+            }
         }
 
         @Override
@@ -353,7 +571,18 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
         @Override
         public OutputCacheKey getKeyImpl(PipelineContext pipelineContext) {
             final State state = (State) getState(pipelineContext);
-            return state.domGenerator.getOutputByName(OUTPUT_DATA).getKey(pipelineContext);
+            if (cache) {
+                // Key the document by its content, so that iterations can be cached across executions
+                if (state.key == null) {
+                    final XMLUtils.DigestContentHandler digester = new XMLUtils.DigestContentHandler("MD5");
+                    state.domGenerator.getOutputByName(OUTPUT_DATA).read(pipelineContext, digester);
+                    state.key = new SimpleOutputCacheKey(ConcreteForEachProcessor.class, getName(),
+                            state.systemId + "#" + NumberUtils.toHexString(digester.getResult()));
+                }
+                return state.key;
+            } else {
+                return state.domGenerator.getOutputByName(OUTPUT_DATA).getKey(pipelineContext);
+            }
         }
 
         @Override
@@ -368,6 +597,18 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
      */
     private static class State {
         DOMGenerator domGenerator;
+        String systemId;
+        OutputCacheKey key;
+        // Inputs read before running the iterations in parallel
+        Map<String, SAXStore> inputs;
+        // Index of the iteration run in parallel
+        int index;
+
+        void clearIteration() {
+            domGenerator = null;
+            systemId = null;
+            key = null;
+        }
     }
 
     @Override
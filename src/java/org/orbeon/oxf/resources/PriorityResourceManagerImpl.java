@@ -84,6 +84,13 @@ public class PriorityResourceManagerImpl implements ResourceManager {
         }
     }
 
+    /**
+     * Return the resource managers this resource manager delegates to, in order of priority.
+     */
+    public List<ResourceManager> getResourceManagers() {
+        return Collections.unmodifiableList(resourceManagers);
+    }
+
     public Node getContentAsDOM(final String key) {
         return (Node) delegate(new Operation() {
             public Object run(ResourceManager resourceManager) {
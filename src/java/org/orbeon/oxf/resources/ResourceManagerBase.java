@@ -34,6 +34,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Base class for most resource manager implementations.
@@ -43,7 +46,9 @@ public abstract class ResourceManagerBase implements ResourceManager {
     private static final String MIN_RELOAD_INTERVAL_KEY = "oxf.resources.common.min-reload-interval";
     private static final long DEFAULT_MIN_RELOAD_INTERVAL = 2 * 1000;
 
-    private ExpirationMap lastModifiedMap;
+    // Last modification dates or ResourceNotFoundException by key, checked again after the reload interval
+    private final ConcurrentMap<String, LastModifiedEntry> lastModifiedMap = new ConcurrentHashMap<String, LastModifiedEntry>();
+    private final long minReloadInterval;
 
     /**
      * Initialisation. Should be called only by sub-classes
@@ -58,7 +63,7 @@ public abstract class ResourceManagerBase implements ResourceManager {
                 throw new OXFException("Value for property '" + MIN_RELOAD_INTERVAL_KEY + "' must be a non-negative integer.");
             minReloadInterval = longValue;
         }
-        lastModifiedMap = new ExpirationMap(minReloadInterval);
+        this.minReloadInterval = minReloadInterval;
     }
 
     public Node getContentAsDOM(String key) {
@@ -135,26 +140,62 @@ public abstract class ResourceManagerBase implements ResourceManager {
         return transformer;
     }
 
-    final synchronized public long lastModified(String key, boolean doNotThrowResourceNotFound) {
+    final public long lastModified(String key, boolean doNotThrowResourceNotFound) {
         // Do only 1 call to currentTimeMillis()
         final long currentTime = System.currentTimeMillis();
-        Object value = lastModifiedMap.get(currentTime, key);
-        if (value == null) {
-            // We don't have the information or or it has expired
+        final LastModifiedEntry entry = lastModifiedMap.get(key);
+
+        final Object value;
+        if (entry == null) {
+            // We don't have the information yet
+            value = checkLastModified(key, doNotThrowResourceNotFound, currentTime);
+        } else if (entry.checkTime + minReloadInterval < currentTime && entry.startCheck()) {
+            // The information has expired and this thread checks it again, while other threads use the old value
             try {
-                long lastModified = lastModifiedImpl(key, doNotThrowResourceNotFound);
-                lastModifiedMap.put(currentTime, key, lastModified);
-                return lastModified;
-            } catch (ResourceNotFoundException e) {
-                lastModifiedMap.put(currentTime, key, e);
+                value = checkLastModified(key, doNotThrowResourceNotFound, currentTime);
+            } catch (RuntimeException e) {
+                entry.cancelCheck();
                 throw e;
             }
         } else {
-            if (value instanceof ResourceNotFoundException) {
-                throw (ResourceNotFoundException) value;
-            } else {
-                return (Long) value;
-            }
+            value = entry.value;
+        }
+
+        if (value instanceof ResourceNotFoundException) {
+            throw (ResourceNotFoundException) value;
+        } else {
+            return (Long) value;
+        }
+    }
+
+    private Object checkLastModified(String key, boolean doNotThrowResourceNotFound, long currentTime) {
+        Object value;
+        try {
+            value = lastModifiedImpl(key, doNotThrowResourceNotFound);
+        } catch (ResourceNotFoundException e) {
+            value = e;
+        }
+        lastModifiedMap.put(key, new LastModifiedEntry(value, currentTime));
+        return value;
+    }
+
+    private static class LastModifiedEntry {
+        public final Object value;
+        public final long checkTime;
+        private final AtomicBoolean checking = new AtomicBoolean(false);
+
+        public LastModifiedEntry(Object value, long checkTime) {
+            this.value = value;
+            this.checkTime = checkTime;
+        }
+
+        // Return true if the calling thread is the first one to check the entry again
+        public boolean startCheck() {
+            return checking.compareAndSet(false, true);
+        }
+
+        public void cancelCheck() {
+            checking.set(false);
         }
     }
 
@@ -253,6 +253,53 @@ public class NetUtils {
             os.write(buffer, 0, count);
     }
 
+    /**
+     * Copy a file to an output stream, and close the file.
+     */
+    public static void copyFile(File file, OutputStream os) throws IOException {
+        copyFile(new FileInputStream(file), os);
+    }
+
+    /**
+     * Copy an open file to an output stream, and close the file.
+     */
+    public static void copyFile(FileInputStream fis, OutputStream os) throws IOException {
+        try {
+            copyStream(fis, os);
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Return the gzipped version of a file, stored next to it with the .gz extension, if it exists and is not older
+     * than the file.
+     *
+     * @param file  file
+     * @return      gzipped file, or null
+     */
+    public static File getGzipSibling(File file) {
+        final File gzipFile = new File(file.getPath() + ".gz");
+        return gzipFile.isFile() && gzipFile.lastModified() >= file.lastModified() ? gzipFile : null;
+    }
+
+    /**
+     * Return true if the client accepts gzip-encoded content, based on the Accept-Encoding header.
+     */
+    public static boolean isAcceptGzip(ExternalContext.Request request) {
+        final String acceptEncoding = getHeader(request.getHeaderValuesMap(), "accept-encoding");
+        if (acceptEncoding != null) {
+            for (final String coding : acceptEncoding.split(",")) {
+                final String[] codingParts = coding.split(";");
+                if (codingParts[0].trim().equalsIgnoreCase("gzip")) {
+                    // Accepted unless refused with a zero quality value
+                    return codingParts.length < 2 || ! codingParts[1].trim().matches("q\\s*=\\s*0(\\.0*)?");
+                }
+            }
+        }
+        return false;
+    }
+
     public static void copyStream(Reader reader, Writer writer) throws IOException {
         int count;
         final char[] buffer = new char[COPY_BUFFER_SIZE / 2];
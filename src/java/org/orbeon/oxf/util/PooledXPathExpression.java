@@ -13,7 +13,6 @@
  */
 package org.orbeon.oxf.util;
 
-import org.apache.commons.pool.ObjectPool;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.xforms.XFormsUtils;
 import org.orbeon.saxon.expr.Expression;
@@ -36,10 +35,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Compiled XPath expression along with the dynamic context of one evaluation.
+ *
+ * The compiled expression is shared between threads, but instances of this class must not be.
+ */
 public class PooledXPathExpression {
 
     private XPathExpression  expression;
-    private ObjectPool pool;
     private Map<String, XPathVariable> variables;
 
     // Dynamic context
@@ -47,27 +50,17 @@ public class PooledXPathExpression {
     private Item contextItem;
     private int contextPosition;
 
-    public PooledXPathExpression(XPathExpression expression, ObjectPool pool, Map<String, XPathVariable> variables) {
+    public PooledXPathExpression(XPathExpression expression, Map<String, XPathVariable> variables) {
         this.expression = expression;
-        this.pool = pool;
         this.variables = variables;
     }
 
     /**
-     * This *must* be called in a finally block to return the expression to the pool.
+     * This should be called in a finally block to free up references to the dynamic context.
      */
     public void returnToPool() {
-        try {
-            // Free up dynamic context references
-            variableToValueMap = null;
-            contextItem = null;
-
-            // Return object to pool
-            if (pool != null) // may be null for testing
-                pool.returnObject(this);
-        } catch (Exception e) {
-            throw new OXFException(e);
-        }
+        variableToValueMap = null;
+        contextItem = null;
     }
 
     public Expression getExpression() {
@@ -316,13 +309,4 @@ public class PooledXPathExpression {
         // them. Conversely, if there are undeclared variables, we let the XPath engine complain about that.
         this.variableToValueMap = variableToValueMap;
     }
-
-    public void destroy() {
-        expression = null;
-        pool = null;
-        variables = null;
-
-        variableToValueMap = null;
-        contextItem = null;
-    }
 }
\ No newline at end of file
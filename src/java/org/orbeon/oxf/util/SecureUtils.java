@@ -13,26 +13,28 @@
  */
 package org.orbeon.oxf.util;
 
-import org.orbeon.oxf.cache.Cache;
-import org.orbeon.oxf.cache.InternalCacheKey;
-import org.orbeon.oxf.cache.ObjectCache;
 import org.orbeon.oxf.common.OXFException;
 
 import javax.crypto.Cipher;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class SecureUtils {
 
@@ -49,53 +51,98 @@ public class SecureUtils {
     private static final PBEParameterSpec pbeParamSpec = new PBEParameterSpec(salt, count);
     private static final String CIPHER_TYPE = "PBEWithMD5AndDES";
 
-    private static Map<String, Cipher> passwordToEncryptionCipher = new HashMap<String, Cipher>();
-    private static Map<String, Cipher> passwordToDecryptionCipher = new HashMap<String, Cipher>();
+    // Authenticated encryption: AES in CBC mode with a random IV, followed by an HMAC of the IV and encrypted data
+    private static final String AUTHENTICATED_CIPHER_TYPE = "AES/CBC/PKCS5Padding";
+    private static final String AUTHENTICATED_MAC_TYPE = "HmacSHA256";
+    private static final String KEY_DERIVATION_TYPE = "PBKDF2WithHmacSHA1";
+    private static final int KEY_DERIVATION_ITERATIONS = 10000;
+    private static final int KEY_LENGTH = 16;
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
 
-    public static Cipher getEncryptingCipher(String password, boolean cacheCipher) {
-        try {
-            Cipher cipher;
-            if (cacheCipher) {
-                synchronized(passwordToEncryptionCipher) {
-                    cipher = passwordToEncryptionCipher.get(password);
-                    if (cipher == null) {
-                        cipher = Cipher.getInstance(CIPHER_TYPE);
-                        cipher.init(Cipher.ENCRYPT_MODE, getSecretKey(password), pbeParamSpec);
-                        passwordToEncryptionCipher.put(password, cipher);
-                    }
-                }
-            } else {
-                cipher = Cipher.getInstance(CIPHER_TYPE);
-                cipher.init(Cipher.ENCRYPT_MODE, getSecretKey(password), pbeParamSpec);
-            }
-            return cipher;
-        } catch (Exception e) {
-            throw new OXFException(e);
+    // Keys derived from passwords, which is the expensive part of creating ciphers
+    private static final ConcurrentMap<String, SecretKey> passwordToSecretKey = new ConcurrentHashMap<String, SecretKey>();
+    private static final ConcurrentMap<String, SecretKey[]> passwordToAuthenticatedKeys = new ConcurrentHashMap<String, SecretKey[]>();
+
+    // Ciphers are not thread-safe, so each thread has its own
+    private static final ThreadLocal<ThreadCiphers> threadCiphers = new ThreadLocal<ThreadCiphers>() {
+        @Override
+        protected ThreadCiphers initialValue() {
+            return new ThreadCiphers();
+        }
+    };
+
+    private static class ThreadCiphers {
+        public final Map<String, Cipher> passwordToEncryptionCipher = new HashMap<String, Cipher>();
+        public final Map<String, Cipher> passwordToDecryptionCipher = new HashMap<String, Cipher>();
+
+        private Cipher authenticatedCipher;
+        private Mac authenticatedMac;
+        private SecureRandom random;
+
+        public Cipher getAuthenticatedCipher() throws GeneralSecurityException {
+            if (authenticatedCipher == null)
+                authenticatedCipher = Cipher.getInstance(AUTHENTICATED_CIPHER_TYPE);
+            return authenticatedCipher;
+        }
+
+        public Mac getAuthenticatedMac() throws GeneralSecurityException {
+            if (authenticatedMac == null)
+                authenticatedMac = Mac.getInstance(AUTHENTICATED_MAC_TYPE);
+            return authenticatedMac;
+        }
+
+        public SecureRandom getRandom() {
+            if (random == null)
+                random = new SecureRandom();
+            return random;
         }
     }
 
+    /**
+     * Return a new encrypting cipher for the given password.
+     *
+     * @param password          encryption password
+     * @param cacheCipher       whether to cache the key derived from the password
+     * @return                  new cipher, which must not be shared between threads
+     */
+    public static Cipher getEncryptingCipher(String password, boolean cacheCipher) {
+        return newPBECipher(Cipher.ENCRYPT_MODE, password, cacheCipher);
+    }
+
+    /**
+     * Return a new decrypting cipher for the given password.
+     *
+     * @param password          encryption password
+     * @param cacheCipher       whether to cache the key derived from the password
+     * @return                  new cipher, which must not be shared between threads
+     */
     public static Cipher getDecryptingCipher(String password, boolean cacheCipher) {
+        return newPBECipher(Cipher.DECRYPT_MODE, password, cacheCipher);
+    }
+
+    private static Cipher newPBECipher(int mode, String password, boolean cacheKey) {
         try {
-            Cipher cipher;
-            if (cacheCipher) {
-                synchronized(passwordToDecryptionCipher) {
-                    cipher = passwordToDecryptionCipher.get(password);
-                    if (cipher == null) {
-                        cipher = Cipher.getInstance(CIPHER_TYPE);
-                        cipher.init(Cipher.DECRYPT_MODE, getSecretKey(password), pbeParamSpec);
-                        passwordToDecryptionCipher.put(password, cipher);
-                    }
-                }
-            } else {
-                cipher = Cipher.getInstance(CIPHER_TYPE);
-                cipher.init(Cipher.DECRYPT_MODE, getSecretKey(password), pbeParamSpec);
-            }
+            final Cipher cipher = Cipher.getInstance(CIPHER_TYPE);
+            cipher.init(mode, cacheKey ? getCachedSecretKey(password) : getSecretKey(password), pbeParamSpec);
             return cipher;
         } catch (Exception e) {
             throw new OXFException(e);
         }
     }
 
+    // Cipher of the current thread for the given password and mode
+    private static Cipher getThreadPBECipher(int mode, String password) {
+        final ThreadCiphers ciphers = threadCiphers.get();
+        final Map<String, Cipher> passwordToCipher = (mode == Cipher.ENCRYPT_MODE) ? ciphers.passwordToEncryptionCipher : ciphers.passwordToDecryptionCipher;
+        Cipher cipher = passwordToCipher.get(password);
+        if (cipher == null) {
+            cipher = newPBECipher(mode, password, true);
+            passwordToCipher.put(password, cipher);
+        }
+        return cipher;
+    }
+
     public static String generateRandomPassword() {
         // There is obviously room for improvement in our "password generation algorithm"
         return Long.toString(random.nextLong());
@@ -127,22 +174,8 @@ public class SecureUtils {
      */
     public static String encrypt(String password, byte[] bytes) {
         try {
-            // Find cipher in cache
-            final Cache cache = ObjectCache.instance();
-            final Long validity = (long) 0;
-            final InternalCacheKey key = new InternalCacheKey("Encryption cipher", password);
-            Cipher cipher = (Cipher) cache.findValid(key, validity);
-            if (cipher == null) {
-                cipher = Cipher.getInstance(CIPHER_TYPE);
-                cipher.init(Cipher.ENCRYPT_MODE, getSecretKey(password), pbeParamSpec);
-                cache.add(key, validity, cipher);
-            }
-            // Encode with cipher
-            // TODO: should probably use pool of cyphers instead of synchronization, which can cause contention here.
-            synchronized(cipher) {
-                // Encode without putting line breaks between lines
-                return Base64.encode(cipher.doFinal(bytes), false);
-            }
+            // Encode without putting line breaks between lines
+            return Base64.encode(getThreadPBECipher(Cipher.ENCRYPT_MODE, password).doFinal(bytes), false);
         } catch (Exception e) {
             throw new OXFException(e);
         }
@@ -172,23 +205,116 @@ public class SecureUtils {
      */
     public static byte[] decrypt(String password, String text) {
         try {
-            Cache cache = ObjectCache.instance();
-            Long validity = (long) 0;
-            InternalCacheKey key = new InternalCacheKey("Decryption cipher", password);
-                Cipher cipher = (Cipher) cache.findValid(key, validity);
-            if (cipher == null) {
-                cipher = Cipher.getInstance(CIPHER_TYPE);
-                cipher.init(Cipher.DECRYPT_MODE, getSecretKey(password), pbeParamSpec);
-                cache.add(key, validity, cipher);
-            }
-            synchronized(cipher) {
-                return cipher.doFinal(Base64.decode(text));
-            }
+            return getThreadPBECipher(Cipher.DECRYPT_MODE, password).doFinal(Base64.decode(text));
         } catch (Exception e) {
             throw new OXFException(e);
         }
     }
 
+    /**
+     * Encrypt a byte array using the given password with an authenticated scheme, which detects changes to the
+     * encrypted data. The result is converted to Base64 encoding without line breaks or spaces.
+     *
+     * The result contains a random IV, the data encrypted with AES, and an HMAC of the IV and encrypted data. Keys are
+     * derived from the password with PBKDF2.
+     *
+     * @param password          encryption password
+     * @param bytes             byte array to encrypt
+     * @return                  string containing the encoding data as Base64
+     */
+    public static String encryptAuthenticated(String password, byte[] bytes) {
+        try {
+            final SecretKey[] keys = getAuthenticatedKeys(password);
+            final ThreadCiphers ciphers = threadCiphers.get();
+
+            final byte[] iv = new byte[IV_LENGTH];
+            ciphers.getRandom().nextBytes(iv);
+
+            final Cipher cipher = ciphers.getAuthenticatedCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, keys[0], new IvParameterSpec(iv));
+
+            // Write IV, encrypted data and MAC into a single array
+            final byte[] result = new byte[IV_LENGTH + cipher.getOutputSize(bytes.length) + MAC_LENGTH];
+            System.arraycopy(iv, 0, result, 0, IV_LENGTH);
+            final int encryptedLength = cipher.doFinal(bytes, 0, bytes.length, result, IV_LENGTH);
+
+            final Mac mac = ciphers.getAuthenticatedMac();
+            mac.init(keys[1]);
+            mac.update(result, 0, IV_LENGTH + encryptedLength);
+            mac.doFinal(result, IV_LENGTH + encryptedLength);
+
+            // Encode without putting line breaks between lines
+            return Base64.encode(result, false);
+        } catch (Exception e) {
+            throw new OXFException(e);
+        }
+    }
+
+    /**
+     * Decrypt a Base64-encoded string produced by encryptAuthenticated() into a byte array using the given password.
+     *
+     * @param password          encryption password
+     * @param text              string to decrypt
+     * @return                  byte array containing the decoded data
+     */
+    public static byte[] decryptAuthenticated(String password, String text) {
+        final byte[] bytes = Base64.decode(text);
+        if (bytes.length < IV_LENGTH + MAC_LENGTH)
+            throw new OXFException("Invalid length for encrypted data");
+
+        final byte[] actualMac = new byte[MAC_LENGTH];
+        System.arraycopy(bytes, bytes.length - MAC_LENGTH, actualMac, 0, MAC_LENGTH);
+        try {
+            final SecretKey[] keys = getAuthenticatedKeys(password);
+            final ThreadCiphers ciphers = threadCiphers.get();
+
+            final Mac mac = ciphers.getAuthenticatedMac();
+            mac.init(keys[1]);
+            mac.update(bytes, 0, bytes.length - MAC_LENGTH);
+            final byte[] expectedMac = mac.doFinal();
+
+            // Check MAC before decrypting anything
+            if (! MessageDigest.isEqual(expectedMac, actualMac))
+                throw new OXFException("Invalid authentication code for encrypted data");
+
+            final Cipher cipher = ciphers.getAuthenticatedCipher();
+            cipher.init(Cipher.DECRYPT_MODE, keys[0], new IvParameterSpec(bytes, 0, IV_LENGTH));
+            return cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH - MAC_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new OXFException(e);
+        }
+    }
+
+    // Encryption and MAC keys derived from the given password
+    private static SecretKey[] getAuthenticatedKeys(String password) {
+        final SecretKey[] existingKeys = passwordToAuthenticatedKeys.get(password);
+        if (existingKeys != null)
+            return existingKeys;
+
+        try {
+            final PBEKeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, KEY_DERIVATION_ITERATIONS, 2 * KEY_LENGTH * 8);
+            final byte[] keyBytes = SecretKeyFactory.getInstance(KEY_DERIVATION_TYPE).generateSecret(keySpec).getEncoded();
+            final SecretKey[] newKeys = new SecretKey[] {
+                new SecretKeySpec(keyBytes, 0, KEY_LENGTH, "AES"),
+                new SecretKeySpec(keyBytes, KEY_LENGTH, KEY_LENGTH, AUTHENTICATED_MAC_TYPE)
+            };
+            passwordToAuthenticatedKeys.put(password, newKeys);
+            return newKeys;
+        } catch (GeneralSecurityException e) {
+            throw new OXFException(e);
+        }
+    }
+
+    private static SecretKey getCachedSecretKey(String password) {
+        final SecretKey existingKey = passwordToSecretKey.get(password);
+        if (existingKey != null)
+            return existingKey;
+
+        final SecretKey newKey = getSecretKey(password);
+        passwordToSecretKey.put(password, newKey);
+        return newKey;
+    }
+
     private static SecretKey getSecretKey(String password) {
         try {
             PBEKeySpec pbeKeySpec = new PBEKeySpec(password.toCharArray());
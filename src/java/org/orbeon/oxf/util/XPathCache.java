@@ -13,14 +13,11 @@
  */
 package org.orbeon.oxf.util;
 
-import org.apache.commons.pool.ObjectPool;
-import org.apache.commons.pool.PoolableObjectFactory;
 import org.apache.log4j.Logger;
-import org.orbeon.oxf.cache.Cache;
-import org.orbeon.oxf.cache.InternalCacheKey;
-import org.orbeon.oxf.cache.ObjectCache;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.common.ValidationException;
+import org.orbeon.oxf.properties.Properties;
+import org.orbeon.oxf.properties.PropertySet;
 import org.orbeon.oxf.xml.NamespaceMapping;
 import org.orbeon.oxf.xml.XPathCacheStaticContext;
 import org.orbeon.oxf.xml.dom4j.ExtendedLocationData;
@@ -45,12 +42,17 @@ import org.orbeon.saxon.type.Type;
 import org.orbeon.saxon.value.SequenceExtent;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Use the object cache to cache XPath expressions, which are costly to parse.
+ * Cache XPath expressions, which are costly to parse.
  *
- * It is mandatory to call returnToPool() on the returned PooledXPathExpression after use. It is
- * good to do this within a finally() block enclosing the use of the expression.
+ * Compiled expressions are immutable and shared between threads. Each call returns a new PooledXPathExpression which
+ * holds the dynamic context of one evaluation. It is good to call returnToPool() on it after use, within a finally()
+ * block enclosing the use of the expression, so that references to the dynamic context are released.
  */
 public class XPathCache {
 
@@ -71,8 +73,18 @@ public class XPathCache {
     }
 
     public static final String XPATH_CACHE_NAME = "cache.xpath";
+    private static final String XPATH_CACHE_SIZE_PROPERTY = "oxf." + XPATH_CACHE_NAME + ".size";
     private static final int XPATH_CACHE_DEFAULT_SIZE = 200;
 
+    private static final ConcurrentMap<XPathCacheKey, CompiledXPathExpression> expressions
+            = new ConcurrentHashMap<XPathCacheKey, CompiledXPathExpression>(256, 0.75f, 64);
+    private static final AtomicBoolean evicting = new AtomicBoolean();
+
+    private static final AtomicLong hitCount = new AtomicLong();
+    private static final AtomicLong missCount = new AtomicLong();
+    private static final AtomicLong compileCount = new AtomicLong();
+    private static final AtomicLong compileTimeNanos = new AtomicLong();
+
     private static final Logger logger = LoggerFactory.createLogger(XPathCache.class);
 
     public static class XPathContext {
@@ -340,16 +352,12 @@ public class XPathCache {
     public static void checkXPathExpression(Configuration configuration, String xpathString, NamespaceMapping namespaceMapping,
                                             FunctionLibrary functionLibrary) throws Exception {
 
-        new XPathCachePoolableObjectFactory(null, configuration, xpathString, namespaceMapping, null, functionLibrary, null, false, true, null).makeObject();
+        new XPathCompiler(configuration, xpathString, namespaceMapping, null, functionLibrary, null, false, true).compile();
     }
 
     public static Expression createExpression(Configuration configuration, String xpathString, NamespaceMapping namespaceMapping, FunctionLibrary functionLibrary) {
-        try {
-            return ((PooledXPathExpression) new XPathCachePoolableObjectFactory(null, configuration, xpathString, namespaceMapping,
-                    null, functionLibrary, null, false, true, null).makeObject()).getExpression();
-        } catch (Exception e) {
-            throw new OXFException(e);
-        }
+        return new XPathCompiler(configuration, xpathString, namespaceMapping, null, functionLibrary, null, false, true)
+                .compile().newExpression().getExpression();
     }
 
     private static PooledXPathExpression getXPathExpression(Configuration configuration,
@@ -363,70 +371,141 @@ public class XPathCache {
                                                             LocationData locationData) {
 
         try {
+            // NOTE: Mike Kay confirms on 2007-07-04 that compilation depends on the namespace context, so the namespace
+            // mapping is part of the key. Variables in scope are also part of the key.
+            // TODO: Add baseURI to cache key (currently, baseURI is pretty much unused)
+            final Set<String> variableNames = (variableToValueMap != null) ? variableToValueMap.keySet() : Collections.<String>emptySet();
+            final XPathCacheKey lookupKey = new XPathCacheKey(xpathString, functionLibrary, namespaceMapping, variableNames, isAvt);
 
-            // Find pool from cache
-            final Long validity = (long) 0;
-            final Cache cache = ObjectCache.instance(XPATH_CACHE_NAME, XPATH_CACHE_DEFAULT_SIZE);
-            final StringBuilder cacheKeyString = new StringBuilder(xpathString);
-
-            if (functionLibrary != null) {// This is ok
-                cacheKeyString.append('|');
-                cacheKeyString.append(Integer.toString(functionLibrary.hashCode()));
-            }
-            // NOTE: Mike Kay confirms on 2007-07-04 that compilation depends on the namespace context, so we need
-            // to use it as part of the cache key.
-            if (namespaceMapping != null) {
-                // NOTE: Hash is mandatory in NamespaceMapping
-                cacheKeyString.append('|');
-                cacheKeyString.append(namespaceMapping.hash);
+            // Get or compile expression
+            CompiledXPathExpression compiledExpression = expressions.get(lookupKey);
+            if (compiledExpression != null) {
+                compiledExpression.lastAccess = hitCount.incrementAndGet();
+            } else {
+                missCount.incrementAndGet();
+
+                // NOTE: Copy the set of variable names, as the one returned by the map keeps a pointer to the Map! This
+                // can cause the XPath cache to keep a reference to variable values, which in turn can keep a reference
+                // all the way to e.g. an XFormsContainingDocument.
+                final Set<String> variableNamesCopy = new LinkedHashSet<String>(variableNames);
+                final XPathCacheKey key = new XPathCacheKey(xpathString, functionLibrary, namespaceMapping, variableNamesCopy, isAvt);
+
+                // Several threads may compile the same expression concurrently, in which case one of the results is
+                // kept. This is harmless as compiled expressions are equivalent.
+                compiledExpression = new XPathCompiler(configuration, xpathString, namespaceMapping, variableNamesCopy,
+                        functionLibrary, baseURI, isAvt, false).compile();
+                compiledExpression.lastAccess = hitCount.get();
+
+                final CompiledXPathExpression existingExpression = expressions.putIfAbsent(key, compiledExpression);
+                if (existingExpression != null)
+                    compiledExpression = existingExpression;
+                else
+                    evictIfNeeded();
             }
 
-            if (variableToValueMap != null && variableToValueMap.size() > 0) {
-                // There are some variables in scope. They must be part of the key
-                // TODO: Put this in static state as this can be determined statically once and for all
-                for (final String variableName: variableToValueMap.keySet()) {
-                    cacheKeyString.append('|');
-                    cacheKeyString.append(variableName);
-                }
-            }
+            // Create expression holding the dynamic context
+            final PooledXPathExpression xpathExpression = compiledExpression.newExpression();
 
-            // Add this to the key as evaluating "name" as XPath or as AVT is very different!
-            cacheKeyString.append('|');
-            cacheKeyString.append(Boolean.toString(isAvt));
+            // Set context items and position
+            xpathExpression.setContextItems(contextItems, contextPosition);
 
-            // TODO: Add baseURI to cache key (currently, baseURI is pretty much unused)
+            // Set variables
+            xpathExpression.setVariables(variableToValueMap);
 
-            // NOTE: Copy HashSet, as the one returned by the map keeps a pointer to the Map! This can cause the XPath
-            // cache to keep a reference to variable values, which in turn can keep a reference all the way to e.g. an
-            // XFormsContainingDocument.
-            final Set<String> variableNames = (variableToValueMap != null) ? new LinkedHashSet<String>(variableToValueMap.keySet()) : null;
-            final PooledXPathExpression pooledXPathExpression;
-            {
-                // Get or create pool
-                final InternalCacheKey cacheKey = new InternalCacheKey("XPath Expression2", cacheKeyString.toString());
-                ObjectPool pool = (ObjectPool) cache.findValid(cacheKey, validity);
-                if (pool == null) {
-                    pool = createXPathPool(configuration, xpathString, namespaceMapping, variableNames, functionLibrary, baseURI, isAvt, locationData);
-                    cache.add(cacheKey, validity, pool);
-                }
+            return xpathExpression;
+        } catch (Exception e) {
+            throw handleXPathException(e, xpathString, "preparing XPath expression", locationData);
+        }
+    }
+
+    private static void evictIfNeeded() {
+        evictIfNeeded(getMaxSize());
+    }
 
-                // Get object from pool
-                final Object o = pool.borrowObject();
-                pooledXPathExpression = (PooledXPathExpression) o;
+    // Remove the least recently used expressions when the cache is over its maximum size. To amortize scanning the
+    // cache, this brings the cache down to 15/16 of its maximum size, and only one thread evicts at a time.
+    static void evictIfNeeded(int maxSize) {
+        if (expressions.size() > maxSize && evicting.compareAndSet(false, true)) {
+            try {
+                // Take a snapshot of access times, which can change during sorting
+                final List<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>(expressions.size());
+                for (final Map.Entry<XPathCacheKey, CompiledXPathExpression> entry : expressions.entrySet())
+                    candidates.add(new EvictionCandidate(entry.getKey(), entry.getValue()));
+
+                final int evictCount = candidates.size() - (maxSize - maxSize / 16);
+                if (evictCount > 0) {
+                    Collections.sort(candidates);
+                    for (int i = 0; i < evictCount; i++) {
+                        final EvictionCandidate candidate = candidates.get(i);
+                        expressions.remove(candidate.key, candidate.expression);
+                    }
+                }
+            } finally {
+                evicting.set(false);
             }
+        }
+    }
 
-            // Set context items and position
-            pooledXPathExpression.setContextItems(contextItems, contextPosition);
+    private static final class EvictionCandidate implements Comparable<EvictionCandidate> {
+        public final XPathCacheKey key;
+        public final CompiledXPathExpression expression;
+        public final long lastAccess;
 
-            // Set variables
-            pooledXPathExpression.setVariables(variableToValueMap);
+        public EvictionCandidate(XPathCacheKey key, CompiledXPathExpression expression) {
+            this.key = key;
+            this.expression = expression;
+            this.lastAccess = expression.lastAccess;
+        }
 
-            return pooledXPathExpression;
-        } catch (Exception e) {
-            throw handleXPathException(e, xpathString, "preparing XPath expression", locationData);
+        public int compareTo(EvictionCandidate other) {
+            return (lastAccess < other.lastAccess) ? -1 : (lastAccess == other.lastAccess) ? 0 : 1;
         }
     }
 
+    /**
+     * Maximum number of compiled expressions, read from the oxf.cache.xpath.size property. The property is read again
+     * each time, so that a change is taken into account when properties are reloaded.
+     */
+    public static int getMaxSize() {
+        final PropertySet propertySet = Properties.instance().getPropertySet();
+        return (propertySet != null) ? propertySet.getInteger(XPATH_CACHE_SIZE_PROPERTY, XPATH_CACHE_DEFAULT_SIZE) : XPATH_CACHE_DEFAULT_SIZE;
+    }
+
+    /**
+     * Number of compiled expressions currently in the cache.
+     */
+    public static int getCurrentSize() {
+        return expressions.size();
+    }
+
+    /**
+     * Number of expressions found in the cache.
+     */
+    public static long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Number of expressions not found in the cache.
+     */
+    public static long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Number of expressions compiled, including expressions compiled without being cached.
+     */
+    public static long getCompileCount() {
+        return compileCount.get();
+    }
+
+    /**
+     * Total time spent compiling expressions, in milliseconds.
+     */
+    public static long getCompileTime() {
+        return compileTimeNanos.get() / 1000000;
+    }
+
     private static ValidationException handleXPathException(Exception e, String xpathString, String description, LocationData locationData) {
         final ValidationException validationException = ValidationException.wrapException(e, new ExtendedLocationData(locationData, description,
                 "expression", xpathString));
@@ -439,50 +518,100 @@ public class XPathCache {
         return validationException;
     }
 
-    private static ObjectPool createXPathPool(Configuration xpathConfiguration,
-                                              String xpathString,
-                                              NamespaceMapping namespaceMapping,
-                                              Set<String> variableNames,
-                                              FunctionLibrary functionLibrary,
-                                              String baseURI,
-                                              boolean isAvt,
-                                              LocationData locationData) {
-        try {
-            // TODO: pool should have at least one hard reference
-            final SoftReferenceObjectPool pool = new SoftReferenceObjectPool();
-            pool.setFactory(new XPathCachePoolableObjectFactory(pool, xpathConfiguration, xpathString,
-                    namespaceMapping, variableNames, functionLibrary, baseURI, isAvt, false, locationData));
+    /**
+     * Key of a compiled expression. The hash is computed once, and the fields which are Strings already are not
+     * concatenated.
+     */
+    private static final class XPathCacheKey {
+        private final String xpathString;
+        // NOTE: storing the FunctionLibrary in cache is ok if it doesn't hold dynamic references (case of global XFormsFunctionLibrary)
+        private final FunctionLibrary functionLibrary;
+        private final String namespaceHash;
+        private final Set<String> variableNames;
+        private final boolean isAvt;
 
-            return pool;
-        } catch (Exception e) {
-            throw new OXFException(e);
+        private final int hash;
+
+        public XPathCacheKey(String xpathString, FunctionLibrary functionLibrary, NamespaceMapping namespaceMapping,
+                             Set<String> variableNames, boolean isAvt) {
+            this.xpathString = xpathString;
+            this.functionLibrary = functionLibrary;
+            // NOTE: Hash is mandatory in NamespaceMapping
+            this.namespaceHash = (namespaceMapping != null) ? namespaceMapping.hash : null;
+            this.variableNames = variableNames;
+            // Add this to the key as evaluating "name" as XPath or as AVT is very different!
+            this.isAvt = isAvt;
+
+            int hash = xpathString.hashCode();
+            hash = 31 * hash + (functionLibrary != null ? functionLibrary.hashCode() : 0);
+            hash = 31 * hash + (namespaceHash != null ? namespaceHash.hashCode() : 0);
+            hash = 31 * hash + variableNames.hashCode();
+            hash = 31 * hash + (isAvt ? 1 : 0);
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (! (o instanceof XPathCacheKey))
+                return false;
+
+            final XPathCacheKey other = (XPathCacheKey) o;
+            return hash == other.hash
+                    && isAvt == other.isAvt
+                    && xpathString.equals(other.xpathString)
+                    && (functionLibrary == null ? other.functionLibrary == null : functionLibrary.equals(other.functionLibrary))
+                    && (namespaceHash == null ? other.namespaceHash == null : namespaceHash.equals(other.namespaceHash))
+                    && variableNames.equals(other.variableNames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
         }
     }
 
-    private static class XPathCachePoolableObjectFactory implements PoolableObjectFactory {
-        private final ObjectPool pool;
+    /**
+     * Compiled expression. This is immutable and can be evaluated concurrently, as the dynamic context is held by the
+     * PooledXPathExpression created for each evaluation.
+     */
+    private static final class CompiledXPathExpression {
+        private final XPathExpression expression;
+        private final Map<String, XPathVariable> variables;
+
+        // Approximate time of the last access, used for eviction. This is not synchronized, as a lost update only makes
+        // eviction less accurate.
+        public long lastAccess;
+
+        public CompiledXPathExpression(XPathExpression expression, Map<String, XPathVariable> variables) {
+            this.expression = expression;
+            this.variables = variables;
+        }
+
+        public PooledXPathExpression newExpression() {
+            return new PooledXPathExpression(expression, variables);
+        }
+    }
+
+    private static class XPathCompiler {
         private Configuration xpathConfiguration;
         private final String xpathString;
         private final NamespaceMapping namespaceMapping;
         private final Set<String> variableNames;
-        // NOTE: storing the FunctionLibrary in cache is ok if it doesn't hold dynamic references (case of global XFormsFunctionLibrary)
         private final FunctionLibrary functionLibrary;
         private final String baseURI;
         private final boolean isAvt;
         private final boolean allowAllVariables;
-        private final LocationData locationData;
-
-        public XPathCachePoolableObjectFactory(ObjectPool pool,
-                                               Configuration xpathConfiguration,
-                                               String xpathString,
-                                               NamespaceMapping namespaceMapping,
-                                               Set<String> variableNames,
-                                               FunctionLibrary functionLibrary,
-                                               String baseURI,
-                                               boolean isAvt,
-                                               boolean allowAllVariables,
-                                               LocationData locationData) {
-            this.pool = pool;
+
+        public XPathCompiler(Configuration xpathConfiguration,
+                             String xpathString,
+                             NamespaceMapping namespaceMapping,
+                             Set<String> variableNames,
+                             FunctionLibrary functionLibrary,
+                             String baseURI,
+                             boolean isAvt,
+                             boolean allowAllVariables) {
 
             this.xpathConfiguration = (xpathConfiguration != null) ? xpathConfiguration : XPathCache.getGlobalConfiguration();
 
@@ -493,26 +622,14 @@ public class XPathCache {
             this.baseURI = baseURI;
             this.isAvt = isAvt;
             this.allowAllVariables = allowAllVariables;
-            this.locationData = locationData;
-        }
-
-        public void activateObject(Object o) throws Exception {
-        }
-
-        public void destroyObject(Object o) throws Exception {
-            if (o instanceof PooledXPathExpression) {
-                PooledXPathExpression xp = (PooledXPathExpression) o;
-                xp.destroy();
-            } else
-                throw new OXFException(o.toString() + " is not a PooledXPathExpression");
         }
 
         /**
          * Create and compile an XPath expression object.
          */
-        public Object makeObject() throws Exception {
-            if (logger.isDebugEnabled())
-                logger.debug("makeObject(" + xpathString + ")");
+        public CompiledXPathExpression compile() {
+
+            final long startTime = System.nanoTime();
 
             // Create context
             final IndependentContext independentContext = new XPathCacheStaticContext(xpathConfiguration, allowAllVariables);
@@ -542,34 +659,38 @@ public class XPathCache {
                 ((FunctionLibraryList) independentContext.getFunctionLibrary()).libraryList.add(0, functionLibrary);
             }
 
-            return createPoolableXPathExpression(pool, independentContext, xpathString, variables, isAvt);
-        }
+            final CompiledXPathExpression result
+                    = new CompiledXPathExpression(compileExpression(independentContext, xpathString, isAvt), variables);
 
-        public void passivateObject(Object o) throws Exception {
-        }
+            final long compileTime = System.nanoTime() - startTime;
+            compileCount.incrementAndGet();
+            compileTimeNanos.addAndGet(compileTime);
+
+            if (logger.isDebugEnabled())
+                logger.debug("compiled expression in " + (compileTime / 1000) + " microseconds: " + xpathString);
 
-        public boolean validateObject(Object o) {
-            return true;
+            return result;
         }
     }
 
-    public static PooledXPathExpression createPoolableXPathExpression(ObjectPool pool, IndependentContext independentContext,
-                                                                      String xpathString, Map<String, XPathVariable> variables, boolean isAvt) {
+    public static PooledXPathExpression createPoolableXPathExpression(IndependentContext independentContext, String xpathString,
+                                                                      Map<String, XPathVariable> variables, boolean isAvt) {
+        return new PooledXPathExpression(compileExpression(independentContext, xpathString, isAvt), variables);
+    }
+
+    private static XPathExpression compileExpression(IndependentContext independentContext, String xpathString, boolean isAvt) {
         // Create and compile the expression
         try {
-            final XPathExpression expression;
             if (isAvt) {
                 // AVT
                 final Expression tempExpression = AttributeValueTemplate.make(xpathString, -1, independentContext);
-                expression = prepareExpression(independentContext, tempExpression);
+                return prepareExpression(independentContext, tempExpression);
             } else {
                 // Regular expression
                 final XPathEvaluator evaluator = new XPathEvaluator();
                 evaluator.setStaticContext(independentContext);
-                expression = evaluator.createExpression(xpathString);
-
+                return evaluator.createExpression(xpathString);
             }
-            return new PooledXPathExpression(expression, pool, variables);
         } catch (Throwable t) {
             throw new OXFException(t);
         }
@@ -401,6 +401,14 @@ public class InstanceData {// rename to DataNodeProperties once done
         }
     }
 
+    public static void clearSchemaState(Node node) {
+        final InstanceData existingInstanceData = getLocalInstanceData(node);
+        if (existingInstanceData != null) {
+            existingInstanceData.schemaType = null;
+            existingInstanceData.schemaInvalid = false;
+        }
+    }
+
     private static InstanceData getOrCreateInstanceData(NodeInfo nodeInfo, boolean forUpdate) {
         final InstanceData existingInstanceData = getLocalInstanceData(nodeInfo, forUpdate);
         return (existingInstanceData != null) ? existingInstanceData : createNewInstanceData(nodeInfo);
@@ -274,6 +274,75 @@ public class XFormsContainingDocument extends XBLContainer implements XFormsDocu
         this.containerNamespace = StringUtils.defaultIfEmpty(externalContext.getRequest().getContainerNamespace(), "");
     }
 
+    /**
+     * Create an XFormsContainingDocument from an XFormsStaticState object and the decoded initial state of another
+     * document with the same static state.
+     *
+     * Used by XFormsInitialStateCache. Models are not initialized: instances, control values and repeat indexes are
+     * restored from the initial state instead. The document gets its own UUID and request information.
+     *
+     * @param staticState               static state object
+     * @param initialState              initial instances and controls of a document with the same static state
+     * @param focusedControlEffectiveId initially focused control, or null
+     * @param template                  page template
+     * @param uriResolver               optional URIResolver for loading resources after initialization
+     * @param response                  optional response for handling replace="all"
+     */
+    public XFormsContainingDocument(XFormsStaticState staticState, DynamicState.InstancesControls initialState,
+                                    String focusedControlEffectiveId, AnnotatedTemplate template,
+                                    XFormsURIResolver uriResolver, ExternalContext.Response response) {
+        super(CONTAINING_DOCUMENT_PSEUDO_ID, CONTAINING_DOCUMENT_PSEUDO_ID, "", null, null, null);
+
+        // Remember location data
+        setLocationData(staticState.locationData());
+
+        // Create UUID for this document instance
+        this.uuid = UUIDUtils.createPseudoUUID();
+
+        // Initialize request information
+        {
+            initializeRequestInformation();
+            this.versionedPathMatchers = (List<URLRewriterUtils.PathMatcher>) PipelineContext.get().getAttribute(PageFlowControllerProcessor.PATH_MATCHERS);
+            if (this.versionedPathMatchers == null)
+                this.versionedPathMatchers = Collections.emptyList();
+        }
+
+        indentedLogger.startHandleOperation("initialization", "creating new ContainingDocument (initial state provided).", "uuid", this.uuid);
+        {
+            this.staticState = staticState;
+            this.staticOps = new StaticStateGlobalOps(staticState.topLevelPart());
+            this.template = staticState.isDynamicNoscriptTemplate() ? template : null;
+            this.xpathDependencies = Version.instance().createUIDependencies(this);
+            this.supportUpdates = ! XFormsProperties.isNoUpdates(this);
+
+            this.uriResolver = uriResolver;
+            this.response = response;
+            this.initializing = true;
+
+            try {
+                restoreModelsAndControls(initialState, focusedControlEffectiveId);
+            } catch (Exception e) {
+                throw ValidationException.wrapException(e, new ExtendedLocationData(getLocationData(), "initializing XForms containing document from initial state"));
+            }
+        }
+        indentedLogger.endHandleOperation();
+    }
+
+    /**
+     * Whether the state of this document, just initialized, can be used to create other documents. This is not the
+     * case if initialization produced anything to send to the client besides the page itself.
+     */
+    public boolean isInitialStateReusable() {
+        final AsynchronousSubmissionManager manager = getAsynchronousSubmissionManager(false);
+        return initializing
+                && activeSubmissionFirstPass == null && replaceAllCallable == null
+                && ! gotSubmissionReplaceAll && ! gotSubmissionRedirect
+                && messagesToRun == null && loadsToRun == null && scriptsToRun == null
+                && helpEffectiveControlId == null && delayedEvents == null && serverErrors == null
+                && (pendingUploads == null || pendingUploads.isEmpty())
+                && (manager == null || ! manager.hasPendingAsynchronousSubmissions());
+    }
+
     /**
      * Restore an XFormsContainingDocument from XFormsState only.
      *
@@ -360,11 +429,20 @@ public class XFormsContainingDocument extends XBLContainer implements XFormsDocu
         this.template = dynamicState.decodeAnnotatedTemplateJava();
         this.lastAjaxResponse = dynamicState.decodeLastAjaxResponseJava();
 
+        restoreModelsAndControls(dynamicState);
+    }
+
+    // Restore models, instances and controls from the dynamic state
+    private void restoreModelsAndControls(final DynamicState dynamicState) {
+        restoreModelsAndControls(dynamicState.decodeInstancesControls(), dynamicState.decodeFocusedControlJava());
+    }
+
+    private void restoreModelsAndControls(final DynamicState.InstancesControls instancesControls, final String focusedControlEffectiveId) {
         // Scope the containing document for the XForms API
         XFormsAPI.withContainingDocumentJava(this, new Runnable() {
             public void run() {
 
-                threadLocal.set(dynamicState.decodeInstancesControls());
+                threadLocal.set(instancesControls);
                 try {
                     // Restore models state
                     // Create XForms controls and models
@@ -378,8 +456,8 @@ public class XFormsContainingDocument extends XBLContainer implements XFormsDocu
                     xformsControls.restoreControls();
 
                     // Once the control tree is rebuilt, restore focus if needed
-                    if (dynamicState.decodeFocusedControlJava() != null)
-                        xformsControls.setFocusedControl(xformsControls.getCurrentControlTree().getControl(dynamicState.decodeFocusedControlJava()));
+                    if (focusedControlEffectiveId != null)
+                        xformsControls.setFocusedControl(xformsControls.getCurrentControlTree().getControl(focusedControlEffectiveId));
                 } finally {
                     // Indicate that instance restoration process is over
                     threadLocal.remove();
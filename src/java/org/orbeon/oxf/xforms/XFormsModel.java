@@ -795,21 +795,6 @@ public class XFormsModel implements XFormsEventTarget, XFormsEventObserver, XFor
                 if (indentedLogger.isDebugEnabled())
                     indentedLogger.startHandleOperation("validation", "performing revalidate", "model id", getEffectiveId());
 
-                // Clear schema validation state
-                // NOTE: This could possibly be moved to rebuild(), but we must be careful about the presence of a schema
-                for (final XFormsInstance instance: instances) {
-                    // Only clear instances that are impacted by xf:bind/(@ref|@nodeset), assuming we were able to figure out the dependencies
-                    // The reason is that clearing this state can take quite some time
-                    final boolean instanceMightBeSchemaValidated = hasSchema && instance.isSchemaValidation();
-                    if (instanceMightBeSchemaValidated) {
-                        DataModel.visitElementJava(instance.instanceRoot(), new DataModel.NodeVisitor() {
-                            public void visit(NodeInfo nodeInfo) {
-                                InstanceData.clearSchemaState(nodeInfo);
-                            }
-                        });
-                    }
-                }
-
                 // Run validation
                 final Set<String> invalidInstances = new LinkedHashSet<String>();
 
@@ -819,7 +804,19 @@ public class XFormsModel implements XFormsEventTarget, XFormsEventObserver, XFor
                     for (final XFormsInstance instance : instances) {
                         // Currently we don't support validating read-only instances
                         if (instance.isSchemaValidation()) {
-                            if (!schemaValidator.validateInstance(instance)) {
+                            // Revalidate only the nodes whose value changed if possible
+                            Boolean isValid = deferredActionContext.revalidateAll ? null : schemaValidator.revalidateChangedNodes(instance, deferredActionContext.revalidateNodes);
+                            if (isValid == null) {
+                                // Clear schema validation state
+                                // NOTE: This could possibly be moved to rebuild(), but we must be careful about the presence of a schema
+                                DataModel.visitElementJava(instance.instanceRoot(), new DataModel.NodeVisitor() {
+                                    public void visit(NodeInfo nodeInfo) {
+                                        InstanceData.clearSchemaState(nodeInfo);
+                                    }
+                                });
+                                isValid = schemaValidator.validateInstance(instance);
+                            }
+                            if (! isValid) {
                                 // Remember that instance is invalid
                                 invalidInstances.add(instance.getEffectiveId());
                             }
@@ -851,6 +848,8 @@ public class XFormsModel implements XFormsEventTarget, XFormsEventObserver, XFor
             // "Actions that directly invoke rebuild, recalculate, revalidate, or refresh always
             // have an immediate effect, and clear the corresponding flag."
             deferredActionContext.revalidate = false;
+            deferredActionContext.revalidateAll = false;
+            deferredActionContext.revalidateNodes.clear();
         }
 
         // Notify dependencies
@@ -876,6 +875,10 @@ public class XFormsModel implements XFormsEventTarget, XFormsEventObserver, XFor
         public boolean recalculate;
         public boolean revalidate;
 
+        // Nodes whose value changed since the last revalidate, used unless all the nodes must be revalidated
+        public boolean revalidateAll = true;
+        public final List<NodeInfo> revalidateNodes = new ArrayList<NodeInfo>();
+
         public void markStructuralChange() {
 
             // "XForms Actions that change the tree structure of instance data result in setting all four deferred update
@@ -885,6 +888,9 @@ public class XFormsModel implements XFormsEventTarget, XFormsEventObserver, XFor
             recalculate = true;
             revalidate = true;
 
+            revalidateAll = true;
+            revalidateNodes.clear();
+
             container().requireRefresh();
         }
 
@@ -912,6 +918,14 @@ public class XFormsModel implements XFormsEventTarget, XFormsEventObserver, XFor
         // Set the flags
         deferredActionContext.markValueChange(isCalculate);
 
+        // Remember the node for revalidation
+        if (nodeInfo == null) {
+            deferredActionContext.revalidateAll = true;
+            deferredActionContext.revalidateNodes.clear();
+        } else if (! deferredActionContext.revalidateAll && hasSchema) {
+            deferredActionContext.revalidateNodes.add(nodeInfo);
+        }
+
         // Notify dependencies of the change
         if (nodeInfo != null)
             containingDocument.getXPathDependencies().markValueChanged(this, nodeInfo);
@@ -931,6 +945,18 @@ public class XFormsModel implements XFormsEventTarget, XFormsEventObserver, XFor
         containingDocument.getXPathDependencies().markStructuralChange(this, instance);
     }
 
+    /**
+     * Mark a structural change limited to the given nodes, inserted into or deleted from the given parents. The
+     * parents must still be in the instance.
+     */
+    public void markStructuralChange(XFormsInstance instance, List<NodeInfo> parents, List<NodeInfo> nodes) {
+        // Set the flags
+        deferredActionContext.markStructuralChange();
+
+        // Notify dependencies of the change
+        containingDocument.getXPathDependencies().markStructuralChange(this, instance, parents, nodes);
+    }
+
     public void startOutermostActionHandler() {
         // NOP now that deferredActionContext is always created
     }
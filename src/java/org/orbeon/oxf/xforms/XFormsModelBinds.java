@@ -37,6 +37,7 @@ import org.orbeon.saxon.om.Item;
 import org.orbeon.saxon.om.NodeInfo;
 import org.orbeon.saxon.om.StandardNames;
 import org.orbeon.saxon.om.ValueRepresentation;
+import org.orbeon.saxon.om.VirtualNode;
 import org.orbeon.saxon.sxpath.IndependentContext;
 import org.orbeon.saxon.sxpath.XPathEvaluator;
 import org.orbeon.saxon.trans.XPathException;
@@ -68,6 +69,14 @@ public class XFormsModelBinds {
     private List<Bind> topLevelBinds = new ArrayList<Bind>();
     private Map<String, Bind> singleNodeContextBinds = new HashMap<String, Bind>();
     private Map<Item, List<Bind.BindIteration>> iterationsForContextNodeInfo = new HashMap<Item, List<Bind.BindIteration>>();
+    private Map<String, List<Bind>> calculateBinds = new HashMap<String, List<Bind>>();
+
+    // Bind nodes of the previous bind tree by bind static id and underlying node, used during rebuild only
+    private Map<String, Map<Object, BindNode>> previousBindNodes = Collections.emptyMap();
+
+    // Whether MIPs of bind nodes created by the last rebuild must still be calculated/validated
+    private boolean calculateNewBindNodes;
+    private boolean validateNewBindNodes;
 
     private XFormsModelSchemaValidator xformsValidator;         // validator for standard XForms schema types
 
@@ -117,11 +126,19 @@ public class XFormsModelBinds {
         if (indentedLogger.isDebugEnabled())
             indentedLogger.startHandleOperation("model", "performing rebuild", "model id", model.getEffectiveId());
 
+        // Remember existing bind nodes, so that bind nodes created for the same nodes keep their MIP values. When nodes
+        // have just been inserted or deleted, only the MIPs of the new bind nodes, and the MIPs which depend on the
+        // changed paths, need to be evaluated again.
+        previousBindNodes = new HashMap<String, Map<Object, BindNode>>();
+        for (final Bind bind : topLevelBinds)
+            bind.collectBindNodes(previousBindNodes);
+
         // Reset everything
         // NOTE: Assume that model.getContextStack().resetBindingContext(model) was called
         topLevelBinds.clear();
         singleNodeContextBinds.clear();
         iterationsForContextNodeInfo.clear();
+        calculateBinds.clear();
 
         // Clear all instances that might have InstanceData
         // Only need to do this after the first rebuild
@@ -150,6 +167,10 @@ public class XFormsModelBinds {
         for (final BindTree.Bind staticBind : staticModel.topLevelBindsJava())
             topLevelBinds.add(new Bind(staticBind, true)); // remember as top-level bind
 
+        previousBindNodes = Collections.emptyMap();
+        calculateNewBindNodes = true;
+        validateNewBindNodes = true;
+
         isFirstRebuild = false;
 
         if (indentedLogger.isDebugEnabled())
@@ -167,6 +188,7 @@ public class XFormsModelBinds {
             // We can skip this
             if (indentedLogger.isDebugEnabled())
                 indentedLogger.logDebug("model", "skipping bind recalculate", "model id", model.getEffectiveId(), "reason", "no recalculation binds");
+            calculateNewBindNodes = false;
         } else {
             // This model may have calculation binds
 
@@ -180,7 +202,7 @@ public class XFormsModelBinds {
                     if (staticModel.hasInitialValueBind())
                         iterateBinds(new BindRunner() {
                             public void applyBind(Bind bind, int position) {
-                                if (bind.staticBind.getInitialValue() != null &&  dependencies.requireModelMIPUpdate(staticModel, bind.staticBind, Model.INITIAL_VALUE()))
+                                if (bind.staticBind.getInitialValue() != null && requireMIPUpdate(calculateNewBindNodes, bind, position, Model.INITIAL_VALUE()))
                                     handleInitialValueDefaultBind(bind, position);
                             }
                         });
@@ -189,13 +211,32 @@ public class XFormsModelBinds {
                 }
 
                 // Handle calculations
-                if (staticModel.hasCalculateBind())
-                    iterateBinds(new BindRunner() {
-                        public void applyBind(Bind bind, int position) {
-                            if (bind.staticBind.getCalculate() != null && dependencies.requireModelMIPUpdate(staticModel, bind.staticBind, Model.CALCULATE()))
-                                handleCalculateBind(bind, position);
+                if (staticModel.hasCalculateBind()) {
+                    final List<BindTree.Bind> orderedStaticBinds = staticModel.jCalculateBindsInDependencyOrder();
+                    if (orderedStaticBinds != null) {
+                        // Evaluate each calculate bind after the binds it depends on, so that it sees their new values.
+                        // Dependencies are checked just before evaluating each bind, so binds whose inputs have not
+                        // changed, including through previous calculations, are skipped.
+                        for (final BindTree.Bind staticBind : orderedStaticBinds) {
+                            final List<Bind> binds = calculateBinds.get(staticBind.staticId());
+                            if (binds != null) {
+                                final boolean requireUpdate = dependencies.requireModelMIPUpdate(staticModel, staticBind, Model.CALCULATE());
+                                for (final Bind bind : binds)
+                                    for (int position = 1; position <= bind.nodeset.size(); position++)
+                                        if (requireUpdate || calculateNewBindNodes && bind.isNewBindNode(position))
+                                            handleCalculateBind(bind, position);
+                            }
                         }
-                    });
+                    } else {
+                        // Evaluate calculate binds in document order
+                        iterateBinds(new BindRunner() {
+                            public void applyBind(Bind bind, int position) {
+                                if (bind.staticBind.getCalculate() != null && requireMIPUpdate(calculateNewBindNodes, bind, position, Model.CALCULATE()))
+                                    handleCalculateBind(bind, position);
+                            }
+                        });
+                    }
+                }
 
                 // 2. Update computed expression binds if requested
                 applyComputedExpressionBinds();
@@ -222,6 +263,8 @@ public class XFormsModelBinds {
                     handleComputedExpressionBind(bind, position);
             }
         });
+
+        calculateNewBindNodes = false;
     }
 
     /**
@@ -235,6 +278,7 @@ public class XFormsModelBinds {
             // We can skip this
             if (indentedLogger.isDebugEnabled())
                 indentedLogger.logDebug("model", "skipping bind revalidate", "model id", model.getEffectiveId(), "reason", "no validation binds");
+            validateNewBindNodes = false;
         } else {
             // This model may have validation binds
 
@@ -258,6 +302,8 @@ public class XFormsModelBinds {
                             validateConstraint(bind, position, invalidInstances);
                     }
                 });
+
+            validateNewBindNodes = false;
         }
     }
 
@@ -347,6 +393,14 @@ public class XFormsModelBinds {
         }
     }
 
+    // Whether a MIP must be evaluated, either because the bind node is new or because of the MIP's dependencies. After
+    // an insert or delete, MIPs which use position(), last(), count(), sibling axes or numeric predicates are evaluated
+    // again on all bind nodes, as other nodes might have shifted even if no path they depend on has changed.
+    private boolean requireMIPUpdate(boolean evaluateNewBindNodes, Bind bind, int position, String mipName) {
+        return evaluateNewBindNodes && (bind.isNewBindNode(position) || bind.staticBind.isPositionDependent(mipName))
+                || dependencies.requireModelMIPUpdate(staticModel, bind.staticBind, mipName);
+    }
+
     /**
      * Iterate over all binds and for each one do the callback.
      *
@@ -449,11 +503,11 @@ public class XFormsModelBinds {
         final Map<String, ValueRepresentation> currentVariables = getVariables(currentNodeInfo);
 
         // Handle relevant, readonly, required, and custom MIPs
-        if (bind.staticBind.getRelevant() != null && dependencies.requireModelMIPUpdate(staticModel, bind.staticBind, Model.RELEVANT()))
+        if (bind.staticBind.getRelevant() != null && requireMIPUpdate(calculateNewBindNodes, bind, position, Model.RELEVANT()))
             evaluateAndSetRelevantMIP(bind, position, currentVariables);
-        if (bind.staticBind.getReadonly() != null && dependencies.requireModelMIPUpdate(staticModel, bind.staticBind, Model.READONLY()) || bind.staticBind.getCalculate() != null)
+        if (bind.staticBind.getReadonly() != null && requireMIPUpdate(calculateNewBindNodes, bind, position, Model.READONLY()) || bind.staticBind.getCalculate() != null)
             evaluateAndSetReadonlyMIP(bind, position, currentVariables);
-        if (bind.staticBind.getRequired() != null && dependencies.requireModelMIPUpdate(staticModel, bind.staticBind, Model.REQUIRED()))
+        if (bind.staticBind.getRequired() != null && requireMIPUpdate(calculateNewBindNodes, bind, position, Model.REQUIRED()))
             evaluateAndSetRequiredMIP(bind, position, currentVariables);
 
         // TODO: optimize those as well
@@ -659,8 +713,8 @@ public class XFormsModelBinds {
         //
         final boolean typeValidity;
         if (bind.typeQName != null) {
-             if (dependencies.requireModelMIPUpdate(staticModel, bind.staticBind, Model.TYPE())
-                     || bind.staticBind.getRequired() != null && dependencies.requireModelMIPUpdate(staticModel, bind.staticBind, Model.REQUIRED())) {
+             if (requireMIPUpdate(validateNewBindNodes, bind, position, Model.TYPE())
+                     || bind.staticBind.getRequired() != null && requireMIPUpdate(validateNewBindNodes, bind, position, Model.REQUIRED())) {
                  // Compute new type validity if the value of the node might have changed OR the value of requiredness
                  // might have changed
                 typeValidity = validateType(bind, currentNodeInfo, isRequired);
@@ -714,7 +768,7 @@ public class XFormsModelBinds {
         final Boolean constraintValidity;
         if (typeValidity) {
             // Then bother checking @constraint
-            if (dependencies.requireModelMIPUpdate(staticModel, bind.staticBind, Model.CONSTRAINT())) {
+            if (requireMIPUpdate(validateNewBindNodes, bind, position, Model.CONSTRAINT())) {
                 // Re-evaluate and set
                 constraintValidity = evaluateConstraintMIP(bind, position, currentNodeInfo);
                 if (constraintValidity != null)
@@ -909,6 +963,16 @@ public class XFormsModelBinds {
                 if (isSingleNodeContext)
                     singleNodeContextBinds.put(staticBind.staticId(), this);
 
+                // Remember calculate binds, in document order, to evaluate them in dependency order
+                if (staticBind.getCalculate() != null) {
+                    List<Bind> binds = calculateBinds.get(staticBind.staticId());
+                    if (binds == null) {
+                        binds = new ArrayList<Bind>();
+                        calculateBinds.put(staticBind.staticId(), binds);
+                    }
+                    binds.add(this);
+                }
+
                 // Set type on node
                 // Get type namespace and local name
                 typeQName = evaluateTypeQName(staticBind.namespaceMapping().mapping);
@@ -930,6 +994,7 @@ public class XFormsModelBinds {
                                 // Create iteration and remember it
                                 final boolean isNewSingleNodeContext = isSingleNodeContext && nodesetSize == 1;
                                 final BindIteration currentBindIteration = new BindIteration(getStaticId(), isNewSingleNodeContext, item, childrenStaticBinds, typeQName);
+                                copyPreviousMIPs(currentBindIteration);
                                 bindNodes.add(currentBindIteration);
     
                                 // Create mapping context node -> iteration
@@ -949,8 +1014,11 @@ public class XFormsModelBinds {
                         // No children binds, but we have MIPs, so create holders anyway
                         bindNodes = new ArrayList<BindNode>(nodesetSize);
     
-                        for (final Item item : nodeset)
-                            bindNodes.add(new BindNode(getStaticId(), item, typeQName));
+                        for (final Item item : nodeset) {
+                            final BindNode bindNode = new BindNode(getStaticId(), item, typeQName);
+                            copyPreviousMIPs(bindNode);
+                            bindNodes.add(bindNode);
+                        }
                     }
                 }
 
@@ -980,6 +1048,44 @@ public class XFormsModelBinds {
             return staticBind.staticId();
         }
 
+        private void collectBindNodes(Map<String, Map<Object, BindNode>> result) {
+            if (bindNodes != null) {
+                Map<Object, BindNode> bindNodesForBind = result.get(getStaticId());
+                if (bindNodesForBind == null) {
+                    bindNodesForBind = new IdentityHashMap<Object, BindNode>();
+                    result.put(getStaticId(), bindNodesForBind);
+                }
+
+                for (final BindNode bindNode : bindNodes) {
+                    if (bindNode.nodeInfo instanceof VirtualNode) {
+                        // If the same node is bound more than once by this bind, don't try to guess which one to keep
+                        final Object node = ((VirtualNode) bindNode.nodeInfo).getUnderlyingNode();
+                        bindNodesForBind.put(node, bindNodesForBind.containsKey(node) ? null : bindNode);
+                    }
+
+                    if (bindNode instanceof BindIteration)
+                        for (final Bind childBind : ((BindIteration) bindNode).childrenBinds)
+                            childBind.collectBindNodes(result);
+                }
+            }
+        }
+
+        private void copyPreviousMIPs(BindNode bindNode) {
+            if (bindNode.nodeInfo instanceof VirtualNode) {
+                final Map<Object, BindNode> bindNodesForBind = previousBindNodes.get(getStaticId());
+                if (bindNodesForBind != null) {
+                    final BindNode previousBindNode = bindNodesForBind.get(((VirtualNode) bindNode.nodeInfo).getUnderlyingNode());
+                    if (previousBindNode != null)
+                        bindNode.copyMIPs(previousBindNode);
+                }
+            }
+        }
+
+        public boolean isNewBindNode(int position) {
+            final BindNode bindNode = getBindNode(position);
+            return bindNode == null || bindNode.isNew;
+        }
+
         private QName evaluateTypeQName(Map<String, String> namespaceMap) {
             final String typeQNameString = staticBind.getType();
             if (typeQNameString != null) {
@@ -1090,6 +1196,9 @@ public class XFormsModelBinds {
         private boolean requiredValidity = Model.DEFAULT_VALID();
         private boolean constraintValidity = Model.DEFAULT_VALID();
 
+        // Whether MIP values have not been copied from a previous bind node
+        private boolean isNew = true;
+
         public final String bindStaticId;
         public final NodeInfo nodeInfo;
         public final boolean hasChildrenElements;
@@ -1114,6 +1223,19 @@ public class XFormsModelBinds {
             return bindStaticId;
         }
 
+        private void copyMIPs(BindNode other) {
+            relevant = other.relevant;
+            readonly = other.readonly;
+            required = other.required;
+            customMips = (other.customMips == null) ? null : new HashMap<String, String>(other.customMips);
+
+            typeValidity = other.typeValidity;
+            requiredValidity = other.requiredValidity;
+            constraintValidity = other.constraintValidity;
+
+            isNew = false;
+        }
+
         public void setRelevant(boolean value) {
             this.relevant = value;
         }
@@ -15,6 +15,7 @@ package org.orbeon.oxf.xforms;
 
 import com.sun.msv.datatype.xsd.DatatypeFactory;
 import com.sun.msv.datatype.xsd.XSDatatype;
+import com.sun.msv.grammar.ElementExp;
 import com.sun.msv.grammar.Expression;
 import com.sun.msv.grammar.Grammar;
 import com.sun.msv.grammar.IDContextProvider2;
@@ -26,6 +27,7 @@ import com.sun.msv.util.DatatypeRef;
 import com.sun.msv.util.StartTagInfo;
 import com.sun.msv.util.StringRef;
 import com.sun.msv.verifier.Acceptor;
+import com.sun.msv.verifier.regexp.ComplexAcceptor;
 import com.sun.msv.verifier.regexp.ExpressionAcceptor;
 import com.sun.msv.verifier.regexp.REDocumentDeclaration;
 import com.sun.msv.verifier.regexp.SimpleAcceptor;
@@ -35,6 +37,7 @@ import com.sun.msv.verifier.regexp.xmlschema.XSREDocDecl;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.dom4j.Attribute;
+import org.dom4j.Document;
 import org.dom4j.Element;
 import org.dom4j.Node;
 import org.dom4j.QName;
@@ -55,6 +58,8 @@ import org.orbeon.oxf.xml.XMLUtils;
 import org.orbeon.oxf.xml.dom4j.Dom4jUtils;
 import org.orbeon.oxf.xml.dom4j.ExtendedLocationData;
 import org.orbeon.oxf.xml.dom4j.LocationData;
+import org.orbeon.saxon.om.NodeInfo;
+import org.orbeon.saxon.om.VirtualNode;
 import org.relaxng.datatype.Datatype;
 import org.relaxng.datatype.DatatypeException;
 import org.xml.sax.InputSource;
@@ -65,9 +70,7 @@ import org.xml.sax.helpers.AttributesImpl;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.IOException;
 import java.net.URL;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.*;
 
 /**
  * Provides XML Schema validation services for the XForms model.
@@ -91,6 +94,59 @@ public class XFormsModelSchemaValidator {
     // REDocumentDeclaration is not reentrant, but the validator is used by a single thread
     private REDocumentDeclaration documentDeclaration;
 
+    // Maximum number of leaf elements tracked per instance, above which the instance is always validated entirely
+    private final int maxTrackedLeaves = XFormsProperties.getSchemaValidationMaxTrackedLeaves();
+    // Number of incremental revalidations, for tests only
+    private int incrementalRevalidationCount;
+
+    // State of the last validation of each instance by effective id, used to revalidate changed nodes only
+    private final Map<String, InstanceValidation> instanceValidations = new HashMap<String, InstanceValidation>();
+    // Validation state being recorded, if any
+    private InstanceValidation currentValidation;
+
+    private static class InstanceValidation {
+        public final Document document;
+        // Leaf elements, i.e. elements without child elements, which can be revalidated on their own
+        public final Map<Element, LeafValidation> leaves = new IdentityHashMap<Element, LeafValidation>();
+        // Nodes with schema errors
+        public final Map<Node, Boolean> invalidNodes = new IdentityHashMap<Node, Boolean>();
+        public boolean isIncrementalAllowed = true;
+
+        public InstanceValidation(Document document) {
+            this.document = document;
+        }
+
+        public void disallowIncremental() {
+            isIncrementalAllowed = false;
+            leaves.clear();
+        }
+    }
+
+    private static class LeafValidation {
+        // State of the element's acceptor before its attributes and text, which only depends on the element's position
+        // NOTE: These are expressions of the grammar, shared between elements, rather than a copy of the acceptor.
+        public final Expression contentModel;
+        public final ElementExp owner;
+        public final Expression continuation;
+        public final boolean isXSAcceptor;
+        // Error which doesn't depend on the element's attributes or text
+        public boolean hasPositionError;
+        public String positionError;
+
+        public LeafValidation(SimpleAcceptor acceptor) {
+            this.contentModel = acceptor.getExpression();
+            this.owner = acceptor.owner;
+            this.continuation = acceptor.continuation;
+            this.isXSAcceptor = acceptor instanceof XSAcceptor;
+        }
+
+        public Acceptor createAcceptor(REDocumentDeclaration documentDeclaration) {
+            return isXSAcceptor
+                ? new XSAcceptor((XSREDocDecl) documentDeclaration, contentModel, owner, continuation)
+                : new SimpleAcceptor(documentDeclaration, contentModel, owner, continuation);
+        }
+    }
+
     public XFormsModelSchemaValidator(Element modelElement, IndentedLogger indentedLogger) {
         this.modelElement = modelElement;
         this.indentedLogger = indentedLogger;
@@ -267,6 +323,8 @@ public class XFormsModelSchemaValidator {
     }
 
     private void addSchemaError(final Element element, final String errMsg) {
+        if (currentValidation != null)
+            currentValidation.invalidNodes.put(element, true);
         final String newErrorMessage;
         if (errMsg == null) {
             // Looks like if n is an element and errMsg == null then the problem is missing
@@ -281,6 +339,8 @@ public class XFormsModelSchemaValidator {
     }
 
     private void addSchemaError(final Attribute attribute, final String schemaError) {
+        if (currentValidation != null)
+            currentValidation.invalidNodes.put(attribute, true);
         if (indentedLogger.isDebugEnabled())
             indentedLogger.logDebug("schema", "validation error", "error", schemaError);
         InstanceData.addSchemaError(attribute);
@@ -301,31 +361,12 @@ public class XFormsModelSchemaValidator {
 
         boolean isElementValid = true;
 
-        // Create StartTagInfo
-        final StartTagInfo startTagInfo;
-        {
-            final String uri = element.getNamespaceURI();
-            final String name = element.getName();
-            final String qName = element.getQualifiedName();
-            final List attributesList = element.attributes();
-            final AttributesImpl attributes = new AttributesImpl();
-
-            for (Object anAttributesList: attributesList) {
-                final Attribute attribute = (Attribute) anAttributesList;
-                final String attributeURI = attribute.getNamespaceURI();
-                final String attributeName = attribute.getName();
-                final String attributeQName = attribute.getQualifiedName();
-                final String attributeValue = attribute.getValue();
-                attributes.addAttribute(attributeURI, attributeName, attributeQName, null, attributeValue);
-            }
-            validationContext.setCurrentElement(element);
-            startTagInfo = new StartTagInfo(uri, name, qName, attributes, validationContext);
-        }
-
+        final StartTagInfo startTagInfo = createStartTagInfo(element);
         final StringRef stringRef = new StringRef();
 
         // Get child acceptor
         final Acceptor childAcceptor;
+        boolean hasPositionError = false;
         {
             Acceptor tempChildAcceptor = acceptor.createChildAcceptor(startTagInfo, null);
             if (tempChildAcceptor == null) {
@@ -333,6 +374,7 @@ public class XFormsModelSchemaValidator {
                     tempChildAcceptor = acceptor.createChildAcceptor(startTagInfo, stringRef);
                     addSchemaError(element, stringRef.str);
                     isElementValid = false;
+                    hasPositionError = true;
                 } else {
                     return false;
                 }
@@ -346,6 +388,31 @@ public class XFormsModelSchemaValidator {
             isElementValid &= handleIDErrors(icc);
         }
 
+        // Identity constraints make validity depend on values elsewhere in the instance
+        if (icc != null && currentValidation != null && hasIdentityConstraints(childAcceptor))
+            currentValidation.disallowIncremental();
+
+        // Remember the acceptor of leaf elements so they can be revalidated on their own
+        final LeafValidation leafValidation;
+        if (currentValidation != null && currentValidation.isIncrementalAllowed && ! element.elementIterator().hasNext()) {
+            if (currentValidation.leaves.size() >= maxTrackedLeaves) {
+                // Too many leaves to keep track of
+                currentValidation.disallowIncremental();
+                leafValidation = null;
+            } else if (childAcceptor instanceof SimpleAcceptor) {
+                leafValidation = new LeafValidation((SimpleAcceptor) childAcceptor);
+                leafValidation.hasPositionError = hasPositionError;
+                leafValidation.positionError = stringRef.str;
+                currentValidation.leaves.put(element, leafValidation);
+            } else {
+                // The parent acceptor might depend on the content of the element
+                currentValidation.disallowIncremental();
+                leafValidation = null;
+            }
+        } else {
+            leafValidation = null;
+        }
+
         // Validate children
         final DatatypeRef datatypeRef = new DatatypeRef();
         final boolean childrenValid = validateChildren(element, childAcceptor, startTagInfo, icc, datatypeRef, isReportErrors);
@@ -382,6 +449,10 @@ public class XFormsModelSchemaValidator {
                 acceptor.stepForward(childAcceptor, stringRef);
                 addSchemaError(element, stringRef.str);
                 isElementValid = false;
+                if (leafValidation != null) {
+                    leafValidation.hasPositionError = true;
+                    leafValidation.positionError = stringRef.str;
+                }
             } else {
                 return false;
             }
@@ -396,7 +467,32 @@ public class XFormsModelSchemaValidator {
         }
     }
 
+    private StartTagInfo createStartTagInfo(Element element) {
+        final String uri = element.getNamespaceURI();
+        final String name = element.getName();
+        final String qName = element.getQualifiedName();
+        final List attributesList = element.attributes();
+        final AttributesImpl attributes = new AttributesImpl();
+
+        for (Object anAttributesList: attributesList) {
+            final Attribute attribute = (Attribute) anAttributesList;
+            final String attributeURI = attribute.getNamespaceURI();
+            final String attributeName = attribute.getName();
+            final String attributeQName = attribute.getQualifiedName();
+            final String attributeValue = attribute.getValue();
+            attributes.addAttribute(attributeURI, attributeName, attributeQName, null, attributeValue);
+        }
+        validationContext.setCurrentElement(element);
+        return new StartTagInfo(uri, name, qName, attributes, validationContext);
+    }
+
     private void setDataType(DatatypeRef datatypeRef, Node node) {
+        if (datatypeRef.types != null && currentValidation != null) {
+            // ID-related datatypes make validity depend on values elsewhere in the instance
+            for (final Datatype datatype : datatypeRef.types)
+                if (datatype.getIdType() != Datatype.ID_TYPE_NULL)
+                    currentValidation.disallowIncremental();
+        }
         if (datatypeRef.types != null && datatypeRef.types.length > 0) {
             // This element is valid and has at least one assigned datatype
 
@@ -758,23 +854,33 @@ public class XFormsModelSchemaValidator {
                 documentDeclaration = createDocumentDeclaration(schemaGrammar);
             }
 
+            // Record the validation state so that changed nodes can be revalidated later
+            final Document instanceDocument = instance.underlyingDocumentOrNull();
+            currentValidation = new InstanceValidation(instanceDocument);
+            instanceValidations.put(instance.getEffectiveId(), currentValidation);
+
             // Get validation mode ("lax" is the default)
             boolean isValid = true;
-            if (instance.isLaxValidation()) {
-                // Lax validation
-                final Element instanceRootElement = instance.underlyingDocumentOrNull().getRootElement();
-                isValid &= validateElementLax(instanceRootElement);
-            } else if (instance.isStrictValidation()) {
-                // Strict validation
-                final Acceptor acceptor = documentDeclaration.createAcceptor();
-                final Element instanceRootElement = instance.underlyingDocumentOrNull().getRootElement();
-                final IDConstraintChecker idConstraintChecker = new IDConstraintChecker();
-
-                isValid &= validateElement(instanceRootElement, acceptor, idConstraintChecker, true);
-                idConstraintChecker.endDocument();
-                isValid &= handleIDErrors(idConstraintChecker);
-            } else {
-                // Skip validation
+            try {
+                if (instance.isLaxValidation()) {
+                    // Lax validation
+                    final Element instanceRootElement = instance.underlyingDocumentOrNull().getRootElement();
+                    isValid &= validateElementLax(instanceRootElement);
+                } else if (instance.isStrictValidation()) {
+                    // Strict validation
+                    final Acceptor acceptor = documentDeclaration.createAcceptor();
+                    final Element instanceRootElement = instance.underlyingDocumentOrNull().getRootElement();
+                    final IDConstraintChecker idConstraintChecker = new IDConstraintChecker();
+
+                    isValid &= validateElement(instanceRootElement, acceptor, idConstraintChecker, true);
+                    idConstraintChecker.endDocument();
+                    isValid &= handleIDErrors(idConstraintChecker);
+                } else {
+                    // Skip validation
+                    currentValidation.disallowIncremental();
+                }
+            } finally {
+                currentValidation = null;
             }
             return isValid;
         } else {
@@ -782,6 +888,118 @@ public class XFormsModelSchemaValidator {
         }
     }
 
+    /**
+     * Revalidate only the given nodes of an instance, when the values of these nodes are the only changes since the
+     * instance was validated with validateInstance(). Only the elements containing the nodes are revalidated, using the
+     * state recorded by the last validation. When this is not possible, null is returned and validateInstance() must
+     * be called instead.
+     *
+     * @param instance          instance to revalidate
+     * @param changedNodes      nodes whose value changed, possibly including nodes of other instances
+     * @return                  whether the instance is valid, or null if the instance must be validated entirely
+     */
+    public Boolean revalidateChangedNodes(XFormsInstance instance, Collection<NodeInfo> changedNodes) {
+        if (schemaGrammar == null)
+            return true;
+
+        final InstanceValidation validation = instanceValidations.get(instance.getEffectiveId());
+        if (validation == null || ! validation.isIncrementalAllowed || validation.document != instance.underlyingDocumentOrNull())
+            return null;
+
+        // Find leaf elements to revalidate
+        final Map<Element, LeafValidation> changedLeaves = new IdentityHashMap<Element, LeafValidation>();
+        for (final NodeInfo nodeInfo : changedNodes) {
+            if (! (nodeInfo instanceof VirtualNode))
+                return null;
+
+            final Node node = (Node) ((VirtualNode) nodeInfo).getUnderlyingNode();
+            if (node.getDocument() != validation.document)
+                continue;
+
+            final Element element;
+            if (node instanceof Attribute) {
+                // xsi:* attributes change how the element is validated
+                if (XMLConstants.XSI_URI.equals(((Attribute) node).getNamespaceURI()))
+                    return null;
+                element = node.getParent();
+            } else if (node instanceof Element) {
+                element = (Element) node;
+            } else {
+                return null;
+            }
+
+            final LeafValidation leafValidation = validation.leaves.get(element);
+            if (leafValidation != null)
+                changedLeaves.put(element, leafValidation);
+            else if (element.elementIterator().hasNext())
+                return null;
+            // else the element was not validated, which happens with lax validation
+        }
+
+        currentValidation = validation;
+        try {
+            for (final Map.Entry<Element, LeafValidation> entry : changedLeaves.entrySet())
+                revalidateLeaf(entry.getKey(), entry.getValue());
+        } finally {
+            currentValidation = null;
+        }
+
+        incrementalRevalidationCount++;
+
+        if (indentedLogger.isDebugEnabled())
+            indentedLogger.logDebug("schema", "revalidated changed elements", "instance", instance.getEffectiveId(), "elements", Integer.toString(changedLeaves.size()));
+
+        return validation.invalidNodes.isEmpty();
+    }
+
+    // For tests only
+    public int getIncrementalRevalidationCount() {
+        return incrementalRevalidationCount;
+    }
+
+    private void revalidateLeaf(Element element, LeafValidation leafValidation) {
+
+        // Clear the previous state of the element and its attributes
+        InstanceData.clearSchemaState(element);
+        currentValidation.invalidNodes.remove(element);
+        for (final Object attribute : element.attributes()) {
+            InstanceData.clearSchemaState((Attribute) attribute);
+            currentValidation.invalidNodes.remove(attribute);
+        }
+
+        if (leafValidation.hasPositionError)
+            addSchemaError(element, leafValidation.positionError);
+
+        // Validate attributes and text as validateElement() does
+        final Acceptor childAcceptor = leafValidation.createAcceptor(documentDeclaration);
+        final DatatypeRef datatypeRef = new DatatypeRef();
+        validateChildren(element, childAcceptor, createStartTagInfo(element), null, datatypeRef, true);
+
+        if (!childAcceptor.isAcceptState(null)) {
+            final StringRef stringRef = new StringRef();
+            childAcceptor.isAcceptState(stringRef);
+            addSchemaError(element, stringRef.str);
+        } else {
+            setDataType(datatypeRef, element);
+        }
+    }
+
+    // Whether the element declarations an acceptor validates against declare identity constraints
+    private static boolean hasIdentityConstraints(Acceptor acceptor) {
+        final ElementExp[] owners;
+        if (acceptor instanceof SimpleAcceptor)
+            owners = new ElementExp[] { ((SimpleAcceptor) acceptor).owner };
+        else if (acceptor instanceof ComplexAcceptor)
+            owners = ((ComplexAcceptor) acceptor).owners;
+        else
+            return false;
+
+        for (final ElementExp owner : owners)
+            if (owner instanceof ElementDeclExp.XSElementExp && ! ((ElementDeclExp.XSElementExp) owner).identityConstraints.isEmpty())
+                return true;
+        return false;
+    }
+
     /**
      * Check whether a node's value satisfies a simple schema type definition given by namespace URI and local name.
      *
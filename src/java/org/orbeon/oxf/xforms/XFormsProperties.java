@@ -129,6 +129,9 @@ public class XFormsProperties {
     public static final String CACHE_DOCUMENT_PROPERTY = "cache.document";
     private static final boolean CACHE_DOCUMENT_DEFAULT = true;
 
+    public static final String CACHE_INITIAL_STATE_PROPERTY = "cache.initial-state";
+    private static final boolean CACHE_INITIAL_STATE_DEFAULT = false;
+
     private static final String DATATABLE_INIT_IN_VIEWPORT = "xbl.fr.datatable.init-in-viewport";
 
     public static class PropertyDefinition {
@@ -223,6 +226,7 @@ public class XFormsProperties {
             new PropertyDefinition(XFORMS11_SWITCH_PROPERTY, false, false), // false for now, but default should change at some point
             new PropertyDefinition(XPATH_ANALYSIS_PROPERTY, false, false),
             new PropertyDefinition(CACHE_DOCUMENT_PROPERTY, CACHE_DOCUMENT_DEFAULT, false),
+            new PropertyDefinition(CACHE_INITIAL_STATE_PROPERTY, CACHE_INITIAL_STATE_DEFAULT, false),
 
             // Properties to propagate to the client
             new PropertyDefinition(NEW_XHTML_LAYOUT, false, true),
@@ -281,9 +285,46 @@ public class XFormsProperties {
     private static final String STORE_APPLICATION_URI_DEFAULT = "xmldb:exist:///";
     private static final String STORE_APPLICATION_COLLECTION_DEFAULT = "/db/orbeon/xforms/cache/";
 
+    // Maximum wait for the document lock in ms, 0 for no limit, not applied to retries of the request holding the lock
+    private static final String AJAX_LOCK_TIMEOUT_PROPERTY = XFORMS_PROPERTY_PREFIX + "ajax.lock-timeout";
+    private static final int AJAX_LOCK_TIMEOUT_DEFAULT = 0;
+
+    private static final String STATE_STORE_PROPERTY = XFORMS_PROPERTY_PREFIX + "state-store";
+    private static final String STATE_STORE_DEFAULT = "ehcache";
+
+    private static final String STATE_STORE_FILE_DIRECTORY_PROPERTY = XFORMS_PROPERTY_PREFIX + "state-store.file.directory";
+    private static final String STATE_STORE_FILE_DIRECTORY_DEFAULT = "";
+
+    private static final String STATE_STORE_FILE_HOT_SIZE_PROPERTY = XFORMS_PROPERTY_PREFIX + "state-store.file.hot-size";
+    private static final int STATE_STORE_FILE_HOT_SIZE_DEFAULT = 500;
+
+    private static final String STATE_STORE_FILE_MAX_PENDING_WRITES_PROPERTY = XFORMS_PROPERTY_PREFIX + "state-store.file.max-pending-writes";
+    private static final int STATE_STORE_FILE_MAX_PENDING_WRITES_DEFAULT = 200;
+
+    private static final String STATE_STORE_FILE_UNATTACHED_TIMEOUT_PROPERTY = XFORMS_PROPERTY_PREFIX + "state-store.file.unattached-timeout";
+    private static final int STATE_STORE_FILE_UNATTACHED_TIMEOUT_DEFAULT = 1800000;
+
+    private static final String SCHEMA_VALIDATION_MAX_TRACKED_LEAVES_PROPERTY = XFORMS_PROPERTY_PREFIX + "schema-validation.max-tracked-leaves";
+    private static final int SCHEMA_VALIDATION_MAX_TRACKED_LEAVES_DEFAULT = 100000;
+
+    private static final String SHARED_INSTANCES_REFRESH_AHEAD_PROPERTY = XFORMS_PROPERTY_PREFIX + "cache.shared-instances.refresh-ahead";
+    private static final int SHARED_INSTANCES_REFRESH_AHEAD_DEFAULT = 0;
+
+    private static final String SHARED_INSTANCES_LOAD_WAIT_TIMEOUT_PROPERTY = XFORMS_PROPERTY_PREFIX + "cache.shared-instances.load-wait-timeout";
+    private static final int SHARED_INSTANCES_LOAD_WAIT_TIMEOUT_DEFAULT = 10000;
+
     private static final String GZIP_STATE_PROPERTY = XFORMS_PROPERTY_PREFIX + "gzip-state"; // global but could possibly be per document
     private static final boolean GZIP_STATE_DEFAULT = true;
 
+    private static final String DELTA_STATE_PROPERTY = XFORMS_PROPERTY_PREFIX + "delta-state";
+    private static final boolean DELTA_STATE_DEFAULT = false;
+
+    private static final String DELTA_STATE_MAX_PATCHES_PROPERTY = XFORMS_PROPERTY_PREFIX + "delta-state.max-patches";
+    private static final int DELTA_STATE_MAX_PATCHES_DEFAULT = 20;
+
+    private static final String GZIP_STATE_PARALLEL_BLOCK_SIZE_PROPERTY = XFORMS_PROPERTY_PREFIX + "gzip-state.parallel-block-size";
+    private static final int GZIP_STATE_PARALLEL_BLOCK_SIZE_DEFAULT = 0;
+
     private static final String HOST_LANGUAGE_AVTS_PROPERTY = XFORMS_PROPERTY_PREFIX + "host-language-avts"; // global but should be per document
     private static final String ADDITIONAL_AVT_ELEMENT_NAMESPACES = XFORMS_PROPERTY_PREFIX + "additional-avt-element-namespaces"; // global but should be per document
     private static final String ADDITIONAL_REF_ID_ATTRIBUTE_NAMES = XFORMS_PROPERTY_PREFIX + "additional-ref-id-attribute-names"; // global but should be per document
@@ -361,11 +402,71 @@ public class XFormsProperties {
                 (STORE_APPLICATION_SIZE_PROPERTY, STORE_APPLICATION_SIZE_DEFAULT);
     }
 
+    public static int getAjaxLockTimeout() {
+        return Properties.instance().getPropertySet().getInteger
+                (AJAX_LOCK_TIMEOUT_PROPERTY, AJAX_LOCK_TIMEOUT_DEFAULT);
+    }
+
+    public static String getStateStore() {
+        return Properties.instance().getPropertySet().getString
+                (STATE_STORE_PROPERTY, STATE_STORE_DEFAULT);
+    }
+
+    public static String getFileStateStoreDirectory() {
+        return Properties.instance().getPropertySet().getString
+                (STATE_STORE_FILE_DIRECTORY_PROPERTY, STATE_STORE_FILE_DIRECTORY_DEFAULT);
+    }
+
+    public static int getFileStateStoreHotSize() {
+        return Properties.instance().getPropertySet().getInteger
+                (STATE_STORE_FILE_HOT_SIZE_PROPERTY, STATE_STORE_FILE_HOT_SIZE_DEFAULT);
+    }
+
+    public static int getFileStateStoreMaxPendingWrites() {
+        return Properties.instance().getPropertySet().getInteger
+                (STATE_STORE_FILE_MAX_PENDING_WRITES_PROPERTY, STATE_STORE_FILE_MAX_PENDING_WRITES_DEFAULT);
+    }
+
+    public static int getFileStateStoreUnattachedTimeout() {
+        return Properties.instance().getPropertySet().getInteger
+                (STATE_STORE_FILE_UNATTACHED_TIMEOUT_PROPERTY, STATE_STORE_FILE_UNATTACHED_TIMEOUT_DEFAULT);
+    }
+
+    public static int getSchemaValidationMaxTrackedLeaves() {
+        return Properties.instance().getPropertySet().getInteger
+                (SCHEMA_VALIDATION_MAX_TRACKED_LEAVES_PROPERTY, SCHEMA_VALIDATION_MAX_TRACKED_LEAVES_DEFAULT);
+    }
+
+    public static int getSharedInstancesRefreshAhead() {
+        return Properties.instance().getPropertySet().getInteger
+                (SHARED_INSTANCES_REFRESH_AHEAD_PROPERTY, SHARED_INSTANCES_REFRESH_AHEAD_DEFAULT);
+    }
+
+    public static int getSharedInstancesLoadWaitTimeout() {
+        return Properties.instance().getPropertySet().getInteger
+                (SHARED_INSTANCES_LOAD_WAIT_TIMEOUT_PROPERTY, SHARED_INSTANCES_LOAD_WAIT_TIMEOUT_DEFAULT);
+    }
+
     public static boolean isGZIPState() {
         return Properties.instance().getPropertySet().getBoolean
                 (GZIP_STATE_PROPERTY, GZIP_STATE_DEFAULT);
     }
 
+    public static boolean isDeltaState() {
+        return Properties.instance().getPropertySet().getBoolean
+                (DELTA_STATE_PROPERTY, DELTA_STATE_DEFAULT);
+    }
+
+    public static int getDeltaStateMaxPatches() {
+        return Properties.instance().getPropertySet().getInteger
+                (DELTA_STATE_MAX_PATCHES_PROPERTY, DELTA_STATE_MAX_PATCHES_DEFAULT);
+    }
+
+    public static int getGZIPStateParallelBlockSize() {
+        return Properties.instance().getPropertySet().getInteger
+                (GZIP_STATE_PARALLEL_BLOCK_SIZE_PROPERTY, GZIP_STATE_PARALLEL_BLOCK_SIZE_DEFAULT);
+    }
+
     public static String getStoreUsername() {
         return Properties.instance().getPropertySet().getString
                 (STORE_APPLICATION_USERNAME_PROPERTY, STORE_APPLICATION_USERNAME_DEFAULT);
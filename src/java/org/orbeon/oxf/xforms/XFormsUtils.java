@@ -103,27 +103,28 @@ public class XFormsUtils {
 
     public static String encodeBytes(byte[] bytesToEncode, boolean compress, String encryptionPassword) {
         // Compress if needed
-        final byte[] gzipByteArray = compress ? XFormsCompressor.compressBytes(bytesToEncode) : null;
+        if (compress)
+            return encodeCompressedBytes(XFormsCompressor.compressBytes(bytesToEncode), encryptionPassword);
 
         // Encrypt if needed
         if (encryptionPassword != null) {
-            // Perform encryption
-            if (gzipByteArray == null) {
-                // The data was not compressed above
-                return "X1" + SecureUtils.encrypt(encryptionPassword, bytesToEncode);
-            } else {
-                // The data was compressed above
-                return "X2" + SecureUtils.encrypt(encryptionPassword, gzipByteArray);
-            }
+            // The data was not compressed above
+            return "X5" + SecureUtils.encryptAuthenticated(encryptionPassword, bytesToEncode);
         } else {
-            // No encryption
-            if (gzipByteArray == null) {
-                // The data was not compressed above
-                return "X3" + Base64.encode(bytesToEncode, false);
-            } else {
-                // The data was compressed above
-                return "X4" + Base64.encode(gzipByteArray, false);
-            }
+            // The data was not compressed above
+            return "X3" + Base64.encode(bytesToEncode, false);
+        }
+    }
+
+    /**
+     * Encode bytes already compressed with XFormsCompressor.
+     */
+    public static String encodeCompressedBytes(byte[] gzipByteArray, String encryptionPassword) {
+        // Encrypt if needed
+        if (encryptionPassword != null) {
+            return "X6" + SecureUtils.encryptAuthenticated(encryptionPassword, gzipByteArray);
+        } else {
+            return "X4" + Base64.encode(gzipByteArray, false);
         }
     }
 
@@ -481,7 +482,15 @@ public class XFormsUtils {
 
             final byte[] resultBytes1;
             final byte[] gzipByteArray;
-            if (prefix.equals("X1")) {
+            if (prefix.equals("X5")) {
+                // Authenticated encryption + uncompressed
+                resultBytes1 = SecureUtils.decryptAuthenticated(encryptionPassword, encodedString);
+                gzipByteArray = null;
+            } else if (prefix.equals("X6")) {
+                // Authenticated encryption + compressed
+                resultBytes1 = null;
+                gzipByteArray = SecureUtils.decryptAuthenticated(encryptionPassword, encodedString);
+            } else if (prefix.equals("X1")) {
                 // Encryption + uncompressed
                 resultBytes1 = SecureUtils.decrypt(encryptionPassword, encodedString);
                 gzipByteArray = null;
@@ -168,7 +168,15 @@ public class XFormsDeleteAction extends XFormsAction {
                 
                 // "XForms Actions that change the tree structure of instance data result in setting all four flags to true"
                 modifiedInstance.markModified();
-                modifiedInstance.model().markStructuralChange(modifiedInstance);
+
+                // Only the deleted nodes need to be taken into account by the model
+                final List<NodeInfo> parentNodeInfos = new ArrayList<NodeInfo>(deleteInfos.size());
+                final List<NodeInfo> nodeInfos = new ArrayList<NodeInfo>(deleteInfos.size());
+                for (final DeleteInfo deleteInfo : deleteInfos) {
+                    parentNodeInfos.add(deleteInfo.parent);
+                    nodeInfos.add(deleteInfo.nodeInfo);
+                }
+                modifiedInstance.model().markStructuralChange(modifiedInstance, parentNodeInfos, nodeInfos);
 
                 // "4. If the delete is successful, the event xforms-delete is dispatched."
                 if (doDispatch)
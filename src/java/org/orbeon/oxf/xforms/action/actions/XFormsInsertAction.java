@@ -413,13 +413,6 @@ public class XFormsInsertAction extends XFormsAction {
                 indentedLogger.logDebug("xforms:insert", "no node inserted");
         }
 
-        // "XForms Actions that change the tree structure of instance data result in setting all four flags to true"
-        if (didInsertNodes && modifiedInstance != null) {
-            // NOTE: Can be null if document into which delete is performed is not in an instance, e.g. in a variable
-            modifiedInstance.markModified();
-            modifiedInstance.model().markStructuralChange(modifiedInstance);
-        }
-
         // Gather list of modified nodes
         final List<Item> insertedNodeInfos;
         if (didInsertNodes && modifiedInstance != null) {
@@ -432,6 +425,22 @@ public class XFormsInsertAction extends XFormsAction {
             insertedNodeInfos = Collections.emptyList();
         }
 
+        // "XForms Actions that change the tree structure of instance data result in setting all four flags to true"
+        if (didInsertNodes && modifiedInstance != null) {
+            // NOTE: Can be null if document into which delete is performed is not in an instance, e.g. in a variable
+            modifiedInstance.markModified();
+
+            // Only the inserted nodes need to be taken into account by the model
+            final List<NodeInfo> parentNodeInfos = new ArrayList<NodeInfo>(insertedNodeInfos.size());
+            final List<NodeInfo> nodeInfos = new ArrayList<NodeInfo>(insertedNodeInfos.size());
+            for (final Item insertedNodeInfo : insertedNodeInfos) {
+                final NodeInfo nodeInfo = (NodeInfo) insertedNodeInfo;
+                parentNodeInfos.add(nodeInfo.getParent());
+                nodeInfos.add(nodeInfo);
+            }
+            modifiedInstance.model().markStructuralChange(modifiedInstance, parentNodeInfos, nodeInfos);
+        }
+
         // "4. If the insert is successful, the event xforms-insert is dispatched."
         // XFormsInstance handles index and repeat items updates 
         if (doDispatch && modifiedInstance != null) {
@@ -87,6 +87,22 @@ public abstract class XFormsSingleNodeControl extends XFormsControl {
     }
 
     private void readBinding() {
+
+        final boolean oldReadonly = readonly;
+        final boolean oldRequired = required;
+        final boolean oldValid = valid;
+        final QName oldType = type;
+        final Map<String, String> oldCustomMIPs = customMIPs;
+
+        readBindingImpl();
+
+        // Only MIPs changes are visible from outside, the value is handled by value controls
+        if (readonly != oldReadonly || required != oldRequired || valid != oldValid
+                || ! XFormsUtils.compareStrings(type, oldType) || ! compareCustomMIPs(customMIPs, oldCustomMIPs))
+            markChanged();
+    }
+
+    private void readBindingImpl() {
         // Set bound item, only considering actual bindings (with @bind, @ref or @nodeset)
         if (bindingContext().isNewBind())
             this.boundItem = bindingContext().getSingleItem();
@@ -242,7 +242,7 @@ abstract public class XFormsFunction extends SystemFunction {
 
         // Create expression
         final PooledXPathExpression pooledXPathExpression
-                = XPathCache.createPoolableXPathExpression(null, staticContext, xpathString, variableDeclarations, isAVT);
+                = XPathCache.createPoolableXPathExpression(staticContext, xpathString, variableDeclarations, isAVT);
 
         // Set context items and position for use at runtime
         pooledXPathExpression.setContextItem(initialXPathContext.getContextItem(), initialXPathContext.getContextPosition());
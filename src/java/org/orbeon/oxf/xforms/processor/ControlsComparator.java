@@ -54,8 +54,23 @@ public class ControlsComparator {
 
     private final int fullUpdateThreshold;
 
+    // Whether subtrees which have not changed since the initial tree was copied can be skipped
+    private final boolean skipUnchanged;
+
+    private int comparedCount;
+    private int skippedCount;
+
     public ControlsComparator(ContentHandlerHelper ch, XFormsContainingDocument containingDocument,
                               Set<String> valueChangeControlIds, boolean isTestMode) {
+        this(ch, containingDocument, valueChangeControlIds, isTestMode, true);
+    }
+
+    /**
+     * Create a comparator which compares all the controls if allowSkipping is false. The output must be the same as
+     * with skipping allowed, which tests check.
+     */
+    public ControlsComparator(ContentHandlerHelper ch, XFormsContainingDocument containingDocument,
+                              Set<String> valueChangeControlIds, boolean isTestMode, boolean allowSkipping) {
 
         this.ch = ch;
         this.containingDocument = containingDocument;
@@ -64,6 +79,32 @@ public class ControlsComparator {
 
         this.isSpanHTMLLayout = XFormsProperties.isSpanHTMLLayout(containingDocument);
         this.fullUpdateThreshold = XFormsProperties.getAjaxFullUpdateThreshold(containingDocument);
+
+        // Structural changes are not tracked by controls, so in that case compare everything
+        this.skipUnchanged = allowSkipping && containingDocument.getControlsStructuralChanges().isEmpty();
+
+        // Controls whose values changed in the request are always output, so they must not be skipped
+        if (skipUnchanged && valueChangeControlIds != null) {
+            for (final String effectiveId : valueChangeControlIds) {
+                final Object control = containingDocument.getControls().getObjectByEffectiveId(effectiveId);
+                if (control instanceof XFormsControl)
+                    ((XFormsControl) control).markChanged();
+            }
+        }
+    }
+
+    /**
+     * Return the number of controls compared so far.
+     */
+    public int getComparedCount() {
+        return comparedCount;
+    }
+
+    /**
+     * Return the number of unchanged subtrees skipped so far.
+     */
+    public int getSkippedCount() {
+        return skippedCount;
     }
 
     public boolean diff(List<XFormsControl> state1, List<XFormsControl> state2) {
@@ -92,6 +133,13 @@ public class ControlsComparator {
             final XFormsControl control1 = (leftIterator == null) ? null : leftIterator.next();
             final XFormsControl control2 = (rightIterator == null) ? null : rightIterator.next();
 
+            // Skip the control and its descendants if none of them changed since control1 was copied from control2
+            if (skipUnchanged && control2.isUnchangedSinceBackCopy(control1)) {
+                skippedCount++;
+                continue;
+            }
+            comparedCount++;
+
             // Whether it is necessary to output information about this control because the control was previously non-existing
             // TODO: distinction between new iteration AND control just becoming relevant?
             final boolean isNewlyVisibleSubtree = control1 == null;
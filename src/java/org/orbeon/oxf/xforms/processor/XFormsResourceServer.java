@@ -32,6 +32,7 @@ import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Serve XForms engine JavaScript and CSS resources by combining them.
@@ -222,9 +223,15 @@ public class XFormsResourceServer extends ProcessorImpl {
                             // Caching could take place, send out cached result
                             if (isDebugEnabled)
                                 indentedLogger.logDebug("resources", "serving from cache ", "request path", requestPath);
-                            final FileInputStream fis = new FileInputStream(resourceFile);
-                            NetUtils.copyStream(fis, os);
-                            fis.close();
+                            response.setHeader("Vary", "Accept-Encoding");
+                            final FileInputStream gzipInputStream = NetUtils.isAcceptGzip(request) ? openGzipFile(indentedLogger, resourceFile) : null;
+                            if (gzipInputStream != null) {
+                                // Send out the gzipped version of the cached result
+                                response.setHeader("Content-Encoding", "gzip");
+                                NetUtils.copyFile(gzipInputStream, os);
+                            } else {
+                                NetUtils.copyFile(resourceFile, os);
+                            }
                             os.flush();
                         } else {
                             // Was unable to cache, just serve
@@ -327,6 +334,52 @@ public class XFormsResourceServer extends ProcessorImpl {
         }
     }
 
+    /**
+     * Open the gzipped version of a cached resource, or return null if it is not available, in which case the
+     * uncompressed resource can be served instead.
+     *
+     * @param indentedLogger        logger
+     * @param resourceFile          cached resource
+     * @return                      gzipped cached resource, or null
+     */
+    private static FileInputStream openGzipFile(IndentedLogger indentedLogger, File resourceFile) {
+        try {
+            return new FileInputStream(getGzipFile(resourceFile));
+        } catch (IOException e) {
+            indentedLogger.logWarning("resources", "unable to open gzipped cached resource, serving uncompressed", "resource path", resourceFile.getPath(), "message", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Return the gzipped version of a cached resource, stored next to the resource, and create or update it if needed.
+     *
+     * @param resourceFile          cached resource
+     * @return                      gzipped cached resource
+     */
+    private static File getGzipFile(File resourceFile) throws IOException {
+        final File gzipFile = new File(resourceFile.getPath() + ".gz");
+        if (gzipFile.lastModified() < resourceFile.lastModified()) {
+            // Write to a temporary file first so that concurrent requests never see a partial file
+            final File tempFile = File.createTempFile(gzipFile.getName(), ".tmp", gzipFile.getParentFile());
+            try {
+                final OutputStream os = new GZIPOutputStream(new FileOutputStream(tempFile));
+                try {
+                    NetUtils.copyFile(resourceFile, os);
+                } finally {
+                    os.close();
+                }
+                // Rename over the existing file, which is atomic on POSIX systems, so that concurrent requests always
+                // find a file. Only on systems which don't allow this, delete the existing file first.
+                if (! tempFile.renameTo(gzipFile) && ! (gzipFile.delete() && tempFile.renameTo(gzipFile)))
+                    throw new IOException("Unable to rename " + tempFile + " to " + gzipFile);
+            } finally {
+                tempFile.delete();
+            }
+        }
+        return gzipFile;
+    }
+
     /**
      * Transform an URI accessible from the server into a URI accessible from the client. The mapping expires with the
      * session.
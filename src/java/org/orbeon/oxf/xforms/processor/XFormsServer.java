@@ -150,7 +150,7 @@ public class XFormsServer extends ProcessorImpl {
         // Get containing document from the incoming request
         // IMPORTANT: We now have a lock associated with the document
         final XFormsStateLifecycle.RequestParameters parameters = XFormsStateManager.instance().extractParameters(requestDocument, false);
-        final XFormsContainingDocument containingDocument = XFormsStateManager.instance().beforeUpdate(parameters);
+        final XFormsContainingDocument containingDocument = XFormsStateManager.instance().beforeUpdate(parameters, isIgnoreSequenceNumber ? -1 : requestSequenceNumber);
         boolean keepDocument = false;
         Callable<SubmissionResult> replaceAllCallable = null;
         try {
@@ -675,10 +675,13 @@ public class XFormsServer extends ProcessorImpl {
             state1 = null;
 
         indentedLogger.startHandleOperation("", "computing differences");
+        final ControlsComparator controlsComparator = new ControlsComparator(ch, containingDocument, valueChangeControlIds, isTestMode);
         {
-            new ControlsComparator(ch, containingDocument, valueChangeControlIds, isTestMode).diff(state1, state2);
+            controlsComparator.diff(state1, state2);
         }
-        indentedLogger.endHandleOperation();
+        indentedLogger.endHandleOperation(
+                "compared controls", Integer.toString(controlsComparator.getComparedCount()),
+                "skipped subtrees", Integer.toString(controlsComparator.getSkippedCount()));
     }
 
     private static void outputSubmissionInfo(ContentHandlerHelper ch, XFormsModelSubmission activeSubmission) {
@@ -47,6 +47,7 @@ import org.orbeon.oxf.xforms.processor.handlers.xml.XFormsGroupHandler;
 import org.orbeon.oxf.xforms.processor.handlers.xml.XFormsRepeatHandler;
 import org.orbeon.oxf.xforms.processor.handlers.xml.XFormsSelectHandler;
 import org.orbeon.oxf.xforms.state.AnnotatedTemplate;
+import org.orbeon.oxf.xforms.state.XFormsInitialStateCache;
 import org.orbeon.oxf.xforms.state.XFormsStateManager;
 import org.orbeon.oxf.xforms.state.XFormsStaticStateCache;
 import org.orbeon.oxf.xml.DeferredXMLReceiverImpl;
@@ -151,6 +152,7 @@ public class XFormsToXHTML extends ProcessorImpl {
         // ContainingDocument and XFormsState created below
         final XFormsContainingDocument[] containingDocument = new XFormsContainingDocument[1];
         final boolean[] cachedStatus = new boolean[] { false } ;
+        final boolean[] createdFromScratch = new boolean[] { false } ;
 
         final Stage2CacheableState stage2CacheableState;
         if (TEST_STATE == null) {
@@ -178,6 +180,10 @@ public class XFormsToXHTML extends ProcessorImpl {
                                 pipelineContext, INPUT_ANNOTATED_DOCUMENT, XMLUtils.ParserConfiguration.PLAIN);
                         containingDocument[0] = new XFormsContainingDocument(staticState[0], stage2CacheableState.template, uriResolver, getResponse(xmlReceiver, externalContext));
 
+                        // Inputs might have changed, so any initial state is out of date
+                        XFormsInitialStateCache.instance().removeInitialState(staticState[0].digest());
+                        createdFromScratch[0] = true;
+
                         // Gather set caching dependencies
                         gatherInputDependencies(containingDocument[0], indentedLogger, stage1CacheableState);
 
@@ -229,7 +235,18 @@ public class XFormsToXHTML extends ProcessorImpl {
                 }
 
                 final XFormsURIResolver uriResolver = new XFormsURIResolver(XFormsToXHTML.this, processorOutput, pipelineContext, INPUT_ANNOTATED_DOCUMENT, XMLUtils.ParserConfiguration.PLAIN);
-                containingDocument[0] = new XFormsContainingDocument(staticState, stage2CacheableState.template, uriResolver, getResponse(xmlReceiver, externalContext));
+                final ExternalContext.Response response = getResponse(xmlReceiver, externalContext);
+
+                // Try to create the document from the initial state of a previous document first
+                final XFormsContainingDocument documentFromInitialState
+                        = XFormsInitialStateCache.instance().createDocument(staticState, stage2CacheableState.template, uriResolver, response);
+                if (documentFromInitialState != null) {
+                    indentedLogger.logDebug("", "created document from cached initial state");
+                    containingDocument[0] = documentFromInitialState;
+                } else {
+                    containingDocument[0] = new XFormsContainingDocument(staticState, stage2CacheableState.template, uriResolver, response);
+                    createdFromScratch[0] = true;
+                }
             } else {
                 assert !cachedStatus[0];
                 indentedLogger.logDebug("", "annotated document and static state digest not obtained from cache.");
@@ -245,6 +262,10 @@ public class XFormsToXHTML extends ProcessorImpl {
                 testOutputResponseState(containingDocument[0], indentedLogger, xmlReceiver);
             }
 
+            // Keep the initial state so that further documents can be created from it
+            if (createdFromScratch[0])
+                XFormsInitialStateCache.instance().storeInitialState(containingDocument[0]);
+
             // Notify state manager
             XFormsStateManager.instance().afterInitialResponse(containingDocument[0]);
 
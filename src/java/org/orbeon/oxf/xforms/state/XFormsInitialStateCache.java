@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state;
+
+import org.orbeon.oxf.cache.Cache;
+import org.orbeon.oxf.cache.InternalCacheKey;
+import org.orbeon.oxf.cache.ObjectCache;
+import org.orbeon.oxf.pipeline.api.ExternalContext;
+import org.orbeon.oxf.xforms.XFormsContainingDocument;
+import org.orbeon.oxf.xforms.XFormsProperties;
+import org.orbeon.oxf.xforms.XFormsStaticState;
+import org.orbeon.oxf.xforms.processor.XFormsURIResolver;
+
+/**
+ * This cache stores mappings static state digest -> initial dynamic state into a global cache.
+ *
+ * When a document has just been initialized, its dynamic state is decoded once and kept as a read-only template.
+ * Further documents with the same static state are created from that template: instances, control values and repeat
+ * indexes are restored from it, and models are not initialized again. The decoded instance and control states are
+ * immutable, and each document parses instance content into its own tree, so the template is shared safely.
+ *
+ * This is only enabled with the xxforms:cache.initial-state="true" property, as documents created this way don't run
+ * initialization events, and therefore must not depend on the request, the user, or the current time.
+ */
+public class XFormsInitialStateCache {
+
+    private static final String XFORMS_INITIAL_STATE_CACHE_NAME = "xforms.cache.initial-states";
+    private static final int XFORMS_INITIAL_STATE_CACHE_DEFAULT_SIZE = 50;
+
+    private static final Long CONSTANT_VALIDITY = 0L;
+    private static final String INITIAL_STATE_KEY_TYPE = XFORMS_INITIAL_STATE_CACHE_NAME;
+
+    private static XFormsInitialStateCache instance = new XFormsInitialStateCache();
+
+    public static XFormsInitialStateCache instance() {
+        return instance;
+    }
+
+    private final Cache cache = ObjectCache.instance(XFORMS_INITIAL_STATE_CACHE_NAME, XFORMS_INITIAL_STATE_CACHE_DEFAULT_SIZE);
+
+    private XFormsInitialStateCache() {}
+
+    // Initial state in the decoded form used to restore documents
+    private static class InitialState {
+        public final DynamicState.InstancesControls instancesControls;
+        public final String focusedControlEffectiveId;
+
+        private InitialState(DynamicState.InstancesControls instancesControls, String focusedControlEffectiveId) {
+            this.instancesControls = instancesControls;
+            this.focusedControlEffectiveId = focusedControlEffectiveId;
+        }
+    }
+
+    /**
+     * Whether the cache is enabled for this static state.
+     *
+     * @param staticState   static state to check
+     * @return              true if cache enabled
+     */
+    public boolean isEnabled(XFormsStaticState staticState) {
+        return staticState.getBooleanProperty(XFormsProperties.CACHE_INITIAL_STATE_PROPERTY) && cache.getMaxSize() > 0;
+    }
+
+    /**
+     * Store the state of a document which has just been initialized, if the document can be used as a template.
+     *
+     * @param containingDocument    document just initialized
+     */
+    public void storeInitialState(XFormsContainingDocument containingDocument) {
+        final XFormsStaticState staticState = containingDocument.getStaticState();
+        if (isEnabled(staticState) && containingDocument.isInitialStateReusable()) {
+            final DynamicState dynamicState = DynamicState.apply(containingDocument);
+            final InitialState initialState = new InitialState(dynamicState.decodeInstancesControls(), dynamicState.decodeFocusedControlJava());
+            cache.add(createCacheKey(staticState.digest()), CONSTANT_VALIDITY, initialState);
+        }
+    }
+
+    /**
+     * Remove the initial state for the given static state, typically because the document inputs have changed.
+     *
+     * @param staticStateDigest     static state digest
+     */
+    public void removeInitialState(String staticStateDigest) {
+        cache.remove(createCacheKey(staticStateDigest));
+    }
+
+    /**
+     * Create a new document from the initial state stored for the given static state. If not found, return null.
+     *
+     * @param staticState   static state
+     * @param template      page template
+     * @param uriResolver   URIResolver for loading resources after initialization
+     * @param response      response for handling replace="all"
+     * @return              new document or null
+     */
+    public XFormsContainingDocument createDocument(XFormsStaticState staticState, AnnotatedTemplate template,
+                                                   XFormsURIResolver uriResolver, ExternalContext.Response response) {
+        if (! isEnabled(staticState))
+            return null;
+
+        final InitialState initialState = (InitialState) cache.findValid(createCacheKey(staticState.digest()), CONSTANT_VALIDITY);
+        return (initialState != null)
+                ? new XFormsContainingDocument(staticState, initialState.instancesControls, initialState.focusedControlEffectiveId, template, uriResolver, response)
+                : null;
+    }
+
+    private InternalCacheKey createCacheKey(String staticStateDigest) {
+        return new InternalCacheKey(INITIAL_STATE_KEY_TYPE, staticStateDigest);
+    }
+
+    public int getCurrentSize() {
+        return cache.getCurrentSize();
+    }
+
+    public int getMaxSize() {
+        return cache.getMaxSize();
+    }
+}
@@ -36,6 +36,7 @@ public interface XFormsStateLifecycle {
     XFormsContainingDocument findOrRestoreDocument(RequestParameters parameters, boolean isInitialState, boolean updates);
 
     XFormsContainingDocument beforeUpdate(RequestParameters parameters);
+    XFormsContainingDocument beforeUpdate(RequestParameters parameters, long requestSequence);
     void beforeUpdateResponse(XFormsContainingDocument containingDocument, boolean ignoreSequence);
     void afterUpdateResponse(XFormsContainingDocument containingDocument);
     void afterUpdate(XFormsContainingDocument containingDocument, boolean keepDocument);
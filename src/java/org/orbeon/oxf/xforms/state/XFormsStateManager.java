@@ -27,6 +27,8 @@ import org.orbeon.oxf.xforms.XFormsContainingDocument;
 import org.orbeon.oxf.xforms.XFormsProperties;
 
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -58,6 +60,13 @@ public class XFormsStateManager implements XFormsStateLifecycle {
         return instance;
     }
 
+    // Document lock statistics
+    private static final AtomicLong lockCount = new AtomicLong();
+    private static final AtomicLong lockWaitTimeNanos = new AtomicLong();
+    private static final AtomicLong lockHoldTimeNanos = new AtomicLong();
+    private static final AtomicLong lockTimeoutCount = new AtomicLong();
+    private static final AtomicLong retryRequestCount = new AtomicLong();
+
     private XFormsStateManager() {}
 
     /**
@@ -83,6 +92,10 @@ public class XFormsStateManager implements XFormsStateLifecycle {
         public final Lock lock = new ReentrantLock();
         public final String uuid;
 
+        // Sequence number of the request holding the lock, or -1, and time at which the lock was obtained
+        public volatile long lockSequence = -1;
+        public volatile long lockTime;
+
         private SessionDocument(String uuid) {
             this.uuid = uuid;
         }
@@ -288,6 +301,29 @@ public class XFormsStateManager implements XFormsStateLifecycle {
      * @return              document, either from cache or from state information
      */
     public XFormsContainingDocument beforeUpdate(RequestParameters parameters) {
+        return beforeUpdate(parameters, -1);
+    }
+
+    /**
+     * Called before an incoming update.
+     *
+     * If found in cache, document is removed from cache.
+     *
+     * The document lock is obtained within the oxf.xforms.ajax.lock-timeout property, if set. A request with the same
+     * sequence number as the request currently holding the lock is a client retry of that request. It still waits for
+     * the lock, but without timeout, as once it has the lock it only replays the response of the request it retries.
+     * Requests are not merged: each request obtains the lock in turn.
+     *
+     * @param parameters        incoming Ajax request
+     * @param requestSequence   sequence number of the incoming request, or -1 if not available
+     * @return                  document, either from cache or from state information
+     */
+    public XFormsContainingDocument beforeUpdate(RequestParameters parameters, long requestSequence) {
+        return beforeUpdate(parameters, requestSequence, XFormsProperties.getAjaxLockTimeout());
+    }
+
+    // Separate method so that unit tests can set the lock timeout
+    XFormsContainingDocument beforeUpdate(RequestParameters parameters, long requestSequence, long timeout) {
 
         assert parameters.getUUID() != null;
 
@@ -296,16 +332,52 @@ public class XFormsStateManager implements XFormsStateLifecycle {
         // key goes away as well, and the key won't be present. If we don't do this check, the XForms server might
         // handle requests for a given UUID within a separate session, therefore providing access to other sessions,
         // which is not desirable. Further, we now have a lock stored in the session.
-        final Lock lock = getDocumentLock(parameters.getUUID());
-        if (lock == null)
+        final SessionDocument sessionDocument = getSessionDocument(parameters.getUUID());
+        if (sessionDocument == null)
             throw new OXFException("Session has expired. Unable to process incoming request.");
 
-        // Lock document
-        lock.lock();
+        final boolean isRetry = requestSequence != -1 && requestSequence == sessionDocument.lockSequence;
+        if (isRetry) {
+            retryRequestCount.incrementAndGet();
+            indentedLogger.logDebug(LOG_TYPE, "Request is a retry of the request holding the document lock. Waiting for its response.",
+                    "sequence", Long.toString(requestSequence));
+        }
 
-        // We got the lock, return the document
+        // Lock document
+        final long startTime = System.nanoTime();
+        if (timeout <= 0 || isRetry) {
+            sessionDocument.lock.lock();
+        } else {
+            final boolean locked;
+            try {
+                locked = sessionDocument.lock.tryLock(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new OXFException(e);
+            }
+            if (! locked) {
+                lockTimeoutCount.incrementAndGet();
+                indentedLogger.logWarning(LOG_TYPE, "Timeout while waiting for document lock.", "timeout", Long.toString(timeout));
+                throw new OXFException("Timeout while waiting for another request on the same document to complete.");
+            }
+        }
 
-        return findOrRestoreDocument(parameters, false, false);
+        // We got the lock
+        final long lockTime = System.nanoTime();
+        sessionDocument.lockSequence = requestSequence;
+        sessionDocument.lockTime = lockTime;
+
+        lockCount.incrementAndGet();
+        lockWaitTimeNanos.addAndGet(lockTime - startTime);
+        if (indentedLogger.isDebugEnabled())
+            indentedLogger.logDebug(LOG_TYPE, "Obtained document lock.", "wait time (ms)", Long.toString((lockTime - startTime) / 1000000));
+
+        // Return the document
+        try {
+            return findOrRestoreDocument(parameters, false, false);
+        } catch (RuntimeException e) {
+            unlock(sessionDocument);
+            throw e;
+        }
     }
 
     public static Lock getDocumentLock(String uuid) {
@@ -321,8 +393,8 @@ public class XFormsStateManager implements XFormsStateLifecycle {
      */
     public void afterUpdate(XFormsContainingDocument containingDocument, boolean keepDocument) {
         final String uuid = containingDocument.getUUID();
-        final Lock lock = getDocumentLock(uuid);
-        if (lock == null) {
+        final SessionDocument sessionDocument = getSessionDocument(uuid);
+        if (sessionDocument == null) {
             // Possible situation is that session expired in the middle of a request? Seems unlikely. In this case we
             // don't expect to update the session information as somebody clearly wanted to get rid of the session, so
             // just return.
@@ -343,7 +415,48 @@ public class XFormsStateManager implements XFormsStateLifecycle {
         }
 
         // Unlock document
-        lock.unlock();
+        unlock(sessionDocument);
+    }
+
+    private static void unlock(SessionDocument sessionDocument) {
+        lockHoldTimeNanos.addAndGet(System.nanoTime() - sessionDocument.lockTime);
+        sessionDocument.lockSequence = -1;
+        sessionDocument.lock.unlock();
+    }
+
+    /**
+     * Number of times a document lock was obtained for an update.
+     */
+    public static long getLockCount() {
+        return lockCount.get();
+    }
+
+    /**
+     * Total time spent waiting for document locks, in milliseconds.
+     */
+    public static long getLockWaitTime() {
+        return lockWaitTimeNanos.get() / 1000000;
+    }
+
+    /**
+     * Total time during which document locks were held, in milliseconds.
+     */
+    public static long getLockHoldTime() {
+        return lockHoldTimeNanos.get() / 1000000;
+    }
+
+    /**
+     * Number of requests which failed to obtain a document lock within the timeout.
+     */
+    public static long getLockTimeoutCount() {
+        return lockTimeoutCount.get();
+    }
+
+    /**
+     * Number of client retries of the request holding the document lock, which waited for the lock without timeout.
+     */
+    public static long getRetryRequestCount() {
+        return retryRequestCount.get();
     }
 
     private static class RequestParametersImpl implements RequestParameters, java.io.Serializable {
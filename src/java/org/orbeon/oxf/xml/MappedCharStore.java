@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2011 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xml;
+
+import org.orbeon.oxf.common.OXFException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only character storage backed by a memory-mapped temporary file.
+ *
+ * Characters are stored in fixed-size mapped blocks, so growing the store never copies existing content, and the
+ * content doesn't live on the Java heap. Once appending is done, the store can be read concurrently. Appending after
+ * close() maps subsequent blocks from a new file.
+ */
+class MappedCharStore {
+
+    private static final int BLOCK_SIZE = 1024 * 1024; // in characters
+
+    private final List<CharBuffer> blocks = new ArrayList<CharBuffer>();
+    private long length;
+
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private boolean mustDeleteFile;
+    private int fileBlockCount;
+
+    private void open() {
+        try {
+            file = File.createTempFile("orbeon-sax-store-", null);
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+            fileBlockCount = 0;
+
+            // Where supported, delete the file right away: the space is reclaimed as soon as the mappings go away, even
+            // if close() is never called
+            mustDeleteFile = ! file.delete();
+        } catch (IOException e) {
+            throw new OXFException(e);
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public void append(char[] chars, int start, int length) {
+        while (length > 0) {
+            final CharBuffer block = getWritableBlock();
+            final int count = Math.min(length, block.remaining());
+            block.put(chars, start, count);
+            start += count;
+            length -= count;
+            this.length += count;
+        }
+    }
+
+    /**
+     * Copy characters to the given array.
+     *
+     * @param position      position of the first character in the store
+     * @param destination   destination array
+     * @param start         start position in the destination array
+     * @param length        number of characters to copy
+     */
+    public void get(long position, char[] destination, int start, int length) {
+        while (length > 0) {
+            // Use a duplicate so that concurrent readers don't share a position
+            final CharBuffer block = blocks.get((int) (position / BLOCK_SIZE)).duplicate();
+            final int positionInBlock = (int) (position % BLOCK_SIZE);
+            final int count = Math.min(length, BLOCK_SIZE - positionInBlock);
+
+            block.clear();
+            block.position(positionInBlock);
+            block.get(destination, start, count);
+
+            position += count;
+            start += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Stop appending. Mapped content remains readable, but the underlying file is released.
+     *
+     * This doesn't unmap the blocks: the JVM only unmaps them when they are garbage collected.
+     */
+    public void close() {
+        if (channel != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                // NOP
+            }
+            channel = null;
+            randomAccessFile = null;
+
+            // Some platforms don't allow deleting a mapped file
+            if (mustDeleteFile && ! file.delete())
+                file.deleteOnExit();
+        }
+    }
+
+    private CharBuffer getWritableBlock() {
+        final CharBuffer lastBlock = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+        if (lastBlock != null && lastBlock.hasRemaining()) {
+            return lastBlock;
+        } else {
+            if (channel == null)
+                open();
+            try {
+                final long blockPosition = (long) fileBlockCount * BLOCK_SIZE * 2;
+                final CharBuffer newBlock = channel.map(FileChannel.MapMode.READ_WRITE, blockPosition, BLOCK_SIZE * 2).asCharBuffer();
+                blocks.add(newBlock);
+                fileBlockCount++;
+                return newBlock;
+            } catch (IOException e) {
+                throw new OXFException(e);
+            }
+        }
+    }
+}
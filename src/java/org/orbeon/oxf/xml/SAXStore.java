@@ -14,10 +14,13 @@
 package org.orbeon.oxf.xml;
 
 import org.dom4j.Document;
+import org.orbeon.oxf.cache.Weighable;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.pipeline.api.TransformerXMLReceiver;
 import org.orbeon.oxf.pipeline.api.XMLReceiver;
 import org.orbeon.oxf.processor.SAXLoggerProcessor;
+import org.orbeon.oxf.properties.Properties;
+import org.orbeon.oxf.properties.PropertySet;
 import org.orbeon.oxf.xml.dom4j.LocationSAXContentHandler;
 import org.xml.sax.Attributes;
 import org.xml.sax.Locator;
@@ -26,10 +29,10 @@ import org.xml.sax.helpers.AttributesImpl;
 
 import javax.xml.transform.stream.StreamResult;
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
 
 /**
  * SAXStore keeps a compact representation of SAX events sent to the ContentHandler interface.
@@ -37,9 +40,14 @@ import java.util.List;
  * As of June 2009, we increase the size of buffers by 50% instead of 100%. Still not the greatest way. Possibly,
  * passed a threshold, say 10 MB or 20 MB, we could use a linked list of such big blocks.
  *
- * TODO: Handling of system IDs is not optimal in memory as system IDs are unlikely to change much within a document.
+ * Strings (namespace URIs, names, types, attribute values, etc.) are stored once in a per-store symbol table, and
+ * events refer to them by index. System ids, which are unlikely to change much within a document, are run-length
+ * encoded. Arrays are serialized in bulk.
+ *
+ * When a spill threshold is set, character content beyond the threshold is stored in a memory-mapped temporary file
+ * instead of on the Java heap. Structural information always remains on the heap.
  */
-public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
+public class SAXStore extends ForwardingXMLReceiver implements Externalizable, Weighable {
 
     public static final byte START_DOCUMENT = 0x00;
     public static final byte END_DOCUMENT = 0x01;
@@ -55,11 +63,24 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
     private static final int INITIAL_SIZE = 10;
 
+    // Symbol index used for null strings
+    private static final int NULL_SYMBOL = -1;
+
+    // Size of the scratch buffer used to serialize arrays
+    private static final int SERIALIZATION_BUFFER_SIZE = 8192;
+
+    public static final String SPILL_THRESHOLD_PROPERTY = "oxf.sax-store.spill-threshold";
+
     private byte[] eventBuffer;
     private int eventBufferPosition;
 
     private char[] charBuffer;
-    private int charBufferPosition;
+    private int charBufferPosition; // includes spilled characters
+
+    // Characters at positions >= spillStart are stored in spilledChars
+    private int spillThreshold;
+    private int spillStart;
+    private MappedCharStore spilledChars;
 
     private int[] intBuffer;
     private int intBufferPosition;
@@ -67,14 +88,22 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
     private int[] lineBuffer;
     private int lineBufferPosition;
 
-    private String[] systemIdBuffer;
+    // System ids of located events, run-length encoded: run i covers located events up to systemIdRunEnds[i] (excluded)
+    private int[] systemIdRunSymbols;
+    private int[] systemIdRunEnds;
+    private int systemIdRunCount;
     private int systemIdBufferPosition;
 
     private int[] attributeCountBuffer;
     private int attributeCountBufferPosition;
     private int attributeCount;
 
-    private List<String> StringBuilder = new ArrayList<String>();
+    // Indexes into the symbol table
+    private int[] stringBuffer;
+    private int stringBufferPosition;
+
+    private List<String> symbols = new ArrayList<String>();
+    private transient Map<String, Integer> symbolIndexes; // used only for recording events, rebuilt when needed
 
     private boolean hasDocumentLocator;
     private String publicId;
@@ -82,7 +111,7 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
     private transient Locator locator; // used only for recording events, MUST be cleared afterwards
 
     private final Mark START_MARK = new Mark();
-    
+
     private List<Mark> marks = null;
 
     public class Mark {
@@ -93,7 +122,7 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
         public final int lineBufferPosition;
         public final int systemIdBufferPosition;
         public final int attributeCountBufferPosition;
-        public final int StringBuilderPosition;
+        public final int stringBufferPosition;
 
         private Mark() {
             id = null;
@@ -103,7 +132,7 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
             this.lineBufferPosition = 0;
             this.systemIdBufferPosition = 0;
             this.attributeCountBufferPosition = 0;
-            this.StringBuilderPosition = 0;
+            this.stringBufferPosition = 0;
         }
 
         private Mark(final SAXStore store, final String id) {
@@ -114,11 +143,11 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
             this.lineBufferPosition = store.lineBufferPosition;
             this.systemIdBufferPosition = store.systemIdBufferPosition;
             this.attributeCountBufferPosition = store.attributeCountBufferPosition;
-            this.StringBuilderPosition = store.StringBuilder.size();
-            
+            this.stringBufferPosition = store.stringBufferPosition;
+
             rememberMark();
         }
-        
+
         private Mark(final int[] values, final String id) {
             this.id = id;
             int i = 0;
@@ -128,57 +157,40 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
             this.lineBufferPosition = values[i++];
             this.systemIdBufferPosition = values[i++];
             this.attributeCountBufferPosition = values[i++];
-            this.StringBuilderPosition = values[i++];
-            
+            this.stringBufferPosition = values[i++];
+
             rememberMark();
         }
-        
+
         private void rememberMark() {
-            // Keep a reference to marks, so that they can be serialized/deserialized along with the SAXStore 
+            // Keep a reference to marks, so that they can be serialized/deserialized along with the SAXStore
             if (marks == null)
                 marks = new ArrayList<Mark>();
-            
+
             marks.add(this);
         }
 
         public void replay(XMLReceiver xmlReceiver) throws SAXException {
             SAXStore.this.replay(xmlReceiver, this);
         }
-        
+
         public SAXStore saxStore() {
             return SAXStore.this;
         }
     }
 
     public long getApproximateSize() {
-        long size = eventBufferPosition * 4;
-        size += charBufferPosition;
+        long size = eventBufferPosition;
+        size += (spilledChars == null ? charBufferPosition : spillStart) * 2; // spilled characters are not on the heap
         size += intBufferPosition * 4;
         size += lineBufferPosition * 4;
-
-        {
-            String previousId = null;
-            for (int i = 0; i < systemIdBuffer.length; i++) {
-                final String currentId = systemIdBuffer[i];
-                // This is rough, but entries in the list could point to the same string, so we try to detect this case.
-                if (currentId != null && currentId != previousId)
-                    size += currentId.length() * 2;
-                previousId = currentId;
-            }
-        }
-
+        size += systemIdRunCount * 8;
         size += attributeCountBufferPosition * 4;
+        size += stringBufferPosition * 4;
 
-        {
-            String previousString = null;
-            for (Iterator<String> i = StringBuilder.iterator(); i.hasNext();) {
-                final String currentString = i.next();
-                // This is rough, but entries in the list could point to the same string, so we try to detect this case.
-                if (currentString != null && currentString != previousString)
-                    size += currentString.length() * 2;
-                previousString = currentString;
-            }
-        }
+        // Each distinct string is stored only once
+        for (final String symbol : symbols)
+            size += 40 + symbol.length() * 2;
 
         return size;
     }
@@ -187,6 +199,26 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
         return attributeCount;
     }
 
+    /**
+     * Set the number of characters above which character content is stored outside the Java heap, in a memory-mapped
+     * temporary file. 0 means that character content is always stored on the heap.
+     */
+    public void setSpillThreshold(int spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * Return the spill threshold configured with the oxf.sax-store.spill-threshold property, or 0 if not set.
+     */
+    public static int getDefaultSpillThreshold() {
+        final PropertySet propertySet = Properties.instance().getPropertySet();
+        return (propertySet == null) ? 0 : propertySet.getInteger(SPILL_THRESHOLD_PROPERTY, 0);
+    }
+
     public SAXStore() {
         init();
     }
@@ -214,6 +246,7 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         charBufferPosition = 0;
         charBuffer = new char[INITIAL_SIZE * 4];
+        clearSpilledChars();
 
         intBufferPosition = 0;
         intBuffer = new int[INITIAL_SIZE];
@@ -221,13 +254,20 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
         lineBufferPosition = 0;
         lineBuffer = new int[INITIAL_SIZE];
 
+        systemIdRunCount = 0;
+        systemIdRunSymbols = new int[INITIAL_SIZE];
+        systemIdRunEnds = new int[INITIAL_SIZE];
         systemIdBufferPosition = 0;
-        systemIdBuffer = new String[INITIAL_SIZE];
 
         attributeCountBufferPosition = 0;
         attributeCountBuffer = new int[INITIAL_SIZE];
+        attributeCount = 0;
 
-        StringBuilder.clear();
+        stringBufferPosition = 0;
+        stringBuffer = new int[INITIAL_SIZE * 4];
+
+        symbols.clear();
+        symbolIndexes = null;
 
         locator = null;
     }
@@ -239,12 +279,13 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
     public void replay(XMLReceiver xmlReceiver, Mark mark) throws SAXException {
         int intBufferPos = mark.intBufferPosition;
         int charBufferPos = mark.charBufferPosition;
-        int StringBuilderPos = mark.StringBuilderPosition;
+        int stringBufferPos = mark.stringBufferPosition;
         int attributeCountBufferPos = mark.attributeCountBufferPosition;
         final int[] lineBufferPos = { mark.lineBufferPosition } ;
         final int[] systemIdBufferPos = { mark.systemIdBufferPosition } ;
         final AttributesImpl attributes = new AttributesImpl();
         int currentEventPosition = mark.eventBufferPosition;
+        char[] spillBuffer = null;
 
         final Locator outputLocator = !hasDocumentLocator ? null : new Locator() {
             public String getPublicId() {
@@ -252,11 +293,7 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
             }
 
             public String getSystemId() {
-                try {
-                    return systemIdBuffer[systemIdBufferPos[0]];
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    return null;
-                }
+                return findSystemId(systemIdBufferPos[0]);
             }
 
             public int getLineNumber() {
@@ -297,15 +334,15 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
                     break;
                 }
                 case START_ELEMENT: {
-                    final String namespaceURI = StringBuilder.get(StringBuilderPos++);
-                    final String localName = StringBuilder.get(StringBuilderPos++);
-                    final String qName = StringBuilder.get(StringBuilderPos++);
+                    final String namespaceURI = getString(stringBufferPos++);
+                    final String localName = getString(stringBufferPos++);
+                    final String qName = getString(stringBufferPos++);
                     attributes.clear();
                     final int attributeCount = attributeCountBuffer[attributeCountBufferPos++];
                     for (int i = 0; i < attributeCount; i++) {
-                        attributes.addAttribute(StringBuilder.get(StringBuilderPos++),
-                                StringBuilder.get(StringBuilderPos++), StringBuilder.get(StringBuilderPos++),
-                                StringBuilder.get(StringBuilderPos++), StringBuilder.get(StringBuilderPos++));
+                        attributes.addAttribute(getString(stringBufferPos++),
+                                getString(stringBufferPos++), getString(stringBufferPos++),
+                                getString(stringBufferPos++), getString(stringBufferPos++));
                     }
                     xmlReceiver.startElement(namespaceURI, localName, qName, attributes);
                     elementLevel++;
@@ -313,15 +350,20 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
                 }
                 case CHARACTERS: {
                     final int length = intBuffer[intBufferPos++];
-                    xmlReceiver.characters(charBuffer, charBufferPos, length);
+                    if (isSpilled(charBufferPos)) {
+                        spillBuffer = getSpilledChars(charBufferPos, length, spillBuffer);
+                        xmlReceiver.characters(spillBuffer, 0, length);
+                    } else {
+                        xmlReceiver.characters(charBuffer, charBufferPos, length);
+                    }
                     charBufferPos += length;
                     break;
                 }
                 case END_ELEMENT: {
                     elementLevel--;
-                    xmlReceiver.endElement(StringBuilder.get(StringBuilderPos++),
-                            StringBuilder.get(StringBuilderPos++),
-                            StringBuilder.get(StringBuilderPos++));
+                    xmlReceiver.endElement(getString(stringBufferPos++),
+                            getString(stringBufferPos++),
+                            getString(stringBufferPos++));
 
                     if (handleElementMark && elementLevel == 0) {
                         // Back to ground level, we are done!
@@ -335,33 +377,43 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
                     break;
                 }
                 case END_PREFIX_MAPPING: {
-                    xmlReceiver.endPrefixMapping(StringBuilder.get(StringBuilderPos++));
+                    xmlReceiver.endPrefixMapping(getString(stringBufferPos++));
                     break;
                 }
                 case IGN_WHITESPACE: {
                     final int length = intBuffer[intBufferPos++];
-                    xmlReceiver.ignorableWhitespace(charBuffer, charBufferPos, length);
+                    if (isSpilled(charBufferPos)) {
+                        spillBuffer = getSpilledChars(charBufferPos, length, spillBuffer);
+                        xmlReceiver.ignorableWhitespace(spillBuffer, 0, length);
+                    } else {
+                        xmlReceiver.ignorableWhitespace(charBuffer, charBufferPos, length);
+                    }
                     charBufferPos += length;
                     break;
                 }
                 case PI: {
-                    xmlReceiver.processingInstruction(StringBuilder.get(StringBuilderPos++),
-                            StringBuilder.get(StringBuilderPos++));
+                    xmlReceiver.processingInstruction(getString(stringBufferPos++),
+                            getString(stringBufferPos++));
                     break;
                 }
                 case SKIPPED_ENTITY: {
-                    xmlReceiver.skippedEntity(StringBuilder.get(StringBuilderPos++));
+                    xmlReceiver.skippedEntity(getString(stringBufferPos++));
                     break;
                 }
                 case START_PREFIX_MAPPING: {
-                    xmlReceiver.startPrefixMapping(StringBuilder.get(StringBuilderPos++),
-                            StringBuilder.get(StringBuilderPos++));
+                    xmlReceiver.startPrefixMapping(getString(stringBufferPos++),
+                            getString(stringBufferPos++));
                     break;
                 }
                 case COMMENT: {
 
                     final int length = intBuffer[intBufferPos++];
-                    xmlReceiver.comment(charBuffer, charBufferPos, length);
+                    if (isSpilled(charBufferPos)) {
+                        spillBuffer = getSpilledChars(charBufferPos, length, spillBuffer);
+                        xmlReceiver.comment(spillBuffer, 0, length);
+                    } else {
+                        xmlReceiver.comment(charBuffer, charBufferPos, length);
+                    }
                     charBufferPos += length;
 
                     break;
@@ -375,6 +427,51 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
         }
     }
 
+    private boolean isSpilled(int charBufferPos) {
+        return spilledChars != null && charBufferPos >= spillStart;
+    }
+
+    // Copy spilled characters to the given buffer, which is reallocated if too small
+    private char[] getSpilledChars(int charBufferPos, int length, char[] buffer) {
+        final char[] result = (buffer != null && buffer.length >= length) ? buffer : new char[Math.max(length, 1024)];
+        spilledChars.get(charBufferPos - spillStart, result, 0, length);
+        return result;
+    }
+
+    private void clearSpilledChars() {
+        if (spilledChars != null) {
+            spilledChars.close();
+            spilledChars = null;
+        }
+        spillStart = 0;
+    }
+
+    private String getString(int stringBufferPos) {
+        final int symbol = stringBuffer[stringBufferPos];
+        return (symbol == NULL_SYMBOL) ? null : symbols.get(symbol);
+    }
+
+    // Find the system id of the given located event
+    private String findSystemId(int systemIdBufferPos) {
+        // Binary search for the first run ending after the position
+        int low = 0;
+        int high = systemIdRunCount - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (systemIdRunEnds[middle] <= systemIdBufferPos)
+                low = middle + 1;
+            else
+                high = middle - 1;
+        }
+
+        if (low < systemIdRunCount) {
+            final int symbol = systemIdRunSymbols[low];
+            return (symbol == NULL_SYMBOL) ? null : symbols.get(symbol);
+        } else {
+            return null;
+        }
+    }
+
     // Create a new mark
     // NOTE: This must be called *before* the startElement() event that will be the first element associated with the mark.
     public Mark getMark(String id) {
@@ -447,6 +544,13 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         // The resulting SAXStore should never keep references to whoever filled it
         locator = null;
+
+        // Symbol lookups are only needed for recording
+        symbolIndexes = null;
+
+        // Release the spill file, the content remains accessible through its mapping
+        if (spilledChars != null)
+            spilledChars.close();
     }
 
     @Override
@@ -454,9 +558,9 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         addToEventBuffer(END_ELEMENT);
         addLocation();
-        StringBuilder.add(uri);
-        StringBuilder.add(localname);
-        StringBuilder.add(qName);
+        addToStringBuffer(uri);
+        addToStringBuffer(localname);
+        addToStringBuffer(qName);
 
         super.endElement(uri, localname, qName);
     }
@@ -466,7 +570,7 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         addToEventBuffer(END_PREFIX_MAPPING);
         // NOTE: We don't keep location data for this event as it is very unlikely to be used
-        StringBuilder.add(s);
+        addToStringBuffer(s);
 
         super.endPrefixMapping(s);
     }
@@ -488,8 +592,8 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         addToEventBuffer(PI);
         addLocation();
-        StringBuilder.add(s);
-        StringBuilder.add(s1);
+        addToStringBuffer(s);
+        addToStringBuffer(s1);
 
         super.processingInstruction(s, s1);
     }
@@ -506,7 +610,7 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         addToEventBuffer(SKIPPED_ENTITY);
         addLocation();
-        StringBuilder.add(s);
+        addToStringBuffer(s);
 
         super.skippedEntity(s);
     }
@@ -530,9 +634,9 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
             if (publicId == null && locator.getPublicId() != null)
                 publicId = locator.getPublicId();
         }
-        StringBuilder.add(uri);
-        StringBuilder.add(localname);
-        StringBuilder.add(qName);
+        addToStringBuffer(uri);
+        addToStringBuffer(localname);
+        addToStringBuffer(qName);
 
         addToAttributeBuffer(attributes);
 
@@ -544,8 +648,8 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         addToEventBuffer(START_PREFIX_MAPPING);
         // NOTE: We don't keep location data for this event as it is very unlikely to be used
-        StringBuilder.add(s);
-        StringBuilder.add(s1);
+        addToStringBuffer(s);
+        addToStringBuffer(s1);
 
         super.startPrefixMapping(s, s1);
     }
@@ -570,16 +674,50 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
         }
     }
 
+    // Return the index of the string in the symbol table, adding it if needed
+    private int getSymbol(String s) {
+        if (s == null)
+            return NULL_SYMBOL;
+
+        if (symbolIndexes == null) {
+            // Initial recording, or recording resumed after endDocument() or deserialization
+            symbolIndexes = new HashMap<String, Integer>();
+            for (int i = 0; i < symbols.size(); i++)
+                symbolIndexes.put(symbols.get(i), i);
+        }
+
+        final Integer existingIndex = symbolIndexes.get(s);
+        if (existingIndex != null) {
+            return existingIndex;
+        } else {
+            final int newIndex = symbols.size();
+            symbols.add(s);
+            symbolIndexes.put(s, newIndex);
+            return newIndex;
+        }
+    }
+
+    // Grow an int array by 50%
+    private static int[] growIntArray(int[] old, int position) {
+        final int[] result = new int[old.length * 3 / 2 + 1];
+        System.arraycopy(old, 0, result, 0, position);
+        return result;
+    }
+
     protected void addToCharBuffer(char[] chars, int start, int length) {
-        if (charBuffer.length - charBufferPosition <= length) {
+        if (spilledChars == null && spillThreshold > 0 && charBufferPosition + length > spillThreshold) {
+            // Start spilling: subsequent characters go to the mapped file
+            spilledChars = new MappedCharStore();
+            spillStart = charBufferPosition;
+        }
+
+        if (spilledChars != null) {
+            spilledChars.append(chars, start, length);
+            charBufferPosition += length;
+        } else if (charBuffer.length - charBufferPosition <= length) {
             // double the array
             char[] old = charBuffer;
-            try{
-                charBuffer = new char[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
+            charBuffer = new char[old.length * 3 / 2 + 1];
             System.arraycopy(old, 0, charBuffer, 0, charBufferPosition);
             addToCharBuffer(chars, start, length);
         } else {
@@ -589,143 +727,133 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
     }
 
     protected void addToIntBuffer(int i) {
-        if (intBuffer.length - intBufferPosition == 1) {
-            // double the array
-            int[] old = intBuffer;
-            try{
-                intBuffer = new int[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, intBuffer, 0, intBufferPosition);
-            addToIntBuffer(i);
-        } else {
-            intBuffer[intBufferPosition++] = i;
-        }
+        if (intBuffer.length - intBufferPosition <= 1)
+            intBuffer = growIntArray(intBuffer, intBufferPosition);
+
+        intBuffer[intBufferPosition++] = i;
     }
 
     protected void addToLineBuffer(int i) {
-        if (lineBuffer.length - lineBufferPosition == 1) {
-            // double the array
-            int[] old = lineBuffer;
-            try {
-                lineBuffer = new int[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, lineBuffer, 0, lineBufferPosition);
-            addToLineBuffer(i);
-        } else {
-            lineBuffer[lineBufferPosition++] = i;
-        }
+        if (lineBuffer.length - lineBufferPosition <= 1)
+            lineBuffer = growIntArray(lineBuffer, lineBufferPosition);
+
+        lineBuffer[lineBufferPosition++] = i;
     }
 
     protected void addToSystemIdBuffer(String systemId) {
 
-        // Try to detect contiguous system ids
-        //
-        // NOTE: This native method won't work during replay, will need to store number of contiguous identical strings
-        // as well, and/or use intern().
-//        if (systemIdBufferPosition > 0 && systemIdBuffer[systemIdBufferPosition] == systemId) {
-//            return;
-//        }
-
-        if (systemIdBuffer.length - systemIdBufferPosition == 1) {
-            // double the array
-            String[] old = systemIdBuffer;
-            try {
-                systemIdBuffer = new String[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
+        if (systemIdRunCount > 0) {
+            // Extend the current run if the system id hasn't changed
+            final int lastSymbol = systemIdRunSymbols[systemIdRunCount - 1];
+            final String lastSystemId = (lastSymbol == NULL_SYMBOL) ? null : symbols.get(lastSymbol);
+            if (lastSystemId == systemId || lastSystemId != null && lastSystemId.equals(systemId)) {
+                systemIdRunEnds[systemIdRunCount - 1] = ++systemIdBufferPosition;
+                return;
             }
-            System.arraycopy(old, 0, systemIdBuffer, 0, systemIdBufferPosition);
-            addToSystemIdBuffer(systemId);
-        } else {
-            systemIdBuffer[systemIdBufferPosition++] = systemId;
         }
+
+        // Start a new run
+        if (systemIdRunSymbols.length - systemIdRunCount <= 1) {
+            systemIdRunSymbols = growIntArray(systemIdRunSymbols, systemIdRunCount);
+            systemIdRunEnds = growIntArray(systemIdRunEnds, systemIdRunCount);
+        }
+
+        systemIdRunSymbols[systemIdRunCount] = getSymbol(systemId);
+        systemIdRunEnds[systemIdRunCount] = ++systemIdBufferPosition;
+        systemIdRunCount++;
     }
 
+    protected void addToStringBuffer(String s) {
+        if (stringBuffer.length - stringBufferPosition <= 1)
+            stringBuffer = growIntArray(stringBuffer, stringBufferPosition);
+
+        stringBuffer[stringBufferPosition++] = getSymbol(s);
+    }
 
     protected void addToEventBuffer(byte b) {
-        if (eventBuffer.length - eventBufferPosition == 1) {
+        if (eventBuffer.length - eventBufferPosition <= 1) {
             // double the array
             byte[] old = eventBuffer;
-            try {
-                eventBuffer = new byte[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
+            eventBuffer = new byte[old.length * 3 / 2 + 1];
             System.arraycopy(old, 0, eventBuffer, 0, eventBufferPosition);
-            addToEventBuffer(b);
-        } else {
-            eventBuffer[eventBufferPosition++] = b;
         }
+
+        eventBuffer[eventBufferPosition++] = b;
     }
 
     private void addToAttributeBuffer(Attributes attributes) {
-        if (attributeCountBuffer.length - attributeCountBufferPosition == 1) {
-            // double the array
-            int[] old = attributeCountBuffer;
-            try {
-                attributeCountBuffer = new int[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, attributeCountBuffer, 0, attributeCountBufferPosition);
-            addToAttributeBuffer(attributes);
-        } else {
-            final int count = attributes.getLength();
-            attributeCountBuffer[attributeCountBufferPosition++] = count;
-            attributeCount += count;
-            for (int i = 0; i < attributes.getLength(); i++) {
-                StringBuilder.add(attributes.getURI(i));
-                StringBuilder.add(attributes.getLocalName(i));
-                StringBuilder.add(attributes.getQName(i));
-                StringBuilder.add(attributes.getType(i));
-                StringBuilder.add(attributes.getValue(i));
-            }
+        if (attributeCountBuffer.length - attributeCountBufferPosition <= 1)
+            attributeCountBuffer = growIntArray(attributeCountBuffer, attributeCountBufferPosition);
+
+        final int count = attributes.getLength();
+        attributeCountBuffer[attributeCountBufferPosition++] = count;
+        attributeCount += count;
+        for (int i = 0; i < count; i++) {
+            addToStringBuffer(attributes.getURI(i));
+            addToStringBuffer(attributes.getLocalName(i));
+            addToStringBuffer(attributes.getQName(i));
+            addToStringBuffer(attributes.getType(i));
+            addToStringBuffer(attributes.getValue(i));
         }
     }
 
     public void writeExternal(ObjectOutput out) throws IOException {
 
+        final byte[] buffer = new byte[SERIALIZATION_BUFFER_SIZE];
+
         out.writeInt(eventBufferPosition);
         out.write(eventBuffer, 0, eventBufferPosition);
 
-        out.writeInt(charBufferPosition);
-        for (int i = 0; i < charBufferPosition; i++)
-            out.writeChar(charBuffer[i]);
+        if (spilledChars == null) {
+            writeChars(out, charBuffer, charBufferPosition, buffer);
+        } else {
+            // Write heap and spilled characters as a single array
+            out.writeInt(charBufferPosition);
+            writeCharRange(out, charBuffer, spillStart, buffer);
+
+            final char[] spillBuffer = new char[SERIALIZATION_BUFFER_SIZE / 2];
+            final long spilledLength = spilledChars.length();
+            for (long position = 0; position < spilledLength;) {
+                final int count = (int) Math.min(spilledLength - position, spillBuffer.length);
+                spilledChars.get(position, spillBuffer, 0, count);
+                writeCharRange(out, spillBuffer, count, buffer);
+                position += count;
+            }
+        }
+        writeInts(out, intBuffer, intBufferPosition, buffer);
+        writeInts(out, lineBuffer, lineBufferPosition, buffer);
 
-        out.writeInt(intBufferPosition);
-        for (int i = 0; i < intBufferPosition; i++)
-            out.writeInt(intBuffer[i]);
+        out.writeInt(systemIdBufferPosition);
+        writeInts(out, systemIdRunSymbols, systemIdRunCount, buffer);
+        writeInts(out, systemIdRunEnds, systemIdRunCount, buffer);
 
-        out.writeInt(lineBufferPosition);
-        for (int i = 0; i < lineBufferPosition; i++)
-            out.writeInt(lineBuffer[i]);
+        writeInts(out, attributeCountBuffer, attributeCountBufferPosition, buffer);
+        writeInts(out, stringBuffer, stringBufferPosition, buffer);
 
-        out.writeInt(systemIdBufferPosition);
-        for (int i = 0; i < systemIdBufferPosition; i++) {
-            final String systemId = systemIdBuffer[i];
-            out.writeObject(systemId == null ? "" : systemId);
-        }
+        // Write all symbols as a single array of characters
+        {
+            final int symbolCount = symbols.size();
+            final int[] symbolLengths = new int[symbolCount];
+            int totalLength = 0;
+            for (int i = 0; i < symbolCount; i++) {
+                symbolLengths[i] = symbols.get(i).length();
+                totalLength += symbolLengths[i];
+            }
 
-        out.writeInt(attributeCountBufferPosition);
-        for (int i = 0; i < attributeCountBufferPosition; i++)
-            out.writeInt(attributeCountBuffer[i]);
+            final char[] symbolChars = new char[totalLength];
+            int position = 0;
+            for (int i = 0; i < symbolCount; i++) {
+                symbols.get(i).getChars(0, symbolLengths[i], symbolChars, position);
+                position += symbolLengths[i];
+            }
 
-        out.writeInt(StringBuilder.size());
-        for (int i = 0; i < StringBuilder.size(); i++)
-            out.writeObject(StringBuilder.get(i));
+            writeInts(out, symbolLengths, symbolCount, buffer);
+            writeChars(out, symbolChars, totalLength, buffer);
+        }
 
         out.writeBoolean(hasDocumentLocator);
         out.writeObject(publicId == null ? "" : publicId);
-        
+
         if (marks == null || marks.isEmpty()) {
             out.writeInt(0);
         } else {
@@ -738,7 +866,7 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
                 out.writeInt(mark.lineBufferPosition);
                 out.writeInt(mark.systemIdBufferPosition);
                 out.writeInt(mark.attributeCountBufferPosition);
-                out.writeInt(mark.StringBuilderPosition);
+                out.writeInt(mark.stringBufferPosition);
             }
         }
 
@@ -746,51 +874,56 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
     }
 
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+
+        final byte[] buffer = new byte[SERIALIZATION_BUFFER_SIZE];
+
         eventBufferPosition = in.readInt();
         eventBuffer = new byte[eventBufferPosition];
-        for (int i = 0; i < eventBufferPosition; i++)
-            eventBuffer[i] = in.readByte();
+        in.readFully(eventBuffer);
 
-        charBufferPosition = in.readInt();
-        charBuffer = new char[charBufferPosition];
-        for (int i = 0; i < charBufferPosition; i++)
-            charBuffer[i] = in.readChar();
+        // Deserialized characters are always stored on the heap
+        clearSpilledChars();
+        charBuffer = readChars(in, buffer);
+        charBufferPosition = charBuffer.length;
 
-        intBufferPosition = in.readInt();
-        intBuffer = new int[intBufferPosition];
-        for (int i = 0; i < intBufferPosition; i++)
-            intBuffer[i] = in.readInt();
+        intBuffer = readInts(in, buffer);
+        intBufferPosition = intBuffer.length;
 
-        lineBufferPosition = in.readInt();
-        lineBuffer = new int[lineBufferPosition];
-        for (int i = 0; i < lineBufferPosition; i++)
-            lineBuffer[i] = in.readInt();
+        lineBuffer = readInts(in, buffer);
+        lineBufferPosition = lineBuffer.length;
 
         systemIdBufferPosition = in.readInt();
-        systemIdBuffer = new String[systemIdBufferPosition];
-        for (int i = 0; i < systemIdBufferPosition; i++) {
-            systemIdBuffer[i] = (String) in.readObject();
-            if ("".equals(systemIdBuffer[i]))
-                systemIdBuffer[i] = null;
-        }
+        systemIdRunSymbols = readInts(in, buffer);
+        systemIdRunEnds = readInts(in, buffer);
+        systemIdRunCount = systemIdRunSymbols.length;
 
-        attributeCountBufferPosition = in.readInt();
-        attributeCountBuffer = new int[attributeCountBufferPosition];
-        for (int i = 0; i < attributeCountBufferPosition; i++) {
-            final int count = in.readInt();
-            attributeCountBuffer[i] = count;
-            attributeCount += count;
-        }
+        attributeCountBuffer = readInts(in, buffer);
+        attributeCountBufferPosition = attributeCountBuffer.length;
+        attributeCount = 0;
+        for (int i = 0; i < attributeCountBufferPosition; i++)
+            attributeCount += attributeCountBuffer[i];
+
+        stringBuffer = readInts(in, buffer);
+        stringBufferPosition = stringBuffer.length;
 
-        final int StringBuilderSize = in.readInt();
-        for (int i = 0; i < StringBuilderSize; i++)
-            StringBuilder.add((String) in.readObject());
+        {
+            final int[] symbolLengths = readInts(in, buffer);
+            final char[] symbolChars = readChars(in, buffer);
+
+            symbols.clear();
+            int position = 0;
+            for (final int symbolLength : symbolLengths) {
+                symbols.add(new String(symbolChars, position, symbolLength));
+                position += symbolLength;
+            }
+            symbolIndexes = null;
+        }
 
         hasDocumentLocator = in.readBoolean();
         publicId = (String) in.readObject();
         if ("".equals(publicId))
             publicId = null;
-        
+
         final int marksCount = in.readInt();
         if (marksCount > 0) {
             for (int i = 0; i < marksCount; i++) {
@@ -802,4 +935,61 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
             }
         }
     }
+
+    // Write a length followed by the values, converted to bytes in bulk through the scratch buffer
+    private static void writeInts(ObjectOutput out, int[] values, int length, byte[] buffer) throws IOException {
+        out.writeInt(length);
+        final IntBuffer view = ByteBuffer.wrap(buffer).asIntBuffer();
+        for (int position = 0; position < length;) {
+            final int count = Math.min(length - position, view.capacity());
+            view.clear();
+            view.put(values, position, count);
+            out.write(buffer, 0, count * 4);
+            position += count;
+        }
+    }
+
+    private static int[] readInts(ObjectInput in, byte[] buffer) throws IOException {
+        final int length = in.readInt();
+        final int[] values = new int[length];
+        final IntBuffer view = ByteBuffer.wrap(buffer).asIntBuffer();
+        for (int position = 0; position < length;) {
+            final int count = Math.min(length - position, view.capacity());
+            in.readFully(buffer, 0, count * 4);
+            view.clear();
+            view.get(values, position, count);
+            position += count;
+        }
+        return values;
+    }
+
+    private static void writeChars(ObjectOutput out, char[] values, int length, byte[] buffer) throws IOException {
+        out.writeInt(length);
+        writeCharRange(out, values, length, buffer);
+    }
+
+    private static void writeCharRange(ObjectOutput out, char[] values, int length, byte[] buffer) throws IOException {
+        final CharBuffer view = ByteBuffer.wrap(buffer).asCharBuffer();
+        for (int position = 0; position < length;) {
+            final int count = Math.min(length - position, view.capacity());
+            view.clear();
+            view.put(values, position, count);
+            out.write(buffer, 0, count * 2);
+            position += count;
+        }
+    }
+
+    private static char[] readChars(ObjectInput in, byte[] buffer) throws IOException {
+        final int length = in.readInt();
+        final char[] values = new char[length];
+        final CharBuffer view = ByteBuffer.wrap(buffer).asCharBuffer();
+        for (int position = 0; position < length;) {
+            final int count = Math.min(length - position, view.capacity());
+            in.readFully(buffer, 0, count * 2);
+            view.clear();
+            view.get(values, position, count);
+            position += count;
+        }
+        return values;
+    }
 }
@@ -0,0 +1,301 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xml;
+
+import org.orbeon.oxf.common.OXFException;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.NamespaceSupport;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serialize SAX events to a Writer according to the XSLT XML output method.
+ *
+ * This produces the same output as an identity transformer for the output properties accepted by isSupported(), i.e.
+ * XML 1.0 without indentation or doctype and with a Unicode encoding, without the cost of creating a transformer for
+ * each document. Output is buffered, and the buffer is written to the Writer when full and upon endDocument().
+ */
+public class SerializingXMLReceiver extends XMLReceiverAdapter {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final Writer writer;
+    private final String encoding;
+    private final boolean omitXMLDeclaration;
+    private final Boolean standalone;
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int bufferLength;
+
+    private final NamespaceSupport namespaceSupport = new NamespaceSupport();
+    private final List<String> pendingMappings = new ArrayList<String>();
+    private boolean isStartTagOpen;
+
+    /**
+     * Whether this receiver can produce the same output as an identity transformer with the given output properties.
+     */
+    public static boolean isSupported(String method, String version, String publicDoctype, String systemDoctype, String encoding, boolean indent) {
+        return "xml".equals(method)
+                && (version == null || "1.0".equals(version))
+                && (publicDoctype == null || "".equals(publicDoctype))
+                && (systemDoctype == null || "".equals(systemDoctype))
+                && (encoding == null || "utf-8".equalsIgnoreCase(encoding) || "utf-16".equalsIgnoreCase(encoding))
+                && ! indent;
+    }
+
+    public SerializingXMLReceiver(Writer writer, String encoding, boolean omitXMLDeclaration, Boolean standalone) {
+        this.writer = writer;
+        this.encoding = (encoding != null) ? encoding : "UTF-8";
+        this.omitXMLDeclaration = omitXMLDeclaration;
+        this.standalone = standalone;
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        if (! omitXMLDeclaration) {
+            write("<?xml version=\"1.0\" encoding=\"");
+            write(encoding);
+            write('"');
+            if (standalone != null) {
+                write(" standalone=\"");
+                write(standalone ? "yes" : "no");
+                write('"');
+            }
+            write("?>");
+        }
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        try {
+            flushBuffer();
+            writer.flush();
+        } catch (IOException e) {
+            throw new OXFException(e);
+        }
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        pendingMappings.add(prefix);
+        pendingMappings.add(uri);
+    }
+
+    @Override
+    public void startElement(String namespaceURI, String localName, String qName, Attributes attributes) throws SAXException {
+        closeStartTag();
+        namespaceSupport.pushContext();
+
+        write('<');
+        write(qName);
+
+        // Namespace declarations, only if not already in scope
+        for (int i = 0; i < pendingMappings.size(); i += 2)
+            declareNamespace(pendingMappings.get(i), pendingMappings.get(i + 1));
+        pendingMappings.clear();
+
+        // Declarations missing for the prefixes used by the element and attributes
+        declareNamespace(XMLUtils.prefixFromQName(qName), namespaceURI);
+        final int attributesCount = attributes.getLength();
+        for (int i = 0; i < attributesCount; i++) {
+            final String attributeQName = attributes.getQName(i);
+            if (attributeQName.indexOf(':') != -1 && ! isNamespaceAttribute(attributeQName))
+                declareNamespace(XMLUtils.prefixFromQName(attributeQName), attributes.getURI(i));
+        }
+
+        for (int i = 0; i < attributesCount; i++) {
+            final String attributeQName = attributes.getQName(i);
+            if (! isNamespaceAttribute(attributeQName)) {
+                write(' ');
+                write(attributeQName);
+                write("=\"");
+                writeEscaped(attributes.getValue(i), true);
+                write('"');
+            }
+        }
+
+        isStartTagOpen = true;
+    }
+
+    @Override
+    public void endElement(String namespaceURI, String localName, String qName) throws SAXException {
+        if (isStartTagOpen) {
+            write("/>");
+            isStartTagOpen = false;
+        } else {
+            write("</");
+            write(qName);
+            write('>');
+        }
+        namespaceSupport.popContext();
+    }
+
+    @Override
+    public void characters(char[] chars, int start, int length) throws SAXException {
+        closeStartTag();
+        writeEscaped(chars, start, length, false);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] chars, int start, int length) throws SAXException {
+        characters(chars, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        closeStartTag();
+        write("<?");
+        write(target);
+        if (data != null && data.length() > 0) {
+            write(' ');
+            write(data);
+        }
+        write("?>");
+    }
+
+    @Override
+    public void comment(char[] chars, int start, int length) throws SAXException {
+        closeStartTag();
+        write("<!--");
+        write(chars, start, length);
+        write("-->");
+    }
+
+    private void closeStartTag() {
+        if (isStartTagOpen) {
+            write('>');
+            isStartTagOpen = false;
+        }
+    }
+
+    private void declareNamespace(String prefix, String uri) {
+        final String currentURI = namespaceSupport.getURI(prefix);
+        if (! uri.equals(currentURI == null ? "" : currentURI)) {
+            namespaceSupport.declarePrefix(prefix, uri);
+            if (prefix.length() == 0) {
+                write(" xmlns=\"");
+            } else {
+                write(" xmlns:");
+                write(prefix);
+                write("=\"");
+            }
+            writeEscaped(uri, true);
+            write('"');
+        }
+    }
+
+    private static boolean isNamespaceAttribute(String qName) {
+        return qName.startsWith("xmlns") && (qName.length() == 5 || qName.charAt(5) == ':');
+    }
+
+    private void writeEscaped(String s, boolean isAttribute) {
+        final int length = s.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            final String escaped = escape(s.charAt(i), isAttribute);
+            if (escaped != null) {
+                write(s, start, i - start);
+                write(escaped);
+                start = i + 1;
+            }
+        }
+        write(s, start, length - start);
+    }
+
+    private void writeEscaped(char[] chars, int offset, int length, boolean isAttribute) {
+        final int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            final String escaped = escape(chars[i], isAttribute);
+            if (escaped != null) {
+                write(chars, start, i - start);
+                write(escaped);
+                start = i + 1;
+            }
+        }
+        write(chars, start, end - start);
+    }
+
+    // Return the escaped form of the given character, or null if it doesn't need escaping
+    private static String escape(char c, boolean isAttribute) {
+        if (c > '>')
+            return null;
+        switch (c) {
+            case '<': return "&lt;";
+            case '>': return "&gt;";
+            case '&': return "&amp;";
+            case '\r': return "&#xD;";
+            case '"': return isAttribute ? "&quot;" : null;
+            case '\n': return isAttribute ? "&#xA;" : null;
+            case '\t': return isAttribute ? "&#x9;" : null;
+            default:
+                if (c < ' ')
+                    throw new OXFException("Illegal character in XML 1.0 output: #x" + Integer.toHexString(c));
+                return null;
+        }
+    }
+
+    private void write(char c) {
+        if (bufferLength == BUFFER_SIZE)
+            flushFullBuffer();
+        buffer[bufferLength++] = c;
+    }
+
+    private void write(String s) {
+        write(s, 0, s.length());
+    }
+
+    private void write(String s, int start, int length) {
+        while (length > 0) {
+            if (bufferLength == BUFFER_SIZE)
+                flushFullBuffer();
+            final int count = Math.min(length, BUFFER_SIZE - bufferLength);
+            s.getChars(start, start + count, buffer, bufferLength);
+            bufferLength += count;
+            start += count;
+            length -= count;
+        }
+    }
+
+    private void write(char[] chars, int start, int length) {
+        while (length > 0) {
+            if (bufferLength == BUFFER_SIZE)
+                flushFullBuffer();
+            final int count = Math.min(length, BUFFER_SIZE - bufferLength);
+            System.arraycopy(chars, start, buffer, bufferLength, count);
+            bufferLength += count;
+            start += count;
+            length -= count;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (bufferLength > 0) {
+            writer.write(buffer, 0, bufferLength);
+            bufferLength = 0;
+        }
+    }
+
+    private void flushFullBuffer() {
+        try {
+            flushBuffer();
+        } catch (IOException e) {
+            throw new OXFException(e);
+        }
+    }
+}
@@ -59,6 +59,10 @@ import java.nio.charset.CoderResult;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class XMLUtils {
 
@@ -73,7 +77,23 @@ public class XMLUtils {
     private static final DocumentBuilderFactory documentBuilderFactory;
     private static Map<Thread, DocumentBuilder> documentBuilders = null;
 
-    private static Map<String, SAXParserFactory> parserFactories = new HashMap<String, SAXParserFactory>();
+    private static final ConcurrentMap<String, SAXParserFactory> parserFactories = new ConcurrentHashMap<String, SAXParserFactory>();
+
+    // Idle XMLReader instances by parser configuration key, reused by parsing methods of this class. Pools are bounded,
+    // and a reader is only reused for a limited number of parses, as Xerces keeps the names it has seen in its symbol
+    // table until the reader is discarded.
+    private static final int XML_READER_POOL_SIZE = 16;
+    private static final int XML_READER_MAX_PARSES = 100;
+    private static final ConcurrentMap<String, BlockingQueue<PooledXMLReader>> xmlReaderPools = new ConcurrentHashMap<String, BlockingQueue<PooledXMLReader>>();
+
+    private static class PooledXMLReader {
+        public final XMLReader xmlReader;
+        public int parseCount;
+
+        public PooledXMLReader(XMLReader xmlReader) {
+            this.xmlReader = xmlReader;
+        }
+    }
 
     public static final String XML_CONTENT_TYPE1 = "text/xml";
     public static final String XML_CONTENT_TYPE2 = "application/xml";
@@ -163,7 +183,7 @@ public class XMLUtils {
      * @param parserConfiguration  parser configuration
      * @return                     the SAXParserFactory
      */
-    public static synchronized SAXParserFactory getSAXParserFactory(XMLUtils.ParserConfiguration parserConfiguration) {
+    public static SAXParserFactory getSAXParserFactory(XMLUtils.ParserConfiguration parserConfiguration) {
 
         final String key = parserConfiguration.getKey();
 
@@ -171,9 +191,10 @@ public class XMLUtils {
         if (existingFactory != null)
             return existingFactory;
 
+        // Several threads may create a factory for the same key, but only one is kept
         final SAXParserFactory newFactory = createSAXParserFactory(parserConfiguration);
-        parserFactories.put(key, newFactory);
-        return newFactory;
+        final SAXParserFactory otherFactory = parserFactories.putIfAbsent(key, newFactory);
+        return (otherFactory != null) ? otherFactory : newFactory;
     }
 
     /**
@@ -182,7 +203,7 @@ public class XMLUtils {
      * @param parserConfiguration  parser configuration
      * @return                     the SAXParser
      */
-    public static synchronized SAXParser newSAXParser(XMLUtils.ParserConfiguration parserConfiguration) {
+    public static SAXParser newSAXParser(XMLUtils.ParserConfiguration parserConfiguration) {
         try {
             return getSAXParserFactory(parserConfiguration).newSAXParser();
         } catch (Exception e) {
@@ -202,6 +223,63 @@ public class XMLUtils {
         }
     }
 
+    /**
+     * Get an XMLReader, which must be given back with releaseXMLReader() once the parsing is done. Unlike
+     * newXMLReader(), this reuses idle XMLReader instances when possible.
+     *
+     * @param parserConfiguration  parser configuration
+     * @return                     the XMLReader
+     */
+    private static PooledXMLReader borrowXMLReader(XMLUtils.ParserConfiguration parserConfiguration) {
+        final BlockingQueue<PooledXMLReader> pool = xmlReaderPools.get(parserConfiguration.getKey());
+        final PooledXMLReader existingXMLReader = (pool != null) ? pool.poll() : null;
+        if (existingXMLReader != null)
+            return existingXMLReader;
+        else
+            return new PooledXMLReader(newXMLReader(parserConfiguration));
+    }
+
+    /**
+     * Give back an XMLReader obtained with borrowXMLReader(). This must be called only after a successful parsing: in
+     * case of error, the reader is just dropped. The reader is also dropped if it has been used for too many parses or
+     * if the pool is full.
+     *
+     * @param parserConfiguration  parser configuration used to get the reader
+     * @param pooledXMLReader      the XMLReader
+     */
+    private static void releaseXMLReader(XMLUtils.ParserConfiguration parserConfiguration, PooledXMLReader pooledXMLReader) {
+        if (++pooledXMLReader.parseCount >= XML_READER_MAX_PARSES)
+            return;
+
+        // Don't keep references to the handlers of the last parsing
+        final XMLReader xmlReader = pooledXMLReader.xmlReader;
+        try {
+            xmlReader.setContentHandler(NULL_CONTENT_HANDLER);
+            xmlReader.setProperty(XMLConstants.SAX_LEXICAL_HANDLER, null);
+            xmlReader.setEntityResolver(ENTITY_RESOLVER);
+            xmlReader.setErrorHandler(ERROR_HANDLER);
+        } catch (SAXException e) {
+            // Don't reuse the reader
+            return;
+        }
+
+        final String key = parserConfiguration.getKey();
+        BlockingQueue<PooledXMLReader> pool = xmlReaderPools.get(key);
+        if (pool == null) {
+            final BlockingQueue<PooledXMLReader> newPool = new ArrayBlockingQueue<PooledXMLReader>(XML_READER_POOL_SIZE);
+            final BlockingQueue<PooledXMLReader> existingPool = xmlReaderPools.putIfAbsent(key, newPool);
+            pool = (existingPool != null) ? existingPool : newPool;
+        }
+        pool.offer(pooledXMLReader);
+    }
+
+    /**
+     * Discard idle XMLReader instances, e.g. when the web application is destroyed.
+     */
+    public static void clearXMLReaders() {
+        xmlReaderPools.clear();
+    }
+
     public static String prefixFromQName(String qName) {
         final int colonIndex = qName.indexOf(':');
         return (colonIndex == -1) ? "" : qName.substring(0, colonIndex);
@@ -440,7 +518,8 @@ public class XMLUtils {
         }
 
         try {
-            final XMLReader xmlReader = newSAXParser(parserConfiguration).getXMLReader();
+            final PooledXMLReader pooledXMLReader = borrowXMLReader(parserConfiguration);
+            final XMLReader xmlReader = pooledXMLReader.xmlReader;
             xmlReader.setContentHandler(xmlReceiver);
             if (handleLexical)
                 xmlReader.setProperty(XMLConstants.SAX_LEXICAL_HANDLER, xmlReceiver);
@@ -448,6 +527,7 @@ public class XMLUtils {
             xmlReader.setEntityResolver(ENTITY_RESOLVER);
             xmlReader.setErrorHandler(ERROR_HANDLER);
             xmlReader.parse(inputSource);
+            releaseXMLReader(parserConfiguration, pooledXMLReader);
         } catch (SAXParseException e) {
             throw new ValidationException(e.getMessage(), new LocationData(e));
         } catch (Exception e) {
@@ -471,7 +551,8 @@ public class XMLUtils {
             return false;
 
         try {
-            final XMLReader xmlReader = newSAXParser(XMLUtils.ParserConfiguration.PLAIN).getXMLReader();
+            final PooledXMLReader pooledXMLReader = borrowXMLReader(XMLUtils.ParserConfiguration.PLAIN);
+            final XMLReader xmlReader = pooledXMLReader.xmlReader;
             xmlReader.setContentHandler(NULL_CONTENT_HANDLER);
             xmlReader.setEntityResolver(ENTITY_RESOLVER);
             xmlReader.setErrorHandler(new org.xml.sax.ErrorHandler() {
@@ -487,6 +568,7 @@ public class XMLUtils {
                 }
             });
             xmlReader.parse(new InputSource(new StringReader(xmlString)));
+            releaseXMLReader(XMLUtils.ParserConfiguration.PLAIN, pooledXMLReader);
             return true;
         } catch (Exception e) {
             // Ideally we would like the parser to not throw as this is time-consuming, but not sure how to achieve that
@@ -879,13 +961,15 @@ public class XMLUtils {
 
     public static void parseDocumentFragment(Reader reader, XMLReceiver xmlReceiver) throws SAXException {
         try {
-            final XMLReader xmlReader = newSAXParser(XMLUtils.ParserConfiguration.PLAIN).getXMLReader();
+            final PooledXMLReader pooledXMLReader = borrowXMLReader(XMLUtils.ParserConfiguration.PLAIN);
+            final XMLReader xmlReader = pooledXMLReader.xmlReader;
             xmlReader.setContentHandler(new XMLFragmentReceiver(xmlReceiver));
             final ArrayList<Reader> readers = new ArrayList<Reader>(3);
             readers.add(new StringReader("<root>"));
             readers.add(reader);
             readers.add(new StringReader("</root>"));
             xmlReader.parse(new InputSource(new SequenceReader(readers.iterator())));
+            releaseXMLReader(XMLUtils.ParserConfiguration.PLAIN, pooledXMLReader);
         } catch (IOException e) {
             throw new OXFException(e);
         }
@@ -894,9 +978,11 @@ public class XMLUtils {
     public static void parseDocumentFragment(String fragment, XMLReceiver xmlReceiver) throws SAXException {
         if (fragment.indexOf("<") != -1 || fragment.indexOf("&") != -1) {
             try {
-                final XMLReader xmlReader = newSAXParser(XMLUtils.ParserConfiguration.PLAIN).getXMLReader();
+                final PooledXMLReader pooledXMLReader = borrowXMLReader(XMLUtils.ParserConfiguration.PLAIN);
+                final XMLReader xmlReader = pooledXMLReader.xmlReader;
                 xmlReader.setContentHandler(new XMLFragmentReceiver(xmlReceiver));
                 xmlReader.parse(new InputSource(new StringReader("<root>" + fragment + "</root>")));
+                releaseXMLReader(XMLUtils.ParserConfiguration.PLAIN, pooledXMLReader);
             } catch (IOException e) {
                 throw new OXFException(e);
             }
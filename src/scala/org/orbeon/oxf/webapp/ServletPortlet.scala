@@ -18,6 +18,8 @@ import org.orbeon.oxf.webapp.ProcessorService._
 import org.orbeon.oxf.pipeline.api.{PipelineContext, ProcessorDefinition}
 import org.orbeon.oxf.common.OXFException
 import collection.JavaConverters._
+import org.orbeon.oxf.xforms.script.CoffeeScriptCache
+import org.orbeon.oxf.xml.XMLUtils
 
 // Servlet/portlet helper for processor definitions and services
 trait ServletPortlet {
@@ -37,6 +39,9 @@ trait ServletPortlet {
         _webAppContext = webAppContext
         _processorService = getProcessorService
 
+        // Compile CoffeeScript resources now rather than upon requests if needed
+        CoffeeScriptCache.prewarmIfNeeded()
+
         // Run listener if needed
         processor foreach { case (processorPrefix, inputPrefix) ⇒ runListenerProcessor(_, _) }
         logger.info(logPrefix + " initialized.")
@@ -49,6 +54,7 @@ trait ServletPortlet {
         logger.info(logPrefix + " destroyed.")
 
          // Clean-up
+        XMLUtils.clearXMLReaders()
         _processorService.destroy()
         _processorService = null
         _webAppContext = null
@@ -14,40 +14,75 @@
 package org.orbeon.oxf.xforms
 
 import org.apache.commons.pool.PoolableObjectFactory
+import org.orbeon.oxf.common.OXFException
 import org.orbeon.oxf.util._
-import java.io.ByteArrayInputStream
+import collection.mutable.ArrayBuffer
 import java.io.ByteArrayOutputStream
 import java.io.OutputStream
+import java.util.concurrent._
+import java.util.zip.CRC32
+import java.util.zip.DataFormatException
 import java.util.zip.Deflater
-import java.util.zip.GZIPInputStream
 import java.util.zip.GZIPOutputStream
+import java.util.zip.Inflater
 
 object XFormsCompressor {
 
-    // Use a Deflater pool as creating deflaters is expensive
+    // Use Deflater and Inflater pools as creating them is expensive
     private val deflaterPool = new SoftReferenceObjectPool(new DeflaterPoolableObjectFactory)
+    private val inflaterPool = new SoftReferenceObjectPool(new InflaterPoolableObjectFactory)
 
     private val BUFFER_SIZE = 1024 * 8
     private val TRAILER_SIZE = 8
 
-    def compressBytes(bytesToEncode: Array[Byte], level: Int) = {
-        val deflater = deflaterPool.borrowObject.asInstanceOf[Deflater]
-        deflater.setLevel(level)
-        try {
-            val os = new ByteArrayOutputStream
-            val gzipOS = new DeflaterGZIPOutputStream(deflater, os, BUFFER_SIZE)
-            gzipOS.write(bytesToEncode)
-            gzipOS.close()
+    // Threads compressing blocks in parallel
+    private lazy val blockCompressorExecutor =
+        Executors.newFixedThreadPool(Runtime.getRuntime.availableProcessors, new ThreadFactory {
+            def newThread(runnable: Runnable) = {
+                val thread = new Thread(runnable, "XFormsCompressor")
+                thread.setDaemon(true)
+                thread
+            }
+        })
 
-            os.toByteArray
-        } finally {
-            deflaterPool.returnObject(deflater)
-        }
+    // Compress content written by the given function, without first producing the uncompressed bytes
+    //
+    // If parallelBlockSize is greater than 0, content larger than parallelBlockSize is split into blocks of that size,
+    // and blocks are compressed by other threads while content is being written. The result is a sequence of GZIP
+    // members, which standard GZIP decoders as well as uncompressBytes() handle.
+    def compressStreamWith(level: Int, parallelBlockSize: Int)(write: OutputStream ⇒ Unit): Array[Byte] = {
+        val os = new ByteArrayOutputStream(BUFFER_SIZE)
+        if (parallelBlockSize > 0) {
+            val parallelOS = new ParallelGZIPOutputStream(level, parallelBlockSize, os)
+            try {
+                write(parallelOS)
+                parallelOS.close()
+            } catch {
+                case e ⇒
+                    // Don't keep compressing blocks nobody will read
+                    parallelOS.cancel()
+                    throw e
+            }
+        } else
+            withDeflater(level) { deflater ⇒
+                val gzipOS = new DeflaterGZIPOutputStream(deflater, os, BUFFER_SIZE)
+                write(gzipOS)
+                gzipOS.close()
+            }
+
+        os.toByteArray
     }
 
     // Compress using BEST_SPEED as serializing state quickly has been determined to be more important than saving extra
     // memory. Even this way compression typically is more than 10X.
-    def compressBytes(bytesToEncode: Array[Byte]): Array[Byte] = compressBytes(bytesToEncode, Deflater.BEST_SPEED)
+    def compressStream(write: OutputStream ⇒ Unit): Array[Byte] =
+        compressStreamWith(Deflater.BEST_SPEED, XFormsProperties.getGZIPStateParallelBlockSize)(write)
+
+    def compressBytes(bytesToEncode: Array[Byte], level: Int) =
+        compressStreamWith(level, 0)(_.write(bytesToEncode))
+
+    def compressBytes(bytesToEncode: Array[Byte]): Array[Byte] =
+        compressStream(_.write(bytesToEncode))
 
     // Example of effective compression ratios and speeds for XML inputs:
     //
@@ -68,6 +103,8 @@ object XFormsCompressor {
     //   955,373 |      12 |      31 |         108
     //   511,776 |       6 |      13 |          42
     //   178,796 |       2 |       5 |          12
+    //
+    // Call compressBytesMeasurePerformance() to reproduce these figures, as well as figures for parallel compression.
 
     def compressBytesMeasurePerformance(bytesToEncode: Array[Byte]): Array[Byte] = {
 
@@ -77,21 +114,231 @@ object XFormsCompressor {
             (Deflater.BEST_COMPRESSION → "BEST_COMPRESSION")
         )
 
-        for ((level, description) ← settings) {
-            XFormsUtils.indentedLogger.startHandleOperation("compressor", description)
-            for (v ← (1 to 100))
-                compressBytes(bytesToEncode, level)
-            XFormsUtils.indentedLogger.endHandleOperation()
+        def measure(description: String, iterations: Int)(compress: ⇒ Array[Byte]) {
+            // Warm up so that measurements don't include JIT compilation
+            for (v ← (1 to iterations / 10))
+                compress
+
+            XFormsUtils.indentedLogger.startHandleOperation("compressor", description, "input size", bytesToEncode.length.toString)
+            var compressedSize = 0
+            for (v ← (1 to iterations))
+                compressedSize = compress.length
+            XFormsUtils.indentedLogger.endHandleOperation("compressed size", compressedSize.toString, "iterations", iterations.toString)
         }
 
+        for ((level, description) ← settings)
+            measure(description, 100)(compressBytes(bytesToEncode, level))
+
+        for (blockSize ← Seq(64 * 1024, 128 * 1024, 256 * 1024))
+            measure("BEST_SPEED parallel " + blockSize, 100)(compressStreamWith(Deflater.BEST_SPEED, blockSize)(_.write(bytesToEncode)))
+
+        measure("uncompress", 100)(uncompressBytes(compressBytes(bytesToEncode, Deflater.BEST_SPEED)))
+
         compressBytes(bytesToEncode, Deflater.BEST_SPEED)
     }
 
-    def uncompressBytes(bytesToDecode: Array[Byte]) = {
-        val is = new GZIPInputStream(new ByteArrayInputStream(bytesToDecode))
-        val os = new ByteArrayOutputStream(BUFFER_SIZE)
-        NetUtils.copyStream(is, os)
-        os.toByteArray
+    // Uncompress one or more concatenated GZIP members
+    def uncompressBytes(bytesToDecode: Array[Byte]): Array[Byte] = {
+
+        def readInt(offset: Int) =
+            (bytesToDecode(offset) & 0xff) |
+            ((bytesToDecode(offset + 1) & 0xff) << 8) |
+            ((bytesToDecode(offset + 2) & 0xff) << 16) |
+            ((bytesToDecode(offset + 3) & 0xff) << 24)
+
+        if (bytesToDecode.length < 10 + TRAILER_SIZE)
+            throw new OXFException("Invalid compressed data")
+
+        // The last trailer holds the size of the last member, which is the size of the whole content unless blocks were
+        // compressed in parallel. Don't trust sizes beyond the maximum deflate ratio.
+        val lastMemberSize = readInt(bytesToDecode.length - 4)
+        val initialSize = if (lastMemberSize >= 0 && lastMemberSize / 1032 <= bytesToDecode.length) lastMemberSize else BUFFER_SIZE
+        var result = new Array[Byte](initialSize)
+        var resultLength = 0
+
+        def growResult() {
+            val newResult = new Array[Byte](math.max(result.length * 3 / 2, result.length + BUFFER_SIZE))
+            System.arraycopy(result, 0, newResult, 0, resultLength)
+            result = newResult
+        }
+
+        withInflater { inflater ⇒
+            val crc = new CRC32
+            var memberStart = 0
+            while (memberStart < bytesToDecode.length) {
+                val dataStart = skipHeader(bytesToDecode, memberStart)
+                val memberResultStart = resultLength
+
+                inflater.reset()
+                inflater.setInput(bytesToDecode, dataStart, bytesToDecode.length - dataStart)
+                while (! inflater.finished) {
+                    if (resultLength == result.length)
+                        growResult()
+
+                    val count =
+                        try inflater.inflate(result, resultLength, result.length - resultLength)
+                        catch { case e: DataFormatException ⇒ throw new OXFException(e) }
+                    if (count == 0 && (inflater.needsInput || inflater.needsDictionary))
+                        throw new OXFException("Truncated compressed data")
+
+                    resultLength += count
+                }
+
+                // Check trailer
+                val trailerStart = bytesToDecode.length - inflater.getRemaining
+                if (trailerStart + TRAILER_SIZE > bytesToDecode.length)
+                    throw new OXFException("Truncated compressed data")
+
+                crc.reset()
+                crc.update(result, memberResultStart, resultLength - memberResultStart)
+                if (readInt(trailerStart) != crc.getValue.toInt || readInt(trailerStart + 4) != resultLength - memberResultStart)
+                    throw new OXFException("Corrupted compressed data")
+
+                memberStart = trailerStart + TRAILER_SIZE
+            }
+        }
+
+        if (resultLength == result.length)
+            result
+        else {
+            val trimmedResult = new Array[Byte](resultLength)
+            System.arraycopy(result, 0, trimmedResult, 0, resultLength)
+            trimmedResult
+        }
+    }
+
+    // Return the position of the compressed data following the GZIP header at the given position
+    private def skipHeader(bytes: Array[Byte], start: Int) = {
+
+        val FHCRC = 2
+        val FEXTRA = 4
+        val FNAME = 8
+        val FCOMMENT = 16
+
+        def byteAt(position: Int) =
+            if (position < bytes.length)
+                bytes(position) & 0xff
+            else
+                throw new OXFException("Truncated compressed data")
+
+        def skipZeroTerminated(position: Int) = {
+            var current = position
+            while (byteAt(current) != 0)
+                current += 1
+            current + 1
+        }
+
+        if (byteAt(start) != 0x1f || byteAt(start + 1) != 0x8b || byteAt(start + 2) != Deflater.DEFLATED)
+            throw new OXFException("Invalid compressed data")
+
+        val flags = byteAt(start + 3)
+        var position = start + 10
+        if ((flags & FEXTRA) != 0)
+            position += 2 + (byteAt(position) | (byteAt(position + 1) << 8))
+        if ((flags & FNAME) != 0)
+            position = skipZeroTerminated(position)
+        if ((flags & FCOMMENT) != 0)
+            position = skipZeroTerminated(position)
+        if ((flags & FHCRC) != 0)
+            position += 2
+
+        position
+    }
+
+    private def withDeflater[T](level: Int)(body: Deflater ⇒ T): T = {
+        val deflater = deflaterPool.borrowObject.asInstanceOf[Deflater]
+        deflater.setLevel(level)
+        try body(deflater)
+        finally deflaterPool.returnObject(deflater)
+    }
+
+    private def withInflater[T](body: Inflater ⇒ T): T = {
+        val inflater = inflaterPool.borrowObject.asInstanceOf[Inflater]
+        try body(inflater)
+        finally inflaterPool.returnObject(inflater)
+    }
+
+    // Compress a block to a standalone GZIP member
+    private def compressBlock(bytes: Array[Byte], length: Int, level: Int) =
+        withDeflater(level) { deflater ⇒
+            val os = new ByteArrayOutputStream(length / 4)
+            val gzipOS = new DeflaterGZIPOutputStream(deflater, os, BUFFER_SIZE)
+            gzipOS.write(bytes, 0, length)
+            gzipOS.close()
+            os.toByteArray
+        }
+
+    // Stream which compresses each full block in the background, and the last block in the current thread
+    private[xforms] class ParallelGZIPOutputStream(level: Int, blockSize: Int, out: OutputStream) extends OutputStream {
+
+        private val compressedBlocks = ArrayBuffer[Future[Array[Byte]]]()
+        private var block = new Array[Byte](blockSize)
+        private var position = 0
+
+        // Blocks whose compression is done, which are reused for the following blocks
+        private val freeBlocks = new ConcurrentLinkedQueue[Array[Byte]]
+        private var allocatedBlockCount = 1
+
+        def write(b: Int) {
+            if (position == blockSize)
+                submitBlock()
+
+            block(position) = b.asInstanceOf[Byte]
+            position += 1
+        }
+
+        override def write(b: Array[Byte], offset: Int, length: Int) {
+            var currentOffset = offset
+            var remaining = length
+            while (remaining > 0) {
+                if (position == blockSize)
+                    submitBlock()
+
+                val count = math.min(remaining, blockSize - position)
+                System.arraycopy(b, currentOffset, block, position, count)
+                position += count
+                currentOffset += count
+                remaining -= count
+            }
+        }
+
+        private def submitBlock() {
+            val blockToCompress = block
+            compressedBlocks += blockCompressorExecutor.submit(new Callable[Array[Byte]] {
+                def call =
+                    try compressBlock(blockToCompress, blockSize, level)
+                    finally freeBlocks.offer(blockToCompress)
+            })
+
+            block = Option(freeBlocks.poll) getOrElse {
+                allocatedBlockCount += 1
+                new Array[Byte](blockSize)
+            }
+            position = 0
+        }
+
+        override def close() {
+            // Small content is compressed to a single member
+            val lastCompressedBlock =
+                if (position > 0 || compressedBlocks.isEmpty) Some(compressBlock(block, position, level)) else None
+
+            try {
+                for (compressedBlock ← compressedBlocks)
+                    out.write(compressedBlock.get)
+            } catch {
+                case e: ExecutionException ⇒ throw new OXFException(e.getCause)
+            }
+
+            lastCompressedBlock foreach (out.write(_))
+        }
+
+        // Cancel the compression of blocks not yet compressed
+        def cancel(): Unit =
+            compressedBlocks foreach (_.cancel(false))
+
+        // For tests only
+        def blocksDone = compressedBlocks forall (_.isDone)
+        def allocatedBlocks = allocatedBlockCount
     }
 
     private class DeflaterPoolableObjectFactory extends PoolableObjectFactory {
@@ -114,6 +361,26 @@ object XFormsCompressor {
         }
     }
 
+    private class InflaterPoolableObjectFactory extends PoolableObjectFactory {
+
+        def makeObject = {
+            XFormsUtils.indentedLogger.logDebug("compressor", "creating new Inflater")
+            // Headers and trailers are handled by uncompressBytes()
+            new Inflater(true)
+        }
+
+        def destroyObject(o: AnyRef) = ()
+        def validateObject(o: AnyRef) = true
+        def activateObject(o: AnyRef) = ()
+        def passivateObject(o: AnyRef) {
+            try {
+                o.asInstanceOf[Inflater].reset()
+            } catch {
+                case e ⇒ XFormsUtils.indentedLogger.logError("compressor", "exception while passivating Inflater", e)
+            }
+        }
+    }
+
     // GZIPOutputStream which uses a custom Deflater
     private class DeflaterGZIPOutputStream(deflater: Deflater, out: OutputStream, size: Int) extends GZIPOutputStream(out, size) {
 
@@ -33,6 +33,7 @@ import org.orbeon.oxf.common.OXFException
 import state.InstanceState
 import org.orbeon.oxf.xforms.XFormsServerSharedInstancesCache.Loader
 import java.util.{List ⇒ JList}
+import java.util.concurrent.atomic.AtomicLong
 import org.orbeon.saxon.om.{VirtualNode, DocumentInfo, Item}
 import org.orbeon.oxf.util._
 
@@ -102,10 +103,18 @@ class XFormsInstance(
     def readonly = _readonly
     def modified = _modified
 
+    // Stamp unique across instances, changed whenever the instance is modified
+    // This is used so that a state store can tell whether the instance changed since it last stored it
+    private var _stamp = XFormsInstance.nextStamp()
+    def stamp = _stamp
+
     // Mark the instance as modified
     // This is used so we can optimize serialization: if an instance is inline and not modified, we don't need to
     // serialize its content
-    def markModified() = _modified = true
+    def markModified() = {
+        _modified = true
+        _stamp = XFormsInstance.nextStamp()
+    }
 
     // Update the instance upon submission with instance replacement
     def update(instanceCaching: Option[InstanceCaching], documentInfo: DocumentInfo, readonly: Boolean): Unit = {
@@ -284,6 +293,9 @@ class XFormsInstance(
 
 object XFormsInstance {
 
+    private val stamps = new AtomicLong
+    private def nextStamp() = stamps.incrementAndGet()
+
     // Create an initial instance without caching information
     def apply(model: XFormsModel, instance: Instance, documentInfo: DocumentInfo) =
         new XFormsInstance(
@@ -14,8 +14,9 @@
 package org.orbeon.oxf.xforms
 
 import analysis.model.Instance
-import org.orbeon.oxf.cache.InternalCacheKey
-import org.orbeon.oxf.cache.ObjectCache
+import java.util.concurrent.{TimeoutException, ExecutionException, Callable, FutureTask, ConcurrentHashMap}
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import org.orbeon.oxf.cache.{CacheUtils, Weighable, InternalCacheKey, ObjectCache}
 import org.orbeon.oxf.util.IndentedLogger
 import org.orbeon.oxf.util.DebugLogger._
 import org.orbeon.saxon.om.{VirtualNode, DocumentInfo}
@@ -23,11 +24,19 @@ import XFormsInstance._
 
 /**
  * Cache for shared and immutable XForms instances.
+ *
+ * The cache is bounded in number of entries and in megabytes with the oxf.xforms.cache.shared-instances.size and
+ * oxf.xforms.cache.shared-instances.max-megabytes properties.
+ *
+ * Concurrent requests for an instance which is not in cache, or expired, share a single load. They wait for it at most
+ * for the time set by the oxf.xforms.cache.shared-instances.load-wait-timeout property. With the
+ * oxf.xforms.cache.shared-instances.refresh-ahead property, an instance which is about to expire is reloaded by one
+ * request while other requests keep using the cached instance.
  */
 object XFormsServerSharedInstancesCache {
 
     private val XFormsSharedInstancesCacheName = "xforms.cache.shared-instances"
-    private val XFormsSharedInstancesCacheDefaultSize = 10
+    private val XFormsSharedInstancesCacheDefaultSize = 1000
     private val ConstantValidity = 0L
     private val SharedInstanceKeyType = XFormsSharedInstancesCacheName
 
@@ -37,7 +46,17 @@ object XFormsServerSharedInstancesCache {
     }
 
     private case class InstanceContent(documentInfo: DocumentInfo) { require(! documentInfo.isInstanceOf[VirtualNode]) }
-    private case class CacheEntry(instanceContent: InstanceContent, timeToLive: Long, timestamp: Long = System.currentTimeMillis)
+    private case class CacheEntry(instanceContent: InstanceContent, timeToLive: Long, timestamp: Long = System.currentTimeMillis) extends Weighable {
+        def isExpired(now: Long) = timeToLive >= 0 && timestamp + timeToLive < now
+        def isRefreshDue(now: Long, refreshAhead: Long) = refreshAhead > 0 && timeToLive >= 0 && timestamp + timeToLive - refreshAhead < now
+        def getApproximateSize = CacheUtils.getApproximateSize(instanceContent.documentInfo)
+    }
+
+    // Load in progress, by cache key
+    private case class Load(thread: Thread, task: FutureTask[DocumentInfo])
+    private val loadsInProgress = new ConcurrentHashMap[String, Load]
+
+    private def cache = ObjectCache.instance(XFormsSharedInstancesCacheName, XFormsSharedInstancesCacheDefaultSize)
 
     // Try to find instance content in the cache but do not attempt to load it if not found
     def findContentOrNull(
@@ -45,7 +64,8 @@ object XFormsServerSharedInstancesCache {
             instance: Instance,
             instanceCaching: InstanceCaching,
             readonly: Boolean) =
-        find(instanceCaching)(indentedLogger) map (wrapDocumentInfo(_, readonly, instance.exposeXPathTypes)) orNull
+        findEntry(instanceCaching)(indentedLogger) filterNot (_.isExpired(System.currentTimeMillis)) map
+            (entry ⇒ wrapDocumentInfo(entry.instanceContent.documentInfo, readonly, instance.exposeXPathTypes)) orNull
 
     // Try to find instance content in the cache or load it
     def findContentOrLoad(
@@ -55,38 +75,102 @@ object XFormsServerSharedInstancesCache {
             readonly: Boolean,
             loader: Loader) = {
 
-        implicit val logger = indentedLogger
+        val documentInfo =
+            findOrLoad(instanceCaching, loader, XFormsProperties.getSharedInstancesRefreshAhead, XFormsProperties.getSharedInstancesLoadWaitTimeout)(indentedLogger)
 
-        // Add an entry to the cache
-        def add(instanceContent: InstanceContent, timeToLive: Long) = {
-
-            debug("adding instance", instanceCaching.debugPairs)
+        wrapDocumentInfo(documentInfo, readonly, instance.exposeXPathTypes)
+    }
 
-            val cache = ObjectCache.instance(XFormsSharedInstancesCacheName, XFormsSharedInstancesCacheDefaultSize)
-            val cacheKey = createCacheKey(instanceCaching)
+    // Find instance content in the cache or load it, given the refresh-ahead time and the load wait timeout in ms
+    private[xforms] def findOrLoad(
+            instanceCaching: InstanceCaching,
+            loader: Loader,
+            refreshAhead: Long,
+            loadWaitTimeout: Long)(implicit logger: IndentedLogger): DocumentInfo = {
 
-            cache.add(cacheKey, ConstantValidity, CacheEntry(instanceContent, timeToLive))
-        }
+        val keyString = createKeyString(instanceCaching.sourceURI, instanceCaching.handleXInclude, instanceCaching.requestBodyHash)
 
         // Load and cache new instance content
         def loadAndCache() = {
-            // Note that this method is not synchronized. Scenario: if the method is synchronized, the resource URI may
-            // reach an XForms page which itself needs to load a shared resource. The result would be a deadlock.
-            // Without synchronization, what can happen is that two concurrent requests load the same URI at the same
-            // time. In the worst case scenario, the results will be different, and the two requesting XForms instances
-            // will be different. The instance that is retrieved first will be stored in the cache for a very short
-            // amount of time, and the one retrieved last will win and be stored in the cache for a longer time.
             debug("loading instance into cache", instanceCaching.debugPairs)
 
             val instanceContent = loader.load(instanceCaching.sourceURI, instanceCaching.handleXInclude)
             // NOTE: load() must always returns a TinyTree because we don't want to put in cache a mutable document
             assert(! instanceContent.isInstanceOf[VirtualNode], "load() must return a TinyTree")
 
-            add(InstanceContent(instanceContent), instanceCaching.timeToLive)
-            Some(instanceContent)
+            debug("adding instance", instanceCaching.debugPairs)
+            cache.add(new InternalCacheKey(SharedInstanceKeyType, keyString), ConstantValidity, CacheEntry(InstanceContent(instanceContent), instanceCaching.timeToLive))
+
+            instanceContent
         }
 
-        find(instanceCaching) orElse loadAndCache map (wrapDocumentInfo(_, readonly, instance.exposeXPathTypes)) get
+        // Load unless another request is already loading the same instance, and return the load in progress if any
+        def startLoad(): Either[DocumentInfo, Load] = {
+            val load = Load(Thread.currentThread, new FutureTask(new Callable[DocumentInfo] { def call() = loadAndCache() }))
+            Option(loadsInProgress.putIfAbsent(keyString, load)) match {
+                case Some(otherLoad) ⇒
+                    Right(otherLoad)
+                case None ⇒
+                    try {
+                        load.task.run()
+                        Left(result(load.task.get))
+                    } finally
+                        loadsInProgress.remove(keyString, load)
+            }
+        }
+
+        // Load or wait for another request loading the same instance
+        // NOTE: Loading is not synchronized globally. Scenario: the resource URI may reach an XForms page which itself
+        // needs to load the same shared instance. Waiting indefinitely for the first load would then be a deadlock. So
+        // the second request only waits for a limited time, and never if the load runs in the same thread. After that,
+        // it uses the expired instance if any, so that a slow load doesn't cause all waiting requests to load the
+        // instance, or else it loads the instance itself.
+        def loadOrWait(expiredEntry: Option[CacheEntry]) =
+            startLoad() match {
+                case Left(documentInfo) ⇒
+                    documentInfo
+                case Right(Load(thread, _)) if thread eq Thread.currentThread ⇒
+                    loadAndCache()
+                case Right(Load(_, task)) ⇒
+                    debug("waiting for instance being loaded", instanceCaching.debugPairs)
+                    try result(task.get(loadWaitTimeout, MILLISECONDS))
+                    catch {
+                        case e: TimeoutException ⇒
+                            expiredEntry match {
+                                case Some(entry) ⇒
+                                    debug("timeout waiting for instance being loaded, using expired instance", instanceCaching.debugPairs)
+                                    entry.instanceContent.documentInfo
+                                case None ⇒
+                                    debug("timeout waiting for instance being loaded, loading instance", instanceCaching.debugPairs)
+                                    loadAndCache()
+                            }
+                    }
+            }
+
+        // Reload an instance about to expire, unless another request is already doing so
+        // NOTE: If the reload fails, the cached instance is still valid and is used.
+        def refresh(entry: CacheEntry) =
+            try {
+                startLoad().left getOrElse entry.instanceContent.documentInfo
+            } catch {
+                case e: Exception ⇒
+                    warn("failed to refresh instance, using cached instance", instanceCaching.debugPairs :+ ("message" → e.getMessage))
+                    entry.instanceContent.documentInfo
+            }
+
+        val now = System.currentTimeMillis
+        findEntry(instanceCaching) match {
+            case Some(entry) if entry.isExpired(now) ⇒
+                debug("cached instance expired", instanceCaching.debugPairs)
+                loadOrWait(Some(entry))
+            case Some(entry) if entry.isRefreshDue(now, refreshAhead) ⇒
+                debug("refreshing cached instance", instanceCaching.debugPairs)
+                refresh(entry)
+            case Some(entry) ⇒
+                entry.instanceContent.documentInfo
+            case None ⇒
+                loadOrWait(None)
+        }
     }
 
     // Remove the given entry from the cache if present
@@ -94,39 +178,29 @@ object XFormsServerSharedInstancesCache {
         implicit val logger = indentedLogger
         debug("removing instance", Seq("URI" → instanceSourceURI, "request hash" → requestBodyHash))
 
-        val cache = ObjectCache.instance(XFormsSharedInstancesCacheName, XFormsSharedInstancesCacheDefaultSize)
         val cacheKey = createCacheKey(instanceSourceURI, handleXInclude, Option(requestBodyHash))
         cache.remove(cacheKey)
     }
 
     // Empty the cache
     def removeAll(indentedLogger: IndentedLogger): Unit = {
-        val cache = ObjectCache.instance(XFormsSharedInstancesCacheName, XFormsSharedInstancesCacheDefaultSize)
         val count = cache.removeAll()
 
         implicit val logger = indentedLogger
         debug("removed all instances", Seq("count" → count.toString))
     }
 
-    // Find instance content in cache
-    private def find(instanceCaching: InstanceCaching)(implicit logger: IndentedLogger) = {
+    // Find a cache entry, including an expired one, which is kept until it is replaced as it can still be used while
+    // the instance is being loaded again
+    private def findEntry(instanceCaching: InstanceCaching)(implicit logger: IndentedLogger) = {
 
-        val cache = ObjectCache.instance(XFormsSharedInstancesCacheName, XFormsSharedInstancesCacheDefaultSize)
         val cacheKey = createCacheKey(instanceCaching)
 
-        def isExpired(cacheEntry: CacheEntry) =
-            cacheEntry.timeToLive >= 0 && ((cacheEntry.timestamp + cacheEntry.timeToLive) < System.currentTimeMillis)
-
         Option(cache.findValid(cacheKey, ConstantValidity).asInstanceOf[CacheEntry]) match {
-            case Some(cacheEntry) if isExpired(cacheEntry) ⇒
-                // Remove expired entry
-                debug("expiring cached instance", instanceCaching.debugPairs)
-                cache.remove(cacheKey)
-                None
             case Some(cacheEntry) ⇒
                 // Instance was found
                 debug("found cached instance", instanceCaching.debugPairs)
-                Some(cacheEntry.instanceContent.documentInfo)
+                Some(cacheEntry)
             case _ ⇒
                 // Not found
                 debug("cached instance not found", instanceCaching.debugPairs)
@@ -134,11 +208,20 @@ object XFormsServerSharedInstancesCache {
         }
     }
 
+    // Result of a load, with the original exception if the load failed
+    private def result(get: ⇒ DocumentInfo) =
+        try get
+        catch {
+            case e: ExecutionException ⇒ throw e.getCause
+        }
+
     // Make key also depend on handleXInclude and on request body hash if present
     private def createCacheKey(instanceCaching: InstanceCaching): InternalCacheKey =
         createCacheKey(instanceCaching.sourceURI, instanceCaching.handleXInclude, instanceCaching.requestBodyHash)
 
     private def createCacheKey(sourceURI: String, handleXInclude: Boolean, requestBodyHash: Option[String]): InternalCacheKey =
-        new InternalCacheKey(SharedInstanceKeyType,
-            sourceURI + "|" + handleXInclude.toString + (requestBodyHash map ('|' + _) getOrElse ""))
-}
\ No newline at end of file
+        new InternalCacheKey(SharedInstanceKeyType, createKeyString(sourceURI, handleXInclude, requestBodyHash))
+
+    private def createKeyString(sourceURI: String, handleXInclude: Boolean, requestBodyHash: Option[String]) =
+        sourceURI + "|" + handleXInclude.toString + (requestBodyHash map ('|' + _) getOrElse "")
+}
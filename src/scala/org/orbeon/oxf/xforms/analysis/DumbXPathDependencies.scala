@@ -17,6 +17,7 @@ import org.orbeon.oxf.xforms.XFormsInstance
 import org.orbeon.oxf.xforms.XFormsModel
 import org.orbeon.oxf.xforms.analysis.model.Model
 import org.orbeon.saxon.om.NodeInfo
+import java.util.{List ⇒ JList}
 
 /**
  * This implementation of dependencies simply says that everything must be updated all the time.
@@ -24,6 +25,7 @@ import org.orbeon.saxon.om.NodeInfo
 class DumbXPathDependencies extends XPathDependencies {
     def markValueChanged(model: XFormsModel, nodeInfo: NodeInfo) = ()
     def markStructuralChange(model: XFormsModel, instance: XFormsInstance) = ()
+    def markStructuralChange(model: XFormsModel, instance: XFormsInstance, parents: JList[NodeInfo], nodes: JList[NodeInfo]) = ()
     def rebuildDone(model: Model) = ()
     def recalculateDone(model: Model) = ()
     def revalidateDone(model: Model) = ()
@@ -19,10 +19,11 @@ import org.orbeon.oxf.xforms._
 import analysis.controls._
 import org.w3c.dom.Node._
 import org.orbeon.oxf.common.OXFException
-import java.util.{Map ⇒ JMap}
+import java.util.{Map ⇒ JMap, List ⇒ JList}
 import java.lang.String
 import collection.immutable.Nil
-import org.orbeon.saxon.om.{VirtualNode, NodeInfo}
+import org.orbeon.saxon.om.{Axis, VirtualNode, NodeInfo}
+import collection.JavaConverters._
 
 class PathMapXPathDependencies(private val containingDocument: XFormsContainingDocument) extends XPathDependencies {
 
@@ -35,6 +36,7 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
     private class ModelState(private val modelPrefixedId: String) {
 
         var hasStructuralChanges = false
+        var hasSubtreeChanges = false
 
         var useCalculateChangeset = false   // start dirty
         var useValidateChangeset = false    // start dirty
@@ -51,30 +53,76 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
                 // Create instance/path combo
                 val instance = containingDocument.getInstanceForNode(node)
 
-                val instancePrefixedId = instance.getPrefixedId
+                addAncestorOrSelfPaths(instance.getPrefixedId, node)
+            }
+        }
 
-                def processNode(n: NodeInfo) {
-                    val path = PathMapXPathDependencies.createFingerprintedPath(n)
+        private def addPath(instancePrefixedId: String, path: String) {
+            val instancePath = instancePrefixedId → path
 
-                    val instancePath = instancePrefixedId → path
+            // Update model and view changesets
+            recalculateChangeset += instancePath
+            if (revalidateChangeset ne recalculateChangeset)
+                revalidateChangeset += instancePath // also add to revalidate changeset
 
-                    // Update model and view changesets
-                    recalculateChangeset += instancePath
-                    if (revalidateChangeset ne recalculateChangeset)
-                        revalidateChangeset += instancePath // also add to revalidate changeset
+            RefreshState.changeset += instancePath
+        }
 
-                    RefreshState.changeset += instancePath
+        private def addAncestorOrSelfPaths(instancePrefixedId: String, node: NodeInfo) {
+            addPath(instancePrefixedId, PathMapXPathDependencies.createFingerprintedPath(node))
 
-                    // Add parent elements as well. The idea is that if the string value of /a/b/c changed, then the
-                    // string value of /a/b did as well, and so did /a's.
-                    // This adds more entries to the changeset, but handles cases such as detecting changes impacting
-                    // the string() or serialize() functions.
-                    val parent = n.getParent
-                    if ((parent ne null) && parent.getNodeKind == org.w3c.dom.Node.ELEMENT_NODE)
-                        processNode(parent)
-                }
+            // Add parent elements as well. The idea is that if the string value of /a/b/c changed, then the
+            // string value of /a/b did as well, and so did /a's.
+            // This adds more entries to the changeset, but handles cases such as detecting changes impacting
+            // the string() or serialize() functions.
+            val parent = node.getParent
+            if ((parent ne null) && parent.getNodeKind == ELEMENT_NODE)
+                addAncestorOrSelfPaths(instancePrefixedId, parent)
+        }
+
+        // Add the paths of a subtree, which doesn't need to be attached to the parent path anymore
+        private def addSubtreePaths(instancePrefixedId: String, parentPath: String, node: NodeInfo) {
+
+            def step(n: NodeInfo) = n.getNodeKind match {
+                case ELEMENT_NODE ⇒ Some(n.getFingerprint.toString)
+                case ATTRIBUTE_NODE ⇒ Some("@" + n.getFingerprint)
+                case _ ⇒ None
+            }
+
+            for (nodeStep ← step(node)) {
+                val path = if (parentPath.isEmpty) nodeStep else parentPath + "/" + nodeStep
+                addPath(instancePrefixedId, path)
+
+                if (node.getNodeKind == ELEMENT_NODE)
+                    for (axis ← Seq(Axis.ATTRIBUTE, Axis.CHILD)) {
+                        val iterator = node.iterateAxis(axis)
+                        var child = iterator.next().asInstanceOf[NodeInfo]
+                        while (child ne null) {
+                            addSubtreePaths(instancePrefixedId, path, child)
+                            child = iterator.next().asInstanceOf[NodeInfo]
+                        }
+                    }
+            }
+        }
+
+        // Nodes were inserted into or deleted from the given parents. Instead of considering that all the binds of
+        // the model are out of date, consider that the values of the subtrees and of their ancestors have changed.
+        // Binds depending on those paths are then evaluated again, and bind nodes created for the new nodes are
+        // evaluated upon rebuild.
+        def markSubtreesChanged(instance: XFormsInstance, parents: Seq[NodeInfo], nodes: Seq[NodeInfo]) {
+
+            RefreshState.structuralChangeModels += modelPrefixedId
+
+            if (parents exists (parent ⇒ (parent eq null) || parent.getNodeKind != ELEMENT_NODE))
+                markStructuralChange() // e.g. root element replaced
+            else if (!hasStructuralChanges) {
+                hasSubtreeChanges = true
 
-                processNode(node)
+                val instancePrefixedId = instance.getPrefixedId
+                for ((parent, node) ← parents zip nodes) {
+                    addAncestorOrSelfPaths(instancePrefixedId, parent)
+                    addSubtreePaths(instancePrefixedId, PathMapXPathDependencies.createFingerprintedPath(parent), node)
+                }
             }
         }
 
@@ -88,9 +136,12 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
         }
 
         def rebuildDone() {
-            hasStructuralChanges = false
+            // Bind nodes kept through a rebuild following subtree changes only keep their MIP values
+            if (hasStructuralChanges || !hasSubtreeChanges)
+                markBindsDirty()
 
-            markBindsDirty()
+            hasStructuralChanges = false
+            hasSubtreeChanges = false
         }
 
         private def markBindsDirty() {
@@ -213,6 +264,9 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
     def markStructuralChange(model: XFormsModel, instance: XFormsInstance): Unit =
         getModelState(model.getPrefixedId).markStructuralChange()
 
+    def markStructuralChange(model: XFormsModel, instance: XFormsInstance, parents: JList[NodeInfo], nodes: JList[NodeInfo]): Unit =
+        getModelState(model.getPrefixedId).markSubtreesChanged(instance, parents.asScala, nodes.asScala)
+
     def rebuildDone(model: Model) = getModelState(model.prefixedId).rebuildDone()
     def recalculateDone(model: Model) = getModelState(model.prefixedId).recalculateDone()
     def revalidateDone(model: Model) = getModelState(model.prefixedId).revalidateDone()
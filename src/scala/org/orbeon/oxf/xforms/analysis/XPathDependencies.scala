@@ -17,6 +17,7 @@ import org.orbeon.oxf.xforms.XFormsInstance
 import org.orbeon.oxf.xforms.XFormsModel
 import org.orbeon.oxf.xforms.analysis.model.Model
 import org.orbeon.saxon.om.NodeInfo
+import java.util.{List ⇒ JList}
 
 /**
  * Interface to dependencies implementation.
@@ -24,6 +25,8 @@ import org.orbeon.saxon.om.NodeInfo
 trait XPathDependencies {
     def markValueChanged(model: XFormsModel, nodeInfo: NodeInfo)
     def markStructuralChange(model: XFormsModel, instance: XFormsInstance)
+    // Structural change limited to nodes inserted into or deleted from the given parents
+    def markStructuralChange(model: XFormsModel, instance: XFormsInstance, parents: JList[NodeInfo], nodes: JList[NodeInfo])
 
     def rebuildDone(model: Model)
     def recalculateDone(model: Model)
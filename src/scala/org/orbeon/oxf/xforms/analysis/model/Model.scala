@@ -227,6 +227,9 @@ class BindTree(model: Model, bindElements: Seq[Element]) {
     val computedBindExpressionsInstances = new LinkedHashSet[String]    // instances to which computed binds apply
     val validationBindInstances = new LinkedHashSet[String]             // instances to which validation binds apply
 
+    // Calculate binds ordered so that each bind follows the binds computing the values it depends on, if found
+    var calculateBindsInDependencyOrder: Option[Seq[Bind]] = None
+
     // Create static binds hierarchy and yield top-level binds
     val topLevelBinds: Seq[Bind] = {
         // NOTE: For now, do as if binds follow all top-level variables
@@ -308,6 +311,9 @@ class BindTree(model: Model, bindElements: Seq[Element]) {
             // Default to negative, analyzeXPath() can change that
             var analysis: XPathAnalysis = NegativeAnalysis(expression)
 
+            // Whether the value can change when sibling nodes are inserted or deleted, which dependencies don't tell
+            val isPositionDependent = PositionDependentXPath.findFirstIn(expression).isDefined
+
             def analyzeXPath() {
 
                 def booleanOrStringExpression =
@@ -408,6 +414,9 @@ class BindTree(model: Model, bindElements: Seq[Element]) {
             case None ⇒ null
         }
 
+        // Whether the given MIP must be evaluated again on all bind nodes after an insert or delete
+        def isPositionDependent(mipName: String) = allMIPNameToXPathMIP.get(mipName) exists (_.isPositionDependent)
+
         def hasCalculateComputedMIPs = mipNameToXPathMIP exists (_._2 isCalculateComputedMIP)
         def hasValidateMIPs = typeMIP.isDefined || (mipNameToXPathMIP exists (_._2 isValidateMIP))
         def hasCustomMIPs = customMIPNameToXPathMIP.nonEmpty
@@ -522,6 +531,9 @@ class BindTree(model: Model, bindElements: Seq[Element]) {
         // NOTE: Do this here, because MIPs can depend on bind/@name, which requires all bind/@ref to be analyzed first
         topLevelBinds foreach (_.analyzeMIPs())
 
+        if (figuredAllBindRefAnalysis)
+            calculateBindsInDependencyOrder = orderCalculateBinds(bindsById.values.toSeq filter (_.getCalculate ne null))
+
         if (! figuredAllBindRefAnalysis) {
             bindInstances.clear()
             computedBindExpressionsInstances.clear()
@@ -530,6 +542,62 @@ class BindTree(model: Model, bindElements: Seq[Element]) {
         }
     }
 
+    // Sort calculate binds topologically, using the bind/@ref analysis as the values written by a bind and the calculate
+    // MIP analysis as the values read. Binds which don't depend on each other stay in document order. Return None if
+    // an analysis is missing or if there is a cycle, in which case binds are evaluated in document order.
+    private def orderCalculateBinds(binds: Seq[Bind]): Option[Seq[Bind]] = {
+
+        def calculateAnalysis(bind: Bind) = bind.getMIP(Calculate.name) collect { case mip: Bind#XPathMIP ⇒ mip.analysis }
+
+        val figuredOutAll = binds forall { bind ⇒
+            (bind.getBindingAnalysis exists (_.figuredOutDependencies)) && (calculateAnalysis(bind) exists (_.figuredOutDependencies))
+        }
+
+        if (! figuredOutAll)
+            None
+        else {
+            // Index binds by the paths their calculation reads
+            val readers = new LinkedHashMap[(String, String), LinkedHashSet[Int]]
+            for {
+                (bind, index) ← binds.zipWithIndex
+                analysis = calculateAnalysis(bind).get
+                instancePath ← analysis.valueDependentPaths.toSeq ++ analysis.returnablePaths.toSeq
+            } readers.getOrElseUpdate(instancePath, new LinkedHashSet[Int]) += index
+
+            // Writing a node changes the string value of the node and of its ancestors
+            def ancestorOrSelfPaths(path: String) = (path.split('/').inits map (_ mkString "/")).toSeq
+
+            val dependents =
+                for ((bind, index) ← binds.zipWithIndex)
+                    yield (for {
+                        (instance, path) ← bind.getBindingAnalysis.get.returnablePaths.toSeq
+                        ancestorOrSelf ← ancestorOrSelfPaths(path)
+                        dependent ← readers.getOrElse((instance, ancestorOrSelf), Nil)
+                        if dependent != index
+                    } yield dependent).distinct
+
+            // Kahn's algorithm, choosing the first available bind in document order
+            val inDegrees = Array.fill(binds.size)(0)
+            for (indexes ← dependents; dependent ← indexes)
+                inDegrees(dependent) += 1
+
+            var available = collection.immutable.SortedSet(binds.indices filter (inDegrees(_) == 0): _*)
+            val result = collection.mutable.ArrayBuffer[Bind]()
+            while (available.nonEmpty) {
+                val index = available.head
+                available -= index
+                result += binds(index)
+                for (dependent ← dependents(index)) {
+                    inDegrees(dependent) -= 1
+                    if (inDegrees(dependent) == 0)
+                        available += dependent
+                }
+            }
+
+            if (result.size == binds.size) Some(result) else None
+        }
+    }
+
     def bindsToXML(helper: ContentHandlerHelper): Unit =
         // Output binds information
         if (topLevelBinds.nonEmpty) {
@@ -591,6 +659,9 @@ trait ModelBinds {
     def computedBindExpressionsInstances = bindTree.computedBindExpressionsInstances
     def validationBindInstances = bindTree.validationBindInstances
 
+    // For Java callers (can return null)
+    def jCalculateBindsInDependencyOrder = bindTree.calculateBindsInDependencyOrder map (_.asJava) orNull
+
     // TODO: use and produce variables introduced with xf:bind/@name
 
     def topLevelBinds = bindTree.topLevelBinds
@@ -644,6 +715,9 @@ object Model {
     val BooleanXPathMIPNames    = AllMIPs collect { case m: XPathMIP with BooleanMIP ⇒ m.name }
     val StringXPathMIPNames     = AllMIPs collect { case m: XPathMIP with StringMIP ⇒ m.name }
 
+    // Functions, axes and numeric predicates whose result depends on the position or number of sibling nodes
+    val PositionDependentXPath  = """\b(position|last|count)\s*\(|\b(preceding|following)(-sibling)?\s*::|\[\s*\d+\s*\]""".r
+
     def buildCustomMIPName(qualifiedName: String) = qualifiedName.replace(':', '-')
 
     // Constants for Java callers
@@ -22,6 +22,7 @@ import collection.mutable.LinkedHashSet
 import org.apache.commons.lang.StringUtils
 import AjaxSupport._
 import org.orbeon.oxf.xml.{XMLUtils, ContentHandlerHelper}
+import java.util.concurrent.atomic.AtomicLong
 
 trait ControlAjaxSupport {
 
@@ -36,6 +37,34 @@ trait ControlAjaxSupport {
     // Whether the control support full Ajax updates
     def supportFullAjaxUpdates = true
 
+    // Whether this control or one of its descendants may have changed since the last back copy
+    private var _changedSinceBackCopy = true
+    // Id of the last back copy, shared by this control and its copy
+    private var _backCopyId = 0L
+
+    // Mark this control and its ancestors as possibly changed since the last back copy
+    final def markChanged() {
+        _changedSinceBackCopy = true
+        if (parent ne null)
+            parent.markChanged()
+    }
+
+    // Whether this control and all its descendants are known to be identical to the given control, which must then be
+    // the back copy of this control
+    final def isUnchangedSinceBackCopy(other: XFormsControl) =
+        ! _changedSinceBackCopy && (other ne null) && _backCopyId != 0 && _backCopyId == other._backCopyId
+
+    // Once copied back, this control and its copy are identical until this control changes again
+    final def updateChangedCopy(copy: XFormsControl) {
+        val backCopyId = nextBackCopyId()
+
+        _changedSinceBackCopy = false
+        _backCopyId = backCopyId
+
+        copy._changedSinceBackCopy = false
+        copy._backCopyId = backCopyId
+    }
+
     def outputAjaxDiff(ch: ContentHandlerHelper, other: XFormsControl, attributesImpl: AttributesImpl, isNewlyVisibleSubtree: Boolean) = ()
 
     def addAjaxAttributes(attributesImpl: AttributesImpl, isNewlyVisibleSubtree: Boolean, other: XFormsControl) = {
@@ -139,6 +168,9 @@ trait ControlAjaxSupport {
 // NOTE: Use name different from trait so that the Java compiler is happy
 object AjaxSupport {
 
+    private val backCopyIds = new AtomicLong
+    def nextBackCopyId() = backCopyIds.incrementAndGet()
+
     val StandardExtensionAttributes = Array(STYLE_QNAME, CLASS_QNAME)
 
     def addAjaxClasses(attributesImpl: AttributesImpl, newlyVisibleSubtree: Boolean, control1: XFormsControl, control2: XFormsControl): Boolean = {
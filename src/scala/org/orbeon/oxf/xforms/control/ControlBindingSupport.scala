@@ -120,10 +120,12 @@ trait ControlBindingSupport {
             // Control is created
             this._isRelevant = newRelevant
             onCreate()
+            markChanged()
         } else if (oldRelevant && ! newRelevant) {
             // Control is destroyed
             onDestroy()
             this._isRelevant = newRelevant
+            markChanged()
         } else if (newRelevant)
             onBindingUpdate(oldBinding, bindingContext)
     }
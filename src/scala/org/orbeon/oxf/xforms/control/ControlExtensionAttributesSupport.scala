@@ -28,6 +28,8 @@ trait ControlExtensionAttributesSupport {
     // Optional extension attributes supported by the control
     // TODO: must be evaluated lazily
     private var extensionAttributesValues: JMap[QName, String] = null
+    // Values before the last time the attributes were marked dirty, to find out whether they actually change
+    private var previousExtensionAttributesValues: JMap[QName, String] = null
 
     final def compareExtensionAttributes(other: XFormsControl): Boolean = {
         if (extensionAttributesValues ne null)
@@ -47,13 +49,20 @@ trait ControlExtensionAttributesSupport {
                 if (extensionAttributesValues eq null)
                     extensionAttributesValues = new JHashMap[QName, String]
                 extensionAttributesValues.put(avtAttributeQName, resolvedValue)
+
+                val previousValue = Option(previousExtensionAttributesValues) map (_.get(avtAttributeQName)) orNull
+
+                if (resolvedValue != previousValue)
+                    markChanged()
             }
         }
     }
 
     final def markExtensionAttributesDirty() =
-        Option(extensionAttributesValues) foreach
-            (_.clear())
+        if (extensionAttributesValues ne null) {
+            previousExtensionAttributesValues = extensionAttributesValues
+            extensionAttributesValues = null
+        }
 
     // Return an optional static list of extension attribute QNames provided by the control. If present these
     // attributes are evaluated as AVTs and copied over to the outer control element.
@@ -65,6 +65,9 @@ trait ControlLocalSupport {
             // NOP: Don't modify currentLocal
         }
 
+        // The caller is about to update local state
+        markChanged()
+
         currentLocal
     }
 
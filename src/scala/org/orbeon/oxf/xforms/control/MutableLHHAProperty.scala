@@ -53,6 +53,7 @@ class MutableLHHAProperty(control: XFormsControl, lhhaAnalysis: LHHAAnalysis, su
     protected override def markDirty() {
         super.markDirty()
         _isHTML = false
+        control.markChanged()
     }
 
     protected def requireUpdate =
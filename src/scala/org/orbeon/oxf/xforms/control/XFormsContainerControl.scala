@@ -32,6 +32,7 @@ trait XFormsContainerControl extends XFormsControl {
         if (_children eq null)
             _children = Buffer[XFormsControl]()
         _children += control
+        markChanged()
     }
 
     // Number of direct children control
@@ -41,11 +42,14 @@ trait XFormsContainerControl extends XFormsControl {
     protected def setChildren(children: Buffer[XFormsControl]) = {
         require(children ne null)
         this._children = children
+        markChanged()
     }
 
     // Remove all children at once
-    def clearChildren() =
+    def clearChildren() {
         this._children = null
+        markChanged()
+    }
 
     // Update this control's effective id and its descendants based on the parent's effective id
     override def updateEffectiveId() {
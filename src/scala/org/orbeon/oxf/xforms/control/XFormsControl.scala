@@ -91,6 +91,7 @@ class XFormsControl(
             // copy of control properties upon mutation, rather than the current XFormsControlLocal/full clone alternative.
             containingDocument.getControls.cloneInitialStateIfNeeded()
             _visited = visited
+            markChanged()
         }
 
     parent match {
@@ -118,7 +119,7 @@ class XFormsControl(
         if (staticControl.isWithinRepeat) {
             val parentEffectiveId = parent.getEffectiveId
             val parentSuffix = XFormsUtils.getEffectiveIdSuffix(parentEffectiveId)
-            effectiveId = XFormsUtils.getPrefixedId(effectiveId) + XFormsConstants.REPEAT_HIERARCHY_SEPARATOR_1 + parentSuffix
+            setEffectiveId(XFormsUtils.getPrefixedId(effectiveId) + XFormsConstants.REPEAT_HIERARCHY_SEPARATOR_1 + parentSuffix)
             if (childrenActions ne null) {
                 for (actionControl ← childrenActions.asScala)
                     actionControl.updateEffectiveId()
@@ -130,7 +131,10 @@ class XFormsControl(
 
     // Used by repeat iterations
     def setEffectiveId(effectiveId: String) =
-        this.effectiveId = effectiveId
+        if (effectiveId != this.effectiveId) {
+            this.effectiveId = effectiveId
+            markChanged()
+        }
 
     final def getLocationData =
         if (staticControl ne null) staticControl.locationData else if (element ne null) element.getData.asInstanceOf[LocationData] else null
@@ -243,6 +247,7 @@ class XFormsControl(
         updateLHHACopy(cloned)
         updateLocalCopy(cloned)
         updateExtensionAttributesCopy(cloned)
+        updateChangedCopy(cloned)
 
         cloned
     }
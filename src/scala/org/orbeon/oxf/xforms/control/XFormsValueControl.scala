@@ -97,6 +97,7 @@ abstract class XFormsValueControl(container: XBLContainer, parent: XFormsControl
     protected def markExternalValueDirty(): Unit = {
         isExternalValueEvaluated = false
         externalValue = null
+        markChanged()
     }
 
     protected def isExternalValueDirty: Boolean =
@@ -35,7 +35,7 @@ trait FileMetadata extends XFormsValueControl {
     private val filenameElement  = Option(self.element.element(XFORMS_FILENAME_QNAME))
     private val sizeElement      = Option(self.element.element(XXFORMS_SIZE_QNAME))
 
-    private class FileMetadataProperty(evaluate: FileMetadata ⇒ String) extends MutableControlProperty[String] {
+    private class FileMetadataProperty(evaluate: FileMetadata ⇒ String, canChange: Boolean) extends MutableControlProperty[String] {
 
         protected def evaluateValue() = evaluate(self)
 
@@ -46,11 +46,25 @@ trait FileMetadata extends XFormsValueControl {
         protected def requireUpdate = true
         protected def notifyCompute() = ()
         protected def notifyOptimized() = ()
+
+        protected override def markDirty() {
+            super.markDirty()
+            if (canChange)
+                self.markChanged()
+        }
+    }
+
+    // Whether a property can change at all, as the mediatype, filename and size are always null without nested element
+    private def canChange(name: String) = name match {
+        case "mediatype" ⇒ mediatypeElement.isDefined
+        case "filename"  ⇒ filenameElement.isDefined
+        case "size"      ⇒ sizeElement.isDefined
+        case _           ⇒ true
     }
 
     // Supported file metadata properties
     private var props: Map[String, ControlProperty[String]] =
-        supportedFileMetadata map (name ⇒ name → new FileMetadataProperty(FileMetadata.Evaluators(name))) toMap
+        supportedFileMetadata map (name ⇒ name → new FileMetadataProperty(FileMetadata.Evaluators(name), canChange(name))) toMap
 
     // Properties to support
     def supportedFileMetadata: Seq[String]
@@ -23,4 +23,9 @@ class MutableItemsetProperty(private val control: XFormsSelect1Control) extends
     protected def notifyCompute() = control.containingDocument.getXPathDependencies.notifyComputeItemset()
     protected def notifyOptimized() = control.containingDocument.getXPathDependencies.notifyOptimizeItemset()
     protected def evaluateValue() = XFormsItemUtils.evaluateItemset(control)
+
+    protected override def markDirty() {
+        super.markDirty()
+        control.markChanged()
+    }
 }
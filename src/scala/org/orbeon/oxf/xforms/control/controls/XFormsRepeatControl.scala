@@ -31,12 +31,13 @@ import org.orbeon.oxf.xforms.event.events.XXFormsSetindexEvent
 import org.orbeon.oxf.xforms.xbl.XBLContainer
 import org.orbeon.saxon.om.Item
 import org.orbeon.saxon.om.NodeInfo
+import org.orbeon.saxon.om.VirtualNode
 import org.orbeon.oxf.xforms.XFormsConstants._
 import org.orbeon.oxf.util.DebugLogger
 import DebugLogger._
 
 import control.controls.XFormsRepeatControl._
-import java.util.{ArrayList, List ⇒ JList, Map ⇒ JMap, Collections}
+import java.util.{ArrayList, IdentityHashMap, List ⇒ JList, Map ⇒ JMap, Collections}
 import collection.JavaConverters._
 import org.orbeon.oxf.xforms.BindingContext
 import collection.mutable.{ArrayBuffer, LinkedHashMap}
@@ -546,16 +547,6 @@ class XFormsRepeatControl(container: XBLContainer, parent: XFormsControl, elemen
         }
     }
 
-    private def findNodeIndexes(nodeset1: JList[Item], nodeset2: JList[Item]) = {
-
-        val nodeset2Scala = nodeset2.asScala
-
-        def indexOfItem(otherItem: Item) =
-            nodeset2Scala indexWhere (XFormsUtils.compareItems(_, otherItem))
-
-        nodeset1.asScala map (indexOfItem(_)) toArray
-    }
-
     // Serialize index
     override def serializeLocal: JMap[String, String] =
         Collections.singletonMap("index", Integer.toString(getIndex))
@@ -623,6 +614,29 @@ object XFormsRepeatControl {
         var oldRepeatIndex: Int = 0
     }
 
+    // For each item of nodeset1, return the index of the same item in nodeset2, or -1. Mutable nodes are found with
+    // their underlying node, so that this is linear for repeats over instance nodes, including after nodes are moved
+    // with DnD. Other items are compared one by one.
+    private[controls] def findNodeIndexes(nodeset1: JList[Item], nodeset2: JList[Item]) = {
+
+        val nodeset2Scala = nodeset2.asScala
+
+        val underlyingNodeIndexes = new IdentityHashMap[AnyRef, java.lang.Integer]
+        for ((virtualNode: VirtualNode, index) ← nodeset2Scala.zipWithIndex)
+            if (! underlyingNodeIndexes.containsKey(virtualNode.getUnderlyingNode))
+                underlyingNodeIndexes.put(virtualNode.getUnderlyingNode, index)
+
+        def indexOfItem(otherItem: Item) = otherItem match {
+            case virtualNode: VirtualNode ⇒
+                val index = underlyingNodeIndexes.get(virtualNode.getUnderlyingNode)
+                if (index eq null) -1 else index.intValue
+            case _ ⇒
+                nodeset2Scala indexWhere (XFormsUtils.compareItems(_, otherItem))
+        }
+
+        nodeset1.asScala map (indexOfItem(_)) toArray
+    }
+
     // Find the initial repeat indexes for the given tree
     def findInitialIndexes(doc: XFormsContainingDocument, tree: ControlTree) =
         findIndexes(doc, tree, doc.getStaticOps.repeats, _.getInitialLocal.asInstanceOf[XFormsRepeatControlLocal].index).asJava
@@ -82,6 +82,7 @@ class XFormsVariableControl(container: XBLContainer, parent: XFormsControl, elem
         if (xpathDependencies.requireValueUpdate(getPrefixedId)) {
             _value = null
             variable.markDirty()
+            markChanged()
         }
     }
 
@@ -0,0 +1,208 @@
+/**
+ *  Copyright (C) 2012 Orbeon, Inc.
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the
+ *  GNU Lesser General Public License as published by the Free Software Foundation; either version
+ *  2.1 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *  See the GNU Lesser General Public License for more details.
+ *
+ *  The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.script
+
+import collection.JavaConverters._
+import java.io._
+import java.net.JarURLConnection
+import java.nio.charset.Charset
+import java.util.jar.JarFile
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.resources.{ClassLoaderResourceManagerImpl, PriorityResourceManagerImpl, ResourceManager, ResourceManagerWrapper}
+import org.orbeon.oxf.util.{LoggerFactory, NetUtils}
+import org.orbeon.oxf.util.ScalaUtils._
+
+/**
+ * Cache of JavaScript compiled from CoffeeScript resources, keyed by resource path and last modification date.
+ *
+ * Compiled JavaScript is kept in memory, and also on disk if the oxf.cache.coffeescript.directory property is set, so
+ * that it survives restarts. Files on disk start with a digest of the CoffeeScript source and of the compiler, and are
+ * only reused if both are unchanged. With the oxf.cache.coffeescript.prewarm property, all the CoffeeScript resources
+ * found in the directories of the resource managers, and in the class path for the class loader resource manager, are
+ * compiled upon initialization instead of upon the first request for them. Resources only available through other
+ * resource managers are still compiled upon the first request.
+ */
+object CoffeeScriptCache {
+
+    private val logger = LoggerFactory.createLogger(CoffeeScriptCache.getClass)
+
+    private val CacheName = "cache.coffeescript"
+    private val CacheDefaultSize = 200
+
+    val DirectoryProperty = "oxf.cache.coffeescript.directory"
+    val PrewarmProperty = "oxf.cache.coffeescript.prewarm"
+
+    private val UTF8 = Charset.forName("UTF-8")
+
+    private def cache = ObjectCache.instance(CacheName, CacheDefaultSize)
+    private def propertySet = Properties.instance.getPropertySet
+
+    // Return the UTF-8 JavaScript compiled from the CoffeeScript resource with the given path and last modification date
+    def compile(coffeePath: String, lastModified: Long): Array[Byte] = {
+        val key = new InternalCacheKey("CoffeeScript", coffeePath)
+        cache.findValid(key, lastModified) match {
+            case bytes: Array[Byte] ⇒ bytes
+            case _ ⇒
+                val source = readSource(coffeePath)
+                val file = diskFile(coffeePath)
+                val digest = sourceDigest(source)
+
+                val bytes = file flatMap (readFromDisk(_, digest)) getOrElse {
+                    if (logger.isDebugEnabled)
+                        logger.debug("Compiling " + coffeePath)
+
+                    val compiled = CoffeeScriptCompiler.compile(source, coffeePath, 0).getBytes(UTF8)
+                    file foreach (writeToDisk(_, digest, compiled))
+                    compiled
+                }
+                cache.add(key, lastModified, bytes)
+                bytes
+        }
+    }
+
+    // Compile all the CoffeeScript resources found, if enabled by properties
+    def prewarmIfNeeded(): Unit =
+        if (propertySet.getBoolean(PrewarmProperty, false)) {
+            val resourceManager = ResourceManagerWrapper.instance
+            val paths = findCoffeePaths(resourceManager)
+            logger.info("Compiling " + paths.size + " CoffeeScript resources")
+            for (path ← paths)
+                try compile(path, resourceManager.lastModified(path, false))
+                catch {
+                    case e: Exception ⇒
+                        // A resource which doesn't compile must not prevent initialization
+                        logger.warn("Unable to compile CoffeeScript resource " + path, e)
+                }
+        }
+
+    // Paths of the CoffeeScript resources found in the directories and JAR files the resource managers read from. The
+    // same path can be found more than once, but compiling uses the resource manager, which resolves the path to a single
+    // resource.
+    private def findCoffeePaths(resourceManager: ResourceManager): Seq[String] = {
+        val resourceManagers = resourceManager match {
+            case priorityResourceManager: PriorityResourceManagerImpl ⇒ priorityResourceManager.getResourceManagers.asScala
+            case _ ⇒ Seq(resourceManager)
+        }
+
+        val pathsInDirectories =
+            for {
+                manager ← resourceManagers
+                realPath ← Option(manager.getRealPath("/")).toSeq
+                path ← coffeePaths(new File(realPath), "/")
+            } yield
+                path
+
+        val pathsInClassPath =
+            if (resourceManagers exists (_.isInstanceOf[ClassLoaderResourceManagerImpl]))
+                classPathCoffeePaths(classOf[ClassLoaderResourceManagerImpl].getClassLoader)
+            else
+                Seq()
+
+        (pathsInDirectories ++ pathsInClassPath).distinct
+    }
+
+    // Paths of the CoffeeScript resources in the directories and JAR files of the given class loader
+    private[script] def classPathCoffeePaths(classLoader: ClassLoader): Seq[String] = {
+        val pathsInJars =
+            for {
+                url ← classLoader.getResources(JarFile.MANIFEST_NAME).asScala.toSeq
+                connection = url.openConnection
+                if connection.isInstanceOf[JarURLConnection]
+                path ← jarCoffeePaths(connection.asInstanceOf[JarURLConnection].getJarFile)
+            } yield
+                path
+
+        val pathsInDirectories =
+            for {
+                url ← classLoader.getResources("").asScala.toSeq
+                if url.getProtocol == "file"
+                path ← coffeePaths(new File(url.toURI), "/")
+            } yield
+                path
+
+        pathsInJars ++ pathsInDirectories
+    }
+
+    private[script] def jarCoffeePaths(jarFile: JarFile): Seq[String] =
+        jarFile.entries.asScala filter (entry ⇒ ! entry.isDirectory && entry.getName.endsWith(".coffee")) map ("/" + _.getName) toList
+
+    private[script] def coffeePaths(directory: File, path: String): Seq[String] =
+        Option(directory.listFiles).toSeq.flatten flatMap { file ⇒
+            if (file.isDirectory)
+                coffeePaths(file, path + file.getName + "/")
+            else if (file.getName.endsWith(".coffee"))
+                Seq(path + file.getName)
+            else
+                Seq()
+        }
+
+    // Read CoffeeScript as a string; CoffeeScript is always UTF-8
+    private def readSource(coffeePath: String) = {
+        val coffeeReader = new InputStreamReader(ResourceManagerWrapper.instance.getContentAsStream(coffeePath), UTF8)
+        useAndClose(coffeeReader)(NetUtils.readStreamAsString(_))
+    }
+
+    // Digest identifying the JavaScript compiled from the given source by the current compiler
+    private[script] def sourceDigest(source: String) =
+        digest("SHA1", Seq(CoffeeScriptCompiler.digest, source))
+
+    // File where the JavaScript compiled from the given path is stored, if a directory is configured
+    private def diskFile(coffeePath: String) =
+        Option(propertySet.getString(DirectoryProperty)) map
+            (directory ⇒ new File(directory, coffeePath.substring(0, coffeePath.length - "coffee".length) + "js"))
+
+    // The first line of a file on disk holds the digest of the source and compiler it was compiled with
+    private def header(digest: String) = ("// " + digest + "\n").getBytes(UTF8)
+
+    // Compiled JavaScript on disk, if compiled from the same source by the same compiler
+    private[script] def readFromDisk(file: File, digest: String) =
+        if (file.isFile) {
+            val os = new ByteArrayOutputStream(file.length.toInt)
+            copyStream(new FileInputStream(file), os)
+            val bytes = os.toByteArray
+
+            val expectedHeader = header(digest)
+            if (bytes.startsWith(expectedHeader))
+                Some(bytes.drop(expectedHeader.length))
+            else
+                None
+        } else
+            None
+
+    // Write to a temporary file in the same directory first, then rename it, so that concurrent readers never see a
+    // partial file
+    private[script] def writeToDisk(file: File, digest: String, bytes: Array[Byte]) {
+        file.getParentFile.mkdirs()
+        var tempFile: File = null
+        try {
+            tempFile = File.createTempFile(file.getName, ".tmp", file.getParentFile)
+            useAndClose(new FileOutputStream(tempFile)) { os ⇒
+                os.write(header(digest))
+                os.write(bytes)
+            }
+            // Rename over the existing file, which is atomic on POSIX systems, and only on systems which don't
+            // allow this, delete the existing file first
+            if (! tempFile.renameTo(file) && ! (file.delete() && tempFile.renameTo(file)))
+                throw new IOException("Unable to rename " + tempFile + " to " + file)
+        } catch {
+            case e: IOException ⇒
+                // The disk store is just an optimization
+                logger.warn("Unable to store compiled CoffeeScript to " + file, e)
+        } finally {
+            if (tempFile ne null)
+                runQuietly(tempFile.delete())
+        }
+    }
+}
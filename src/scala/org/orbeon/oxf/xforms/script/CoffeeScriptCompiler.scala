@@ -15,16 +15,23 @@ package org.orbeon.oxf.xforms.script
 
 import org.mozilla.javascript.Context
 import java.io.InputStreamReader
+import org.orbeon.oxf.util.{NetUtils, SecureUtils}
 
 /**
  * CoffeeScript → JavaScript compiler.
  */
 object CoffeeScriptCompiler {
 
+    private val CompilerPath = "org/orbeon/oxf/xforms/script/coffee-script.js"
+
+    // Digest of the compiler script, which changes with the compiler version, without loading the compiler
+    lazy val digest =
+        SecureUtils.digestBytes(NetUtils.inputStreamToByteArray(getClass.getClassLoader.getResourceAsStream(CompilerPath)), "SHA1", "hex")
+
     // Lazy so that if the compiler is never used it is never loaded
     private lazy val compilerScope = {
         val loader = getClass.getClassLoader
-        val inputStream = loader.getResourceAsStream("org/orbeon/oxf/xforms/script/coffee-script.js")
+        val inputStream = loader.getResourceAsStream(CompilerPath)
         try {
             val reader = new InputStreamReader(inputStream, "utf-8")
             try {
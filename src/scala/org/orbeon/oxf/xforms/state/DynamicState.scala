@@ -26,6 +26,7 @@ import control.{Controls, XFormsControl}
 import org.orbeon.oxf.xml.dom4j.Dom4jUtils
 import org.orbeon.oxf.xml.{TransformerUtils, SAXStore}
 import org.dom4j.Element
+import sbinary.JavaOutput
 
 // Immutable representation of the dynamic state
 case class DynamicState(
@@ -72,16 +73,21 @@ case class DynamicState(
 
     def decodeInstancesControls = InstancesControls(decodeInstances, decodeControls map (c ⇒ (c.effectiveId, c)) toMap)
     
+    // Size of the serialized parts of the state, in bytes
+    def size = pathMatchers.size + pendingUploads.size + (annotatedTemplate map (_.size) getOrElse 0) + lastAjaxResponse.size + instances.size + controls.size
+
     // For tests only
     def copyUpdateSequence(sequence: Int) = copy(sequence = sequence)
 
     // Encode to a string representation
-    def encodeToString(compress: Boolean, isForceEncryption: Boolean): String =
-        XFormsUtils.encodeBytes(
-            toByteArray(this),
-            compress,
-            if (isForceEncryption) XFormsProperties.getXFormsPassword else null
-        )
+    def encodeToString(compress: Boolean, isForceEncryption: Boolean): String = {
+        val encryptionPassword = if (isForceEncryption) XFormsProperties.getXFormsPassword else null
+        if (compress)
+            // Serialize straight into the compressor
+            XFormsUtils.encodeCompressedBytes(XFormsCompressor.compressStream(os ⇒ write(new JavaOutput(os), this)), encryptionPassword)
+        else
+            XFormsUtils.encodeBytes(toByteArray(this), false, encryptionPassword)
+    }
 
     // Encode to an XML representation (as of 2012-02-05, used only by unit tests)
     def toXML = {
@@ -218,7 +224,15 @@ case class InstanceState(
 object DynamicState {
 
     // Create a DynamicState from a document
-    def apply(document: XFormsContainingDocument): DynamicState = {
+    def apply(document: XFormsContainingDocument): DynamicState =
+        apply(document, instancesToSerialize(document))
+
+    // Instances which must be part of the dynamic state
+    def instancesToSerialize(document: XFormsContainingDocument) =
+        document.getAllModels.asScala flatMap (_.getInstances.asScala) filter (_.mustSerialize)
+
+    // Create a DynamicState from a document, including only the given instances
+    def apply(document: XFormsContainingDocument, instances: Seq[XFormsInstance]): DynamicState = {
 
         // Serialize relevant controls that have data
         // NOTE: As of 2012-02-02, only repeat, switch and dialogs controls serialize state. The state of all the other
@@ -267,7 +281,7 @@ object DynamicState {
             toByteSeq(document.getPendingUploads.asScala.toSet),
             Option(document.getTemplate) map (_.asByteSeq), // template returns its own serialization
             toByteSeq(Option(document.getLastAjaxResponse)),
-            toByteSeq(document.getAllModels.asScala flatMap (_.getInstances.asScala) filter (_.mustSerialize) map (new InstanceState(_)) toList),
+            toByteSeq(instances map (new InstanceState(_)) toList),
             toByteSeq(controlsToSerialize(document).toList)
         )
     }
@@ -0,0 +1,83 @@
+/**
+ *  Copyright (C) 2012 Orbeon, Inc.
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the
+ *  GNU Lesser General Public License as published by the Free Software Foundation; either version
+ *  2.1 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *  See the GNU Lesser General Public License for more details.
+ *
+ *  The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import XFormsOperations._
+import XFormsProtocols._
+import org.orbeon.oxf.xforms.{XFormsInstance, XFormsContainingDocument}
+
+// Changes from the previous state: the instances which changed, and the ids of all the instances, in order
+case class DynamicStatePatch(instances: Seq[Byte], instanceIds: List[String]) {
+    def size = instances.size + (instanceIds map (_.length)).sum
+}
+
+// Dynamic state stored as a full base state followed by patches
+//
+// Instances are compared by stamp, so instances which didn't change since the previous state are neither serialized
+// nor stored again. The other parts of the state are only kept for the latest state, in head, which is the base itself
+// when there are no patches. The patches are compacted into a new base state when there are too many of them, or when
+// they, with the head, are larger than the base state.
+case class DynamicStateChain(base: DynamicState, patches: List[DynamicStatePatch], head: DynamicState, instanceStamps: Map[String, Long]) {
+
+    // Apply patches to obtain the full current state
+    def dynamicState: DynamicState = patches.lastOption match {
+        case Some(lastPatch) ⇒
+            // Later patches override earlier ones
+            val instancesById =
+                (base.decodeInstances ++ (patches flatMap (p ⇒ fromByteSeq[List[InstanceState]](p.instances))) map (i ⇒ i.effectiveId → i)).toMap
+
+            head.copy(instances = toByteSeq(lastPatch.instanceIds map instancesById))
+        case None ⇒
+            base
+    }
+
+    def compact = {
+        val state = dynamicState
+        DynamicStateChain(state, Nil, state, instanceStamps)
+    }
+
+    // Return a new chain with the current state of the document
+    def append(document: XFormsContainingDocument, maxPatches: Int): DynamicStateChain = {
+
+        val instances = DynamicState.instancesToSerialize(document)
+        val changedInstances = instances filterNot (i ⇒ instanceStamps.get(i.getEffectiveId) == Some(i.stamp))
+
+        val newHead = DynamicState(document, Nil)
+        val patch = DynamicStatePatch(toByteSeq(changedInstances map (new InstanceState(_)) toList), instances map (_.getEffectiveId) toList)
+
+        val newPatches = patches :+ patch
+        val patchesSize = (newPatches map (_.size)).sum + newHead.size
+
+        val newChain = DynamicStateChain(base, newPatches, newHead, DynamicStateChain.instanceStamps(instances))
+
+        // Compacting only decodes and encodes instance states, it doesn't serialize instances again
+        if (newPatches.size > maxPatches || patchesSize > base.size)
+            newChain.compact
+        else
+            newChain
+    }
+}
+
+object DynamicStateChain {
+
+    // Create a chain holding the current state of the document
+    def apply(document: XFormsContainingDocument): DynamicStateChain = {
+        val instances = DynamicState.instancesToSerialize(document)
+        val state = DynamicState(document, instances)
+        DynamicStateChain(state, Nil, state, instanceStamps(instances))
+    }
+
+    private def instanceStamps(instances: Seq[XFormsInstance]) =
+        instances map (i ⇒ i.getEffectiveId → i.stamp) toMap
+}
@@ -40,12 +40,24 @@ object EhcacheStateStore extends XFormsStateStore {
         def addOrReplaceOne(key: String, value: java.io.Serializable) =
             stateCache.put(new EhElement(key, value))
 
+        // In delta mode, the current state is stored as changes from the previously stored state
+        def dynamicState: java.io.Serializable =
+            if (isInitialState || ! XFormsProperties.isDeltaState)
+                DynamicState(document)
+            else
+                findOne(dynamicStateKey) match {
+                    case chain: DynamicStateChain ⇒
+                        chain.append(document, XFormsProperties.getDeltaStateMaxPatches)
+                    case _ ⇒
+                        DynamicStateChain(document)
+                }
+
         // Mapping (UUID → static state key : dynamic state key
         addOrReplaceOne(documentUUID, staticStateDigest + ":" + dynamicStateKey)
 
         // Static and dynamic states
         addOrReplaceOne(staticStateDigest, document.getStaticState.encodedState)
-        addOrReplaceOne(dynamicStateKey, DynamicState(document))
+        addOrReplaceOne(dynamicStateKey, dynamicState)
     }
 
     def findState(session: ExternalContext.Session, documentUUID: String, isInitialState: Boolean): XFormsState = {
@@ -53,11 +65,6 @@ object EhcacheStateStore extends XFormsStateStore {
         if (isDebugEnabled)
             debug("store size before finding: " + getCurrentSize + " entries.")
 
-        def findOne(key: String) = stateCache.get(key) match {
-            case element: EhElement ⇒ element.getValue
-            case _ ⇒ null
-        }
-
         findOne(documentUUID) match {
             case keyString: String ⇒
                 // Found the keys, split into parts
@@ -73,6 +80,8 @@ object EhcacheStateStore extends XFormsStateStore {
                 Stream(parts(0), dynamicStateKey) map (findOne(_)) filter (_ ne null) match {
                     case Stream(staticState: String, dynamicState: DynamicState) ⇒
                         XFormsState(Some(parts(0)), staticState, dynamicState)
+                    case Stream(staticState: String, dynamicStateChain: DynamicStateChain) ⇒
+                        XFormsState(Some(parts(0)), staticState, dynamicStateChain.dynamicState)
                     case _ ⇒ null
                 }
 
@@ -86,6 +95,11 @@ object EhcacheStateStore extends XFormsStateStore {
     def findStateCombined(staticStateDigest: String, dynamicStateUUID: String) = null
     def addStateCombined(staticStateDigest: String, dynamicStateUUID: String, xformsState: XFormsState, sessionId: String) = ()
 
+    private def findOne(key: String) = stateCache.get(key) match {
+        case element: EhElement ⇒ element.getValue
+        case _ ⇒ null
+    }
+
     private def getDynamicStateKey(documentUUID: String, isInitialState: Boolean) =
         documentUUID + (if (isInitialState) "-I" else "-C") // key is different for initial vs. subsequent state
 
@@ -0,0 +1,658 @@
+/**
+ *  Copyright (C) 2012 Orbeon, Inc.
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the
+ *  GNU Lesser General Public License as published by the Free Software Foundation; either version
+ *  2.1 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *  See the GNU Lesser General Public License for more details.
+ *
+ *  The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import collection.JavaConverters._
+import java.io._
+import java.lang.ref.WeakReference
+import java.nio.ByteBuffer
+import java.util.concurrent.{CopyOnWriteArrayList, LinkedBlockingQueue, ConcurrentHashMap}
+import java.util.concurrent.atomic.AtomicLong
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.pipeline.api.ExternalContext
+import org.orbeon.oxf.xforms._
+
+// Dynamic state chain as written to the log: the base and the patches are written under their own keys
+private case class StoredChain(patchCount: Int, head: Option[DynamicState], instanceStamps: Map[String, Long], run: String) {
+
+    // Instance stamps are only unique within a run, so the stamps of a chain written by a previous run are not kept,
+    // and the next state is stored with all its instances
+    def chain(base: DynamicState, patches: List[DynamicStatePatch]) =
+        DynamicStateChain(base, patches, head getOrElse base, if (run == StoredChain.CurrentRun) instanceStamps else Map())
+}
+
+private object StoredChain {
+    val CurrentRun = java.util.UUID.randomUUID.toString
+}
+
+// Only read the classes of the values written to the log
+private class StateObjectInputStream(is: InputStream) extends ObjectInputStream(is) {
+    override def resolveClass(description: ObjectStreamClass) = {
+        val name = description.getName
+        if (StateObjectInputStream.AllowedClasses(name) || (StateObjectInputStream.AllowedPrefixes exists name.startsWith))
+            super.resolveClass(description)
+        else
+            throw new InvalidClassException(name, "Unexpected class in state store")
+    }
+}
+
+private object StateObjectInputStream {
+    val AllowedClasses = Set("java.lang.String", "java.lang.Number", "java.lang.Long", "java.lang.Integer", "[B")
+    val AllowedPrefixes = Seq("org.orbeon.oxf.xforms.state.", "scala.collection.immutable.", "scala.collection.mutable.WrappedArray", "scala.Option", "scala.Some", "scala.None$", "scala.Tuple2")
+}
+
+/**
+ * XForms state store based on local files.
+ *
+ * - Storing a state only places it in memory: a background thread writes it to an append-only log of segment files,
+ *   so that requests don't wait for persistence. When too many states wait to be written, storing waits for the
+ *   background thread.
+ * - Recently stored or read values are kept in a bounded in-memory hot tier.
+ * - Segments which mostly contain replaced or removed values are compacted by the background thread.
+ * - States are removed when the session expires. Static states, which are shared between documents, are removed when
+ *   no document refers to them anymore.
+ * - With delta state, a dynamic state chain is written as its base and its patches, so that storing a new state only
+ *   writes the new patch.
+ *
+ * Each record of the log holds a key and its value, or only a key when the value is removed. Upon initialization, the
+ * log left by a previous run is read again. Recovered documents are attached to a session when they are found again.
+ *
+ * Documents which don't belong to a session, including recovered documents, are removed when they are not used for the
+ * given timeout.
+ *
+ * As the log holds serialized objects, the directory must only be accessible to the current user: it is created so,
+ * or restricted so if it exists, which fails if the current user doesn't own it.
+ */
+class FileStateStore(directory: File, hotTierSize: Int, maxPendingWrites: Int, unattachedTimeout: Long) extends XFormsStateStore {
+
+    private val storeDebugName = "File"
+
+    private val SegmentMaxSize = 64L * 1024 * 1024
+    private val SegmentFileName = """segment-(\d+)\.log""".r
+
+    // Record header: key length, then value length or -1 if the value is removed
+    private val RecordHeaderSize = 8
+
+    // Location of a value in the log
+    private case class Location(segment: Segment, position: Long, length: Int, recordLength: Int)
+
+    private class Segment(val file: File, val number: Long) {
+        private val randomAccessFile = new RandomAccessFile(file, "rw")
+        restrictToOwner(file)
+        val channel = randomAccessFile.getChannel
+
+        @volatile var size = 0L         // only modified by the writer thread
+        val liveBytes = new AtomicLong  // bytes of records still in the index
+
+        def close() =
+            try randomAccessFile.close()
+            catch { case e: IOException ⇒ }
+
+        def delete() {
+            close()
+            file.delete()
+        }
+    }
+
+    private sealed trait Task
+    private case class Write(key: String, value: AnyRef) extends Task
+    private case class Remove(key: String) extends Task
+    private case object Stop extends Task
+
+    // Pending value of a key being removed
+    private case object Removed
+
+    // Values written to the log, and values not written yet or being removed
+    private val index = new ConcurrentHashMap[String, Location]
+    private val pending = new ConcurrentHashMap[String, AnyRef]
+
+    // Most recently used values
+    private val hotTier = new java.util.LinkedHashMap[String, AnyRef](16, 0.75f, true) {
+        override def removeEldestEntry(eldest: java.util.Map.Entry[String, AnyRef]) = size > hotTierSize
+    }
+
+    // Session id → (document UUID → static state digest)
+    private val sessionDocuments = new ConcurrentHashMap[String, ConcurrentHashMap[String, String]]
+
+    // Document UUID → static state digest, for all the documents, with or without session
+    private val documentStaticStates = new ConcurrentHashMap[String, String]
+
+    // Static state digest → number of documents referring to it
+    // NOTE: The count and the decision to write or remove the static state are only changed with the digest's lock.
+    private val staticStateReferences = new ConcurrentHashMap[String, Int]
+    private val staticStateLocks = Array.fill(64)(new AnyRef)
+
+    // Documents which don't belong to a session → time they were last used
+    private val unattachedDocuments = new ConcurrentHashMap[String, java.lang.Long]
+    @volatile private var nextUnattachedCheck = 0L
+
+    // Segments, the last one being the one appended to
+    private val segments = new CopyOnWriteArrayList[Segment]
+    private val segmentCounter = new AtomicLong
+
+    // Values waiting to be written are bounded by the number of tasks
+    private val tasks = new LinkedBlockingQueue[Task](maxPendingWrites)
+
+    // Chains written by the writer thread, by key
+    private case class WrittenChain(base: WeakReference[DynamicState], patchCount: Int)
+    private val writtenChains = new java.util.HashMap[String, WrittenChain]
+
+    recover()
+
+    private val writerThread = {
+        val thread = new Thread("XForms state store writer") {
+            override def run(): Unit =
+                while (true) {
+                    try tasks.take() match {
+                        case Stop ⇒ return
+                        case task ⇒ process(task)
+                    } catch {
+                        case e: InterruptedException ⇒ return
+                        case t ⇒ XFormsStateManager.getIndentedLogger.logError("", storeDebugName + " store: error while writing state", t)
+                    }
+                }
+        }
+        thread.setDaemon(true)
+        thread.start()
+        thread
+    }
+
+    def storeDocumentState(document: XFormsContainingDocument, session: ExternalContext.Session, isInitialState: Boolean) = {
+
+        assert(document.getStaticState.isServerStateHandling)
+
+        if (isDebugEnabled)
+            debug("store size before storing: " + getCurrentSize + " entries.")
+
+        removeExpiredUnattachedDocuments()
+
+        val documentUUID = document.getUUID
+        val staticStateDigest = document.getStaticState.digest
+        val dynamicStateKey = getDynamicStateKey(documentUUID, isInitialState)
+
+        // This also writes the static state if this is the first document referring to it
+        rememberDocument(session, documentUUID, staticStateDigest, document.getStaticState.encodedState)
+
+        // In delta mode, the current state is stored as changes from the previously stored state
+        def dynamicState: AnyRef =
+            if (isInitialState || ! XFormsProperties.isDeltaState)
+                DynamicState(document)
+            else
+                find(dynamicStateKey) match {
+                    case Some(chain: DynamicStateChain) ⇒
+                        chain.append(document, XFormsProperties.getDeltaStateMaxPatches)
+                    case _ ⇒
+                        DynamicStateChain(document)
+                }
+
+        // Mapping (UUID → static state key : dynamic state key
+        put(documentUUID, staticStateDigest + ":" + dynamicStateKey)
+        put(dynamicStateKey, dynamicState)
+    }
+
+    def findState(session: ExternalContext.Session, documentUUID: String, isInitialState: Boolean): XFormsState = {
+
+        if (isDebugEnabled)
+            debug("store size before finding: " + getCurrentSize + " entries.")
+
+        removeExpiredUnattachedDocuments()
+
+        find(documentUUID) match {
+            case Some(keyString: String) ⇒
+                // Found the keys, split into parts
+                val parts = keyString split ':'
+
+                assert(parts.size == 2)
+                assert(parts(0).length == XFormsStaticStateImpl.DIGEST_LENGTH)   // static state key is an hex MD5
+
+                // If isInitialState == true, force finding the initial state. Otherwise, use current state stored in mapping.
+                val dynamicStateKey = if (isInitialState) getDynamicStateKey(documentUUID, true) else parts(1)
+
+                val dynamicState = find(dynamicStateKey) collect {
+                    case state: DynamicState ⇒ state
+                    case chain: DynamicStateChain ⇒ chain.dynamicState
+                }
+
+                (find(parts(0)), dynamicState) match {
+                    case (Some(staticState: String), Some(state)) ⇒
+                        // A document recovered from a previous run now belongs to this session
+                        if (session ne null)
+                            rememberDocument(session, documentUUID, parts(0), staticState)
+                        else
+                            unattachedDocuments.replace(documentUUID, System.currentTimeMillis)
+
+                        XFormsState(Some(parts(0)), staticState, state)
+                    case _ ⇒ null
+                }
+
+            case _ ⇒ null
+        }
+    }
+
+    def getMaxSize = hotTierSize
+    def getCurrentSize = index.size
+
+    def findStateCombined(staticStateDigest: String, dynamicStateUUID: String) = null
+    def addStateCombined(staticStateDigest: String, dynamicStateUUID: String, xformsState: XFormsState, sessionId: String) = ()
+
+    // Write the values not written yet, stop the writer thread, and close the segments, which are kept for the next run
+    private[state] def close() {
+        tasks.put(Stop)
+        writerThread.join()
+        segments.asScala foreach (_.close())
+    }
+
+    private def put(key: String, value: AnyRef) {
+        pending.put(key, value)
+        hotTier.synchronized(hotTier.put(key, value))
+        tasks.put(Write(key, value))
+    }
+
+    private def remove(key: String) {
+        pending.put(key, Removed)
+        hotTier.synchronized(hotTier.remove(key))
+        tasks.put(Remove(key))
+    }
+
+    private def find(key: String): Option[AnyRef] =
+        Option(hotTier.synchronized(hotTier.get(key))) orElse {
+            pending.get(key) match {
+                case Removed ⇒
+                    None
+                case null ⇒
+                    val value = read(key) flatMap {
+                        case storedChain: StoredChain ⇒ readChain(key, storedChain)
+                        case other ⇒ Some(other)
+                    }
+                    value foreach (v ⇒ hotTier.synchronized(hotTier.put(key, v)))
+                    value
+                case value ⇒
+                    Some(value)
+            }
+        }
+
+    private def withStaticStateLock[T](staticStateDigest: String)(body: ⇒ T) =
+        staticStateLocks((staticStateDigest.hashCode & Int.MaxValue) % staticStateLocks.length).synchronized(body)
+
+    // Count the reference of a document to its static state, and remove the document when its session expires
+    private def rememberDocument(session: ExternalContext.Session, documentUUID: String, staticStateDigest: String, encodedStaticState: ⇒ String) {
+
+        // Only write the static state for the first document referring to it, as it doesn't change
+        val isNewDocument = documentStaticStates.putIfAbsent(documentUUID, staticStateDigest) eq null
+        if (isNewDocument)
+            withStaticStateLock(staticStateDigest) {
+                val count = staticStateReferences.asScala.getOrElse(staticStateDigest, 0)
+                staticStateReferences.put(staticStateDigest, count + 1)
+                if (count == 0)
+                    put(staticStateDigest, encodedStaticState)
+            }
+
+        if (session eq null) {
+            // Only a document which doesn't already belong to a session is removed when not used
+            if (isNewDocument)
+                unattachedDocuments.put(documentUUID, System.currentTimeMillis)
+            else
+                unattachedDocuments.replace(documentUUID, System.currentTimeMillis)
+        } else {
+            unattachedDocuments.remove(documentUUID)
+
+            val sessionId = session.getId
+
+            val documents = Option(sessionDocuments.get(sessionId)) getOrElse {
+                val newDocuments = new ConcurrentHashMap[String, String]
+                Option(sessionDocuments.putIfAbsent(sessionId, newDocuments)) getOrElse {
+                    session.addListener(new ExternalContext.Session.SessionListener {
+                        def sessionDestroyed() = removeSessionDocuments(sessionId)
+                    })
+                    newDocuments
+                }
+            }
+
+            documents.putIfAbsent(documentUUID, staticStateDigest)
+        }
+    }
+
+    private def removeSessionDocuments(sessionId: String) =
+        Option(sessionDocuments.remove(sessionId)) foreach { documents ⇒
+
+            if (isDebugEnabled)
+                debug("removing " + documents.size + " documents following session expiration.")
+
+            documents.keySet.asScala foreach removeDocument
+        }
+
+    private def removeDocument(documentUUID: String) {
+        remove(documentUUID)
+        remove(getDynamicStateKey(documentUUID, true))
+        remove(getDynamicStateKey(documentUUID, false))
+
+        Option(documentStaticStates.remove(documentUUID)) foreach { staticStateDigest ⇒
+            withStaticStateLock(staticStateDigest) {
+                staticStateReferences.asScala.getOrElse(staticStateDigest, 0) match {
+                    case count if count <= 1 ⇒
+                        staticStateReferences.remove(staticStateDigest)
+                        remove(staticStateDigest)
+                    case count ⇒
+                        staticStateReferences.put(staticStateDigest, count - 1)
+                }
+            }
+        }
+    }
+
+    // Remove the documents without session which were not used in time, checking at most every tenth of the timeout
+    private def removeExpiredUnattachedDocuments() {
+        val now = System.currentTimeMillis
+        if (now >= nextUnattachedCheck) {
+            nextUnattachedCheck = now + (unattachedTimeout / 10 min 60000)
+
+            val expired = unattachedDocuments.asScala.toList filter { case (_, lastUsed) ⇒ now - lastUsed > unattachedTimeout }
+
+            if (isDebugEnabled && expired.nonEmpty)
+                debug("removing " + expired.size + " documents without session.")
+
+            for ((documentUUID, lastUsed) ← expired if unattachedDocuments.remove(documentUUID, lastUsed))
+                removeDocument(documentUUID)
+        }
+    }
+
+    // Read a value from the log
+    private def read(key: String): Option[AnyRef] = {
+
+        // A segment can be compacted while reading, in which case the value has moved to another location
+        def tryRead(attempts: Int): Option[AnyRef] =
+            Option(index.get(key)) flatMap { location ⇒
+                try Some(deserialize(readBytes(location.segment, location.position, location.length)))
+                catch {
+                    case e: IOException if attempts > 1 && (index.get(key) ne location) ⇒ tryRead(attempts - 1)
+                }
+            }
+
+        tryRead(3)
+    }
+
+    private def readChain(key: String, storedChain: StoredChain) = {
+        val base = read(chainBaseKey(key))
+        val patches = 0 until storedChain.patchCount map (i ⇒ read(chainPatchKey(key, i)))
+
+        base match {
+            case Some(base: DynamicState) if patches forall (_.isDefined) ⇒
+                val chainPatches = patches.flatten.toList collect { case patch: DynamicStatePatch ⇒ patch }
+
+                Some(storedChain.chain(base, chainPatches))
+            case _ ⇒
+                None
+        }
+    }
+
+    // Called by the writer thread only
+    private def process(task: Task) = task match {
+        case Write(key, chain: DynamicStateChain) ⇒
+            writeChain(key, chain)
+
+            // Only forget the pending value if it hasn't been replaced in the meanwhile
+            pending.remove(key, chain)
+
+            compact()
+
+        case Write(key, value) ⇒
+            writeValue(key, value)
+            removeChainParts(key)
+
+            pending.remove(key, value)
+
+            compact()
+
+        case Remove(key) ⇒
+            removeValue(key)
+            removeChainParts(key)
+
+            pending.remove(key, Removed)
+
+        case Stop ⇒
+    }
+
+    private def writeValue(key: String, value: AnyRef) =
+        forget(index.put(key, append(key, serialize(value))))
+
+    private def removeValue(key: String) =
+        Option(index.remove(key)) foreach { location ⇒
+            forget(location)
+            // Record the removal so that the value is not recovered
+            append(key, null)
+        }
+
+    // Write the parts of a chain which were not written with the previous chain stored under the same key
+    private def writeChain(key: String, chain: DynamicStateChain) {
+
+        val previous = Option(writtenChains.get(key)) getOrElse WrittenChain(new WeakReference(null), storedPatchCount(key))
+
+        val firstNewPatch =
+            if (previous.base.get eq chain.base)
+                previous.patchCount
+            else {
+                writeValue(chainBaseKey(key), chain.base)
+                0
+            }
+
+        for (i ← firstNewPatch until chain.patches.size)
+            writeValue(chainPatchKey(key, i), chain.patches(i))
+
+        // Patches of the previous chain which the new chain doesn't have
+        for (i ← chain.patches.size until previous.patchCount)
+            removeValue(chainPatchKey(key, i))
+
+        writeValue(key, StoredChain(chain.patches.size, if (chain.head eq chain.base) None else Some(chain.head), chain.instanceStamps, StoredChain.CurrentRun))
+
+        writtenChains.put(key, WrittenChain(new WeakReference(chain.base), chain.patches.size))
+    }
+
+    private def removeChainParts(key: String) =
+        if ((writtenChains.remove(key) ne null) || index.containsKey(chainBaseKey(key))) {
+            for (i ← 0 until storedPatchCount(key))
+                removeValue(chainPatchKey(key, i))
+            removeValue(chainBaseKey(key))
+        }
+
+    private def storedPatchCount(key: String) =
+        Iterator.from(0).takeWhile(i ⇒ index.containsKey(chainPatchKey(key, i))).size
+
+    private def chainBaseKey(key: String) = key + "#base"
+    private def chainPatchKey(key: String, i: Int) = key + "#patch-" + i
+
+    private def forget(location: Location) =
+        if (location ne null)
+            location.segment.liveBytes.addAndGet(-location.recordLength)
+
+    // Append a record, and return the location of its value, or null if the value is removed
+    private def append(key: String, value: Array[Byte]) = {
+        val keyBytes = key.getBytes("UTF-8")
+        val valueLength = if (value ne null) value.length else -1
+        val recordLength = RecordHeaderSize + keyBytes.length + (if (value ne null) value.length else 0)
+
+        val buffer = ByteBuffer.allocate(recordLength)
+        buffer.putInt(keyBytes.length).putInt(valueLength).put(keyBytes)
+        if (value ne null)
+            buffer.put(value)
+        buffer.flip()
+
+        val segment = currentSegment
+        val position = segment.size
+
+        while (buffer.hasRemaining)
+            segment.channel.write(buffer, position + buffer.position)
+
+        segment.size += recordLength
+
+        if (value ne null) {
+            segment.liveBytes.addAndGet(recordLength)
+            Location(segment, position + RecordHeaderSize + keyBytes.length, valueLength, recordLength)
+        } else
+            null
+    }
+
+    private def currentSegment =
+        if (segments.isEmpty || segments.get(segments.size - 1).size >= SegmentMaxSize) {
+            val number = segmentCounter.incrementAndGet()
+            val segment = new Segment(new File(directory, "segment-" + number + ".log"), number)
+            segments.add(segment)
+            segment
+        } else
+            segments.get(segments.size - 1)
+
+    // Visit the complete records of a segment in order, with their key, value location, and value length or -1 if the
+    // value is removed, and return the size of the complete records
+    private def scan(segment: Segment, size: Long)(visit: (String, Long, Int, Int) ⇒ Unit) = {
+        var position = 0L
+        var complete = true
+        while (complete && position + RecordHeaderSize <= size) {
+            val header = ByteBuffer.wrap(readBytes(segment, position, RecordHeaderSize))
+            val keyLength = header.getInt
+            val valueLength = header.getInt
+            val recordLength = RecordHeaderSize + keyLength + (valueLength max 0)
+
+            if (keyLength < 0 || position + recordLength > size)
+                complete = false // record interrupted by a crash
+            else {
+                val key = new String(readBytes(segment, position + RecordHeaderSize, keyLength), "UTF-8")
+                visit(key, position + RecordHeaderSize + keyLength, valueLength, recordLength)
+                position += recordLength
+            }
+        }
+        position
+    }
+
+    // Move live values out of segments which are mostly garbage, and delete those segments
+    private def compact() =
+        for (segment ← segments.asScala.init if segment.liveBytes.get < segment.size / 2) {
+
+            if (isDebugEnabled)
+                debug("compacting segment " + segment.file.getName)
+
+            // NOTE: Removal records are not kept, so older segments might still hold values removed since. Such values
+            // are not used by any document and are removed again if recovered.
+            scan(segment, segment.size) { (key, position, length, recordLength) ⇒
+                val location = index.get(key)
+                if (length >= 0 && (location ne null) && (location.segment eq segment) && location.position == position) {
+                    val newLocation = append(key, readBytes(segment, position, length))
+                    if (! index.replace(key, location, newLocation))
+                        forget(newLocation)
+                }
+            }
+
+            segments.remove(segment)
+            segment.delete()
+        }
+
+    // Rebuild the index from the segments left by a previous run
+    private def recover() {
+
+        if (! directory.isDirectory && ! directory.mkdirs())
+            throw new OXFException("Cannot create state store directory: " + directory.getAbsolutePath)
+
+        if (! restrictToOwner(directory) || ! directory.canWrite)
+            throw new OXFException("State store directory must be owned and writable by the current user: " + directory.getAbsolutePath)
+
+        val files =
+            for (file ← directory.listFiles.toList; SegmentFileName(number) ← Some(file.getName))
+                yield new Segment(file, number.toLong)
+
+        for (segment ← files sortBy (_.number)) {
+            segments.add(segment)
+            segmentCounter.set(segment.number)
+
+            segment.size = scan(segment, segment.channel.size) { (key, position, length, recordLength) ⇒
+                if (length >= 0) {
+                    segment.liveBytes.addAndGet(recordLength)
+                    forget(index.put(key, Location(segment, position, length, recordLength)))
+                } else
+                    forget(index.remove(key))
+            }
+            segment.channel.truncate(segment.size)
+        }
+
+        if (! index.isEmpty) {
+            // Documents and the static states they refer to
+            val DynamicStateKey = """(.+)-[IC]""".r
+            val documentUUIDs = index.keySet.asScala.toSet collect { case DynamicStateKey(documentUUID) ⇒ documentUUID }
+
+            for (documentUUID ← documentUUIDs; keyString ← read(documentUUID) collect { case keyString: String ⇒ keyString }) {
+                val staticStateDigest = keyString.substring(0, keyString.indexOf(':'))
+                documentStaticStates.put(documentUUID, staticStateDigest)
+                staticStateReferences.put(staticStateDigest, staticStateReferences.asScala.getOrElse(staticStateDigest, 0) + 1)
+                unattachedDocuments.put(documentUUID, System.currentTimeMillis)
+            }
+
+            // Values which no document refers to, including those of incomplete documents
+            for (key ← index.keySet.asScala.toList) {
+                val isUsed =
+                    if (key.length == XFormsStaticStateImpl.DIGEST_LENGTH && ! key.contains('-'))
+                        staticStateReferences.containsKey(key)
+                    else
+                        key.takeWhile(_ != '#') match {
+                            case DynamicStateKey(documentUUID) ⇒ documentStaticStates.containsKey(documentUUID)
+                            case documentUUID ⇒ documentStaticStates.containsKey(documentUUID)
+                        }
+
+                if (! isUsed)
+                    removeValue(key)
+            }
+
+            if (isDebugEnabled)
+                debug("recovered " + unattachedDocuments.size + " documents.")
+        }
+    }
+
+    private def readBytes(segment: Segment, position: Long, length: Int) = {
+        val buffer = ByteBuffer.allocate(length)
+        while (buffer.hasRemaining)
+            if (segment.channel.read(buffer, position + buffer.position) < 0)
+                throw new EOFException
+        buffer.array
+    }
+
+    private def serialize(value: AnyRef) = {
+        val os = new ByteArrayOutputStream
+        val objectOS = new ObjectOutputStream(os)
+        objectOS.writeObject(value)
+        objectOS.close()
+        os.toByteArray
+    }
+
+    private def deserialize(bytes: Array[Byte]) =
+        new StateObjectInputStream(new ByteArrayInputStream(bytes)).readObject()
+
+    // Only let the owner access a file, which fails if the current user is not the owner
+    private def restrictToOwner(file: File) =
+        file.setReadable(false, false) && file.setReadable(true, true) &&
+        file.setWritable(false, false) && file.setWritable(true, true) &&
+        file.setExecutable(false, false) && (! file.isDirectory || file.setExecutable(true, true))
+
+    private def getDynamicStateKey(documentUUID: String, isInitialState: Boolean) =
+        documentUUID + (if (isInitialState) "-I" else "-C") // key is different for initial vs. subsequent state
+
+    private def isDebugEnabled = XFormsStateManager.getIndentedLogger.isDebugEnabled
+
+    private def debug(message: String) =
+        XFormsStateManager.getIndentedLogger.logDebug("", storeDebugName + " store: " + message)
+}
+
+// NOTE: The directory must be set explicitly, as a directory shared with other users can't be used.
+object FileStateStore extends FileStateStore(
+    XFormsProperties.getFileStateStoreDirectory match {
+        case null | "" ⇒ throw new OXFException("The oxf.xforms.state-store.file.directory property must be set to use the file state store.")
+        case path      ⇒ new File(path)
+    },
+    XFormsProperties.getFileStateStoreHotSize,
+    XFormsProperties.getFileStateStoreMaxPendingWrites,
+    XFormsProperties.getFileStateStoreUnattachedTimeout)
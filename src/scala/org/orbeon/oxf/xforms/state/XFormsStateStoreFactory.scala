@@ -14,9 +14,12 @@
 package org.orbeon.oxf.xforms.state
 
 import org.orbeon.oxf.pipeline.api.ExternalContext
-
+import org.orbeon.oxf.xforms.XFormsProperties
 
 object XFormsStateStoreFactory {
-    // Use Ehcache state store
-    def instance(externalContext: ExternalContext): XFormsStateStore = EhcacheStateStore
+    // Use Ehcache state store unless the file state store is configured
+    def instance(externalContext: ExternalContext): XFormsStateStore = XFormsProperties.getStateStore match {
+        case "file" ⇒ FileStateStore
+        case _      ⇒ EhcacheStateStore
+    }
 }
\ No newline at end of file
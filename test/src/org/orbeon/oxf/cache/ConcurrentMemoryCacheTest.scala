@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2011 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.cache
+
+import org.scalatest.junit.AssertionsForJUnit
+import org.junit.Test
+import java.util.concurrent.locks.{ReentrantLock, Lock}
+import scala.actors.Futures._
+import scala.collection.JavaConversions._
+
+class ConcurrentMemoryCacheTest extends AssertionsForJUnit {
+
+    class MyCacheable(val getEvictionLock: Lock) extends Cacheable {
+
+        var wasEvicted = false
+        var wasRemoved = false
+
+        def evicted() { wasEvicted = true }
+        def removed() { wasRemoved = true }
+        def added() {}
+    }
+
+    case class Key(key: String) extends InternalCacheKey("test", key)
+    val VALIDITY = 0L
+
+    // Weighing yields, so that other threads run while objects are weighed
+    class MyWeighable(size: Long) extends Weighable {
+        def getApproximateSize = { Thread.`yield`(); size }
+    }
+
+    @Test def testTakeRemovesFromCache() {
+        val cache = new ConcurrentMemoryCacheImpl("test", 1)
+
+        val o1 = new MyCacheable(null)
+        val key1 = Key("o1")
+        cache.add(key1, VALIDITY, o1)
+
+        assert(cache.takeValid(key1, VALIDITY) eq o1)
+        assert(!o1.wasEvicted)
+        assert(o1.wasRemoved)
+        assert(cache.getCurrentSize === 0)
+
+        // Second take must not find the object
+        assert(cache.takeValid(key1, VALIDITY) eq null)
+    }
+
+    @Test def testReplaceKeepsSize() {
+        val cache = new ConcurrentMemoryCacheImpl("test", 2)
+
+        val key1 = Key("o1")
+        cache.add(key1, VALIDITY, "first")
+        cache.add(key1, VALIDITY + 1, "second")
+
+        assert(cache.findValid(key1, VALIDITY + 1) === "second")
+        assert(cache.findValid(key1, VALIDITY + 2) eq null)
+        assert(cache.getCurrentSize === 1)
+    }
+
+    @Test def testNotEvictedIfLockUnavailable() {
+        val cache = new ConcurrentMemoryCacheImpl("test", 1)
+        val lock = new ReentrantLock
+
+        val o1 = new MyCacheable(lock)
+        cache.add(Key("o1"), VALIDITY, o1)
+
+        lock.lock()
+        try {
+            // Run in separate thread and wait
+            future { cache.add(Key("o2"), VALIDITY, new AnyRef) } apply()
+        } finally {
+            lock.unlock()
+        }
+
+        assert(!o1.wasEvicted)
+        assert(!o1.wasRemoved)
+        assert(cache.getCurrentSize === 2)
+    }
+
+    @Test def testLeastRecentlyReadEvicted() {
+        val size = 100
+        val cache = new ConcurrentMemoryCacheImpl("test", size)
+
+        for (i ← 1 to size)
+            cache.add(Key("o" + i), VALIDITY, i)
+
+        // Read the first object so that it's no longer the least recently used
+        cache.findValid(Key("o1"), VALIDITY)
+
+        cache.add(Key("o" + (size + 1)), VALIDITY, size + 1)
+
+        assert(cache.findValid(Key("o1"), VALIDITY) === 1)
+        assert(cache.findValid(Key("o2"), VALIDITY) eq null)
+        assert(cache.getCurrentSize === size)
+    }
+
+    @Test def testConcurrentAccess() {
+        val size = 50
+        val cache = new ConcurrentMemoryCacheImpl("test", size)
+
+        val futures =
+            for (thread ← 1 to 8)
+                yield future {
+                    for (i ← 1 to 1000) {
+                        val key = Key("o" + (i % (2 * size)))
+                        if (cache.findValid(key, VALIDITY) eq null)
+                            cache.add(key, VALIDITY, i)
+                    }
+                }
+
+        futures foreach (_.apply())
+
+        assert(cache.getCurrentSize <= size)
+        assert(cache.iterateCacheKeys.size === cache.getCurrentSize)
+    }
+
+    @Test def testIterators() {
+        val size = 100
+        val cache = new ConcurrentMemoryCacheImpl("test", size)
+
+        val range = 1 to size
+
+        for (i ← range.reverse)
+            cache.add(Key("o" + i), VALIDITY, i)
+
+        val keysAsInts = cache.iterateCacheKeys map (_.asInstanceOf[Key].key.tail.toInt) toSeq
+        val values = cache.iterateCacheObjects map (_.asInstanceOf[Int]) toSeq
+
+        assert(range === keysAsInts)
+        assert(range === values)
+    }
+
+    @Test def testWeightEvicts() {
+        val cache = new ConcurrentMemoryCacheImpl("test", 10)
+        cache.setMaxWeight(100)
+
+        cache.add(Key("o1"), VALIDITY, new MyWeighable(40))
+        cache.add(Key("o2"), VALIDITY, new MyWeighable(40))
+        assert(cache.getCurrentWeight === 80)
+
+        // Adding a third object must push the first one out
+        cache.add(Key("o3"), VALIDITY, new MyWeighable(40))
+        assert(cache.findValid(Key("o1"), VALIDITY) eq null)
+        assert(cache.getCurrentSize === 2)
+        assert(cache.getCurrentWeight === 80)
+
+        // Object too large for the cache is not kept
+        cache.add(Key("o4"), VALIDITY, new MyWeighable(200))
+        assert(cache.findValid(Key("o4"), VALIDITY) eq null)
+        assert(cache.getCurrentWeight === 80)
+
+        // Reducing the weight evicts
+        cache.setMaxWeight(50)
+        assert(cache.getCurrentSize === 1)
+        assert(cache.getCurrentWeight === 40)
+    }
+
+    @Test def testBoundingWeighsExistingEntries() {
+        val cache = new ConcurrentMemoryCacheImpl("test", 10)
+
+        for (i ← 1 to 3)
+            cache.add(Key("o" + i), VALIDITY, new MyWeighable(40))
+        assert(cache.getCurrentWeight === 0)
+
+        // Entries are weighed and the least recently used one is evicted
+        cache.setMaxWeight(100)
+        assert(cache.getCurrentSize === 2)
+        assert(cache.getCurrentWeight === 80)
+        assert(cache.findValid(Key("o1"), VALIDITY) eq null)
+
+        // Entries are no longer weighed
+        cache.setMaxWeight(0)
+        assert(cache.getCurrentSize === 2)
+        assert(cache.getCurrentWeight === 0)
+        assert(cache.findAny(Key("o2")).weight === 0)
+    }
+
+    @Test def testAddWhileChangingMaxWeight() {
+        for (bounded ← Seq(true, false)) {
+            val cache = new ConcurrentMemoryCacheImpl("test", 1000)
+
+            val adders =
+                for (thread ← 1 to 4)
+                    yield future {
+                        for (i ← 1 to 2000)
+                            cache.add(Key("o" + (i % 500)), VALIDITY, new MyWeighable(10))
+                    }
+
+            val setter = future {
+                for (i ← 1 to 200)
+                    cache.setMaxWeight(if (i % 2 == 0) 0 else 1000000)
+                cache.setMaxWeight(if (bounded) 1000000 else 0)
+            }
+
+            (setter +: adders) foreach (_.apply())
+
+            // All entries are weighed if and only if the cache is bounded, and the total weight is consistent
+            val keys = cache.iterateCacheKeys.toList
+            val expectedWeight = if (bounded) 10 else 0
+            assert(keys.size === cache.getCurrentSize)
+            assert(keys forall (cache.findAny(_).weight == expectedWeight))
+            assert(cache.getCurrentWeight === keys.size * expectedWeight)
+        }
+    }
+}
@@ -212,6 +212,33 @@ class MemoryCacheTest extends AssertionsForJUnit {
         assert(cache.getCurrentSize === 2)
     }
 
+    class MyWeighable(val getApproximateSize: Long) extends Weighable
+
+    @Test def testWeightEvicts() {
+        val cache = new MemoryCacheImpl("test", 10)
+        cache.setMaxWeight(100)
+
+        cache.add(Key("o1"), VALIDITY, new MyWeighable(40))
+        cache.add(Key("o2"), VALIDITY, new MyWeighable(40))
+        assert(cache.getCurrentWeight === 80)
+
+        // Adding a third object must push the first one out
+        cache.add(Key("o3"), VALIDITY, new MyWeighable(40))
+        assert(cache.findValid(Key("o1"), VALIDITY) eq null)
+        assert(cache.getCurrentSize === 2)
+        assert(cache.getCurrentWeight === 80)
+
+        // Object too large for the cache is not kept
+        cache.add(Key("o4"), VALIDITY, new MyWeighable(200))
+        assert(cache.findValid(Key("o4"), VALIDITY) eq null)
+        assert(cache.getCurrentWeight === 80)
+
+        // Reducing the weight evicts
+        cache.setMaxWeight(50)
+        assert(cache.getCurrentSize === 1)
+        assert(cache.getCurrentWeight === 40)
+    }
+
     @Test def testIterators() {
         val size = 100
         val cache = new MemoryCacheImpl("test", size)
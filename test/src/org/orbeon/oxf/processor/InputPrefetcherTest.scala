@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor
+
+import collection.JavaConverters._
+import java.sql.Connection
+import java.util.concurrent.{TimeUnit, CountDownLatch, Executors}
+import org.junit.Test
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.pipeline.api.{XMLReceiver, PipelineContext}
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.PipelineUtils
+import org.orbeon.oxf.xml.{XMLUtils, XMLReceiverAdapter}
+import org.scalatest.junit.AssertionsForJUnit
+
+class InputPrefetcherTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    // Processor with a data output producing the given content
+    class TestProcessor(body: XMLReceiver ⇒ Unit) extends ProcessorImpl {
+        override def createOutput(name: String) =
+            addOutput(name, new ProcessorOutputImpl(this, name) {
+                def readImpl(pipelineContext: PipelineContext, xmlReceiver: XMLReceiver) = body(xmlReceiver)
+            })
+    }
+
+    def element(name: String)(xmlReceiver: XMLReceiver) {
+        xmlReceiver.startDocument()
+        xmlReceiver.startElement("", name, name, XMLUtils.EMPTY_ATTRIBUTES)
+        xmlReceiver.endElement("", name, name)
+        xmlReceiver.endDocument()
+    }
+
+    // Run with inputs connected to processors with the given outputs, and an executor with enough threads
+    def withInputs(bodies: (XMLReceiver ⇒ Unit)*)(test: (PipelineContext, InputPrefetcher, Seq[ProcessorInput]) ⇒ Unit) {
+        val consumer = new TestProcessor(_ ⇒ ())
+        for (body ← bodies)
+            PipelineUtils.connect(new TestProcessor(body), ProcessorImpl.OUTPUT_DATA, consumer, ProcessorImpl.INPUT_DATA)
+
+        val inputs = consumer.getInputsByName(ProcessorImpl.INPUT_DATA)
+        val executor = Executors.newCachedThreadPool
+        val pipelineContext = new PipelineContext
+        try {
+            val inputPrefetcher = new InputPrefetcher(pipelineContext, inputs, executor)
+            try test(pipelineContext, inputPrefetcher, inputs.asScala)
+            finally inputPrefetcher.close()
+        } finally {
+            pipelineContext.destroy(true)
+            executor.shutdownNow()
+        }
+    }
+
+    @Test def failingInput() {
+        withInputs(element("first"), _ ⇒ throw new OXFException("failing input"), element("third")) { (pipelineContext, inputPrefetcher, inputs) ⇒
+            inputPrefetcher.readInputAsSAX(pipelineContext, inputs(0), new XMLReceiverAdapter)
+            val e = intercept[OXFException] {
+                inputPrefetcher.readInputAsSAX(pipelineContext, inputs(1), new XMLReceiverAdapter)
+            }
+            assert("failing input" === OXFException.getRootThrowable(e).getMessage)
+        }
+    }
+
+    @Test def earlyClose() {
+        val started = new CountDownLatch(1)
+        @volatile var done = false
+
+        def blocking(xmlReceiver: XMLReceiver) {
+            started.countDown()
+            try new CountDownLatch(1).await(10, TimeUnit.SECONDS)
+            finally done = true
+        }
+
+        withInputs(element("first"), blocking) { (pipelineContext, inputPrefetcher, inputs) ⇒
+            inputPrefetcher.readInputAsSAX(pipelineContext, inputs(0), new XMLReceiverAdapter)
+            assert(started.await(10, TimeUnit.SECONDS))
+
+            // Close before reading the second input, which must be done when close() returns
+            inputPrefetcher.close()
+            assert(done)
+        }
+    }
+
+    @Test def databaseConnectionUsedOnceInputRead() {
+        val datasource = new Datasource("org.hsqldb.jdbcDriver", "jdbc:hsqldb:mem:prefetch", "sa", "")
+        val connected = new CountDownLatch(1)
+        @volatile var prefetchConnection: Connection = null
+
+        def usingDatabase(xmlReceiver: XMLReceiver) {
+            prefetchConnection = DatabaseContext.getConnection(PipelineContext.get, datasource)
+            connected.countDown()
+            element("second")(xmlReceiver)
+        }
+
+        withInputs(element("first"), usingDatabase) { (pipelineContext, inputPrefetcher, inputs) ⇒
+            val connection = DatabaseContext.getConnection(pipelineContext, datasource)
+            inputPrefetcher.readInputAsSAX(pipelineContext, inputs(0), new XMLReceiverAdapter)
+
+            // The prefetching thread only gets the connection once the input is read, and gets the same connection
+            assert(! connected.await(100, TimeUnit.MILLISECONDS))
+            inputPrefetcher.readInputAsSAX(pipelineContext, inputs(1), new XMLReceiverAdapter)
+            assert(prefetchConnection eq connection)
+        }
+    }
+}
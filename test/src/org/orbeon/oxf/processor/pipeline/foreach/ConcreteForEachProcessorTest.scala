@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.pipeline.foreach
+
+import collection.JavaConverters._
+import java.sql.Connection
+import java.util.concurrent.{ConcurrentHashMap, CopyOnWriteArrayList}
+import java.util.concurrent.atomic.AtomicInteger
+import org.dom4j.{QName, Namespace}
+import org.junit.Test
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.pipeline.api.{XMLReceiver, PipelineContext}
+import org.orbeon.oxf.processor._
+import org.orbeon.oxf.processor.impl.CacheableTransformerOutputImpl
+import org.orbeon.oxf.processor.pipeline.PipelineProcessor
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.PipelineUtils
+import org.orbeon.oxf.xml.TransformerUtils
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils
+import org.orbeon.oxf.processor.generator.DOMGenerator
+import org.scalatest.junit.AssertionsForJUnit
+import xml.Elem
+
+class ConcreteForEachProcessorTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    import ConcreteForEachProcessorTest._
+
+    @Test def parallelOutputInDocumentOrder() {
+        // Later iterations are faster, so that they are done first
+        val items = 1 to 20 map (i ⇒ <item delay={((20 - i) * 5).toString}>{i}</item>)
+
+        assert(runForEach(items, parallel = true) === (1 to 20 map (_.toString)))
+        assert(threads.size > 1)
+    }
+
+    @Test def errorInWorkerThread() {
+        val items = 1 to 10 map (i ⇒ <item delay="20" fail-in-worker="true">{i}</item>)
+
+        val e = intercept[OXFException] {
+            runForEach(items, parallel = true)
+        }
+        assert(OXFException.getRootThrowable(e).getMessage === "failed in worker")
+    }
+
+    @Test def cacheIterationsByContent() {
+        val items = Seq(<item>a</item>, <item>b</item>, <item>a</item>)
+
+        assert(runForEach(items, cache = true) === Seq("a", "b", "a"))
+        val executionsAfterFirstRun = executions.get
+
+        // The same content is found in cache, even with new processors and documents
+        assert(runForEach(items, cache = true) === Seq("a", "b", "a"))
+        assert(executions.get === executionsAfterFirstRun)
+
+        // Changed content is not found
+        assert(runForEach(Seq(<item>a</item>, <item>c</item>), cache = true) === Seq("a", "c"))
+        assert(executions.get === executionsAfterFirstRun + 1)
+    }
+
+    @Test def databaseUsedInDocumentOrder() {
+        // Later iterations are faster, so that they reach the database first if nothing prevents them
+        val items = 1 to 10 map (i ⇒ <item delay={((10 - i) * 10).toString} database="true">{i}</item>)
+
+        assert(runForEach(items, parallel = true) === (1 to 10 map (_.toString)))
+        assert(connectionUses.asScala.toList === (1 to 10 map (_.toString)))
+        assert(connections.size === 1)
+    }
+
+    // Run p:for-each over the given items with an iteration processor, and return the values of the iterations
+    private def runForEach(items: Seq[Elem], parallel: Boolean = false, cache: Boolean = false) = {
+
+        threads.clear()
+        connectionUses.clear()
+        connections.clear()
+
+        val config =
+            <p:config xmlns:p="http://www.orbeon.com/oxf/pipeline" xmlns:test={TestNamespace.getURI}>
+                <p:param type="input" name="data"/>
+                <p:param type="output" name="data"/>
+                <p:for-each href="#data" select="/items/item" root="items" ref="data" parallel={parallel.toString} cache={cache.toString}>
+                    <p:processor name="test:iteration">
+                        <p:input name="data" href="current()"/>
+                        <p:output name="data" ref="data"/>
+                    </p:processor>
+                </p:for-each>
+            </p:config>
+
+        val pipeline = new PipelineProcessor
+        PipelineUtils.connect(domGenerator(config), ProcessorImpl.OUTPUT_DATA, pipeline, ProcessorImpl.INPUT_CONFIG)
+        PipelineUtils.connect(domGenerator(<items>{items}</items>), ProcessorImpl.OUTPUT_DATA, pipeline, ProcessorImpl.INPUT_DATA)
+
+        val serializer = new DOMSerializer
+        PipelineUtils.connect(pipeline, ProcessorImpl.OUTPUT_DATA, serializer, ProcessorImpl.INPUT_DATA)
+
+        val pipelineContext = createPipelineContextWithExternalContext()
+        var success = false
+        try {
+            serializer.start(pipelineContext)
+            val document = serializer.getDocument(pipelineContext)
+            success = true
+
+            document.getRootElement.elements.asScala map (_.asInstanceOf[org.dom4j.Element].getText)
+        } finally
+            pipelineContext.destroy(success)
+    }
+
+    private def domGenerator(elem: Elem) =
+        PipelineUtils.createDOMGenerator(Dom4jUtils.readDom4j(elem.toString), "test", DOMGenerator.ZeroValidity, "oxf:/test.xml")
+}
+
+object ConcreteForEachProcessorTest {
+
+    val TestNamespace = Namespace.get("test", "urn:orbeon:test:for-each")
+
+    val executions = new AtomicInteger
+    val threads = new ConcurrentHashMap[Thread, Boolean]
+    val connectionUses = new CopyOnWriteArrayList[String]
+    val connections = new ConcurrentHashMap[Connection, Boolean]
+
+    val TestDatasource = new Datasource("org.hsqldb.jdbcDriver", "jdbc:hsqldb:mem:for-each", "sa", "")
+
+    // Iteration processor, which outputs its input and whose behavior depends on the attributes of its input
+    class IterationProcessor extends ProcessorImpl {
+
+        addInputInfo(new ProcessorInputOutputInfo(ProcessorImpl.INPUT_DATA))
+        addOutputInfo(new ProcessorInputOutputInfo(ProcessorImpl.OUTPUT_DATA))
+
+        override def createOutput(name: String) =
+            addOutput(name, new CacheableTransformerOutputImpl(this, name) {
+                def readImpl(pipelineContext: PipelineContext, xmlReceiver: XMLReceiver) {
+                    val document = readInputAsDOM4J(pipelineContext, ProcessorImpl.INPUT_DATA)
+                    val item = document.getRootElement
+
+                    executions.incrementAndGet()
+                    threads.put(Thread.currentThread, true)
+
+                    Option(item.attributeValue("delay")) foreach (delay ⇒ Thread.sleep(delay.toLong))
+
+                    if (item.attributeValue("fail-in-worker") == "true" && Thread.currentThread.getName == "Pipeline for-each iteration")
+                        throw new OXFException("failed in worker")
+
+                    if (item.attributeValue("database") == "true") {
+                        connections.put(DatabaseContext.getConnection(pipelineContext, TestDatasource), true)
+                        connectionUses.add(item.getText)
+                    }
+
+                    TransformerUtils.writeDom4j(document, xmlReceiver)
+                }
+            })
+    }
+
+    ProcessorFactoryRegistry.bind(new QName("iteration", TestNamespace), new ProcessorFactory {
+        def createInstance = new IterationProcessor
+    })
+}
@@ -13,6 +13,7 @@
  */
 package org.orbeon.oxf.test;
 
+import org.apache.commons.io.FileUtils;
 import org.dom4j.Document;
 import org.junit.After;
 import org.junit.Before;
@@ -25,10 +26,14 @@ import org.orbeon.oxf.processor.test.TestExternalContext;
 import org.orbeon.oxf.util.DateUtils;
 import org.orbeon.oxf.util.NetUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class NetUtilsTest extends ResourceManagerTestBase {
 
@@ -78,4 +83,87 @@ public class NetUtilsTest extends ResourceManagerTestBase {
         // For some reason the code checks that there is more than one second of difference
         assertEquals(NetUtils.checkIfModifiedSince(request, ifModifiedHeaderLong + 1001), true);
     }
+
+    @Test
+    public void testIsAcceptGzip() {
+        assertFalse(NetUtils.isAcceptGzip(requestWithAcceptEncoding(null)));
+        assertFalse(NetUtils.isAcceptGzip(requestWithAcceptEncoding("identity")));
+        assertFalse(NetUtils.isAcceptGzip(requestWithAcceptEncoding("deflate, identity;q=0.5")));
+
+        assertTrue(NetUtils.isAcceptGzip(requestWithAcceptEncoding("gzip")));
+        assertTrue(NetUtils.isAcceptGzip(requestWithAcceptEncoding("GZIP")));
+        assertTrue(NetUtils.isAcceptGzip(requestWithAcceptEncoding("gzip, deflate")));
+        assertTrue(NetUtils.isAcceptGzip(requestWithAcceptEncoding("identity, deflate , gzip")));
+
+        // Quality values
+        assertTrue(NetUtils.isAcceptGzip(requestWithAcceptEncoding("gzip;q=1.0, identity; q=0.5")));
+        assertTrue(NetUtils.isAcceptGzip(requestWithAcceptEncoding("gzip; q=0.5")));
+        assertTrue(NetUtils.isAcceptGzip(requestWithAcceptEncoding("gzip;q=0.001")));
+        assertFalse(NetUtils.isAcceptGzip(requestWithAcceptEncoding("gzip;q=0")));
+        assertFalse(NetUtils.isAcceptGzip(requestWithAcceptEncoding("gzip; q = 0.000")));
+        assertFalse(NetUtils.isAcceptGzip(requestWithAcceptEncoding("identity, gzip;q=0")));
+    }
+
+    @Test
+    public void testGzipSibling() throws IOException {
+        final File directory = File.createTempFile("netutils", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            final File file = new File(directory, "resource.js");
+            final File gzipFile = new File(directory, "resource.js.gz");
+            FileUtils.writeStringToFile(file, "var a = 1;");
+
+            // No gzipped file
+            assertNull(NetUtils.getGzipSibling(file));
+
+            // Up-to-date gzipped file
+            FileUtils.writeStringToFile(gzipFile, "gzipped");
+            file.setLastModified(100000000L);
+            gzipFile.setLastModified(100000000L);
+            assertEquals(gzipFile, NetUtils.getGzipSibling(file));
+
+            // Out of date gzipped file
+            file.setLastModified(200000000L);
+            assertNull(NetUtils.getGzipSibling(file));
+
+            // Directory instead of gzipped file
+            gzipFile.delete();
+            gzipFile.mkdir();
+            gzipFile.setLastModified(300000000L);
+            assertNull(NetUtils.getGzipSibling(file));
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    @Test
+    public void testCopyFile() throws IOException {
+        final File file = File.createTempFile("netutils", ".bin");
+        try {
+            final byte[] bytes = new byte[100000];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) i;
+            FileUtils.writeByteArrayToFile(file, bytes);
+
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            NetUtils.copyFile(file, os);
+            assertTrue(Arrays.equals(bytes, os.toByteArray()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static ExternalContext.Request requestWithAcceptEncoding(String acceptEncoding) {
+        final Map<String, String[]> headers = new HashMap<String, String[]>();
+        if (acceptEncoding != null)
+            headers.put("accept-encoding", new String[] { acceptEncoding });
+
+        return new RequestAdapter() {
+            @Override
+            public Map<String, String[]> getHeaderValuesMap() {
+                return headers;
+            }
+        };
+    }
 }
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.util
+
+import java.util.Arrays
+import org.junit.Test
+import org.orbeon.oxf.common.OXFException
+import org.scalatest.junit.AssertionsForJUnit
+
+class SecureUtilsTest extends AssertionsForJUnit {
+
+    val Password = "secret"
+
+    def content(size: Int) = {
+        val random = new java.util.Random(42)
+        Array.fill[Byte](size)(random.nextInt.asInstanceOf[Byte])
+    }
+
+    @Test def roundTrip() {
+        for (size ← Seq(0, 1, 15, 16, 17, 1000, 100 * 1000)) {
+            val bytes = content(size)
+            assert(Arrays.equals(bytes, SecureUtils.decrypt(Password, SecureUtils.encrypt(Password, bytes))))
+            assert(Arrays.equals(bytes, SecureUtils.decryptAuthenticated(Password, SecureUtils.encryptAuthenticated(Password, bytes))))
+        }
+    }
+
+    @Test def randomIV() {
+        val bytes = content(100)
+        assert(SecureUtils.encryptAuthenticated(Password, bytes) != SecureUtils.encryptAuthenticated(Password, bytes))
+    }
+
+    @Test def detectChanges() {
+        val encrypted = Base64.decode(SecureUtils.encryptAuthenticated(Password, content(100)))
+
+        // Change one bit in the IV, the encrypted data and the MAC
+        for (position ← Seq(0, 20, encrypted.length - 1)) {
+            val changed = encrypted.clone
+            changed(position) = (changed(position) ^ 1).asInstanceOf[Byte]
+            intercept[OXFException] {
+                SecureUtils.decryptAuthenticated(Password, Base64.encode(changed, false))
+            }
+        }
+
+        // Wrong password
+        intercept[OXFException] {
+            SecureUtils.decryptAuthenticated("other", Base64.encode(encrypted, false))
+        }
+    }
+
+    @Test def concurrentUse() {
+        val bytes = content(1000)
+        val threads =
+            for (i ← 1 to 4) yield
+                new Thread {
+                    var success = true
+                    override def run() =
+                        for (j ← 1 to 100)
+                            success &&= Arrays.equals(bytes, SecureUtils.decryptAuthenticated(Password, SecureUtils.encryptAuthenticated(Password, bytes)))
+                }
+
+        threads foreach (_.start())
+        threads foreach (_.join())
+        assert(threads forall (_.success))
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.util
+
+import org.junit.Test
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.xforms.XFormsStaticStateImpl
+import org.orbeon.saxon.value.StringValue
+import org.scalatest.junit.AssertionsForJUnit
+
+class XPathCacheTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    @Test def evictLeastRecentlyUsed() {
+
+        // Evaluate an expression and return whether it was found in the cache
+        def evaluate(xpathString: String) = {
+            val missCount = XPathCache.getMissCount
+            XPathCache.evaluateSingle(StringValue.makeStringValue("context"), xpathString,
+                XFormsStaticStateImpl.BASIC_NAMESPACE_MAPPING, null, null, null, null, null)
+            XPathCache.getMissCount == missCount
+        }
+
+        val MaxSize = 20
+        val hot = "'xpath-cache-test-hot'"
+        def cold(i: Int) = "'xpath-cache-test-cold', " + i
+
+        // Keep using the hot expression while adding more cold expressions than the cache can hold
+        evaluate(hot)
+        for (i ← 1 to 100) {
+            evaluate(cold(i))
+            assert(evaluate(hot))
+        }
+
+        XPathCache.evictIfNeeded(MaxSize)
+        assert(XPathCache.getCurrentSize < MaxSize)
+
+        // Recently used expressions are kept, and the oldest ones are evicted
+        assert(evaluate(hot))
+        assert(evaluate(cold(100)))
+        assert(! evaluate(cold(1)))
+    }
+}
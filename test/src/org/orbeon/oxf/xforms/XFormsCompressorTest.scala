@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms
+
+import org.scalatest.junit.AssertionsForJUnit
+import org.junit.Test
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.util.NetUtils
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+import java.util.zip.{Deflater, GZIPInputStream, GZIPOutputStream}
+import java.util.Arrays
+
+class XFormsCompressorTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    // Compressible content of the given size
+    def content(size: Int) = {
+        val random = new java.util.Random(42)
+        Array.fill[Byte](size)(('a' + random.nextInt(20)).asInstanceOf[Byte])
+    }
+
+    def gunzip(bytes: Array[Byte]) = {
+        val os = new ByteArrayOutputStream
+        NetUtils.copyStream(new GZIPInputStream(new ByteArrayInputStream(bytes)), os)
+        os.toByteArray
+    }
+
+    @Test def roundTrip() {
+        for (size ← Seq(0, 1, 1000, 100 * 1000)) {
+            val bytes = content(size)
+            val compressed = XFormsCompressor.compressBytes(bytes, Deflater.BEST_SPEED)
+
+            assert(Arrays.equals(bytes, XFormsCompressor.uncompressBytes(compressed)))
+            assert(Arrays.equals(bytes, gunzip(compressed)))
+        }
+    }
+
+    @Test def streaming() {
+        val bytes = content(100 * 1000)
+        val compressed = XFormsCompressor.compressStreamWith(Deflater.BEST_SPEED, 0) { os ⇒
+            for (i ← 0 until bytes.length by 1000)
+                os.write(bytes, i, 1000)
+        }
+
+        assert(Arrays.equals(bytes, XFormsCompressor.uncompressBytes(compressed)))
+    }
+
+    @Test def parallelBlocks() {
+        for (size ← Seq(0, 10, 4096, 4097, 100 * 1000)) {
+            val bytes = content(size)
+            val compressed = XFormsCompressor.compressStreamWith(Deflater.BEST_SPEED, 4096)(_.write(bytes))
+
+            // Multiple members are readable by both decoders
+            assert(Arrays.equals(bytes, XFormsCompressor.uncompressBytes(compressed)))
+            assert(Arrays.equals(bytes, gunzip(compressed)))
+        }
+    }
+
+    @Test def standardGZIPInput() {
+        // Content compressed by the JDK rather than with a pooled Deflater
+        val bytes = content(10 * 1000)
+        val os = new ByteArrayOutputStream
+        val gzipOS = new GZIPOutputStream(os)
+        gzipOS.write(bytes)
+        gzipOS.close()
+
+        assert(Arrays.equals(bytes, XFormsCompressor.uncompressBytes(os.toByteArray)))
+    }
+
+    @Test def corruptedInput() {
+        val compressed = XFormsCompressor.compressBytes(content(1000), Deflater.BEST_SPEED)
+
+        // Truncated
+        intercept[OXFException] {
+            XFormsCompressor.uncompressBytes(compressed take (compressed.length - 4))
+        }
+
+        // Wrong CRC
+        compressed(compressed.length - 8) = (compressed(compressed.length - 8) + 1).asInstanceOf[Byte]
+        intercept[OXFException] {
+            XFormsCompressor.uncompressBytes(compressed)
+        }
+    }
+
+    @Test def parallelBlocksReused() {
+        val blockSize = 4096
+        val bytes = content(20 * blockSize)
+        val os = new ByteArrayOutputStream
+        val parallelOS = new XFormsCompressor.ParallelGZIPOutputStream(Deflater.BEST_SPEED, blockSize, os)
+
+        // Write one block at a time, once previous blocks are compressed
+        for (offset ← 0 until bytes.length by blockSize) {
+            while (! parallelOS.blocksDone)
+                Thread.sleep(1)
+            parallelOS.write(bytes, offset, blockSize)
+        }
+        parallelOS.close()
+
+        assert(Arrays.equals(bytes, XFormsCompressor.uncompressBytes(os.toByteArray)))
+        assert(parallelOS.allocatedBlocks === 2)
+    }
+
+    @Test def parallelBlocksCancelledOnError() {
+        var parallelOS: XFormsCompressor.ParallelGZIPOutputStream = null
+
+        val e = intercept[OXFException] {
+            XFormsCompressor.compressStreamWith(Deflater.BEST_SPEED, 4096) { os ⇒
+                parallelOS = os.asInstanceOf[XFormsCompressor.ParallelGZIPOutputStream]
+                os.write(content(100 * 4096))
+                throw new OXFException("write failed")
+            }
+        }
+
+        assert(e.getMessage === "write failed")
+        assert(parallelOS.blocksDone)
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms
+
+import collection.mutable.ListBuffer
+import org.junit.Test
+import org.orbeon.oxf.test.DocumentTestBase
+import org.orbeon.oxf.xforms.event.events.XFormsCustomEvent
+import org.orbeon.oxf.xforms.event.{Dispatch, XFormsEventTarget}
+import org.orbeon.oxf.xforms.model.DataModel
+import org.orbeon.saxon.om.NodeInfo
+import org.scalatest.junit.AssertionsForJUnit
+import xml.Node
+
+class XFormsModelSchemaValidatorTest extends DocumentTestBase with AssertionsForJUnit {
+
+    @Test def incrementalMatchesFullValidation() {
+        setupItems(
+            <item flag="true">1</item>
+            <item flag="maybe">2</item>
+            <item>three</item>
+        )
+
+        assert(schemaState exists (! _._3))
+
+        assertIncrementalMatchesFull(Seq(
+            "set-valid", "set-invalid", "set-attribute", "set-date",
+            "insert", "set-valid", "set-date-valid", "set-invalid",
+            "replace", "set-date", "set-invalid", "set-date-valid"))
+    }
+
+    @Test def incrementalMatchesFullValidationWithManyLeaves() {
+        setupItems(1 to 1500 map (i ⇒ <item flag="true">{i}</item>))
+
+        // Changed values are revalidated incrementally
+        for (event ← Seq("set-invalid", "set-attribute", "set-date", "set-date-valid")) {
+            val count = model.getSchemaValidator.getIncrementalRevalidationCount
+            dispatch(event)
+            assert(model.getSchemaValidator.getIncrementalRevalidationCount === count + 1, "after " + event)
+            assert(schemaState === fullValidationSchemaState, "after " + event)
+        }
+
+        assertIncrementalMatchesFull(Seq("insert", "set-invalid", "set-date"))
+    }
+
+    // Dispatch each event and check that the resulting schema state is the one a full validation gives
+    private def assertIncrementalMatchesFull(events: Seq[String]) =
+        for (event ← events) {
+            dispatch(event)
+            assert(schemaState === fullValidationSchemaState, "after " + event)
+        }
+
+    private def setupItems(items: Seq[Node]) =
+        this setupDocument
+            <xh:html xmlns:xf="http://www.w3.org/2002/xforms"
+                     xmlns:xh="http://www.w3.org/1999/xhtml"
+                     xmlns:xs="http://www.w3.org/2001/XMLSchema"
+                     xmlns:ev="http://www.w3.org/2001/xml-events">
+                <xh:head>
+                    <xf:model id="model">
+                        <xs:schema>
+                            <xs:element name="items">
+                                <xs:complexType>
+                                    <xs:sequence>
+                                        <xs:element name="item" minOccurs="0" maxOccurs="unbounded">
+                                            <xs:complexType>
+                                                <xs:simpleContent>
+                                                    <xs:extension base="xs:integer">
+                                                        <xs:attribute name="flag" type="xs:boolean"/>
+                                                    </xs:extension>
+                                                </xs:simpleContent>
+                                            </xs:complexType>
+                                        </xs:element>
+                                        <xs:element name="date" type="xs:date"/>
+                                    </xs:sequence>
+                                </xs:complexType>
+                            </xs:element>
+                        </xs:schema>
+
+                        <xf:instance id="instance">
+                            <items>{items}<date>2012-01-01</date></items>
+                        </xf:instance>
+
+                        <xf:instance id="replacement">
+                            <items><item>4</item><item flag="no">5</item><date>tomorrow</date></items>
+                        </xf:instance>
+
+                        <xf:setvalue ev:event="set-valid"      ref="item[3]">3</xf:setvalue>
+                        <xf:setvalue ev:event="set-invalid"    ref="item[1]">one</xf:setvalue>
+                        <xf:setvalue ev:event="set-attribute"  ref="item[2]/@flag">false</xf:setvalue>
+                        <xf:setvalue ev:event="set-date"       ref="date">soon</xf:setvalue>
+                        <xf:setvalue ev:event="set-date-valid" ref="date">2012-12-31</xf:setvalue>
+                        <xf:insert   ev:event="insert"         ref="item" origin="xf:element('item', 'six')"/>
+                        <xf:insert   ev:event="replace"        context="instance('instance')/root()" origin="instance('replacement')"/>
+                    </xf:model>
+                </xh:head>
+                <xh:body/>
+            </xh:html>
+
+    private def dispatch(name: String) {
+        document.startOutermostActionHandler()
+        Dispatch.dispatchEvent(new XFormsCustomEvent(document, name, document.getObjectByEffectiveId("model").asInstanceOf[XFormsEventTarget], true, true))
+        document.endOutermostActionHandler()
+    }
+
+    private def model = document.getDefaultModel
+    private def instance = model.getInstance("instance")
+
+    // Name, value, validity and type of the instance's elements and attributes
+    private def schemaState = {
+        val nodes = ListBuffer[NodeInfo]()
+        DataModel.visitElement(instance.instanceRoot, nodes += _)
+        nodes map (node ⇒ (node.getDisplayName, node.getStringValue, InstanceData.getValid(node), InstanceData.getType(node))) toList
+    }
+
+    private def fullValidationSchemaState = {
+        DataModel.visitElement(instance.instanceRoot, InstanceData.clearSchemaState(_: NodeInfo))
+        model.getSchemaValidator.validateInstance(instance)
+        schemaState
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import org.junit.Test
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.{XPathCache, IndentedLogger}
+import org.orbeon.oxf.xforms.XFormsServerSharedInstancesCache.Loader
+import org.orbeon.oxf.xforms.processor.XFormsServer
+import org.orbeon.oxf.xml.TransformerUtils
+import org.orbeon.saxon.om.DocumentInfo
+import org.scalatest.junit.AssertionsForJUnit
+
+class XFormsServerSharedInstancesCacheTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    implicit val logger = new IndentedLogger(XFormsServer.logger, "test")
+
+    val LoadWaitTimeout = 60000L
+
+    def newDocument() = TransformerUtils.stringToTinyTree(XPathCache.getGlobalConfiguration, "<instance/>", false, false)
+    def instanceCaching(name: String, timeToLive: Long = -1) = InstanceCaching(timeToLive, false, "oxf:/shared-instances-test/" + name + ".xml", None)
+
+    @Test def concurrentRequestsShareSingleLoad() {
+
+        val caching = instanceCaching("single-flight")
+        val document = newDocument()
+        val loadCount = new AtomicInteger
+        val loadStarted = new CountDownLatch(1)
+        val loadReleased = new CountDownLatch(1)
+
+        val loader = new Loader {
+            def load(instanceSourceURI: String, handleXInclude: Boolean) = {
+                loadCount.incrementAndGet()
+                loadStarted.countDown()
+                loadReleased.await(LoadWaitTimeout, TimeUnit.MILLISECONDS)
+                document
+            }
+        }
+
+        val results = new Array[DocumentInfo](10)
+        val threads =
+            for (i ← 0 until results.length)
+                yield new Thread {
+                    override def run() = results(i) = XFormsServerSharedInstancesCache.findOrLoad(caching, loader, 0, LoadWaitTimeout)
+                }
+
+        threads foreach (_.start())
+        assert(loadStarted.await(LoadWaitTimeout, TimeUnit.MILLISECONDS))
+        loadReleased.countDown()
+        threads foreach (_.join())
+
+        // Requests either waited for the single load or found its result in the cache
+        assert(1 === loadCount.get)
+        assert(results forall (_ eq document))
+    }
+
+    @Test def failedRefreshUsesCachedInstance() {
+
+        // Refresh ahead longer than the time to live so that the cached instance is always due for a refresh
+        val caching = instanceCaching("failed-refresh", timeToLive = 60000)
+        val RefreshAhead = 120000L
+
+        val cached = newDocument()
+        val refreshed = newDocument()
+        var next: () ⇒ DocumentInfo = () ⇒ cached
+
+        val loader = new Loader {
+            def load(instanceSourceURI: String, handleXInclude: Boolean) = next()
+        }
+
+        def findOrLoad() = XFormsServerSharedInstancesCache.findOrLoad(caching, loader, RefreshAhead, LoadWaitTimeout)
+
+        assert(findOrLoad() eq cached)
+
+        next = () ⇒ throw new RuntimeException("refresh failed")
+        assert(findOrLoad() eq cached)
+
+        next = () ⇒ refreshed
+        assert(findOrLoad() eq refreshed)
+        assert(findOrLoad() eq refreshed)
+    }
+
+    @Test def reentrantLoadDoesNotWait() {
+
+        val caching = instanceCaching("reentrant")
+        val document = newDocument()
+        val loadCount = new AtomicInteger
+
+        // Loading the instance loads the same instance again in the same thread, like a page loaded through HTTP which
+        // itself uses the shared instance
+        lazy val loader: Loader = new Loader {
+            def load(instanceSourceURI: String, handleXInclude: Boolean) =
+                if (loadCount.incrementAndGet() == 1)
+                    XFormsServerSharedInstancesCache.findOrLoad(caching, loader, 0, LoadWaitTimeout)
+                else
+                    document
+        }
+
+        val start = System.currentTimeMillis
+        assert(XFormsServerSharedInstancesCache.findOrLoad(caching, loader, 0, LoadWaitTimeout) eq document)
+        assert(System.currentTimeMillis - start < LoadWaitTimeout)
+        assert(2 === loadCount.get)
+    }
+}
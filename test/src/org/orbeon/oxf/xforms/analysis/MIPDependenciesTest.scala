@@ -17,6 +17,9 @@ import org.orbeon.oxf.common.Version
 import org.junit._
 import org.scalatest.junit._
 import org.orbeon.oxf.test.DocumentTestBase
+import org.orbeon.oxf.xforms.event.{Dispatch, XFormsEventTarget}
+import org.orbeon.oxf.xforms.event.events.XFormsCustomEvent
+import org.orbeon.oxf.xforms.analysis.model.Model
 
 class MIPDependenciesTest extends DocumentTestBase with AssertionsForJUnit {
 
@@ -169,5 +172,163 @@ class MIPDependenciesTest extends DocumentTestBase with AssertionsForJUnit {
         }
     }
 
+    @Test def calculateBindsInDependencyOrder() {
+        Assume.assumeTrue(Version.isPE) // only test this feature if we are the PE version
+
+        // Chain of calculated fields, where each bind is declared before the bind it depends on
+        val Count = 2000
+
+        this setupDocument
+            <xh:html xmlns:xf="http://www.w3.org/2002/xforms"
+                     xmlns:xh="http://www.w3.org/1999/xhtml"
+                     xmlns:xxf="http://orbeon.org/oxf/xml/xforms">
+                <xh:head>
+                    <xf:model xxf:xpath-analysis="true">
+                        <xf:instance id="instance">
+                            <values>{ 0 to Count map (i ⇒ <value>0</value>.copy(label = "value" + i)) }</values>
+                        </xf:instance>
+                        { Count to 1 by -1 map (i ⇒ <xf:bind ref={"value" + i} calculate={"instance('instance')/value" + (i - 1) + " + 1"}/>) }
+                    </xf:model>
+                </xh:head>
+                <xh:body>
+                    <xf:input id="first" ref="value0"/>
+                    <xf:output id="last" ref={"value" + Count}/>
+                </xh:body>
+            </xh:html>
+
+        // A single recalculate must go through the whole chain
+        assert(Count.toString === getControlValue("last"))
+
+        setControlValue("first", "10")
+        assert((Count + 10).toString === getControlValue("last"))
+    }
+
+    @Test def mipsKeptAcrossInsertAndDelete() {
+        Assume.assumeTrue(Version.isPE) // only test this feature if we are the PE version
+
+        this setupDocument
+            <xh:html xmlns:xf="http://www.w3.org/2002/xforms"
+                     xmlns:xh="http://www.w3.org/1999/xhtml"
+                     xmlns:xxf="http://orbeon.org/oxf/xml/xforms"
+                     xmlns:ev="http://www.w3.org/2001/xml-events">
+                <xh:head>
+                    <xf:model id="model" xxf:xpath-analysis="true">
+                        <xf:instance id="instance">
+                            <items>
+                                <item>3</item>
+                                <item>0</item>
+                                <item>7</item>
+                                <total/>
+                            </items>
+                        </xf:instance>
+                        <xf:bind ref="item" constraint=". > 0"/>
+                        <xf:bind ref="total" calculate="sum(../item)"/>
+
+                        <xf:insert ev:event="add" ref="item" origin="xf:element('item', '5')"/>
+                        <xf:delete ev:event="remove" ref="item[1]"/>
+                    </xf:model>
+                </xh:head>
+                <xh:body>
+                    <xf:repeat ref="item">
+                        <xf:input id="value" ref="."/>
+                    </xf:repeat>
+                    <xf:output id="total" ref="total"/>
+                </xh:body>
+            </xh:html>
+
+        def dispatch(name: String) {
+            document.startOutermostActionHandler()
+            Dispatch.dispatchEvent(new XFormsCustomEvent(document, name, document.getObjectByEffectiveId("model").asInstanceOf[XFormsEventTarget], true, true))
+            document.endOutermostActionHandler()
+        }
+
+        def validity = 1 to 4 map ("value·" + _) takeWhile (getObject(_) ne null) map isValid
+
+        assert(Seq(true, false, true) === validity)
+        assert("10" === getControlValue("total"))
+
+        // Existing nodes keep their MIPs and the new node gets its own
+        dispatch("add")
+        assert(Seq(true, false, true, true) === validity)
+        assert("15" === getControlValue("total"))
+
+        setControlValue("value·4", "-1")
+        assert(Seq(true, false, true, false) === validity)
+        assert("9" === getControlValue("total"))
+
+        // Remaining nodes keep their MIPs after a delete
+        dispatch("remove")
+        assert(Seq(false, true, false) === validity)
+        assert("6" === getControlValue("total"))
+    }
+
+    @Test def positionDependentMIPsAfterInsertAndDelete() {
+
+        // NOTE: Not limited to PE, so that both ways of updating MIPs must give the same results
+        this setupDocument
+            <xh:html xmlns:xf="http://www.w3.org/2002/xforms"
+                     xmlns:xh="http://www.w3.org/1999/xhtml"
+                     xmlns:xxf="http://orbeon.org/oxf/xml/xforms"
+                     xmlns:ev="http://www.w3.org/2001/xml-events">
+                <xh:head>
+                    <xf:model id="model" xxf:xpath-analysis="true">
+                        <xf:instance id="instance">
+                            <items>
+                                <item>a</item>
+                                <item/>
+                                <item>c</item>
+                            </items>
+                        </xf:instance>
+                        <xf:bind ref="item" readonly="position() = 1"/>
+                        <xf:bind ref="item" required="count(preceding-sibling::item) = 1"/>
+                        <xf:bind ref="item" constraint="following-sibling::item or . != ''"/>
+
+                        <xf:insert ev:event="add-first" ref="item" at="1" position="before" origin="xf:element('item')"/>
+                        <xf:delete ev:event="remove-last" ref="item[last()]"/>
+                        <xf:delete ev:event="remove-first" ref="item[1]"/>
+                    </xf:model>
+                </xh:head>
+                <xh:body>
+                    <xf:repeat ref="item">
+                        <xf:input id="value" ref="."/>
+                    </xf:repeat>
+                </xh:body>
+            </xh:html>
+
+        def dispatch(name: String) {
+            document.startOutermostActionHandler()
+            Dispatch.dispatchEvent(new XFormsCustomEvent(document, name, document.getObjectByEffectiveId("model").asInstanceOf[XFormsEventTarget], true, true))
+            document.endOutermostActionHandler()
+        }
+
+        def mips(f: String ⇒ Boolean) = 1 to 4 map ("value·" + _) takeWhile (getObject(_) ne null) map f
+
+        def assertMIPs(readonly: Seq[Boolean], required: Seq[Boolean], valid: Seq[Boolean]) {
+            assert(readonly === mips(isReadonly))
+            assert(required === mips(isRequired))
+            assert(valid === mips(isValid))
+        }
+
+        assertMIPs(Seq(true, false, false), Seq(false, true, false), Seq(true, false, true))
+
+        // Existing nodes move to other positions
+        dispatch("add-first")
+        assertMIPs(Seq(true, false, false, false), Seq(false, true, false, false), Seq(true, true, true, true))
+
+        // The empty node becomes the last one
+        dispatch("remove-last")
+        assertMIPs(Seq(true, false, false), Seq(false, true, false), Seq(true, true, false))
+
+        dispatch("remove-first")
+        assertMIPs(Seq(true, false), Seq(false, true), Seq(true, false))
+    }
+
+    @Test def positionDependentExpressions() {
+        def isPositionDependent(expression: String) = Model.PositionDependentXPath.findFirstIn(expression).isDefined
+
+        assert(Seq("position() = 1", "last()", "count(../item) gt 1", "preceding-sibling::item", "following :: item", "../item[2]") forall isPositionDependent)
+        assert(Seq(". > 0", "sum(../item)", "../item[. = 'a']", "xs:integer(.) ge 10", "$position") forall (! isPositionDependent(_)))
+    }
+
     // TODO: more tests
 }
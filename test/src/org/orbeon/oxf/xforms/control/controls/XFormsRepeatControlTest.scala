@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.control.controls
+
+import collection.JavaConverters._
+import org.dom4j.Element
+import org.junit.Test
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.XPathCache
+import org.orbeon.oxf.xforms.XFormsUtils
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils
+import org.orbeon.saxon.dom4j.DocumentWrapper
+import org.orbeon.saxon.om.Item
+import org.orbeon.saxon.value.StringValue
+import org.scalatest.junit.AssertionsForJUnit
+import XFormsRepeatControl.findNodeIndexes
+
+class XFormsRepeatControlTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    @Test def findNodeIndexesMatchesItemComparison() {
+
+        val document = Dom4jUtils.readDom4j("""<items><item id="1">a</item><item id="2">b</item><item id="3">c</item><item id="4">d</item><item id="5">e</item></items>""")
+        val wrapper = new DocumentWrapper(document, null, XPathCache.getGlobalConfiguration)
+
+        val elements = document.getRootElement.elements.asScala map (_.asInstanceOf[Element])
+        val attributes = elements map (_.attribute("id"))
+
+        // Wrap each time, as a new evaluation of the repeat expression returns new wrappers for the same nodes
+        def nodes(indexes: Int*): Seq[Item] = indexes map (i ⇒ wrapper.wrap(elements(i)))
+        def attributeNodes(indexes: Int*): Seq[Item] = indexes map (i ⇒ wrapper.wrap(attributes(i)))
+        def strings(values: String*): Seq[Item] = values map (StringValue.makeStringValue(_))
+
+        // Items before and after, from the same evaluation or not
+        val old = nodes(0, 1, 2, 3)
+        val cases = Seq(
+            "same"          → (old, old),
+            "rewrapped"     → (old, nodes(0, 1, 2, 3)),
+            "reordered"     → (old, nodes(3, 1, 0, 2)),
+            "duplicated"    → (old, nodes(0, 2, 0, 2, 1, 1)),
+            "removed"       → (old, nodes(1, 3)),
+            "inserted"      → (old, nodes(0, 4, 1, 2, 4, 3)),
+            "all removed"   → (old, Seq()),
+            "attributes"    → (attributeNodes(0, 1, 2), attributeNodes(2, 0, 4)),
+            "elements and attributes" → (old, attributeNodes(0, 1) ++ nodes(1, 0)),
+            "atomic values" → (strings("a", "b", "c"), strings("c", "a", "a", "d")),
+            "mixed"         → (nodes(0, 1) ++ strings("a", "b"), strings("b") ++ nodes(1) ++ strings("a") ++ nodes(0))
+        )
+
+        // Same results as comparing items one by one, in both directions
+        for ((name, (nodeset1, nodeset2)) ← cases; (from, to) ← Seq(nodeset1 → nodeset2, nodeset2 → nodeset1))
+            assert(findNodeIndexes(from.asJava, to.asJava).toSeq === compareItemsIndexes(from, to), name)
+
+        // Expected results
+        assert(findNodeIndexes(old.asJava, nodes(3, 1, 0, 2).asJava).toSeq === Seq(2, 1, 3, 0))
+        assert(findNodeIndexes(old.asJava, nodes(0, 2, 0, 2, 1, 1).asJava).toSeq === Seq(0, 4, 1, -1))
+        assert(findNodeIndexes(old.asJava, nodes(1, 3).asJava).toSeq === Seq(-1, 0, -1, 1))
+    }
+
+    // Indexes as found before findNodeIndexes used the underlying nodes
+    private def compareItemsIndexes(nodeset1: Seq[Item], nodeset2: Seq[Item]) =
+        nodeset1 map (item ⇒ nodeset2 indexWhere (XFormsUtils.compareItems(_, item)))
+}
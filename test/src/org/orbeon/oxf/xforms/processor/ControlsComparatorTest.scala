@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.processor
+
+import org.junit.{Before, Test}
+import org.orbeon.oxf.test.DocumentTestBase
+import org.orbeon.oxf.xforms.event.{Dispatch, XFormsEventTarget}
+import org.orbeon.oxf.xforms.event.events.XFormsCustomEvent
+import org.orbeon.oxf.xml.{TransformerUtils, SAXStore, ContentHandlerHelper}
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils
+import org.scalatest.junit.AssertionsForJUnit
+
+class ControlsComparatorTest extends DocumentTestBase with AssertionsForJUnit {
+
+    @Before def setupDocument(): Unit =
+        this setupDocument
+            <xh:html xmlns:xf="http://www.w3.org/2002/xforms"
+                     xmlns:xh="http://www.w3.org/1999/xhtml"
+                     xmlns:xxf="http://orbeon.org/oxf/xml/xforms"
+                     xmlns:ev="http://www.w3.org/2001/xml-events">
+                <xh:head>
+                    <xf:model id="model">
+                        <xf:instance id="instance">
+                            <instance>
+                                <value>1</value>
+                                <label>Label</label>
+                                <relevant>true</relevant>
+                                <choice/>
+                                <rows>
+                                    <row>a</row>
+                                    <row>b</row>
+                                </rows>
+                                <unchanged>1</unchanged>
+                                <unchanged>2</unchanged>
+                                <unchanged>3</unchanged>
+                            </instance>
+                        </xf:instance>
+                        <xf:instance id="items">
+                            <items>
+                                <item>a</item>
+                            </items>
+                        </xf:instance>
+                        <xf:bind ref="value" relevant="../relevant = 'true'"/>
+
+                        <xf:setvalue ev:event="change-value" ref="value" value="xs:integer(.) + 1"/>
+                        <xf:setvalue ev:event="change-label" ref="label" value="'New label'"/>
+                        <xf:setvalue ev:event="change-relevance" ref="relevant" value="if (. = 'true') then 'false' else 'true'"/>
+                        <xf:insert ev:event="change-itemset" ref="instance('items')/item" origin="xf:element('item', 'b')"/>
+                        <xf:toggle ev:event="change-switch" case="case-2"/>
+                        <xxf:show ev:event="change-dialog" dialog="dialog"/>
+                        <xf:insert ev:event="insert-row" ref="rows/row" origin="xf:element('row', 'c')"/>
+                        <xf:setvalue ev:event="change-row" ref="rows/row[1]" value="'z'"/>
+                        <xf:delete ev:event="delete-row" ref="rows/row[1]"/>
+                    </xf:model>
+                </xh:head>
+                <xh:body>
+                    <xf:input id="value" ref="value">
+                        <xf:label ref="../label"/>
+                    </xf:input>
+                    <xf:select1 id="select" ref="choice">
+                        <xf:label>Choice</xf:label>
+                        <xf:itemset ref="instance('items')/item">
+                            <xf:label ref="."/>
+                            <xf:value ref="."/>
+                        </xf:itemset>
+                    </xf:select1>
+                    <xf:switch id="switch">
+                        <xf:case id="case-1">
+                            <xf:output id="in-case-1" ref="unchanged[1]"/>
+                        </xf:case>
+                        <xf:case id="case-2">
+                            <xf:output id="in-case-2" ref="unchanged[2]"/>
+                        </xf:case>
+                    </xf:switch>
+                    <xxf:dialog id="dialog">
+                        <xf:label>Dialog</xf:label>
+                        <xf:output id="in-dialog" ref="unchanged[3]"/>
+                    </xxf:dialog>
+                    <xf:repeat id="rows" ref="rows/row">
+                        <xf:input id="row" ref=".">
+                            <xf:label>Row</xf:label>
+                        </xf:input>
+                    </xf:repeat>
+                    <xf:group id="unchanged-group">
+                        <xf:repeat ref="unchanged">
+                            <xf:output ref="."/>
+                        </xf:repeat>
+                    </xf:group>
+                </xh:body>
+            </xh:html>
+
+    @Test def valueChange()        = assertSameDiff("change-value")
+    @Test def itemsetChange()      = assertSameDiff("change-itemset")
+    @Test def lhhaChange()         = assertSameDiff("change-label")
+    @Test def relevanceChange()    = assertSameDiff("change-relevance")
+    @Test def switchChange()       = assertSameDiff("change-switch")
+    @Test def dialogChange()       = assertSameDiff("change-dialog")
+    @Test def repeatIterationChanges() {
+        assertSameDiff("insert-row")
+        assertSameDiff("change-row")
+        assertSameDiff("delete-row")
+    }
+
+    @Test def changesOverSeveralRequests() {
+        for (name ← Seq("change-value", "change-label", "change-relevance", "change-switch", "insert-row", "change-relevance", "change-row"))
+            assertSameDiff(name)
+    }
+
+    // Run the action handling the given event, and check that the differences are the same whether unchanged subtrees
+    // are skipped or not
+    private def assertSameDiff(eventName: String) {
+        dispatch(eventName)
+
+        val (withoutSkipping, comparedWithoutSkipping, skippedWithoutSkipping) = diff(allowSkipping = false)
+        val (withSkipping, comparedWithSkipping, skippedWithSkipping) = diff(allowSkipping = true)
+
+        // The change is output, and the same way in both cases
+        assert(! withoutSkipping.getRootElement.elements.isEmpty, eventName)
+        assert(Dom4jUtils.domToString(withSkipping) === Dom4jUtils.domToString(withoutSkipping), eventName)
+
+        // Skipping actually happens
+        assert(skippedWithoutSkipping === 0)
+        assert(skippedWithSkipping > 0, eventName)
+        assert(comparedWithSkipping < comparedWithoutSkipping, eventName)
+
+        // Next request
+        document.afterExternalEvents()
+        document.afterUpdateResponse()
+        document.beforeExternalEvents(null)
+    }
+
+    private def dispatch(eventName: String) {
+        document.startOutermostActionHandler()
+        Dispatch.dispatchEvent(new XFormsCustomEvent(document, eventName, document.getObjectByEffectiveId("model").asInstanceOf[XFormsEventTarget], true, true))
+        document.endOutermostActionHandler()
+    }
+
+    private def diff(allowSkipping: Boolean) = {
+        val controls = document.getControls
+        val saxStore = new SAXStore
+        val ch = new ContentHandlerHelper(saxStore)
+
+        ch.startDocument()
+        ch.startElement("xxf", "http://orbeon.org/oxf/xml/xforms", "control-values")
+
+        val comparator = new ControlsComparator(ch, document, null, false, allowSkipping)
+        comparator.diff(controls.getInitialControlTree.getChildren, controls.getCurrentControlTree.getChildren)
+
+        ch.endElement()
+        ch.endDocument()
+
+        (TransformerUtils.saxStoreToDom4jDocument(saxStore), comparator.getComparedCount, comparator.getSkippedCount)
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ *  Copyright (C) 2012 Orbeon, Inc.
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the
+ *  GNU Lesser General Public License as published by the Free Software Foundation; either version
+ *  2.1 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *  See the GNU Lesser General Public License for more details.
+ *
+ *  The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.script
+
+import collection.mutable.ListBuffer
+import java.io.{FileOutputStream, File}
+import java.net.URLClassLoader
+import java.util.Arrays
+import java.util.jar.{JarFile, JarEntry, Manifest, JarOutputStream}
+import org.apache.commons.io.FileUtils
+import org.junit.{After, Test}
+import org.scalatest.junit.AssertionsForJUnit
+
+class CoffeeScriptCacheTest extends AssertionsForJUnit {
+
+    private val files = ListBuffer[File]()
+
+    @After def deleteFiles(): Unit =
+        files foreach FileUtils.deleteQuietly
+
+    @Test def diskEntryKeyedOnSourceAndCompiler() {
+        val file = new File(newDirectory(), "ops/script.js")
+        val javascript = "var a = 1;".getBytes("UTF-8")
+        val digest = CoffeeScriptCache.sourceDigest("a = 1")
+
+        CoffeeScriptCache.writeToDisk(file, digest, javascript)
+        assert(Arrays.equals(javascript, CoffeeScriptCache.readFromDisk(file, digest).get))
+
+        // The modification date doesn't matter
+        file.setLastModified(0)
+        assert(Arrays.equals(javascript, CoffeeScriptCache.readFromDisk(file, digest).get))
+
+        // Changed source
+        assert(CoffeeScriptCache.sourceDigest("a = 2") != digest)
+        assert(CoffeeScriptCache.readFromDisk(file, CoffeeScriptCache.sourceDigest("a = 2")) === None)
+
+        // File without digest
+        FileUtils.writeByteArrayToFile(file, javascript)
+        assert(CoffeeScriptCache.readFromDisk(file, digest) === None)
+
+        // No file
+        assert(CoffeeScriptCache.readFromDisk(new File(file.getParentFile, "other.js"), digest) === None)
+    }
+
+    @Test def findCoffeeScriptInClassPath() {
+        val jar = newJar("ops/javascript/a.coffee", "ops/javascript/a.js", "xbl/b/b.coffee")
+        assert(CoffeeScriptCache.jarCoffeePaths(new JarFile(jar)) === Seq("/ops/javascript/a.coffee", "/xbl/b/b.coffee"))
+
+        val directory = newDirectory()
+        FileUtils.writeStringToFile(new File(directory, "apps/c.coffee"), "c = 1")
+        FileUtils.writeStringToFile(new File(directory, "apps/c.js"), "var c = 1;")
+
+        val classLoader = new URLClassLoader(Array(jar.toURI.toURL, directory.toURI.toURL), null)
+        assert(CoffeeScriptCache.classPathCoffeePaths(classLoader).toSet === Set("/ops/javascript/a.coffee", "/xbl/b/b.coffee", "/apps/c.coffee"))
+    }
+
+    private def newDirectory() = {
+        val directory = File.createTempFile("coffeescript", "")
+        directory.delete()
+        directory.mkdirs()
+        files += directory
+        directory
+    }
+
+    private def newJar(entries: String*) = {
+        val jar = File.createTempFile("coffeescript", ".jar")
+        files += jar
+
+        val manifest = new Manifest
+        manifest.getMainAttributes.put(java.util.jar.Attributes.Name.MANIFEST_VERSION, "1.0")
+
+        val os = new JarOutputStream(new FileOutputStream(jar), manifest)
+        try {
+            for (entry ← entries) {
+                os.putNextEntry(new JarEntry(entry))
+                os.write(entry.getBytes("UTF-8"))
+                os.closeEntry()
+            }
+        } finally
+            os.close()
+
+        jar
+    }
+}
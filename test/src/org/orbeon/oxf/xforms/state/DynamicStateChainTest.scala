@@ -0,0 +1,63 @@
+/**
+ *  Copyright (C) 2012 Orbeon, Inc.
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the
+ *  GNU Lesser General Public License as published by the Free Software Foundation; either version
+ *  2.1 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *  See the GNU Lesser General Public License for more details.
+ *
+ *  The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import org.scalatest.junit.AssertionsForJUnit
+import org.junit.Test
+import XFormsOperations._
+import XFormsProtocols._
+
+class DynamicStateChainTest extends AssertionsForJUnit {
+
+    def instance(id: String, content: String) = InstanceState(id, "model", Right(content), false, true)
+
+    def state(sequence: Long, instances: List[InstanceState]) =
+        DynamicState("uuid", sequence, None, None, None, None, None,
+            toByteSeq(List[String]()), None, toByteSeq(Set[String]()), None,
+            toByteSeq(Option[org.orbeon.oxf.xml.SAXStore](None)), toByteSeq(instances), toByteSeq(List[ControlState]()))
+
+    @Test def applyPatches() {
+
+        val a = instance("a", "<a/>")
+        val b = instance("b", "<b/>")
+
+        val base = state(1, List(a, b))
+
+        // Only b changed
+        val b2 = instance("b", "<b>2</b>")
+        val patch1 = DynamicStatePatch(toByteSeq(List(b2)), List("a", "b"))
+
+        // a removed, c added
+        val c = instance("c", "<c/>")
+        val patch2 = DynamicStatePatch(toByteSeq(List(c)), List("b", "c"))
+
+        // Other parts of the state come from the head
+        val chain = DynamicStateChain(base, List(patch1, patch2), state(3, Nil), Map())
+
+        val current = chain.dynamicState
+        assert(current.sequence === 3)
+        assert(current.decodeInstances === List(b2, c))
+
+        // Compacting keeps the same state
+        val compacted = chain.compact
+        assert(compacted.patches.isEmpty)
+        assert(compacted.head eq compacted.base)
+        assert(compacted.dynamicState.decodeInstances === List(b2, c))
+    }
+
+    @Test def noPatches() {
+        val base = state(1, List(instance("a", "<a/>")))
+        assert(DynamicStateChain(base, Nil, base, Map()).dynamicState eq base)
+    }
+}
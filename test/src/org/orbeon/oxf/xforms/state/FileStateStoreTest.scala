@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import collection.mutable.ListBuffer
+import java.io._
+import org.apache.commons.io.FileUtils
+import org.junit.{After, Test}
+import org.orbeon.oxf.processor.test.TestExternalContext.TestSession
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.xforms.XFormsContainingDocument
+import org.orbeon.oxf.xforms.analysis.XFormsStaticStateTest
+import org.scalatest.junit.AssertionsForJUnit
+
+class FileStateStoreTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    private val directories = ListBuffer[File]()
+    private val stores = ListBuffer[FileStateStore]()
+
+    @After def deleteStores() {
+        stores foreach (_.close())
+        directories foreach FileUtils.deleteQuietly
+    }
+
+    @Test def storeAndRemoveConcurrently() {
+        val store = newStore(newDirectory())
+
+        // All the documents share the same static state, which a document of another session stops using meanwhile
+        for (i ← 1 to 10) {
+            val expiringSession = new TestSession("expiring-" + i)
+            store.storeDocumentState(newDocument(), expiringSession, true)
+
+            val session = new TestSession("session-" + i)
+            val document = newDocument()
+
+            val threads = Seq(
+                thread(expiringSession.expireSession()),
+                thread(store.storeDocumentState(document, session, true)))
+
+            threads foreach (_.start())
+            threads foreach (_.join())
+
+            assert(store.findState(session, document.getUUID, true) ne null)
+        }
+    }
+
+    @Test def keepStaticStateOfDocumentsWithoutSession() {
+        val store = newStore(newDirectory())
+
+        val documentWithoutSession = newDocument()
+        store.storeDocumentState(documentWithoutSession, null, true)
+
+        val session = new TestSession("session")
+        store.storeDocumentState(newDocument(), session, true)
+        session.expireSession()
+
+        assert(store.findState(null, documentWithoutSession.getUUID, true) ne null)
+    }
+
+    @Test def recoverAfterRestart() {
+        val directory = newDirectory()
+        val session = new TestSession("session")
+        val document = newDocument()
+
+        val store = newStore(directory)
+        store.storeDocumentState(document, session, true)
+        store.storeDocumentState(document, session, false)
+        restart(store)
+
+        // The new store finds the states written by the previous one
+        val recoveredStore = newStore(directory)
+        val state = recoveredStore.findState(session, document.getUUID, false)
+        assert(state ne null)
+        assert(state.staticState === document.getStaticState.encodedState)
+        assert(state.dynamicState.uuid === document.getUUID)
+
+        // The recovered document now belongs to the session and is removed with it
+        session.expireSession()
+        restart(recoveredStore)
+
+        assert(newStore(directory).findState(null, document.getUUID, false) eq null)
+    }
+
+    @Test def removeUnusedRecoveredDocuments() {
+        val directory = newDirectory()
+        val document = newDocument()
+
+        val store = newStore(directory)
+        store.storeDocumentState(document, new TestSession("session"), true)
+        restart(store)
+
+        // The document is not found again before the timeout
+        val recoveredStore = newStore(directory, unattachedTimeout = 0)
+        Thread.sleep(10)
+        recoveredStore.storeDocumentState(newDocument(), null, true)
+
+        assert(recoveredStore.findState(null, document.getUUID, true) eq null)
+    }
+
+    @Test def removeUnusedDocumentsWithoutSession() {
+        val store = newStore(newDirectory(), unattachedTimeout = 0)
+
+        val documentWithoutSession = newDocument()
+        store.storeDocumentState(documentWithoutSession, null, true)
+
+        val documentWithSession = newDocument()
+        store.storeDocumentState(documentWithSession, new TestSession("session"), true)
+
+        Thread.sleep(10)
+        store.storeDocumentState(newDocument(), null, true)
+
+        assert(store.findState(null, documentWithoutSession.getUUID, true) eq null)
+        assert(store.findState(null, documentWithSession.getUUID, true) ne null)
+    }
+
+    @Test def dropInstanceStampsOfPreviousRun() {
+        val document = newDocument()
+        val base = DynamicState(document)
+        val stamps = Map("instance" → 1L)
+
+        assert(StoredChain(0, None, stamps, StoredChain.CurrentRun).chain(base, Nil).instanceStamps === stamps)
+        assert(StoredChain(0, None, stamps, "previous-run").chain(base, Nil).instanceStamps.isEmpty)
+    }
+
+    @Test def readOnlyStateClasses() {
+        def roundTrip(value: AnyRef) = {
+            val os = new ByteArrayOutputStream
+            val objectOS = new ObjectOutputStream(os)
+            objectOS.writeObject(value)
+            objectOS.close()
+            new StateObjectInputStream(new ByteArrayInputStream(os.toByteArray)).readObject()
+        }
+
+        val storedChain = StoredChain(1, None, Map("instance" → 1L), StoredChain.CurrentRun)
+        assert(roundTrip(storedChain) === storedChain)
+
+        val patch = DynamicStatePatch(Array[Byte](1, 2, 3).toSeq, List("instance"))
+        assert(roundTrip(patch) === patch)
+
+        intercept[InvalidClassException] {
+            roundTrip(new java.util.ArrayList[String])
+        }
+    }
+
+    private def newDocument() =
+        new XFormsContainingDocument(XFormsStaticStateTest.getStaticState("oxf:/org/orbeon/oxf/xforms/state/server-cache.xhtml"), null, null, null)
+
+    private def newDirectory() = {
+        val directory = File.createTempFile("state-store", "")
+        directory.delete()
+        directories += directory
+        directory
+    }
+
+    private def newStore(directory: File, unattachedTimeout: Long = 60000) = {
+        val store = new FileStateStore(directory, 10, 10, unattachedTimeout)
+        stores += store
+        store
+    }
+
+    // Stop a store as a restart would, after writing its pending values
+    private def restart(store: FileStateStore) {
+        store.close()
+        stores -= store
+    }
+
+    private def thread(body: ⇒ Unit) = new Thread { override def run() = body }
+}
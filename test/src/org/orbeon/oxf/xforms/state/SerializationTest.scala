@@ -19,11 +19,14 @@ import org.orbeon.oxf.test.DocumentTestBase
 import XFormsOperations._
 import XFormsProtocols._
 import org.orbeon.oxf.xml._
-import org.xml.sax.Attributes
+import org.xml.sax.{Locator, Attributes}
+import org.xml.sax.helpers.{AttributesImpl, LocatorImpl}
+import collection.mutable.ListBuffer
 import collection.JavaConverters._
 import org.junit.{Assume, Test}
 import org.orbeon.oxf.common.Version
-import org.orbeon.oxf.xforms.XFormsStaticStateImpl
+import org.orbeon.oxf.pipeline.api.XMLReceiver
+import org.orbeon.oxf.xforms.{XFormsConstants, XFormsStaticStateImpl}
 
 class SerializationTest extends DocumentTestBase with AssertionsForJUnit {
 
@@ -56,6 +59,20 @@ class SerializationTest extends DocumentTestBase with AssertionsForJUnit {
         assert(Dom4j.compareDocumentsIgnoreNamespacesInScope(simpleDoc, deserializedDoc))
     }
     
+    @Test def saxStoreWithSpill() {
+
+        // Spill all character content
+        val saxStore = new SAXStore
+        saxStore.setSpillThreshold(1)
+        TransformerUtils.writeDom4j(simpleDoc, saxStore)
+
+        assert(Dom4j.compareDocumentsIgnoreNamespacesInScope(simpleDoc, TransformerUtils.saxStoreToDom4jDocument(saxStore)))
+
+        // Spilled content is serialized along with the rest
+        val deserializedSAXStore = fromByteSeq[SAXStore](toByteSeq(saxStore))
+        assert(Dom4j.compareDocumentsIgnoreNamespacesInScope(simpleDoc, TransformerUtils.saxStoreToDom4jDocument(deserializedSAXStore)))
+    }
+
     @Test def saxStoreWithMarks() {
 
         // Transform to SAXStore while collecting marks
@@ -92,6 +109,107 @@ class SerializationTest extends DocumentTestBase with AssertionsForJUnit {
             assert(Dom4j.compareDocumentsIgnoreNamespacesInScope(expected, actual))
     }
 
+    @Test def saxStoreReplaysSameEvents() {
+
+        val saxStore = new SAXStore
+        writeEvents(saxStore)
+
+        val deserializedSAXStore = fromByteSeq[SAXStore](toByteSeq(saxStore))
+
+        // Same events, including locations
+        assert(replayedEvents(deserializedSAXStore.replay(_)) === replayedEvents(saxStore.replay(_)))
+
+        // Same marks, which replay the same events
+        val marks = saxStore.getMarks.asScala
+        val deserializedMarks = deserializedSAXStore.getMarks.asScala
+        assert(deserializedMarks.map(_.id) === marks.map(_.id))
+        for ((mark, deserializedMark) ← marks zip deserializedMarks)
+            assert(replayedEvents(deserializedMark.replay(_)) === replayedEvents(mark.replay(_)))
+
+        // Same symbol table and buffers
+        assert(deserializedSAXStore.getApproximateSize === saxStore.getApproximateSize)
+        assert(deserializedSAXStore.getAttributesCount === saxStore.getAttributesCount)
+        assert(toByteSeq(deserializedSAXStore) === toByteSeq(saxStore))
+
+        // Recording more events reuses the deserialized symbols
+        for (store ← Seq(saxStore, deserializedSAXStore))
+            writeEvents(store)
+        assert(deserializedSAXStore.getApproximateSize === saxStore.getApproximateSize)
+        assert(replayedEvents(deserializedSAXStore.replay(_)) === replayedEvents(saxStore.replay(_)))
+    }
+
+    // Write events with repeated strings, changing system ids including null ones, and marks
+    private def writeEvents(saxStore: SAXStore) {
+
+        val locator = new LocatorImpl
+        locator.setPublicId("-//Orbeon//Test")
+        saxStore.setDocumentLocator(locator)
+
+        def at(systemId: String, line: Int) {
+            locator.setSystemId(systemId)
+            locator.setLineNumber(line)
+            locator.setColumnNumber(line * 2)
+        }
+
+        def attributes(nameValues: (String, String)*) = {
+            val result = new AttributesImpl
+            for ((name, value) ← nameValues)
+                result.addAttribute("", name, name, "CDATA", value)
+            result
+        }
+
+        def text(receiver: (Array[Char], Int, Int) ⇒ Unit, s: String) = receiver(s.toCharArray, 0, s.length)
+
+        at("oxf:/a.xml", 1)
+        saxStore.startDocument()
+        saxStore.startPrefixMapping("xf", XFormsConstants.XFORMS_NAMESPACE_URI)
+        saxStore.startElement("", "root", "root", attributes("id" → "root"))
+        for (i ← 1 to 3) {
+            at(if (i == 2) null else "oxf:/b.xml", i + 1)
+            saxStore.getMark("item-" + i)
+            saxStore.startElement(XFormsConstants.XFORMS_NAMESPACE_URI, "item", "xf:item", attributes("id" → ("item-" + i), "class" → "item"))
+            text(saxStore.characters, "value " + i)
+            text(saxStore.comment, "comment")
+            saxStore.processingInstruction("pi", "data")
+            saxStore.endElement(XFormsConstants.XFORMS_NAMESPACE_URI, "item", "xf:item")
+        }
+        at("oxf:/a.xml", 10)
+        saxStore.endElement("", "root", "root")
+        saxStore.endPrefixMapping("xf")
+        saxStore.endDocument()
+    }
+
+    // Events replayed, as strings including their location
+    private def replayedEvents(replay: XMLReceiver ⇒ Unit) = {
+
+        val events = ListBuffer[String]()
+
+        replay(new XMLReceiverAdapter {
+
+            var locator: Locator = null
+
+            def add(event: String) =
+                events += event + (if (locator eq null) "" else " at " + Seq(locator.getPublicId, locator.getSystemId, locator.getLineNumber, locator.getColumnNumber).mkString(":"))
+
+            override def setDocumentLocator(locator: Locator) { this.locator = locator }
+            override def startDocument() { add("startDocument") }
+            override def endDocument() { add("endDocument") }
+            override def startPrefixMapping(prefix: String, uri: String) { add("startPrefixMapping " + prefix + " " + uri) }
+            override def endPrefixMapping(prefix: String) { add("endPrefixMapping " + prefix) }
+            override def startElement(uri: String, localname: String, qName: String, attributes: Attributes) {
+                val attributeStrings = 0 until attributes.getLength map
+                    (i ⇒ Seq(attributes.getURI(i), attributes.getLocalName(i), attributes.getQName(i), attributes.getType(i), attributes.getValue(i)).mkString("|"))
+                add("startElement " + uri + " " + localname + " " + qName + " " + attributeStrings.mkString(" "))
+            }
+            override def endElement(uri: String, localname: String, qName: String) { add("endElement " + uri + " " + localname + " " + qName) }
+            override def characters(ch: Array[Char], start: Int, length: Int) { add("characters " + new String(ch, start, length)) }
+            override def comment(ch: Array[Char], start: Int, length: Int) { add("comment " + new String(ch, start, length)) }
+            override def processingInstruction(target: String, data: String) { add("processingInstruction " + target + " " + data) }
+        })
+
+        events.toList
+    }
+
     @Test def dynamicState() {
         val originalDoc = this setupDocument simpleDoc
 
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import org.junit.{After, Test}
+import org.orbeon.oxf.test.DocumentTestBase
+import org.orbeon.oxf.xforms.control.XFormsValueControl
+import org.orbeon.oxf.xforms.control.controls.{XFormsSwitchControl, XFormsRepeatControl}
+import org.orbeon.oxf.xforms.{XFormsConstants, XFormsContainingDocument, XFormsStaticStateImpl}
+import org.scalatest.junit.AssertionsForJUnit
+
+class XFormsInitialStateCacheTest extends DocumentTestBase with AssertionsForJUnit {
+
+    private val cache = XFormsInitialStateCache.instance
+
+    private lazy val templateAndStaticState = {
+        val (template, staticState) = XFormsStaticStateImpl.createFromDocument(
+            <xh:html xmlns:xf="http://www.w3.org/2002/xforms"
+                     xmlns:xh="http://www.w3.org/1999/xhtml"
+                     xmlns:xxf="http://orbeon.org/oxf/xml/xforms"
+                     xmlns:ev="http://www.w3.org/2001/xml-events">
+                <xh:head>
+                    <xf:model id="model" xxf:cache.initial-state="true">
+                        <xf:instance id="instance">
+                            <instance>
+                                <value>1</value>
+                                <items>
+                                    <item>a</item>
+                                    <item>b</item>
+                                    <item>c</item>
+                                </items>
+                                <total/>
+                            </instance>
+                        </xf:instance>
+                        <xf:bind ref="total" calculate="count(../items/item)"/>
+                        <xf:action ev:event="xforms-ready">
+                            <xf:setindex repeat="items" index="2"/>
+                            <xf:toggle case="case-2"/>
+                        </xf:action>
+                    </xf:model>
+                </xh:head>
+                <xh:body>
+                    <xf:input id="value" ref="value"/>
+                    <xf:output id="total" ref="total"/>
+                    <xf:repeat id="items" ref="items/item">
+                        <xf:input id="item" ref="."/>
+                    </xf:repeat>
+                    <xf:switch id="switch">
+                        <xf:case id="case-1"/>
+                        <xf:case id="case-2"/>
+                    </xf:switch>
+                </xh:body>
+            </xh:html>
+        )
+        (AnnotatedTemplate(template), staticState)
+    }
+
+    private def template = templateAndStaticState._1
+    private def staticState = templateAndStaticState._2
+
+    @After def removeInitialState(): Unit =
+        cache.removeInitialState(staticState.digest)
+
+    @Test def documentFromInitialStateEqualsFreshDocument() {
+
+        val fresh = newDocument()
+        cache.storeInitialState(fresh)
+
+        val fromInitialState = documentFromInitialState()
+        assert(fromInitialState ne null)
+        assert(fromInitialState.getUUID != fresh.getUUID)
+
+        assertSameState(fresh, fromInitialState)
+        assert(getValue(fromInitialState, "value") === "1")
+        assert(getValue(fromInitialState, "total") === "3")
+        assert(getValue(fromInitialState, "item" + XFormsConstants.REPEAT_HIERARCHY_SEPARATOR_1 + "2") === "b")
+        assert(fromInitialState.getObjectByEffectiveId("items").asInstanceOf[XFormsRepeatControl].getIndex === 2)
+        assert(fromInitialState.getObjectByEffectiveId("switch").asInstanceOf[XFormsSwitchControl].getSelectedCase.getId === "case-2")
+
+        // A change to a document created from the initial state doesn't affect the initial state
+        setValue(fromInitialState, "value", "2")
+        assert(getValue(fromInitialState, "value") === "2")
+
+        val other = documentFromInitialState()
+        assert(getValue(other, "value") === "1")
+        assertSameState(newDocument(), other)
+    }
+
+    @Test def removedInitialStateNotReused() {
+
+        cache.storeInitialState(newDocument())
+        assert(documentFromInitialState() ne null)
+
+        // Removed state is not used anymore
+        cache.removeInitialState(staticState.digest)
+        assert(documentFromInitialState() eq null)
+
+        // A new initial state replaces the removed one
+        val changed = newDocument()
+        setValue(changed, "value", "2")
+        cache.storeInitialState(changed)
+
+        val fromInitialState = documentFromInitialState()
+        assert(getValue(fromInitialState, "value") === "2")
+        assertSameState(changed, fromInitialState)
+    }
+
+    @Test def documentAfterInitialResponseNotStored() {
+        val document = newDocument()
+        document.afterInitialResponse()
+
+        cache.storeInitialState(document)
+        assert(documentFromInitialState() eq null)
+    }
+
+    private def newDocument() = new XFormsContainingDocument(staticState, template, null, null)
+    private def documentFromInitialState() = cache.createDocument(staticState, template, null, null)
+
+    // The dynamic states are the same, except for the document UUID
+    private def assertSameState(expected: XFormsContainingDocument, actual: XFormsContainingDocument) =
+        assert(DynamicState(actual).copy(uuid = "").toXML.asXML === DynamicState(expected).copy(uuid = "").toXML.asXML)
+
+    private def getValue(document: XFormsContainingDocument, effectiveId: String) =
+        document.getObjectByEffectiveId(effectiveId).asInstanceOf[XFormsValueControl].getValue
+
+    private def setValue(document: XFormsContainingDocument, effectiveId: String, value: String) {
+        document.startOutermostActionHandler()
+        document.getObjectByEffectiveId(effectiveId).asInstanceOf[XFormsValueControl].storeExternalValue(value)
+        document.endOutermostActionHandler()
+    }
+}
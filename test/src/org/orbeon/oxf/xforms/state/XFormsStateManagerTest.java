@@ -17,6 +17,7 @@ import org.apache.commons.lang.StringUtils;
 import org.junit.Test;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.pipeline.api.ExternalContext;
+import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.processor.test.TestExternalContext;
 import org.orbeon.oxf.test.ResourceManagerTestBase;
 import org.orbeon.oxf.util.NetUtils;
@@ -33,6 +34,8 @@ import org.orbeon.oxf.xforms.event.events.XXFormsValue;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
 
 import static junit.framework.Assert.*;
 
@@ -83,6 +86,200 @@ public class XFormsStateManagerTest extends ResourceManagerTestBase {
         assertNull(XFormsDocumentCache.instance().takeDocument(document.getUUID()));
     }
 
+    @Test
+    public void testLockTimeout() throws Exception {
+
+        final XFormsContainingDocument document = createCachedDocument();
+        final XFormsStateLifecycle.RequestParameters parameters = serverParameters(document.getUUID());
+        final Lock lock = XFormsStateManager.getDocumentLock(document.getUUID());
+
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Hold the document lock in another thread
+            final Future<?> holder = executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    lock.lock();
+                    try {
+                        locked.countDown();
+                        release.await();
+                    } finally {
+                        lock.unlock();
+                    }
+                    return null;
+                }
+            });
+            locked.await();
+
+            final long timeoutCount = XFormsStateManager.getLockTimeoutCount();
+            final long lockCount = XFormsStateManager.getLockCount();
+            final long startTime = System.currentTimeMillis();
+            try {
+                getStateManager().beforeUpdate(parameters, 2, 50);
+                fail();
+            } catch (OXFException e) {
+                // Expected
+            }
+            assertTrue(System.currentTimeMillis() - startTime >= 50);
+            assertEquals(timeoutCount + 1, XFormsStateManager.getLockTimeoutCount());
+            assertEquals(lockCount, XFormsStateManager.getLockCount());
+
+            release.countDown();
+            holder.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The lock is now available within the timeout
+        final XFormsContainingDocument updatedDocument = getStateManager().beforeUpdate(parameters, 2, 50);
+        assertSame(document, updatedDocument);
+        stateManager.afterUpdate(updatedDocument, true);
+    }
+
+    @Test
+    public void testLockMetrics() throws Exception {
+
+        final XFormsContainingDocument document = createCachedDocument();
+        final XFormsStateLifecycle.RequestParameters parameters = serverParameters(document.getUUID());
+        final Lock lock = XFormsStateManager.getDocumentLock(document.getUUID());
+
+        final long lockCount = XFormsStateManager.getLockCount();
+        final long waitTime = XFormsStateManager.getLockWaitTime();
+        final long holdTime = XFormsStateManager.getLockHoldTime();
+
+        // Hold the lock for a while
+        final XFormsContainingDocument updatedDocument = getStateManager().beforeUpdate(parameters, 2, 0);
+        Thread.sleep(30);
+        stateManager.afterUpdate(updatedDocument, true);
+
+        assertEquals(lockCount + 1, XFormsStateManager.getLockCount());
+        assertTrue(XFormsStateManager.getLockHoldTime() - holdTime >= 30);
+
+        // Wait for the lock while another thread holds it
+        final CountDownLatch locked = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> holder = executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    lock.lock();
+                    try {
+                        locked.countDown();
+                        Thread.sleep(100);
+                    } finally {
+                        lock.unlock();
+                    }
+                    return null;
+                }
+            });
+            locked.await();
+
+            final XFormsContainingDocument waitingDocument = getStateManager().beforeUpdate(parameters, 3, 0);
+            stateManager.afterUpdate(waitingDocument, true);
+            holder.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(lockCount + 2, XFormsStateManager.getLockCount());
+        assertTrue(XFormsStateManager.getLockWaitTime() - waitTime >= 50);
+    }
+
+    @Test
+    public void testRetryWaitsWithoutTimeout() throws Exception {
+
+        final XFormsContainingDocument document = createCachedDocument();
+        final XFormsStateLifecycle.RequestParameters parameters = serverParameters(document.getUUID());
+
+        // Run the request with sequence number 2 in another thread with the same session, holding the lock until told
+        // to complete
+        final PipelineContext forkedContext = PipelineContext.get().fork(Collections.<Object, Object>emptyMap());
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch complete = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> request = executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    forkedContext.run(new Runnable() {
+                        public void run() {
+                            final XFormsContainingDocument updatedDocument = getStateManager().beforeUpdate(parameters, 2, 0);
+                            try {
+                                locked.countDown();
+                                complete.await();
+                                Thread.sleep(100);
+                            } catch (InterruptedException e) {
+                                throw new OXFException(e);
+                            } finally {
+                                stateManager.afterUpdate(updatedDocument, true);
+                            }
+                        }
+                    });
+                    return null;
+                }
+            });
+            locked.await();
+
+            final long timeoutCount = XFormsStateManager.getLockTimeoutCount();
+            final long retryCount = XFormsStateManager.getRetryRequestCount();
+
+            // A new request times out
+            try {
+                getStateManager().beforeUpdate(parameters, 3, 50);
+                fail();
+            } catch (OXFException e) {
+                // Expected
+            }
+            assertEquals(timeoutCount + 1, XFormsStateManager.getLockTimeoutCount());
+            assertEquals(retryCount, XFormsStateManager.getRetryRequestCount());
+
+            // A retry of the request holding the lock waits beyond the timeout until the lock is released
+            complete.countDown();
+            final XFormsContainingDocument retriedDocument = getStateManager().beforeUpdate(parameters, 2, 50);
+            try {
+                request.get();
+                assertSame(document, retriedDocument);
+                assertEquals(timeoutCount + 1, XFormsStateManager.getLockTimeoutCount());
+                assertEquals(retryCount + 1, XFormsStateManager.getRetryRequestCount());
+            } finally {
+                stateManager.afterUpdate(retriedDocument, true);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private XFormsStateManager getStateManager() {
+        return (XFormsStateManager) stateManager;
+    }
+
+    // Create a document kept in the document cache, as after the initial response
+    private XFormsContainingDocument createCachedDocument() {
+        NetUtils.getSession(true);
+        final XFormsStaticState staticState = XFormsStaticStateTest.getStaticState("oxf:/org/orbeon/oxf/xforms/state/server-cache.xhtml");
+        final XFormsContainingDocument document = new XFormsContainingDocument(staticState, null, null, null);
+
+        document.afterInitialResponse();
+        stateManager.afterInitialResponse(document);
+
+        return document;
+    }
+
+    private static XFormsStateLifecycle.RequestParameters serverParameters(final String uuid) {
+        return new XFormsStateLifecycle.RequestParameters() {
+            public String getUUID() {
+                return uuid;
+            }
+
+            public String getEncodedClientStaticState() {
+                return null;
+            }
+
+            public String getEncodedClientDynamicState() {
+                return null;
+            }
+        };
+    }
+
     @Test(expected=OXFException.class)
     public void testClientStaticStateEncrypted() {
         final XFormsState state = createDocumentGetState();
@@ -106,9 +303,9 @@ public class XFormsStateManagerTest extends ResourceManagerTestBase {
         final String staticStateString = stateManager.getClientEncodedStaticState(document);
         final String dynamicStateString = stateManager.getClientEncodedDynamicState(document);
 
-        // X2 is the prefix saying it's encrypted
-        assertTrue(staticStateString.startsWith("X2"));
-        assertTrue(dynamicStateString.startsWith("X2"));
+        // X6 is the prefix saying it's encrypted
+        assertTrue(staticStateString.startsWith("X6"));
+        assertTrue(dynamicStateString.startsWith("X6"));
 
         return new XFormsState(scala.Option.apply(staticState.digest()), staticStateString, DynamicState.apply(document));
     }
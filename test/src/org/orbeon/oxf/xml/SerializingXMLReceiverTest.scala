@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2012 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xml
+
+import java.io.StringWriter
+import javax.xml.transform.stream.StreamResult
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+
+class SerializingXMLReceiverTest extends AssertionsForJUnit {
+
+    val Documents = Seq(
+        """<root/>""",
+        """<root a="1" b="x &lt; y &amp; &quot;z&quot;">text &lt;&gt;&amp; and more</root>""",
+        """<root xmlns="http://a" xmlns:b="http://b"><b:child b:att="&#xA;&#x9;"><child xmlns=""/></b:child></root>""",
+        """<root><!-- comment --><?target data?><?empty?><![CDATA[<cdata>]]>&#xD;</root>""",
+        """<root xmlns:p="http://p"><p:a xmlns:p="http://p"/><q:a xmlns:q="http://q"/></root>""",
+        """<root>""" + ("long text " * 1000) + """</root>"""
+    )
+
+    @Test def sameAsIdentityTransformer() {
+        for (document ← Documents; omitXMLDeclaration ← Seq(false, true); standalone ← Seq(null, java.lang.Boolean.TRUE))
+            assert(serializeWithIdentity(document, omitXMLDeclaration, standalone) === serializeDirectly(document, omitXMLDeclaration, standalone))
+    }
+
+    @Test def supportedProperties() {
+        assert(SerializingXMLReceiver.isSupported("xml", "1.0", null, null, "utf-8", false))
+        assert(! SerializingXMLReceiver.isSupported("html", "1.0", null, null, "utf-8", false))
+        assert(! SerializingXMLReceiver.isSupported("xml", "1.1", null, null, "utf-8", false))
+        assert(! SerializingXMLReceiver.isSupported("xml", "1.0", null, "foo.dtd", "utf-8", false))
+        assert(! SerializingXMLReceiver.isSupported("xml", "1.0", null, null, "iso-8859-1", false))
+        assert(! SerializingXMLReceiver.isSupported("xml", "1.0", null, null, "utf-8", true))
+    }
+
+    private def serializeWithIdentity(document: String, omitXMLDeclaration: Boolean, standalone: java.lang.Boolean) = {
+        val writer = new StringWriter
+        val identity = TransformerUtils.getIdentityTransformerHandler
+        TransformerUtils.applyOutputProperties(identity.getTransformer, "xml", "1.0", null, null, "utf-8", omitXMLDeclaration, standalone, false, 0)
+        identity.setResult(new StreamResult(writer))
+        XMLUtils.stringToSAX(document, null, identity, XMLUtils.ParserConfiguration.PLAIN, true)
+        writer.toString
+    }
+
+    private def serializeDirectly(document: String, omitXMLDeclaration: Boolean, standalone: java.lang.Boolean) = {
+        val writer = new StringWriter
+        XMLUtils.stringToSAX(document, null, new SerializingXMLReceiver(writer, "utf-8", omitXMLDeclaration, standalone), XMLUtils.ParserConfiguration.PLAIN, true)
+        writer.toString
+    }
+}
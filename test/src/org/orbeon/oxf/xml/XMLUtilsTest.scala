@@ -15,6 +15,7 @@ package org.orbeon.oxf.xml
 
 import org.scalatest.junit.AssertionsForJUnit
 import org.junit.Test
+import org.xml.sax.Attributes
 
 class XMLUtilsTest extends AssertionsForJUnit {
 
@@ -33,4 +34,32 @@ class XMLUtilsTest extends AssertionsForJUnit {
         assert("_2foos" === XMLUtils.makeNCName("42foos"))
         assert("foo_bar_" === XMLUtils.makeNCName("foo(bar)"))
     }
-}
\ No newline at end of file
+
+    @Test def reuseParsers() {
+
+        // Readers are reused after errors
+        assert(! XMLUtils.isWellFormedXML("<a>"))
+        assert(XMLUtils.isWellFormedXML("<a/>"))
+        assert(! XMLUtils.isWellFormedXML("<a>"))
+        assert(XMLUtils.isWellFormedXML("<a/>"))
+
+        // Nested parsing on the same thread
+        var names = List[String]()
+        class NamesReceiver(nested: Boolean) extends XMLReceiverAdapter {
+            override def startElement(uri: String, localname: String, qName: String, attributes: Attributes) {
+                names ::= localname
+                if (nested)
+                    XMLUtils.stringToSAX("<inner/>", null, new NamesReceiver(false), XMLUtils.ParserConfiguration.PLAIN, false)
+            }
+        }
+
+        XMLUtils.stringToSAX("<outer><child/></outer>", null, new NamesReceiver(true), XMLUtils.ParserConfiguration.PLAIN, false)
+        assert(List("outer", "inner", "child", "inner") === names.reverse)
+
+        // Readers are replaced after a number of parses, and pools can be cleared
+        for (i ← 1 to 250)
+            assert(XMLUtils.isWellFormedXML("<a" + i + "/>"))
+        XMLUtils.clearXMLReaders()
+        assert(XMLUtils.isWellFormedXML("<a/>"))
+    }
+}